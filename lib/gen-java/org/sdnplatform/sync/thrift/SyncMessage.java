@@ -55,6 +55,8 @@ import org.slf4j.LoggerFactory;
   private static final org.apache.thrift.protocol.TField REGISTER_RESPONSE_FIELD_DESC = new org.apache.thrift.protocol.TField("registerResponse", org.apache.thrift.protocol.TType.STRUCT, (short)20);
   private static final org.apache.thrift.protocol.TField CLUSTER_JOIN_REQUEST_FIELD_DESC = new org.apache.thrift.protocol.TField("clusterJoinRequest", org.apache.thrift.protocol.TType.STRUCT, (short)21);
   private static final org.apache.thrift.protocol.TField CLUSTER_JOIN_RESPONSE_FIELD_DESC = new org.apache.thrift.protocol.TField("clusterJoinResponse", org.apache.thrift.protocol.TType.STRUCT, (short)22);
+  private static final org.apache.thrift.protocol.TField SYNC_DIGEST_FIELD_DESC = new org.apache.thrift.protocol.TField("syncDigest", org.apache.thrift.protocol.TType.STRUCT, (short)23);
+  private static final org.apache.thrift.protocol.TField SYNC_DIGEST_RESPONSE_FIELD_DESC = new org.apache.thrift.protocol.TField("syncDigestResponse", org.apache.thrift.protocol.TType.STRUCT, (short)24);
 
   private static final Map<Class<? extends IScheme>, SchemeFactory> schemes = new HashMap<Class<? extends IScheme>, SchemeFactory>();
   static {
@@ -88,6 +90,8 @@ import org.slf4j.LoggerFactory;
   public RegisterResponseMessage registerResponse; // optional
   public ClusterJoinRequestMessage clusterJoinRequest; // optional
   public ClusterJoinResponseMessage clusterJoinResponse; // optional
+  public SyncDigestMessage syncDigest; // optional
+  public SyncDigestResponseMessage syncDigestResponse; // optional
 
   /** The set of fields this struct contains, along with convenience methods for finding and manipulating them. */
   public enum _Fields implements org.apache.thrift.TFieldIdEnum {
@@ -116,7 +120,9 @@ import org.slf4j.LoggerFactory;
     REGISTER_REQUEST((short)19, "registerRequest"),
     REGISTER_RESPONSE((short)20, "registerResponse"),
     CLUSTER_JOIN_REQUEST((short)21, "clusterJoinRequest"),
-    CLUSTER_JOIN_RESPONSE((short)22, "clusterJoinResponse");
+    CLUSTER_JOIN_RESPONSE((short)22, "clusterJoinResponse"),
+    SYNC_DIGEST((short)23, "syncDigest"),
+    SYNC_DIGEST_RESPONSE((short)24, "syncDigestResponse");
 
     private static final Map<String, _Fields> byName = new HashMap<String, _Fields>();
 
@@ -175,6 +181,10 @@ import org.slf4j.LoggerFactory;
           return CLUSTER_JOIN_REQUEST;
         case 22: // CLUSTER_JOIN_RESPONSE
           return CLUSTER_JOIN_RESPONSE;
+        case 23: // SYNC_DIGEST
+          return SYNC_DIGEST;
+        case 24: // SYNC_DIGEST_RESPONSE
+          return SYNC_DIGEST_RESPONSE;
         default:
           return null;
       }
@@ -215,7 +225,7 @@ import org.slf4j.LoggerFactory;
   }
 
   // isset id assignments
-  private _Fields optionals[] = {_Fields.HELLO,_Fields.ERROR,_Fields.ECHO_REQUEST,_Fields.ECHO_REPLY,_Fields.GET_REQUEST,_Fields.GET_RESPONSE,_Fields.PUT_REQUEST,_Fields.PUT_RESPONSE,_Fields.DELETE_REQUEST,_Fields.DELETE_RESPONSE,_Fields.SYNC_VALUE,_Fields.SYNC_VALUE_RESPONSE,_Fields.SYNC_OFFER,_Fields.SYNC_REQUEST,_Fields.FULL_SYNC_REQUEST,_Fields.CURSOR_REQUEST,_Fields.CURSOR_RESPONSE,_Fields.REGISTER_REQUEST,_Fields.REGISTER_RESPONSE,_Fields.CLUSTER_JOIN_REQUEST,_Fields.CLUSTER_JOIN_RESPONSE};
+  private _Fields optionals[] = {_Fields.HELLO,_Fields.ERROR,_Fields.ECHO_REQUEST,_Fields.ECHO_REPLY,_Fields.GET_REQUEST,_Fields.GET_RESPONSE,_Fields.PUT_REQUEST,_Fields.PUT_RESPONSE,_Fields.DELETE_REQUEST,_Fields.DELETE_RESPONSE,_Fields.SYNC_VALUE,_Fields.SYNC_VALUE_RESPONSE,_Fields.SYNC_OFFER,_Fields.SYNC_REQUEST,_Fields.FULL_SYNC_REQUEST,_Fields.CURSOR_REQUEST,_Fields.CURSOR_RESPONSE,_Fields.REGISTER_REQUEST,_Fields.REGISTER_RESPONSE,_Fields.CLUSTER_JOIN_REQUEST,_Fields.CLUSTER_JOIN_RESPONSE,_Fields.SYNC_DIGEST,_Fields.SYNC_DIGEST_RESPONSE};
   public static final Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> metaDataMap;
   static {
     Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> tmpMap = new EnumMap<_Fields, org.apache.thrift.meta_data.FieldMetaData>(_Fields.class);
@@ -263,6 +273,10 @@ import org.slf4j.LoggerFactory;
         new org.apache.thrift.meta_data.StructMetaData(org.apache.thrift.protocol.TType.STRUCT, ClusterJoinRequestMessage.class)));
     tmpMap.put(_Fields.CLUSTER_JOIN_RESPONSE, new org.apache.thrift.meta_data.FieldMetaData("clusterJoinResponse", org.apache.thrift.TFieldRequirementType.OPTIONAL, 
         new org.apache.thrift.meta_data.StructMetaData(org.apache.thrift.protocol.TType.STRUCT, ClusterJoinResponseMessage.class)));
+    tmpMap.put(_Fields.SYNC_DIGEST, new org.apache.thrift.meta_data.FieldMetaData("syncDigest", org.apache.thrift.TFieldRequirementType.OPTIONAL, 
+        new org.apache.thrift.meta_data.StructMetaData(org.apache.thrift.protocol.TType.STRUCT, SyncDigestMessage.class)));
+    tmpMap.put(_Fields.SYNC_DIGEST_RESPONSE, new org.apache.thrift.meta_data.FieldMetaData("syncDigestResponse", org.apache.thrift.TFieldRequirementType.OPTIONAL, 
+        new org.apache.thrift.meta_data.StructMetaData(org.apache.thrift.protocol.TType.STRUCT, SyncDigestResponseMessage.class)));
     metaDataMap = Collections.unmodifiableMap(tmpMap);
     org.apache.thrift.meta_data.FieldMetaData.addStructMetaDataMap(SyncMessage.class, metaDataMap);
   }
@@ -347,6 +361,12 @@ import org.slf4j.LoggerFactory;
     if (other.isSetClusterJoinResponse()) {
       this.clusterJoinResponse = new ClusterJoinResponseMessage(other.clusterJoinResponse);
     }
+    if (other.isSetSyncDigest()) {
+      this.syncDigest = new SyncDigestMessage(other.syncDigest);
+    }
+    if (other.isSetSyncDigestResponse()) {
+      this.syncDigestResponse = new SyncDigestResponseMessage(other.syncDigestResponse);
+    }
   }
 
   public SyncMessage deepCopy() {
@@ -377,6 +397,8 @@ import org.slf4j.LoggerFactory;
     this.registerResponse = null;
     this.clusterJoinRequest = null;
     this.clusterJoinResponse = null;
+    this.syncDigest = null;
+    this.syncDigestResponse = null;
   }
 
   /**
@@ -915,6 +937,54 @@ import org.slf4j.LoggerFactory;
     }
   }
 
+  public SyncDigestMessage getSyncDigest() {
+    return this.syncDigest;
+  }
+
+  public SyncMessage setSyncDigest(SyncDigestMessage syncDigest) {
+    this.syncDigest = syncDigest;
+    return this;
+  }
+
+  public void unsetSyncDigest() {
+    this.syncDigest = null;
+  }
+
+  /** Returns true if field syncDigest is set (has been assigned a value) and false otherwise */
+  public boolean isSetSyncDigest() {
+    return this.syncDigest != null;
+  }
+
+  public void setSyncDigestIsSet(boolean value) {
+    if (!value) {
+      this.syncDigest = null;
+    }
+  }
+
+  public SyncDigestResponseMessage getSyncDigestResponse() {
+    return this.syncDigestResponse;
+  }
+
+  public SyncMessage setSyncDigestResponse(SyncDigestResponseMessage syncDigestResponse) {
+    this.syncDigestResponse = syncDigestResponse;
+    return this;
+  }
+
+  public void unsetSyncDigestResponse() {
+    this.syncDigestResponse = null;
+  }
+
+  /** Returns true if field syncDigestResponse is set (has been assigned a value) and false otherwise */
+  public boolean isSetSyncDigestResponse() {
+    return this.syncDigestResponse != null;
+  }
+
+  public void setSyncDigestResponseIsSet(boolean value) {
+    if (!value) {
+      this.syncDigestResponse = null;
+    }
+  }
+
   public void setFieldValue(_Fields field, Object value) {
     switch (field) {
     case TYPE:
@@ -1093,6 +1163,22 @@ import org.slf4j.LoggerFactory;
       }
       break;
 
+    case SYNC_DIGEST:
+      if (value == null) {
+        unsetSyncDigest();
+      } else {
+        setSyncDigest((SyncDigestMessage)value);
+      }
+      break;
+
+    case SYNC_DIGEST_RESPONSE:
+      if (value == null) {
+        unsetSyncDigestResponse();
+      } else {
+        setSyncDigestResponse((SyncDigestResponseMessage)value);
+      }
+      break;
+
     }
   }
 
@@ -1164,6 +1250,12 @@ import org.slf4j.LoggerFactory;
     case CLUSTER_JOIN_RESPONSE:
       return getClusterJoinResponse();
 
+    case SYNC_DIGEST:
+      return getSyncDigest();
+
+    case SYNC_DIGEST_RESPONSE:
+      return getSyncDigestResponse();
+
     }
     throw new IllegalStateException();
   }
@@ -1219,6 +1311,10 @@ import org.slf4j.LoggerFactory;
       return isSetClusterJoinRequest();
     case CLUSTER_JOIN_RESPONSE:
       return isSetClusterJoinResponse();
+    case SYNC_DIGEST:
+      return isSetSyncDigest();
+    case SYNC_DIGEST_RESPONSE:
+      return isSetSyncDigestResponse();
     }
     throw new IllegalStateException();
   }
@@ -1434,6 +1530,24 @@ import org.slf4j.LoggerFactory;
         return false;
     }
 
+    boolean this_present_syncDigest = true && this.isSetSyncDigest();
+    boolean that_present_syncDigest = true && that.isSetSyncDigest();
+    if (this_present_syncDigest || that_present_syncDigest) {
+      if (!(this_present_syncDigest && that_present_syncDigest))
+        return false;
+      if (!this.syncDigest.equals(that.syncDigest))
+        return false;
+    }
+
+    boolean this_present_syncDigestResponse = true && this.isSetSyncDigestResponse();
+    boolean that_present_syncDigestResponse = true && that.isSetSyncDigestResponse();
+    if (this_present_syncDigestResponse || that_present_syncDigestResponse) {
+      if (!(this_present_syncDigestResponse && that_present_syncDigestResponse))
+        return false;
+      if (!this.syncDigestResponse.equals(that.syncDigestResponse))
+        return false;
+    }
+
     return true;
   }
 
@@ -1670,6 +1784,26 @@ import org.slf4j.LoggerFactory;
         return lastComparison;
       }
     }
+    lastComparison = Boolean.valueOf(isSetSyncDigest()).compareTo(typedOther.isSetSyncDigest());
+    if (lastComparison != 0) {
+      return lastComparison;
+    }
+    if (isSetSyncDigest()) {
+      lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.syncDigest, typedOther.syncDigest);
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+    }
+    lastComparison = Boolean.valueOf(isSetSyncDigestResponse()).compareTo(typedOther.isSetSyncDigestResponse());
+    if (lastComparison != 0) {
+      return lastComparison;
+    }
+    if (isSetSyncDigestResponse()) {
+      lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.syncDigestResponse, typedOther.syncDigestResponse);
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+    }
     return 0;
   }
 
@@ -1907,6 +2041,26 @@ import org.slf4j.LoggerFactory;
       }
       first = false;
     }
+    if (isSetSyncDigest()) {
+      if (!first) sb.append(", ");
+      sb.append("syncDigest:");
+      if (this.syncDigest == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.syncDigest);
+      }
+      first = false;
+    }
+    if (isSetSyncDigestResponse()) {
+      if (!first) sb.append(", ");
+      sb.append("syncDigestResponse:");
+      if (this.syncDigestResponse == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.syncDigestResponse);
+      }
+      first = false;
+    }
     sb.append(")");
     return sb.toString();
   }
@@ -1980,6 +2134,12 @@ import org.slf4j.LoggerFactory;
     if (clusterJoinResponse != null) {
       clusterJoinResponse.validate();
     }
+    if (syncDigest != null) {
+      syncDigest.validate();
+    }
+    if (syncDigestResponse != null) {
+      syncDigestResponse.validate();
+    }
   }
 
   private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
@@ -2213,6 +2373,24 @@ import org.slf4j.LoggerFactory;
               org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
             }
             break;
+          case 23: // SYNC_DIGEST
+            if (schemeField.type == org.apache.thrift.protocol.TType.STRUCT) {
+              struct.syncDigest = new SyncDigestMessage();
+              struct.syncDigest.read(iprot);
+              struct.setSyncDigestIsSet(true);
+            } else { 
+              org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+            }
+            break;
+          case 24: // SYNC_DIGEST_RESPONSE
+            if (schemeField.type == org.apache.thrift.protocol.TType.STRUCT) {
+              struct.syncDigestResponse = new SyncDigestResponseMessage();
+              struct.syncDigestResponse.read(iprot);
+              struct.setSyncDigestResponseIsSet(true);
+            } else { 
+              org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+            }
+            break;
           default:
             org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
         }
@@ -2380,6 +2558,20 @@ import org.slf4j.LoggerFactory;
           oprot.writeFieldEnd();
         }
       }
+      if (struct.syncDigest != null) {
+        if (struct.isSetSyncDigest()) {
+          oprot.writeFieldBegin(SYNC_DIGEST_FIELD_DESC);
+          struct.syncDigest.write(oprot);
+          oprot.writeFieldEnd();
+        }
+      }
+      if (struct.syncDigestResponse != null) {
+        if (struct.isSetSyncDigestResponse()) {
+          oprot.writeFieldBegin(SYNC_DIGEST_RESPONSE_FIELD_DESC);
+          struct.syncDigestResponse.write(oprot);
+          oprot.writeFieldEnd();
+        }
+      }
       oprot.writeFieldStop();
       oprot.writeStructEnd();
     }
@@ -2462,7 +2654,13 @@ import org.slf4j.LoggerFactory;
       if (struct.isSetClusterJoinResponse()) {
         optionals.set(20);
       }
-      oprot.writeBitSet(optionals, 21);
+      if (struct.isSetSyncDigest()) {
+        optionals.set(21);
+      }
+      if (struct.isSetSyncDigestResponse()) {
+        optionals.set(22);
+      }
+      oprot.writeBitSet(optionals, 23);
       if (struct.isSetHello()) {
         struct.hello.write(oprot);
       }
@@ -2526,6 +2724,12 @@ import org.slf4j.LoggerFactory;
       if (struct.isSetClusterJoinResponse()) {
         struct.clusterJoinResponse.write(oprot);
       }
+      if (struct.isSetSyncDigest()) {
+        struct.syncDigest.write(oprot);
+      }
+      if (struct.isSetSyncDigestResponse()) {
+        struct.syncDigestResponse.write(oprot);
+      }
     }
 
     @Override
@@ -2533,7 +2737,7 @@ import org.slf4j.LoggerFactory;
       TTupleProtocol iprot = (TTupleProtocol) prot;
       struct.type = MessageType.findByValue(iprot.readI32());
       struct.setTypeIsSet(true);
-      BitSet incoming = iprot.readBitSet(21);
+      BitSet incoming = iprot.readBitSet(23);
       if (incoming.get(0)) {
         struct.hello = new HelloMessage();
         struct.hello.read(iprot);
@@ -2639,6 +2843,16 @@ import org.slf4j.LoggerFactory;
         struct.clusterJoinResponse.read(iprot);
         struct.setClusterJoinResponseIsSet(true);
       }
+      if (incoming.get(21)) {
+        struct.syncDigest = new SyncDigestMessage();
+        struct.syncDigest.read(iprot);
+        struct.setSyncDigestIsSet(true);
+      }
+      if (incoming.get(22)) {
+        struct.syncDigestResponse = new SyncDigestResponseMessage();
+        struct.syncDigestResponse.read(iprot);
+        struct.setSyncDigestResponseIsSet(true);
+      }
     }
   }
 
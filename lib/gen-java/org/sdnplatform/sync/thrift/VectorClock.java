@@ -35,6 +35,7 @@ import org.slf4j.LoggerFactory;
 
   private static final org.apache.thrift.protocol.TField VERSIONS_FIELD_DESC = new org.apache.thrift.protocol.TField("versions", org.apache.thrift.protocol.TType.LIST, (short)1);
   private static final org.apache.thrift.protocol.TField TIMESTAMP_FIELD_DESC = new org.apache.thrift.protocol.TField("timestamp", org.apache.thrift.protocol.TType.I64, (short)2);
+  private static final org.apache.thrift.protocol.TField PACKED_FIELD_DESC = new org.apache.thrift.protocol.TField("packed", org.apache.thrift.protocol.TType.STRING, (short)3);
 
   private static final Map<Class<? extends IScheme>, SchemeFactory> schemes = new HashMap<Class<? extends IScheme>, SchemeFactory>();
   static {
@@ -44,11 +45,13 @@ import org.slf4j.LoggerFactory;
 
   public List<ClockEntry> versions; // optional
   public long timestamp; // optional
+  public ByteBuffer packed; // optional
 
   /** The set of fields this struct contains, along with convenience methods for finding and manipulating them. */
   public enum _Fields implements org.apache.thrift.TFieldIdEnum {
     VERSIONS((short)1, "versions"),
-    TIMESTAMP((short)2, "timestamp");
+    TIMESTAMP((short)2, "timestamp"),
+    PACKED((short)3, "packed");
 
     private static final Map<String, _Fields> byName = new HashMap<String, _Fields>();
 
@@ -67,6 +70,8 @@ import org.slf4j.LoggerFactory;
           return VERSIONS;
         case 2: // TIMESTAMP
           return TIMESTAMP;
+        case 3: // PACKED
+          return PACKED;
         default:
           return null;
       }
@@ -109,7 +114,7 @@ import org.slf4j.LoggerFactory;
   // isset id assignments
   private static final int __TIMESTAMP_ISSET_ID = 0;
   private byte __isset_bitfield = 0;
-  private _Fields optionals[] = {_Fields.VERSIONS,_Fields.TIMESTAMP};
+  private _Fields optionals[] = {_Fields.VERSIONS,_Fields.TIMESTAMP,_Fields.PACKED};
   public static final Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> metaDataMap;
   static {
     Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> tmpMap = new EnumMap<_Fields, org.apache.thrift.meta_data.FieldMetaData>(_Fields.class);
@@ -118,6 +123,8 @@ import org.slf4j.LoggerFactory;
             new org.apache.thrift.meta_data.StructMetaData(org.apache.thrift.protocol.TType.STRUCT, ClockEntry.class))));
     tmpMap.put(_Fields.TIMESTAMP, new org.apache.thrift.meta_data.FieldMetaData("timestamp", org.apache.thrift.TFieldRequirementType.OPTIONAL, 
         new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.I64)));
+    tmpMap.put(_Fields.PACKED, new org.apache.thrift.meta_data.FieldMetaData("packed", org.apache.thrift.TFieldRequirementType.OPTIONAL, 
+        new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRING        , true)));
     metaDataMap = Collections.unmodifiableMap(tmpMap);
     org.apache.thrift.meta_data.FieldMetaData.addStructMetaDataMap(VectorClock.class, metaDataMap);
   }
@@ -138,6 +145,10 @@ import org.slf4j.LoggerFactory;
       this.versions = __this__versions;
     }
     this.timestamp = other.timestamp;
+    if (other.isSetPacked()) {
+      this.packed = org.apache.thrift.TBaseHelper.copyBinary(other.packed);
+;
+    }
   }
 
   public VectorClock deepCopy() {
@@ -149,6 +160,7 @@ import org.slf4j.LoggerFactory;
     this.versions = null;
     setTimestampIsSet(false);
     this.timestamp = 0;
+    this.packed = null;
   }
 
   public int getVersionsSize() {
@@ -213,6 +225,40 @@ import org.slf4j.LoggerFactory;
     __isset_bitfield = EncodingUtils.setBit(__isset_bitfield, __TIMESTAMP_ISSET_ID, value);
   }
 
+  public byte[] getPacked() {
+    setPacked(org.apache.thrift.TBaseHelper.rightSize(packed));
+    return packed == null ? null : packed.array();
+  }
+
+  public ByteBuffer bufferForPacked() {
+    return packed;
+  }
+
+  public VectorClock setPacked(byte[] packed) {
+    setPacked(packed == null ? (ByteBuffer)null : ByteBuffer.wrap(packed));
+    return this;
+  }
+
+  public VectorClock setPacked(ByteBuffer packed) {
+    this.packed = packed;
+    return this;
+  }
+
+  public void unsetPacked() {
+    this.packed = null;
+  }
+
+  /** Returns true if field packed is set (has been assigned a value) and false otherwise */
+  public boolean isSetPacked() {
+    return this.packed != null;
+  }
+
+  public void setPackedIsSet(boolean value) {
+    if (!value) {
+      this.packed = null;
+    }
+  }
+
   public void setFieldValue(_Fields field, Object value) {
     switch (field) {
     case VERSIONS:
@@ -231,6 +277,14 @@ import org.slf4j.LoggerFactory;
       }
       break;
 
+    case PACKED:
+      if (value == null) {
+        unsetPacked();
+      } else {
+        setPacked((ByteBuffer)value);
+      }
+      break;
+
     }
   }
 
@@ -242,6 +296,9 @@ import org.slf4j.LoggerFactory;
     case TIMESTAMP:
       return Long.valueOf(getTimestamp());
 
+    case PACKED:
+      return getPacked();
+
     }
     throw new IllegalStateException();
   }
@@ -257,6 +314,8 @@ import org.slf4j.LoggerFactory;
       return isSetVersions();
     case TIMESTAMP:
       return isSetTimestamp();
+    case PACKED:
+      return isSetPacked();
     }
     throw new IllegalStateException();
   }
@@ -292,6 +351,15 @@ import org.slf4j.LoggerFactory;
         return false;
     }
 
+    boolean this_present_packed = true && this.isSetPacked();
+    boolean that_present_packed = true && that.isSetPacked();
+    if (this_present_packed || that_present_packed) {
+      if (!(this_present_packed && that_present_packed))
+        return false;
+      if (!this.packed.equals(that.packed))
+        return false;
+    }
+
     return true;
   }
 
@@ -328,6 +396,16 @@ import org.slf4j.LoggerFactory;
         return lastComparison;
       }
     }
+    lastComparison = Boolean.valueOf(isSetPacked()).compareTo(typedOther.isSetPacked());
+    if (lastComparison != 0) {
+      return lastComparison;
+    }
+    if (isSetPacked()) {
+      lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.packed, typedOther.packed);
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+    }
     return 0;
   }
 
@@ -363,6 +441,16 @@ import org.slf4j.LoggerFactory;
       sb.append(this.timestamp);
       first = false;
     }
+    if (isSetPacked()) {
+      if (!first) sb.append(", ");
+      sb.append("packed:");
+      if (this.packed == null) {
+        sb.append("null");
+      } else {
+        org.apache.thrift.TBaseHelper.toString(this.packed, sb);
+      }
+      first = false;
+    }
     sb.append(")");
     return sb.toString();
   }
@@ -435,6 +523,14 @@ import org.slf4j.LoggerFactory;
               org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
             }
             break;
+          case 3: // PACKED
+            if (schemeField.type == org.apache.thrift.protocol.TType.STRING) {
+              struct.packed = iprot.readBinary();
+              struct.setPackedIsSet(true);
+            } else { 
+              org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+            }
+            break;
           default:
             org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
         }
@@ -469,6 +565,13 @@ import org.slf4j.LoggerFactory;
         oprot.writeI64(struct.timestamp);
         oprot.writeFieldEnd();
       }
+      if (struct.packed != null) {
+        if (struct.isSetPacked()) {
+          oprot.writeFieldBegin(PACKED_FIELD_DESC);
+          oprot.writeBinary(struct.packed);
+          oprot.writeFieldEnd();
+        }
+      }
       oprot.writeFieldStop();
       oprot.writeStructEnd();
     }
@@ -493,7 +596,10 @@ import org.slf4j.LoggerFactory;
       if (struct.isSetTimestamp()) {
         optionals.set(1);
       }
-      oprot.writeBitSet(optionals, 2);
+      if (struct.isSetPacked()) {
+        optionals.set(2);
+      }
+      oprot.writeBitSet(optionals, 3);
       if (struct.isSetVersions()) {
         {
           oprot.writeI32(struct.versions.size());
@@ -506,12 +612,15 @@ import org.slf4j.LoggerFactory;
       if (struct.isSetTimestamp()) {
         oprot.writeI64(struct.timestamp);
       }
+      if (struct.isSetPacked()) {
+        oprot.writeBinary(struct.packed);
+      }
     }
 
     @Override
     public void read(org.apache.thrift.protocol.TProtocol prot, VectorClock struct) throws org.apache.thrift.TException {
       TTupleProtocol iprot = (TTupleProtocol) prot;
-      BitSet incoming = iprot.readBitSet(2);
+      BitSet incoming = iprot.readBitSet(3);
       if (incoming.get(0)) {
         {
           org.apache.thrift.protocol.TList _list5 = new org.apache.thrift.protocol.TList(org.apache.thrift.protocol.TType.STRUCT, iprot.readI32());
@@ -530,6 +639,10 @@ import org.slf4j.LoggerFactory;
         struct.timestamp = iprot.readI64();
         struct.setTimestampIsSet(true);
       }
+      if (incoming.get(2)) {
+        struct.packed = iprot.readBinary();
+        struct.setPackedIsSet(true);
+      }
     }
   }
 
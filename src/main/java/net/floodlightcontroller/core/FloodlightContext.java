@@ -17,19 +17,92 @@
 
 package net.floodlightcontroller.core;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This is a context object where floodlight listeners can register 
  * and later retrieve context information associated with an
  * event
+ * 
+ * Keys registered with {@link #registerSlot(String)} are stored in a
+ * plain array indexed by their slot number, so hot keys such as the
+ * packet-in payload can be read and written without hashing or
+ * allocation. All other keys go to a map that is only allocated when
+ * first used. Like the event it describes, a context is meant to be
+ * used by one thread at a time.
  * @author readams
  */
 public class FloodlightContext {
-    protected ConcurrentHashMap<String, Object> storage =
-            new ConcurrentHashMap<String, Object>();
+    private static final Object slotLock = new Object();
+    // copy-on-write, so lookups need no lock
+    private static volatile Map<String, Integer> slotIndexes =
+            Collections.emptyMap();
 
+    protected Object[] slots = new Object[slotIndexes.size()];
+    protected ConcurrentHashMap<String, Object> storage;
+
+    /**
+     * Register a key to be stored in its own slot. Registering the same
+     * key again returns the same slot.
+     * @param key the context key
+     * @return the slot number of the key
+     */
+    public static int registerSlot(String key) {
+        synchronized (slotLock) {
+            Integer slot = slotIndexes.get(key);
+            if (slot == null) {
+                Map<String, Integer> m =
+                        new HashMap<String, Integer>(slotIndexes);
+                slot = m.size();
+                m.put(key, slot);
+                slotIndexes = Collections.unmodifiableMap(m);
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * @param key the context key
+     * @return the slot number of the key, or -1 if it is not registered
+     */
+    public static int getSlot(String key) {
+        Integer slot = slotIndexes.get(key);
+        return (slot == null) ? -1 : slot;
+    }
+
+    protected Object getSlotValue(int slot) {
+        return (slot < slots.length) ? slots[slot] : null;
+    }
+
+    protected void setSlotValue(int slot, Object value) {
+        if (slot >= slots.length) {
+            // the slot was registered after this context was created
+            slots = Arrays.copyOf(slots, slotIndexes.size());
+        }
+        slots[slot] = value;
+    }
+
+    /**
+     * Get the map that holds the keys without a slot
+     */
     public ConcurrentHashMap<String, Object> getStorage() {
+        if (storage == null) {
+            storage = new ConcurrentHashMap<String, Object>();
+        }
         return storage;
     }
+
+    /**
+     * Remove all values, so that the context can be reused
+     */
+    public void clear() {
+        Arrays.fill(slots, null);
+        if (storage != null) {
+            storage.clear();
+        }
+    }
 }
@@ -17,18 +17,54 @@
 
 package net.floodlightcontroller.core;
 
+/**
+ * Typed access to values in a {@link FloodlightContext}. Keys may be
+ * given by name, or, for keys registered with
+ * {@link FloodlightContext#registerSlot(String)}, by slot number, which
+ * avoids looking up the name.
+ */
 public class FloodlightContextStore<V> {
     
     @SuppressWarnings("unchecked")
     public V get(FloodlightContext bc, String key) {
-        return (V)bc.storage.get(key);
+        int slot = FloodlightContext.getSlot(key);
+        if (slot >= 0) {
+            Object v = bc.getSlotValue(slot);
+            if (v != null || bc.storage == null)
+                return (V)v;
+        }
+        return (bc.storage == null) ? null : (V)bc.storage.get(key);
     }
     
     public void put(FloodlightContext bc, String key, V value) {
-        bc.storage.put(key, value);
+        int slot = FloodlightContext.getSlot(key);
+        if (slot >= 0) {
+            bc.setSlotValue(slot, value);
+        } else {
+            bc.getStorage().put(key, value);
+        }
     }
     
     public void remove(FloodlightContext bc, String key) {
-        bc.storage.remove(key);
+        int slot = FloodlightContext.getSlot(key);
+        if (slot >= 0) {
+            bc.setSlotValue(slot, null);
+        }
+        if (bc.storage != null) {
+            bc.storage.remove(key);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(FloodlightContext bc, int slot) {
+        return (V)bc.getSlotValue(slot);
+    }
+
+    public void put(FloodlightContext bc, int slot, V value) {
+        bc.setSlotValue(slot, value);
+    }
+
+    public void remove(FloodlightContext bc, int slot) {
+        bc.setSlotValue(slot, null);
     }
 }
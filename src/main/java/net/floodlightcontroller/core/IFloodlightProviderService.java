@@ -23,6 +23,7 @@ import java.util.Map;
 
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
 
 import org.jboss.netty.util.Timer;
 
@@ -56,12 +57,41 @@ public interface IFloodlightProviderService extends
     public static final String CONTEXT_PI_PAYLOAD =
             "net.floodlightcontroller.core.IFloodlightProvider.piPayload";
 
+    /**
+     * The FloodlightContext slot of {@link #CONTEXT_PI_PAYLOAD}
+     */
+    public static final int CONTEXT_PI_PAYLOAD_SLOT =
+            FloodlightContext.registerSlot(CONTEXT_PI_PAYLOAD);
+
     /**
      * A FloodlightContextStore object that can be used to retrieve the
-     * packet-in payload
+     * packet-in payload. If the payload has not been decoded yet, it is
+     * decoded on first access.
      */
     public static final FloodlightContextStore<Ethernet> bcStore =
-            new FloodlightContextStore<Ethernet>();
+            new PacketInPayloadStore();
+
+    /**
+     * A value stored in the floodlight context containing an
+     * {@link EthernetView} of the payload of a packet-in message. Listeners
+     * that only need the Ethernet header should use the view, which does
+     * not decode the rest of the packet.
+     */
+    public static final String CONTEXT_PI_VIEW =
+            "net.floodlightcontroller.core.IFloodlightProvider.piView";
+
+    /**
+     * The FloodlightContext slot of {@link #CONTEXT_PI_VIEW}
+     */
+    public static final int CONTEXT_PI_VIEW_SLOT =
+            FloodlightContext.registerSlot(CONTEXT_PI_VIEW);
+
+    /**
+     * A FloodlightContextStore object that can be used to retrieve the
+     * packet-in payload view
+     */
+    public static final FloodlightContextStore<EthernetView> piViewStore =
+            new PacketInViewStore();
 
     /**
      * Service name used in the service directory representing
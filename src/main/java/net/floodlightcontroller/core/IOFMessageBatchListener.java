@@ -0,0 +1,48 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core;
+
+import java.util.List;
+
+import org.projectfloodlight.openflow.protocol.OFMessage;
+
+/**
+ * An IOFMessageListener that can also process several messages at once.
+ *
+ * When the controller has more than one message of the same type from the
+ * same switch ready, for instance all the packet-ins of one channel read,
+ * it calls {@link #receiveBatch} once for the whole batch instead of
+ * calling {@link #receive} for each message. This lets the listener look
+ * up shared state, take locks and flush writes once per batch.
+ *
+ * Listeners are still called in their usual order; a batch listener sees
+ * the messages that no earlier listener stopped. Single messages are always
+ * delivered through {@link #receive}, so both methods must be implemented.
+ */
+public interface IOFMessageBatchListener extends IOFMessageListener {
+    /**
+     * Process a batch of messages of the same type from one switch
+     * @param sw the OpenFlow switch that sent the messages
+     * @param msgs the messages, in the order they were received
+     * @param cntxs the Floodlight context of each message
+     * @return the command for each message, in the same order. Messages
+     * for which STOP is returned are not passed to later listeners. A null
+     * return continues processing of all messages.
+     */
+    public Command[] receiveBatch(IOFSwitch sw, List<OFMessage> msgs,
+                                  List<FloodlightContext> cntxs);
+}
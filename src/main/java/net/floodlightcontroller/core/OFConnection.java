@@ -30,6 +30,8 @@ import java.util.concurrent.TimeoutException;
 import javax.annotation.Nonnull;
 
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.util.Timeout;
 import org.jboss.netty.util.Timer;
 import org.jboss.netty.util.TimerTask;
@@ -79,8 +81,32 @@ public class OFConnection implements IOFConnection, IOFConnectionBackend{
 
     private final Map<Long, Deliverable<?>> xidDeliverableMap;
 
-    protected final static ThreadLocal<List<OFMessage>> localMsgBuffer =
-            new ThreadLocal<List<OFMessage>>();
+    /**
+     * Outbound messages waiting to be written to the channel. PACKET_OUTs
+     * and FLOW_MODs written while an earlier channel write is still in
+     * flight are coalesced here, and written as one batch when that write
+     * completes, when the batch reaches batchMaxSize, when its oldest
+     * message is older than flushDeadlineNs, or on flush(). Other messages
+     * are written right away, along with anything queued before them.
+     * Guarded by writeLock, and so is writesInFlight.
+     */
+    private final Object writeLock = new Object();
+    private List<OFMessage> writeQueue = new ArrayList<OFMessage>();
+    private long writeQueueSince;
+    private int writesInFlight;
+    private final int batchMaxSize;
+    private final long flushDeadlineNs;
+    private final ChannelFutureListener writeCompleteListener =
+            new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    synchronized (writeLock) {
+                        writesInFlight--;
+                        if (writesInFlight == 0 && !writeQueue.isEmpty())
+                            flushQueue();
+                    }
+                }
+            };
 
     private static final long DELIVERABLE_TIME_OUT = 60;
     private static final TimeUnit DELIVERABLE_TIME_OUT_UNIT = TimeUnit.SECONDS;
@@ -110,6 +136,8 @@ public class OFConnection implements IOFConnection, IOFConnectionBackend{
         this.xidDeliverableMap = new ConcurrentHashMap<>();
         this.counters = new OFConnectionCounters(debugCounters, dpid, this.auxId);
         this.timer = timer;
+        this.batchMaxSize = Controller.BATCH_MAX_SIZE;
+        this.flushDeadlineNs = TimeUnit.MICROSECONDS.toNanos(Controller.FLUSH_DEADLINE_US);
     }
 
     @Override
@@ -121,21 +149,39 @@ public class OFConnection implements IOFConnection, IOFConnectionBackend{
         }
         if (logger.isDebugEnabled())
             logger.debug("{}: send {}", this, m);
-        List<OFMessage> msgBuffer = localMsgBuffer.get();
-        if (msgBuffer == null) {
-            msgBuffer = new ArrayList<OFMessage>();
-            localMsgBuffer.set(msgBuffer);
-        }
-
         counters.updateWriteStats(m);
-        msgBuffer.add(m);
 
-        if ((msgBuffer.size() >= Controller.BATCH_MAX_SIZE) || ((m.getType() != OFType.PACKET_OUT) && (m.getType() != OFType.FLOW_MOD))) {
-            this.write(msgBuffer);
-            localMsgBuffer.set(null);
+        synchronized (writeLock) {
+            if (writeQueue.isEmpty())
+                writeQueueSince = System.nanoTime();
+            writeQueue.add(m);
+
+            if (writesInFlight == 0
+                    || writeQueue.size() >= batchMaxSize
+                    || ((m.getType() != OFType.PACKET_OUT) && (m.getType() != OFType.FLOW_MOD))
+                    || System.nanoTime() - writeQueueSince >= flushDeadlineNs) {
+                flushQueue();
+            }
         }
     }
 
+    /**
+     * Write the queued messages to the channel as one batch. Must be called
+     * with writeLock held, so that batches reach the channel in order.
+     */
+    private void flushQueue() {
+        List<OFMessage> batch = writeQueue;
+        writeQueue = new ArrayList<OFMessage>();
+        counters.updateFlushStats(batch.size(), System.nanoTime() - writeQueueSince);
+
+        writesInFlight++;
+        ChannelFuture future = this.channel.write(batch);
+        if (future != null)
+            future.addListener(writeCompleteListener);
+        else
+            writesInFlight--;
+    }
+
     @Override
     public <R extends OFMessage> ListenableFuture<R> writeRequest(OFRequest<R> request) {
         if (!isConnected())
@@ -162,12 +208,18 @@ public class OFConnection implements IOFConnection, IOFConnectionBackend{
                         String.valueOf(msglist).substring(0, 80));
             return;
         }
-        for (OFMessage m : msglist) {
-            if (logger.isTraceEnabled())
-                logger.trace("{}: send {}", this, m);
-            counters.updateWriteStats(m);
+        synchronized (writeLock) {
+            if (writeQueue.isEmpty())
+                writeQueueSince = System.nanoTime();
+            for (OFMessage m : msglist) {
+                if (logger.isTraceEnabled())
+                    logger.trace("{}: send {}", this, m);
+                counters.updateWriteStats(m);
+                writeQueue.add(m);
+            }
+            if (!writeQueue.isEmpty())
+                flushQueue();
         }
-        this.channel.write(msglist);
     }
 
     // Notifies the connection object that the channel has been disconnected
@@ -287,10 +339,9 @@ public class OFConnection implements IOFConnection, IOFConnectionBackend{
 
     @Override
     public void flush() {
-        List<OFMessage> msglist = localMsgBuffer.get();
-        if ((msglist != null) && (msglist.size() > 0)) {
-            this.write(msglist);
-            localMsgBuffer.set(null);
+        synchronized (writeLock) {
+            if (!writeQueue.isEmpty())
+                flushQueue();
         }
     }
 
@@ -335,6 +386,10 @@ public class OFConnection implements IOFConnection, IOFConnectionBackend{
         return this.factory;
     }
 
+    public OFConnectionCounters getCounters() {
+        return counters;
+    }
+
     /**
      * Timeout class instantiated for deliverables. Will throw a timeout exception
      * if proper responses are not received in time.
@@ -26,6 +26,12 @@ public class OFConnectionCounters {
      */
     // Write Counters
     //
+    private final IDebugCounter ctrWriteBatches;
+    private final IDebugCounter ctrWriteBatchedMessages;
+    private final IDebugCounter ctrWriteFlushLatency;
+    private final IDebugCounter ctrReadDecodedMessages;
+    private final IDebugCounter ctrReadDecodedBytes;
+    private final IDebugCounter ctrReadDecodeTime;
     private final IDebugCounter ctrWriteHello;
     private final IDebugCounter ctrWriteError;
     private final IDebugCounter ctrWriteEchoRequest;
@@ -330,12 +336,42 @@ public class OFConnectionCounters {
 
         // Register Read Counters
         //
+        // Write batching: average batch size is batched-messages/batches,
+        // average time queued is flush-latency-us/batches
+        ctrWriteBatches =
+                counters.registerCounter(COUNTER_MODULE,
+                                         stringId + hierarchy + "/batches",
+                                         "Number of message batches written to this connection");
+        ctrWriteBatchedMessages =
+                counters.registerCounter(COUNTER_MODULE,
+                                         stringId + hierarchy + "/batched-messages",
+                                         "Number of messages in the batches written to this connection");
+        ctrWriteFlushLatency =
+                counters.registerCounter(COUNTER_MODULE,
+                                         stringId + hierarchy + "/flush-latency-us",
+                                         "Total time in microseconds batches waited before being written to this connection");
+
         hierarchy = "/read";
 
         registerCounterLocal(counters,
                              hierarchy,
                              stringId,
                              "");
+
+        // Decode throughput: bytes or messages per decode-time-us
+        ctrReadDecodedMessages =
+                counters.registerCounter(COUNTER_MODULE,
+                                         stringId + hierarchy + "/decoded-messages",
+                                         "Number of messages decoded from this connection");
+        ctrReadDecodedBytes =
+                counters.registerCounter(COUNTER_MODULE,
+                                         stringId + hierarchy + "/decoded-bytes",
+                                         "Number of bytes decoded from this connection");
+        ctrReadDecodeTime =
+                counters.registerCounter(COUNTER_MODULE,
+                                         stringId + hierarchy + "/decode-time-us",
+                                         "Total time in microseconds spent decoding messages from this connection");
+
         ctrReadHello =
                 registerCounterLocal(counters,
                                      hierarchy,
@@ -528,6 +564,31 @@ public class OFConnectionCounters {
     	return debugCounterService.removeCounterHierarchy(COUNTER_MODULE, dpidAndConnIdString);
     }
 
+   /**
+    * Update the write batching counters when a batch is written to the
+    * channel
+    * @param batchSize number of messages in the batch
+    * @param latencyNs time the oldest message of the batch was queued
+    */
+   public void updateFlushStats(int batchSize, long latencyNs) {
+       ctrWriteBatches.increment();
+       ctrWriteBatchedMessages.add(batchSize);
+       ctrWriteFlushLatency.add(latencyNs / 1000);
+   }
+
+   /**
+    * Update the decode counters after messages are decoded from the
+    * channel
+    * @param messages number of messages decoded
+    * @param bytes number of bytes decoded
+    * @param timeNs time spent decoding
+    */
+   public void updateDecodeStats(int messages, int bytes, long timeNs) {
+       ctrReadDecodedMessages.add(messages);
+       ctrReadDecodedBytes.add(bytes);
+       ctrReadDecodeTime.add(timeNs / 1000);
+   }
+
    /**
     * Update Write Counters for Open flow messages
     * @param ofm openflow message
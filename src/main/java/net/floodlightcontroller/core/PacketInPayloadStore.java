@@ -0,0 +1,59 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
+
+/**
+ * The store behind {@link IFloodlightProviderService#bcStore}. When the
+ * controller only put an {@link EthernetView} of the packet-in payload in
+ * the context, the first request for the decoded payload decodes it from
+ * the view and caches it in the context.
+ */
+public class PacketInPayloadStore extends FloodlightContextStore<Ethernet> {
+
+    @Override
+    public Ethernet get(FloodlightContext bc, String key) {
+        Ethernet eth = super.get(bc, key);
+        if (eth == null &&
+                IFloodlightProviderService.CONTEXT_PI_PAYLOAD.equals(key)) {
+            eth = decode(bc);
+        }
+        return eth;
+    }
+
+    @Override
+    public Ethernet get(FloodlightContext bc, int slot) {
+        Ethernet eth = super.get(bc, slot);
+        if (eth == null &&
+                slot == IFloodlightProviderService.CONTEXT_PI_PAYLOAD_SLOT) {
+            eth = decode(bc);
+        }
+        return eth;
+    }
+
+    private Ethernet decode(FloodlightContext bc) {
+        Object view = bc.getSlotValue(
+                IFloodlightProviderService.CONTEXT_PI_VIEW_SLOT);
+        if (!(view instanceof EthernetView))
+            return null;
+        Ethernet eth = ((EthernetView) view).getEthernet();
+        bc.setSlotValue(IFloodlightProviderService.CONTEXT_PI_PAYLOAD_SLOT, eth);
+        return eth;
+    }
+}
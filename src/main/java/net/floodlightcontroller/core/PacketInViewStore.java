@@ -0,0 +1,60 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
+
+/**
+ * The store behind {@link IFloodlightProviderService#piViewStore}. When
+ * the context only holds a decoded payload, for instance because the
+ * controller decodes eagerly or a test put the Ethernet packet in the
+ * context directly, the first request for the view wraps the decoded
+ * payload and caches the view in the context.
+ */
+public class PacketInViewStore extends FloodlightContextStore<EthernetView> {
+
+    @Override
+    public EthernetView get(FloodlightContext bc, String key) {
+        EthernetView view = super.get(bc, key);
+        if (view == null &&
+                IFloodlightProviderService.CONTEXT_PI_VIEW.equals(key)) {
+            view = wrap(bc);
+        }
+        return view;
+    }
+
+    @Override
+    public EthernetView get(FloodlightContext bc, int slot) {
+        EthernetView view = super.get(bc, slot);
+        if (view == null &&
+                slot == IFloodlightProviderService.CONTEXT_PI_VIEW_SLOT) {
+            view = wrap(bc);
+        }
+        return view;
+    }
+
+    private EthernetView wrap(FloodlightContext bc) {
+        Object eth = bc.getSlotValue(
+                IFloodlightProviderService.CONTEXT_PI_PAYLOAD_SLOT);
+        if (!(eth instanceof Ethernet))
+            return null;
+        EthernetView view = new EthernetView((Ethernet) eth);
+        bc.setSlotValue(IFloodlightProviderService.CONTEXT_PI_VIEW_SLOT, view);
+        return view;
+    }
+}
@@ -44,8 +44,10 @@ import net.floodlightcontroller.core.HARole;
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IHAListener;
 import net.floodlightcontroller.core.IInfoProvider;
+import net.floodlightcontroller.core.IShutdownListener;
 import net.floodlightcontroller.core.IShutdownService;
 import net.floodlightcontroller.core.IListener.Command;
+import net.floodlightcontroller.core.IOFMessageBatchListener;
 import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.IOFSwitchListener;
@@ -70,6 +72,7 @@ import org.projectfloodlight.openflow.protocol.OFType;
 import org.projectfloodlight.openflow.types.DatapathId;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
 import net.floodlightcontroller.perfmon.IPktInProcessingTimeService;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.storage.IResultSet;
@@ -96,7 +99,8 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 /**
  * The main controller class.  Handles all setup and network listeners
  */
-public class Controller implements IFloodlightProviderService, IStorageSourceListener, IInfoProvider {
+public class Controller implements IFloodlightProviderService, IStorageSourceListener, IInfoProvider,
+        DispatchPipeline.IMessageDispatcher {
 
     protected static final Logger log = LoggerFactory.getLogger(Controller.class);
     protected static final INotificationManager notifier = NotificationManagerFactory.getNotificationManager(Controller.class);
@@ -136,6 +140,13 @@ public class Controller implements IFloodlightProviderService, IStorageSourceLis
     protected int openFlowPort = 6653; // new registered OF port number
     private String openFlowHostname = null;
     protected int workerThreads = 0;
+    // Number of lanes dispatching messages to the listeners off the I/O
+    // threads. 0 dispatches inline on the I/O thread.
+    protected int dispatchLanes = 0;
+    protected int dispatchQueueSize = 1024;
+    protected DispatchPipeline dispatchPipeline;
+    // Whether any IOFMessageBatchListener was ever registered
+    private volatile boolean batchListenersRegistered = false;
     
     // The id for this controller node. Should be unique for each controller
     // node in a controller cluster.
@@ -181,8 +192,16 @@ public class Controller implements IFloodlightProviderService, IStorageSourceLis
     
     // Perf. related configuration
     protected static final int SEND_BUFFER_SIZE = 128 * 1024;
-    public static final int BATCH_MAX_SIZE = 1; //TODO @Ryan this was 100. Causes packet_out messages to stall until 100 accumulated...
-    protected static final boolean ALWAYS_DECODE_ETH = true;
+    // Maximum number of PACKET_OUTs and FLOW_MODs coalesced into one write
+    // to a connection, and the longest time they may wait for it. Messages
+    // are only held back while an earlier write to the same connection is
+    // still in flight, so they never wait for the batch to fill up.
+    public static final int BATCH_MAX_SIZE = 100;
+    public static final long FLUSH_DEADLINE_US = 500;
+    // When false, packet-in payloads are only decoded when a listener asks
+    // bcStore for them; listeners needing just the Ethernet header use the
+    // EthernetView in piViewStore instead.
+    protected static final boolean ALWAYS_DECODE_ETH = false;
 
     // Set of port name prefixes that will be classified as uplink ports,
     // hence will not be autoportfast.
@@ -400,7 +419,7 @@ public class Controller implements IFloodlightProviderService, IStorageSourceLis
      * @param flcontext
      */
     protected void flcontext_free(FloodlightContext flcontext) {
-        flcontext.getStorage().clear();
+        flcontext.clear();
         flcontext_cache.get().push(flcontext);
     }
 
@@ -409,13 +428,46 @@ public class Controller implements IFloodlightProviderService, IStorageSourceLis
      *
      * Handle and dispatch a message to IOFMessageListeners.
      *
+     * If dispatch lanes are configured, messages read from a switch
+     * (i.e. without a context) are queued on the lane of their switch.
+     * Otherwise, if batch listeners are registered, the messages of a
+     * channel read are dispatched together at the end of the read. In all
+     * other cases the message is dispatched on the calling thread.
+     *
+     * @param sw The switch sending the message
+     * @param m The message the switch sent
+     * @param flContext The floodlight context to use for this message. If
+     * null, a new context will be allocated.
+     */
+    @Override
+    public void handleMessage(IOFSwitch sw, OFMessage m,
+                                 FloodlightContext bContext) {
+        if (bContext == null) {
+            if (dispatchPipeline != null && dispatchPipeline.submit(sw, m)) {
+                return;
+            }
+            // Collect the messages of a channel read for batch listeners
+            if (batchListenersRegistered) {
+                OFMessageReadBatch batch = OFMessageReadBatch.getOpenBatch();
+                if (batch != null) {
+                    batch.add(this, sw, m);
+                    return;
+                }
+            }
+        }
+        dispatchMessage(sw, m, bContext);
+    }
+
+    /**
+     *
+     * Dispatch a message to IOFMessageListeners on the calling thread.
+     *
      * We only dispatch messages to listeners if the controller's role is MASTER.
      *
      * @param sw The switch sending the message
      * @param m The message the switch sent
      * @param flContext The floodlight context to use for this message. If
      * null, a new context will be allocated.
-     * @throws IOException
      *
      * FIXME: this method and the ChannelHandler disagree on which messages
      * should be dispatched and which shouldn't
@@ -435,9 +487,8 @@ public class Controller implements IFloodlightProviderService, IStorageSourceLis
     @SuppressFBWarnings(value="SF_SWITCH_NO_DEFAULT",
                         justification="False positive -- has default")
     @Override
-    public void handleMessage(IOFSwitch sw, OFMessage m,
-                                 FloodlightContext bContext) {
-        Ethernet eth = null;
+    public void dispatchMessage(IOFSwitch sw, OFMessage m,
+                                FloodlightContext bContext) {
         log.trace("Dispatching OFMessage to listeners.");
         if (this.notifiedRole == HARole.STANDBY) {
             counters.dispatchMessageWhileStandby.increment();
@@ -455,11 +506,6 @@ public class Controller implements IFloodlightProviderService, IStorageSourceLis
                     log.error("Ignoring PacketIn (Xid = " + pi.getXid() + ") because the data field is empty.");
                     return;
                 }
-
-                if (Controller.ALWAYS_DECODE_ETH) {
-                    eth = new Ethernet();
-                    eth.deserialize(pi.getData(), 0, pi.getData().length);
-                }
                 // fall through to default case...
 
             default:
@@ -479,10 +525,8 @@ public class Controller implements IFloodlightProviderService, IStorageSourceLis
                     } else {
                         bc = bContext;
                     }
-                    if (eth != null) {
-                        IFloodlightProviderService.bcStore.put(bc,
-                                IFloodlightProviderService.CONTEXT_PI_PAYLOAD,
-                                eth);
+                    if (m.getType() == OFType.PACKET_IN) {
+                        storePacketInPayload(bc, (OFPacketIn) m);
                     }
 
                     // Get the starting time (overall and per-component) of
@@ -512,6 +556,198 @@ public class Controller implements IFloodlightProviderService, IStorageSourceLis
         }
     }
     
+    /**
+     * Dispatch several messages from one switch, in order. Runs of messages
+     * of the same type are passed to IOFMessageBatchListeners as one batch.
+     *
+     * @param sw The switch sending the messages
+     * @param msgs The messages the switch sent
+     */
+    @Override
+    public void dispatchMessages(IOFSwitch sw, List<OFMessage> msgs) {
+        int start = 0;
+        while (start < msgs.size()) {
+            OFType type = msgs.get(start).getType();
+            int end = start + 1;
+            while (end < msgs.size() && msgs.get(end).getType() == type) {
+                end++;
+            }
+            dispatchBatch(sw, type, msgs.subList(start, end));
+            start = end;
+        }
+    }
+
+    /**
+     * Dispatch messages of the same type from one switch. Messages are
+     * dispatched one by one unless a listener for the type is a batch
+     * listener. Per-packet processing time is only measured one message at
+     * a time, so batching is also off while performance monitoring is.
+     *
+     * As with {@link #dispatchMessage}, an exception thrown by a listener
+     * ends the processing of the message it was given, or of the whole
+     * batch for a batch listener. The other messages are still
+     * dispatched, and the first exception is rethrown at the end.
+     */
+    @LogMessageDoc(level="ERROR",
+            message="Ignoring PacketIn (Xid = {xid}) because the data" +
+                    " field is empty.",
+            explanation="The switch sent an improperly-formatted PacketIn" +
+                    " message",
+            recommendation=LogMessageDoc.CHECK_SWITCH)
+    protected void dispatchBatch(IOFSwitch sw, OFType type,
+                                 List<OFMessage> msgs) {
+        List<IOFMessageListener> listeners = null;
+        ListenerDispatcher<OFType, IOFMessageListener> ldd =
+                messageListeners.get(type);
+        if (ldd != null) {
+            listeners = ldd.getOrderedListeners();
+        }
+        if (msgs.size() == 1 || !hasBatchListener(listeners) ||
+                pktinProcTimeService.isEnabled() ||
+                this.notifiedRole == HARole.STANDBY) {
+            RuntimeException failure = null;
+            for (OFMessage m : msgs) {
+                try {
+                    dispatchMessage(sw, m, null);
+                } catch (RuntimeException e) {
+                    failure = addFailure(failure, e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return;
+        }
+
+        counters.dispatchMessage.add(msgs.size());
+        List<OFMessage> batch = new ArrayList<OFMessage>(msgs.size());
+        List<FloodlightContext> cntxs =
+                new ArrayList<FloodlightContext>(msgs.size());
+        for (OFMessage m : msgs) {
+            if (type == OFType.PACKET_IN) {
+                counters.packetIn.increment();
+                OFPacketIn pi = (OFPacketIn)m;
+                if (pi.getData().length <= 0) {
+                    log.error("Ignoring PacketIn (Xid = " + pi.getXid() + ") because the data field is empty.");
+                    continue;
+                }
+            }
+            FloodlightContext bc = flcontext_alloc();
+            if (type == OFType.PACKET_IN) {
+                storePacketInPayload(bc, (OFPacketIn) m);
+            }
+            batch.add(m);
+            cntxs.add(bc);
+        }
+        List<FloodlightContext> allCntxs =
+                new ArrayList<FloodlightContext>(cntxs);
+
+        RuntimeException failure = null;
+        try {
+            for (IOFMessageListener listener : listeners) {
+                if (batch.isEmpty()) {
+                    break;
+                }
+                if (listener instanceof IOFMessageBatchListener) {
+                    Command[] cmds;
+                    try {
+                        cmds = ((IOFMessageBatchListener) listener)
+                                .receiveBatch(sw, batch, cntxs);
+                    } catch (RuntimeException e) {
+                        failure = addFailure(failure, e);
+                        break;
+                    }
+                    if (cmds == null) {
+                        continue;
+                    }
+                    // remove the stopped messages, keeping the order
+                    int j = 0;
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (!Command.STOP.equals(cmds[i])) {
+                            batch.set(j, batch.get(i));
+                            cntxs.set(j, cntxs.get(i));
+                            j++;
+                        }
+                    }
+                    batch.subList(j, batch.size()).clear();
+                    cntxs.subList(j, cntxs.size()).clear();
+                } else {
+                    int i = 0;
+                    while (i < batch.size()) {
+                        Command cmd;
+                        try {
+                            cmd = listener.receive(sw, batch.get(i),
+                                                   cntxs.get(i));
+                        } catch (RuntimeException e) {
+                            failure = addFailure(failure, e);
+                            cmd = Command.STOP;
+                        }
+                        if (Command.STOP.equals(cmd)) {
+                            batch.remove(i);
+                            cntxs.remove(i);
+                        } else {
+                            i++;
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (FloodlightContext bc : allCntxs) {
+                flcontext_free(bc);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static RuntimeException addFailure(RuntimeException failure,
+                                               RuntimeException e) {
+        if (failure == null) {
+            return e;
+        }
+        failure.addSuppressed(e);
+        return failure;
+    }
+
+    private static boolean hasBatchListener(List<IOFMessageListener> listeners) {
+        if (listeners == null) {
+            return false;
+        }
+        for (IOFMessageListener listener : listeners) {
+            if (listener instanceof IOFMessageBatchListener) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Put the payload of a packet-in in its context: the decoded Ethernet
+     * packet, or, unless ALWAYS_DECODE_ETH is set, a view over the raw
+     * bytes that is decoded on demand through bcStore.
+     * @param bc the context of the packet-in
+     * @param pi the packet-in
+     */
+    protected void storePacketInPayload(FloodlightContext bc, OFPacketIn pi) {
+        if (Controller.ALWAYS_DECODE_ETH) {
+            Ethernet eth = new Ethernet();
+            eth.deserialize(pi.getData(), 0, pi.getData().length);
+            IFloodlightProviderService.piViewStore.remove(bc,
+                    IFloodlightProviderService.CONTEXT_PI_VIEW_SLOT);
+            IFloodlightProviderService.bcStore.put(bc,
+                    IFloodlightProviderService.CONTEXT_PI_PAYLOAD_SLOT,
+                    eth);
+        } else {
+            // a payload already in a caller-supplied context is stale
+            IFloodlightProviderService.bcStore.remove(bc,
+                    IFloodlightProviderService.CONTEXT_PI_PAYLOAD_SLOT);
+            IFloodlightProviderService.piViewStore.put(bc,
+                    IFloodlightProviderService.CONTEXT_PI_VIEW_SLOT,
+                    new EthernetView(pi.getData()));
+        }
+    }
+
     // ***************
     // IFloodlightProvider
     // ***************
@@ -548,6 +784,9 @@ public class Controller implements IFloodlightProviderService, IStorageSourceLis
             messageListeners.put(type, ldd);
         }
         ldd.addListener(type, listener);
+        if (listener instanceof IOFMessageBatchListener) {
+            batchListenersRegistered = true;
+        }
     }
 
     @Override
@@ -733,6 +972,17 @@ public class Controller implements IFloodlightProviderService, IStorageSourceLis
             this.workerThreads = Integer.parseInt(threads);
         }
         log.debug("Number of worker threads set to {}", this.workerThreads);
+
+        String lanes = configParams.get("dispatchLanes");
+        if (!Strings.isNullOrEmpty(lanes)) {
+            this.dispatchLanes = Integer.parseInt(lanes);
+        }
+        String queueSize = configParams.get("dispatchQueueSize");
+        if (!Strings.isNullOrEmpty(queueSize)) {
+            this.dispatchQueueSize = Integer.parseInt(queueSize);
+        }
+        log.debug("Number of dispatch lanes set to {}, queue size {}",
+                  this.dispatchLanes, this.dispatchQueueSize);
     }
 
     /**
@@ -766,6 +1016,12 @@ public class Controller implements IFloodlightProviderService, IStorageSourceLis
         this.switchService.addOFSwitchListener(new NotificationSwitchListener());
 
         this.counters = new ControllerCounters(debugCounterService);
+
+        if (this.dispatchLanes > 0) {
+            this.dispatchPipeline = new DispatchPipeline(this, counters,
+                                                         dispatchLanes,
+                                                         dispatchQueueSize);
+        }
      }
 
     /**
@@ -798,6 +1054,18 @@ public class Controller implements IFloodlightProviderService, IStorageSourceLis
             this.loadmonitor.startMonitoring(this.threadPoolService.getScheduledExecutor());
         }
 
+        if (dispatchPipeline != null) {
+            dispatchPipeline.start();
+            // stop the lanes when the controller terminates, so that no
+            // message is dispatched while the process goes down
+            shutdownService.registerShutdownListener(new IShutdownListener() {
+                @Override
+                public void floodlightIsShuttingDown() {
+                    dispatchPipeline.stop();
+                }
+            });
+        }
+
         // Add our REST API
         restApiService.addRestletRoutable(new CoreWebRoutable());
                 
@@ -1064,6 +1332,10 @@ public class Controller implements IFloodlightProviderService, IStorageSourceLis
         Map<String, Object> info = new HashMap<String, Object>();
 
         info.put("# Switches", this.switchService.getAllSwitchDpids().size());
+        if (dispatchPipeline != null) {
+            info.put("# Dispatch lanes", dispatchPipeline.getNumLanes());
+            info.put("# Queued messages", dispatchPipeline.getQueuedCount());
+        }
         return info;
     }
 
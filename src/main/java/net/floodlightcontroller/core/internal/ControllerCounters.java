@@ -19,6 +19,10 @@ public class ControllerCounters {
     public final IDebugCounter dispatchMessageWhileStandby;
     public final IDebugCounter dispatchMessage;
     public final IDebugCounter packetIn;
+    public final IDebugCounter dispatchLaneEnqueue;
+    public final IDebugCounter dispatchLaneFull;
+    public final IDebugCounter dispatchLaneDrop;
+    public final IDebugCounter dispatchLaneError;
 
     public ControllerCounters(IDebugCounterService debugCounters) {
         debugCounters.registerModule(prefix);
@@ -46,5 +50,25 @@ public class ControllerCounters {
                                                            MetaData.ERROR);
         
         packetIn = debugCounters.registerCounter(prefix, "packet-in", "Number of packet_in's seen");
+
+        dispatchLaneEnqueue = debugCounters.registerCounter(prefix,
+                                                            "dispatch-lane-enqueue",
+                                                            "Number of OF messages queued on a "
+                                                                    + "dispatch lane");
+        dispatchLaneFull = debugCounters.registerCounter(prefix,
+                                                         "dispatch-lane-full",
+                                                         "Number of times an OF message was "
+                                                                 + "submitted to a full dispatch lane",
+                                                         MetaData.WARN);
+        dispatchLaneDrop = debugCounters.registerCounter(prefix,
+                                                         "dispatch-lane-drop",
+                                                         "Number of packet-ins dropped because "
+                                                                 + "their dispatch lane was full",
+                                                         MetaData.DROP);
+        dispatchLaneError = debugCounters.registerCounter(prefix,
+                                                          "dispatch-lane-error",
+                                                          "Number of OF messages whose dispatch on a "
+                                                                  + "dispatch lane threw an exception",
+                                                          MetaData.ERROR);
     }
 }
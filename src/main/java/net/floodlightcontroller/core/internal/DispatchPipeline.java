@@ -0,0 +1,264 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.internal;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.annotations.LogMessageDoc;
+
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands OpenFlow messages from the I/O threads to a fixed set of worker
+ * lanes, which run the listener chain.
+ *
+ * Each switch is mapped to exactly one lane, and each lane is served by a
+ * single thread, so the messages of a switch are dispatched in the order
+ * they were read. Lane queues are bounded, and the I/O threads never wait
+ * for room: packet-ins submitted to a full lane are dropped, which sheds
+ * the load where it comes from. Other messages are still queued past the
+ * bound, since they are few and losing them would leave the switch state
+ * inconsistent.
+ *
+ * A lane takes all the messages waiting in its queue at once, and hands
+ * the messages of each switch to the dispatcher together so that batch
+ * listeners can process them as one batch.
+ */
+public class DispatchPipeline {
+    protected static final Logger log =
+            LoggerFactory.getLogger(DispatchPipeline.class);
+
+    /**
+     * Dispatches messages to the listeners. Implemented by the controller.
+     */
+    public interface IMessageDispatcher {
+        public void dispatchMessage(IOFSwitch sw, OFMessage m,
+                                    FloodlightContext bContext);
+
+        /**
+         * Dispatch several messages from one switch, in order
+         */
+        public void dispatchMessages(IOFSwitch sw, List<OFMessage> msgs);
+    }
+
+    /**
+     * The most messages a lane takes from its queue at once
+     */
+    protected static final int MAX_DRAIN = 64;
+
+    private static class Task {
+        final IOFSwitch sw;
+        final OFMessage m;
+
+        Task(IOFSwitch sw, OFMessage m) {
+            this.sw = sw;
+            this.m = m;
+        }
+    }
+
+    private class Lane extends Thread {
+        final BlockingQueue<Task> queue = new LinkedBlockingQueue<Task>();
+
+        Lane(int index) {
+            super("DispatchLane-" + index);
+            setDaemon(true);
+        }
+
+        @Override
+        @LogMessageDoc(level="ERROR",
+                message="Exception while dispatching {message} from {switch}",
+                explanation="A module threw an exception while processing " +
+                        "an OpenFlow message",
+                recommendation=LogMessageDoc.REPORT_CONTROLLER_BUG)
+        public void run() {
+            List<Task> tasks = new ArrayList<Task>(MAX_DRAIN);
+            Map<IOFSwitch, List<OFMessage>> bySwitch =
+                    new LinkedHashMap<IOFSwitch, List<OFMessage>>();
+            while (!stopped) {
+                try {
+                    tasks.add(queue.take());
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                queue.drainTo(tasks, MAX_DRAIN - 1);
+
+                if (tasks.size() == 1) {
+                    Task t = tasks.get(0);
+                    try {
+                        dispatcher.dispatchMessage(t.sw, t.m, null);
+                    } catch (Exception e) {
+                        counters.dispatchLaneError.increment();
+                        log.error("Exception while dispatching " + t.m +
+                                  " from " + t.sw, e);
+                    }
+                } else {
+                    // Messages of different switches may be reordered,
+                    // the messages of one switch are not.
+                    for (Task t : tasks) {
+                        List<OFMessage> msgs = bySwitch.get(t.sw);
+                        if (msgs == null) {
+                            msgs = new ArrayList<OFMessage>();
+                            bySwitch.put(t.sw, msgs);
+                        }
+                        msgs.add(t.m);
+                    }
+                    for (Map.Entry<IOFSwitch, List<OFMessage>> e :
+                            bySwitch.entrySet()) {
+                        try {
+                            dispatcher.dispatchMessages(e.getKey(),
+                                                        e.getValue());
+                        } catch (Exception ex) {
+                            counters.dispatchLaneError.increment();
+                            log.error("Exception while dispatching " +
+                                      e.getValue() + " from " + e.getKey(),
+                                      ex);
+                        }
+                    }
+                    bySwitch.clear();
+                }
+                tasks.clear();
+            }
+        }
+    }
+
+    private final IMessageDispatcher dispatcher;
+    private final ControllerCounters counters;
+    private final Lane[] lanes;
+    private final int queueSize;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param dispatcher dispatches messages to the listeners
+     * @param counters the controller counters
+     * @param numLanes the number of lanes, and so of threads
+     * @param queueSize the number of messages queued on a lane beyond
+     * which packet-ins are dropped
+     */
+    public DispatchPipeline(IMessageDispatcher dispatcher,
+                            ControllerCounters counters,
+                            int numLanes, int queueSize) {
+        if (numLanes <= 0 || queueSize <= 0)
+            throw new IllegalArgumentException("numLanes and queueSize " +
+                    "must be positive");
+        this.dispatcher = dispatcher;
+        this.counters = counters;
+        this.queueSize = queueSize;
+        this.lanes = new Lane[numLanes];
+        for (int i = 0; i < numLanes; i++) {
+            lanes[i] = new Lane(i);
+        }
+    }
+
+    public void start() {
+        for (Lane lane : lanes) {
+            lane.start();
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+        for (Lane lane : lanes) {
+            lane.interrupt();
+        }
+    }
+
+    /**
+     * Get the lane a switch is dispatched on
+     * @param sw the switch
+     * @return the lane index
+     */
+    protected int getLaneIndex(IOFSwitch sw) {
+        long dpid = sw.getId().getLong();
+        int h = (int) (dpid ^ (dpid >>> 32));
+        // spread sequential DPIDs over the lanes
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * Queue a message for dispatch on the switch's lane. This never waits:
+     * if the lane is full, a packet-in is dropped, and any other message is
+     * queued anyway.
+     *
+     * Messages submitted by a lane thread itself, e.g. injected by a
+     * listener, are not queued, so the caller must dispatch them inline.
+     *
+     * The listeners get a newly allocated context, so messages whose
+     * caller supplies its own context should be dispatched inline.
+     *
+     * @param sw the switch the message is from
+     * @param m the message
+     * @return true if the message was queued or dropped, false if the
+     * caller must dispatch it itself
+     */
+    public boolean submit(IOFSwitch sw, OFMessage m) {
+        if (stopped || Thread.currentThread() instanceof Lane)
+            return false;
+
+        Lane lane = lanes[getLaneIndex(sw)];
+        // The bound is checked without a lock, so concurrent I/O threads
+        // may overshoot it by a few messages.
+        if (lane.queue.size() >= queueSize) {
+            counters.dispatchLaneFull.increment();
+            if (m.getType() == OFType.PACKET_IN) {
+                counters.dispatchLaneDrop.increment();
+                return true;
+            }
+        }
+        counters.dispatchLaneEnqueue.increment();
+        lane.queue.add(new Task(sw, m));
+        return true;
+    }
+
+    public int getNumLanes() {
+        return lanes.length;
+    }
+
+    /**
+     * @return the number of messages waiting in all lanes
+     */
+    public int getQueuedCount() {
+        int queued = 0;
+        for (Lane lane : lanes) {
+            queued += lane.queue.size();
+        }
+        return queued;
+    }
+
+    /**
+     * @return the number of messages waiting in each lane
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].queue.size();
+        }
+        return depths;
+    }
+}
@@ -65,6 +65,7 @@ class OFChannelHandler extends IdleStateAwareChannelHandler {
 	private OFFactory factory = OFFactories.getFactory(OFVersion.OF_13);
 	private OFFeaturesReply featuresReply;
 	private volatile OFConnection connection;
+	private OFMessageDecoder decoder;
 	private final IDebugCounterService debugCounters;
 
 	/** transaction Ids to use during handshake. Since only one thread
@@ -302,7 +303,7 @@ class OFChannelHandler extends IdleStateAwareChannelHandler {
 		void processOFHello(OFHello m) throws IOException {
 			OFVersion version = m.getVersion();
 			factory = OFFactories.getFactory(version);
-			OFMessageDecoder decoder = pipeline.get(OFMessageDecoder.class);
+			decoder = pipeline.get(OFMessageDecoder.class);
 			decoder.setVersion(version);
 			setState(new WaitFeaturesReplyState());
 		}
@@ -367,6 +368,10 @@ class OFChannelHandler extends IdleStateAwareChannelHandler {
 					setAuxChannelIdle();
 				}
 			}
+			// Report decode throughput to the connection's counters
+			if (decoder != null) {
+				decoder.setCounters(connection.getCounters());
+			}
 			// Notify the connection broker
 			notifyConnectionOpened(connection);
 
@@ -615,15 +620,30 @@ class OFChannelHandler extends IdleStateAwareChannelHandler {
 		if (e.getMessage() instanceof List) {
 			@SuppressWarnings("unchecked")
 			List<OFMessage> msglist = (List<OFMessage>)e.getMessage();
-			for (OFMessage ofm : msglist) {
+			// Messages of this read that are dispatched to batch listeners
+			// are collected and dispatched together when the batch ends
+			OFMessageReadBatch.begin();
+			try {
+				for (OFMessage ofm : msglist) {
+					try {
+						// Do the actual packet processing
+						state.processOFMessage(ofm);
+					}
+					catch (Exception ex) {
+						// We are the last handler in the stream, so run the
+						// exception through the channel again by passing in
+						// ctx.getChannel().
+						Channels.fireExceptionCaught(ctx.getChannel(), ex);
+					}
+				}
+			}
+			finally {
+				// end the batch even on an Error, or the thread would keep
+				// collecting the messages of later reads
 				try {
-					// Do the actual packet processing
-					state.processOFMessage(ofm);
+					OFMessageReadBatch.end();
 				}
 				catch (Exception ex) {
-					// We are the last handler in the stream, so run the
-					// exception through the channel again by passing in
-					// ctx.getChannel().
 					Channels.fireExceptionCaught(ctx.getChannel(), ex);
 				}
 			}
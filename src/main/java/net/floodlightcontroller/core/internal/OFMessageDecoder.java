@@ -24,6 +24,9 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+import net.floodlightcontroller.core.OFConnectionCounters;
+
 import org.projectfloodlight.openflow.protocol.OFFactories;
 import org.projectfloodlight.openflow.protocol.OFFactory;
 import org.projectfloodlight.openflow.protocol.OFMessage;
@@ -33,11 +36,22 @@ import org.projectfloodlight.openflow.protocol.OFVersion;
 /**
  * Decode an openflow message from a channel, for use in a netty pipeline.
  *
+ * Only complete frames are handed to the message reader, and all of them
+ * are decoded from the received buffer in place. The list of decoded
+ * messages is reused from one read to the next: the pipeline hands it to
+ * {@link OFChannelHandler}, which processes it before the next read, so
+ * it must not be kept beyond that.
+ *
  * @author readams
  */
 public class OFMessageDecoder extends FrameDecoder {
+    /** Length of the OpenFlow header, and offset of its length field */
+    private static final int OF_HEADER_LENGTH = 8;
+    private static final int OF_LENGTH_OFFSET = 2;
 
     private OFMessageReader<OFMessage> reader;
+    private final List<OFMessage> messageList = new ArrayList<OFMessage>();
+    private volatile OFConnectionCounters counters;
 
     public OFMessageDecoder() {
         reader = OFFactories.getGenericReader();
@@ -52,6 +66,15 @@ public class OFMessageDecoder extends FrameDecoder {
         this.reader = factory.getReader();
     }
 
+    /**
+     * Set the counters of the connection, to report decode throughput to
+     * once the handshake has created it
+     * @param counters
+     */
+    public void setCounters(OFConnectionCounters counters) {
+        this.counters = counters;
+    }
+
     @Override
     protected Object decode(ChannelHandlerContext ctx, Channel channel,
                             ChannelBuffer buffer) throws Exception {
@@ -61,14 +84,32 @@ public class OFMessageDecoder extends FrameDecoder {
             return null;
         }
 
-        List<OFMessage> messageList = new ArrayList<OFMessage>();
+        long start = System.nanoTime();
+        int startIndex = buffer.readerIndex();
+        messageList.clear();
         for (;;) {
+            int readable = buffer.readableBytes();
+            if (readable < OF_HEADER_LENGTH)
+                break;
+            int length = buffer.getUnsignedShort(buffer.readerIndex()
+                                                 + OF_LENGTH_OFFSET);
+            if (readable < length)
+                break;
             OFMessage message = reader.readFrom(buffer);
             if (message == null)
                 break;
             messageList.add(message);
         }
-        return messageList.isEmpty() ? null : messageList;
+        if (messageList.isEmpty())
+            return null;
+
+        OFConnectionCounters counters = this.counters;
+        if (counters != null) {
+            counters.updateDecodeStats(messageList.size(),
+                                       buffer.readerIndex() - startIndex,
+                                       System.nanoTime() - start);
+        }
+        return messageList;
     }
 
     @Override
@@ -17,6 +17,8 @@
 
 package net.floodlightcontroller.core.internal;
 
+import java.util.Collection;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
@@ -27,9 +29,26 @@ import org.projectfloodlight.openflow.protocol.OFMessage;
 /**
  * Encode an openflow message for output into a ChannelBuffer, for use in a
  * netty pipeline
+ *
+ * Each batch is written into a single buffer sized from the average
+ * encoded message size of the previous batches on the channel, so that
+ * the buffer doesn't have to grow, and be copied, while the batch is
+ * written. The buffer still grows if the estimate turns out too small.
  * @author readams
  */
 public class OFMessageEncoder extends OneToOneEncoder {
+    /** Assumed message size before the first batch is written */
+    protected static final int INITIAL_MESSAGE_SIZE = 128;
+    /** Extra room over the estimated batch size, as a right shift */
+    protected static final int HEADROOM_SHIFT = 2;
+    /** Weight of smaller batches in the average message size, as a right shift */
+    protected static final int AVERAGE_SHIFT = 3;
+
+    /**
+     * Average encoded message size in bytes. Only a sizing hint, so racing
+     * writers may lose updates.
+     */
+    private volatile int averageMessageSize = INITIAL_MESSAGE_SIZE;
 
     @Override
     protected Object encode(ChannelHandlerContext ctx, Channel channel,
@@ -40,10 +59,51 @@ public class OFMessageEncoder extends OneToOneEncoder {
         @SuppressWarnings("unchecked")
         Iterable<OFMessage> msgList = (Iterable<OFMessage>)msg;
 
-        ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+        int count = countMessages(msgList);
+        if (count == 0)
+            return ChannelBuffers.EMPTY_BUFFER;
+
+        ChannelBuffer buf = ChannelBuffers.dynamicBuffer(getBufferSize(count));
         for (OFMessage ofm :  msgList) {
             ofm.writeTo(buf);
         }
+        updateAverageMessageSize(buf.readableBytes() / count);
         return buf;
     }
+
+    private static int countMessages(Iterable<OFMessage> msgList) {
+        if (msgList instanceof Collection)
+            return ((Collection<?>) msgList).size();
+        int count = 0;
+        for (@SuppressWarnings("unused") OFMessage ofm : msgList) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Get the initial capacity of the buffer for a batch
+     * @param count number of messages in the batch
+     * @return the capacity in bytes
+     */
+    protected int getBufferSize(int count) {
+        long size = (long) count * averageMessageSize;
+        size += size >> HEADROOM_SHIFT;
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    private void updateAverageMessageSize(int batchAverage) {
+        int avg = averageMessageSize;
+        if (batchAverage > avg) {
+            // follow increases right away, so that the next batch fits
+            avg = batchAverage;
+        } else {
+            avg -= (avg - batchAverage) >> AVERAGE_SHIFT;
+        }
+        averageMessageSize = avg;
+    }
+
+    protected int getAverageMessageSize() {
+        return averageMessageSize;
+    }
 }
@@ -0,0 +1,107 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.projectfloodlight.openflow.protocol.OFMessage;
+
+/**
+ * Collects the messages dispatched by one thread while it processes a
+ * channel read, so that they can be handed to the listeners together.
+ *
+ * {@link OFChannelHandler} opens a batch around the messages of each read
+ * and closes it at the end of the read, which dispatches the collected
+ * messages. The batch is kept per thread since a Netty I/O thread only
+ * processes one read at a time.
+ */
+class OFMessageReadBatch {
+    private static final ThreadLocal<OFMessageReadBatch> current =
+            new ThreadLocal<OFMessageReadBatch>() {
+        @Override
+        protected OFMessageReadBatch initialValue() {
+            return new OFMessageReadBatch();
+        }
+    };
+
+    private final List<OFMessage> msgs = new ArrayList<OFMessage>();
+    private DispatchPipeline.IMessageDispatcher dispatcher;
+    private IOFSwitch sw;
+    private boolean open = false;
+
+    /**
+     * Open the batch of the calling thread
+     */
+    static void begin() {
+        current.get().open = true;
+    }
+
+    /**
+     * Close the batch of the calling thread and dispatch its messages
+     */
+    static void end() {
+        OFMessageReadBatch batch = current.get();
+        batch.open = false;
+        batch.flush();
+    }
+
+    /**
+     * @return the open batch of the calling thread, or null if the thread
+     * is not processing a channel read
+     */
+    static OFMessageReadBatch getOpenBatch() {
+        OFMessageReadBatch batch = current.get();
+        return batch.open ? batch : null;
+    }
+
+    /**
+     * Add a message to the batch. Messages from a different switch than
+     * the ones already in the batch cause the batch to be dispatched
+     * first, so a batch only holds messages of one switch.
+     */
+    void add(DispatchPipeline.IMessageDispatcher dispatcher, IOFSwitch sw,
+             OFMessage m) {
+        if (!msgs.isEmpty() && (sw != this.sw || dispatcher != this.dispatcher))
+            flush();
+        this.dispatcher = dispatcher;
+        this.sw = sw;
+        msgs.add(m);
+    }
+
+    /**
+     * Dispatch the collected messages. Messages dispatched by the listeners
+     * themselves while the batch is being dispatched are not collected.
+     */
+    private void flush() {
+        if (msgs.isEmpty())
+            return;
+        List<OFMessage> batch = new ArrayList<OFMessage>(msgs);
+        msgs.clear();
+        boolean wasOpen = open;
+        open = false;
+        try {
+            dispatcher.dispatchMessages(sw, batch);
+        } finally {
+            open = wasOpen;
+            dispatcher = null;
+            sw = null;
+        }
+    }
+}
@@ -87,6 +87,12 @@ public abstract class DeviceIndex {
      * @param deviceKey the key to remove
      */
     public abstract void removeEntity(Entity entity, Long deviceKey);
+
+    /**
+     * Estimate the heap used by the index
+     * @return the estimated size of the index in bytes
+     */
+    public abstract long getMemoryFootprint();
     
     /**
      * Remove the give device from the index only if this the collection
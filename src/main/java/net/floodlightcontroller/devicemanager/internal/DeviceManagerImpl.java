@@ -19,7 +19,6 @@ package net.floodlightcontroller.devicemanager.internal;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -38,6 +37,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.HAListenerTypeMarker;
@@ -147,6 +147,7 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	public IDebugCounter cntDeviceChanged;
 	public IDebugCounter cntDeviceMoved;
 	public IDebugCounter cntCleanupEntitiesRuns;
+	public IDebugCounter cntEntityExpiryChecks;
 	public IDebugCounter cntEntityRemovedTimeout;
 	public IDebugCounter cntDeviceDeleted;
 	public IDebugCounter cntDeviceReclassifyDelete;
@@ -158,6 +159,8 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	public IDebugCounter cntConsolidateStoreRuns;
 	public IDebugCounter cntConsolidateStoreDevicesRemoved;
 	public IDebugCounter cntTransitionToMaster;
+	public IDebugCounter cntLearningLockContended;
+	public IDebugCounter cntLearningRetry;
 
 	/**
 	 * Debug Events
@@ -200,9 +203,11 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	protected static final int ENTITY_TIMEOUT = 60*60*1000;
 
 	/**
-	 * Time in seconds between cleaning up old entities/devices
+	 * Time in seconds between cleaning up old entities/devices. Only the
+	 * devices due in {@link #expiryWheel} are visited, so this is also the
+	 * resolution of the entity timeout.
 	 */
-	protected static final int ENTITY_CLEANUP_INTERVAL = 60*60;
+	protected static final int ENTITY_CLEANUP_INTERVAL = 60;
 
 	/**
 	 * This is the master device map that maps device IDs to {@link Device}
@@ -215,6 +220,30 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	 */
 	protected AtomicLong deviceKeyCounter = new AtomicLong(0);
 
+	/**
+	 * Number of locks serializing device learning. Must be a power of 2.
+	 */
+	protected static final int LEARNING_LOCK_STRIPES = 256;
+
+	/**
+	 * Locks serializing the learning and expiry of devices with MAC
+	 * addresses that hash to the same stripe, so that concurrent updates
+	 * of the same device wait for each other instead of repeatedly
+	 * conflicting and restarting.
+	 */
+	protected final ReentrantLock[] learningLocks;
+	{
+		learningLocks = new ReentrantLock[LEARNING_LOCK_STRIPES];
+		for (int i = 0; i < LEARNING_LOCK_STRIPES; i++) {
+			learningLocks[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Devices ordered by the time at which their oldest entity times out
+	 */
+	protected EntityExpiryWheel expiryWheel;
+
 	/**
 	 * This is the primary entity index that contains all entities
 	 */
@@ -729,9 +758,30 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 
 		Map<String, Object> info = new HashMap<String, Object>();
 		info.put("# hosts", deviceMap.size());
+		info.put("Device index memory (KB)", getIndexMemoryFootprint() / 1024);
 		return info;
 	}
 
+	/**
+	 * Estimate the heap used by the primary, secondary and per-class
+	 * device indices
+	 * @return the estimated size of the indices in bytes
+	 */
+	protected long getIndexMemoryFootprint() {
+		long bytes = primaryIndex.getMemoryFootprint();
+		for (DeviceIndex index : secondaryIndexMap.values()) {
+			bytes += index.getMemoryFootprint();
+		}
+		for (ClassState classState : classStateMap.values()) {
+			if (classState.classIndex != null)
+				bytes += classState.classIndex.getMemoryFootprint();
+			for (DeviceIndex index : classState.secondaryIndexMap.values()) {
+				bytes += index.getMemoryFootprint();
+			}
+		}
+		return bytes;
+	}
+
 	// ******************
 	// IOFMessageListener
 	// ******************
@@ -854,6 +904,8 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 		secondaryIndexMap = new HashMap<EnumSet<DeviceField>, DeviceIndex>();
 
 		deviceMap = new ConcurrentHashMap<Long, Device>();
+		expiryWheel = new EntityExpiryWheel(ENTITY_CLEANUP_INTERVAL*1000L,
+				ENTITY_TIMEOUT, System.currentTimeMillis());
 		classStateMap =
 				new ConcurrentHashMap<String, ClassState>();
 		apComparator = new AttachmentPointComparator();
@@ -975,6 +1027,10 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 		cntCleanupEntitiesRuns = debugCounters.registerCounter(PACKAGE,
 				"cleanup-entities-runs",
 				"Number of times the entity cleanup task has been run");
+		cntEntityExpiryChecks = debugCounters.registerCounter(PACKAGE,
+				"entity-expiry-checks",
+				"Number of times the entity cleanup task has checked a " +
+				"device whose oldest entity may have timed out");
 		cntEntityRemovedTimeout = debugCounters.registerCounter(PACKAGE,
 				"entity-removed-timeout",
 				"Number of times entities have been removed due to timeout " +
@@ -1019,6 +1075,14 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 				"transition-to-master",
 				"Number of times this controller has transitioned from SLAVE " +
 				"to MASTER role. Will be 0 or 1.");
+		cntLearningLockContended = debugCounters.registerCounter(PACKAGE,
+				"learning-lock-contended",
+				"Number of times device learning or expiry had to wait for " +
+				"another thread holding the lock of the device's MAC address");
+		cntLearningRetry = debugCounters.registerCounter(PACKAGE,
+				"learning-retry",
+				"Number of times device learning was restarted because of a " +
+				"concurrent modification of the device or the indices");
 	}
 
 	// ***************
@@ -1096,7 +1160,7 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 		}
 
 		// Store the source device in the context
-		fcStore.put(cntx, CONTEXT_SRC_DEVICE, srcDevice);
+		fcStore.put(cntx, CONTEXT_SRC_DEVICE_SLOT, srcDevice);
 
 		// Find the device matching the destination from the entity
 		// classes of the source.
@@ -1109,7 +1173,7 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 		if (dstEntity != null) {
 			dstDevice = findDestByEntity(srcDevice.getEntityClass(), dstEntity);
 			if (dstDevice != null)
-				fcStore.put(cntx, CONTEXT_DST_DEVICE, dstDevice);
+				fcStore.put(cntx, CONTEXT_DST_DEVICE_SLOT, dstDevice);
 			else
 				cntNoDest.increment();
 		} else {
@@ -1381,200 +1445,226 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 		ArrayList<Long> deleteQueue = null;
 		LinkedList<DeviceUpdate> deviceUpdates = null;
 		Device device = null;
-
-		// we may need to restart the learning process if we detect
-		// concurrent modification.  Note that we ensure that at least
-		// one thread should always succeed so we don't get into infinite
-		// starvation loops
-		while (true) {
-			deviceUpdates = null;
-
-			// Look up the fully-qualified entity to see if it already
-			// exists in the primary entity index.
-			Long deviceKey = primaryIndex.findByEntity(entity);
-			IEntityClass entityClass = null;
-
-			if (deviceKey == null) {
-				// If the entity does not exist in the primary entity index,
-				// use the entity classifier for find the classes for the
-				// entity. Look up the entity in the returned class'
-				// class entity index.
-				entityClass = entityClassifier.classifyEntity(entity);
-				if (entityClass == null) {
-					// could not classify entity. No device
-					device = null;
-					break;
+		Device movedDevice = null;
+
+		// Entities of the same device share the MAC address, so holding
+		// the MAC's lock keeps other threads from learning the same
+		// device concurrently.
+		ReentrantLock lock = getLearningLock(entity.getMacAddress());
+		if (!lock.tryLock()) {
+			cntLearningLockContended.increment();
+			lock.lock();
+		}
+		try {
+			// we may still need to restart the learning process if we detect
+			// concurrent modification by paths that don't take the lock, or
+			// of devices whose key fields don't include the MAC address. Note
+			// that we ensure that at least one thread should always succeed
+			// so we don't get into infinite starvation loops
+			boolean retry = false;
+			while (true) {
+				if (retry) {
+					cntLearningRetry.increment();
 				}
-				ClassState classState = getClassState(entityClass);
+				retry = true;
+				deviceUpdates = null;
+
+				// Look up the fully-qualified entity to see if it already
+				// exists in the primary entity index.
+				Long deviceKey = primaryIndex.findByEntity(entity);
+				IEntityClass entityClass = null;
+
+				if (deviceKey == null) {
+					// If the entity does not exist in the primary entity index,
+					// use the entity classifier for find the classes for the
+					// entity. Look up the entity in the returned class'
+					// class entity index.
+					entityClass = entityClassifier.classifyEntity(entity);
+					if (entityClass == null) {
+						// could not classify entity. No device
+						device = null;
+						break;
+					}
+					ClassState classState = getClassState(entityClass);
 
-				if (classState.classIndex != null) {
-					deviceKey = classState.classIndex.findByEntity(entity);
-				}
-			}
-			if (deviceKey != null) {
-				// If the primary or secondary index contains the entity
-				// use resulting device key to look up the device in the
-				// device map, and use the referenced Device below.
-				device = deviceMap.get(deviceKey);
-				if (device == null) {
-					// This can happen due to concurrent modification
-					if (logger.isDebugEnabled()) {
-						logger.debug("No device for deviceKey {} while "
-								+ "while processing entity {}",
-								deviceKey, entity);
+					if (classState.classIndex != null) {
+						deviceKey = classState.classIndex.findByEntity(entity);
 					}
-					// if so, then try again till we don't even get the device key
-					// and so we recreate the device
-					continue;
 				}
-			} else {
-				// If the secondary index does not contain the entity,
-				// create a new Device object containing the entity, and
-				// generate a new device ID if the the entity is on an
-				// attachment point port. Otherwise ignore.
-				if (entity.hasSwitchPort() && !topology.isAttachmentPointPort(entity.getSwitchDPID(), entity.getSwitchPort())) {
-					cntDeviceOnInternalPortNotLearned.increment();
+				if (deviceKey != null) {
+					// If the primary or secondary index contains the entity
+					// use resulting device key to look up the device in the
+					// device map, and use the referenced Device below.
+					device = deviceMap.get(deviceKey);
+					if (device == null) {
+						// This can happen due to concurrent modification
+						if (logger.isDebugEnabled()) {
+							logger.debug("No device for deviceKey {} while "
+									+ "while processing entity {}",
+									deviceKey, entity);
+						}
+						// if so, then try again till we don't even get the device key
+						// and so we recreate the device
+						continue;
+					}
+				} else {
+					// If the secondary index does not contain the entity,
+					// create a new Device object containing the entity, and
+					// generate a new device ID if the the entity is on an
+					// attachment point port. Otherwise ignore.
+					if (entity.hasSwitchPort() && !topology.isAttachmentPointPort(entity.getSwitchDPID(), entity.getSwitchPort())) {
+						cntDeviceOnInternalPortNotLearned.increment();
+						if (logger.isDebugEnabled()) {
+							logger.debug("Not learning new device on internal"
+									+ " link: {}", entity);
+						}
+						device = null;
+						break;
+					}
+					// Before we create the new device also check if
+					// the entity is allowed (e.g., for spoofing protection)
+					if (!isEntityAllowed(entity, entityClass)) {
+						cntPacketNotAllowed.increment();
+						if (logger.isDebugEnabled()) {
+							logger.debug("PacketIn is not allowed {} {}",
+									entityClass.getName(), entity);
+						}
+						device = null;
+						break;
+					}
+					deviceKey = deviceKeyCounter.getAndIncrement();
+					device = allocateDevice(deviceKey, entity, entityClass);
+
+
+					// Add the new device to the primary map with a simple put
+					deviceMap.put(deviceKey, device);
+					scheduleExpiry(device);
+					// update indices
+					if (!updateIndices(device, deviceKey)) {
+						if (deleteQueue == null)
+							deleteQueue = new ArrayList<Long>();
+						deleteQueue.add(deviceKey);
+						continue;
+					}
+
+					updateSecondaryIndices(entity, entityClass, deviceKey);
+
+					// We need to count and log here. If we log earlier we could
+					// hit a concurrent modification and restart the dev creation
+					// and potentially count the device twice.
+					cntNewDevice.increment();
 					if (logger.isDebugEnabled()) {
-						logger.debug("Not learning new device on internal"
-								+ " link: {}", entity);
+						logger.debug("New device created: {} deviceKey={}, entity={}",
+								new Object[]{device, deviceKey, entity});
 					}
-					device = null;
+					// generate new device update
+					deviceUpdates = updateUpdates(deviceUpdates, new DeviceUpdate(device, ADD, null));
+
 					break;
 				}
-				// Before we create the new device also check if
-				// the entity is allowed (e.g., for spoofing protection)
-				if (!isEntityAllowed(entity, entityClass)) {
+				// if it gets here, we have a pre-existing Device for this Entity
+				if (!isEntityAllowed(entity, device.getEntityClass())) {
 					cntPacketNotAllowed.increment();
 					if (logger.isDebugEnabled()) {
-						logger.debug("PacketIn is not allowed {} {}",
-								entityClass.getName(), entity);
+						logger.info("PacketIn is not allowed {} {}",
+								device.getEntityClass().getName(), entity);
 					}
-					device = null;
-					break;
-				}
-				deviceKey = deviceKeyCounter.getAndIncrement();
-				device = allocateDevice(deviceKey, entity, entityClass);
-
-
-				// Add the new device to the primary map with a simple put
-				deviceMap.put(deviceKey, device);
-				// update indices
-				if (!updateIndices(device, deviceKey)) {
-					if (deleteQueue == null)
-						deleteQueue = new ArrayList<Long>();
-					deleteQueue.add(deviceKey);
-					continue;
+					return null;
 				}
-
-				updateSecondaryIndices(entity, entityClass, deviceKey);
-
-				// We need to count and log here. If we log earlier we could
-				// hit a concurrent modification and restart the dev creation
-				// and potentially count the device twice.
-				cntNewDevice.increment();
-				if (logger.isDebugEnabled()) {
-					logger.debug("New device created: {} deviceKey={}, entity={}",
-							new Object[]{device, deviceKey, entity});
-				}
-				// generate new device update
-				deviceUpdates = updateUpdates(deviceUpdates, new DeviceUpdate(device, ADD, null));
-
-				break;
-			}
-			// if it gets here, we have a pre-existing Device for this Entity
-			if (!isEntityAllowed(entity, device.getEntityClass())) {
-				cntPacketNotAllowed.increment();
-				if (logger.isDebugEnabled()) {
-					logger.info("PacketIn is not allowed {} {}",
-							device.getEntityClass().getName(), entity);
-				}
-				return null;
-			}
-			// If this is not an attachment point port we don't learn the new entity
-			// and don't update indexes. But we do allow the device to continue up
-			// the chain.
-			if (entity.hasSwitchPort() && !topology.isAttachmentPointPort(entity.getSwitchDPID(), entity.getSwitchPort())) {
-				cntPacketOnInternalPortForKnownDevice.increment();
-				break;
-			}
-			int entityindex = -1;
-			if ((entityindex = device.entityIndex(entity)) >= 0) {
-				// Entity already exists
-				// update timestamp on the found entity
-				Date lastSeen = entity.getLastSeenTimestamp();
-				if (lastSeen == null) {
-					lastSeen = new Date();
-					entity.setLastSeenTimestamp(lastSeen);
-				}
-				device.entities[entityindex].setLastSeenTimestamp(lastSeen);
-				// we break the loop after checking for changes to the AP
-			} else {
-				// New entity for this device
-				// compute the insertion point for the entity.
-				// see Arrays.binarySearch()
-				entityindex = -(entityindex + 1);
-				Device newDevice = allocateDevice(device, entity, entityindex);
-
-				// generate updates
-				EnumSet<DeviceField> changedFields = findChangedFields(device, entity);
-
-				// update the device map with a replace call
-				boolean res = deviceMap.replace(deviceKey, device, newDevice);
-				// If replace returns false, restart the process from the
-				// beginning (this implies another thread concurrently
-				// modified this Device).
-				if (!res)
-					continue;
-
-				device = newDevice;
-				// update indices
-				if (!updateIndices(device, deviceKey)) {
-					continue;
-				}
-				updateSecondaryIndices(entity,
-						device.getEntityClass(),
-						deviceKey);
-
-				// We need to count here after all the possible "continue"
-				// statements in this branch
-				cntNewEntity.increment();
-				if (changedFields.size() > 0) {
-					cntDeviceChanged.increment();
-					deviceUpdates =
-							updateUpdates(deviceUpdates,
-									new DeviceUpdate(newDevice, CHANGE,
-											changedFields));
+				// If this is not an attachment point port we don't learn the new entity
+				// and don't update indexes. But we do allow the device to continue up
+				// the chain.
+				if (entity.hasSwitchPort() && !topology.isAttachmentPointPort(entity.getSwitchDPID(), entity.getSwitchPort())) {
+					cntPacketOnInternalPortForKnownDevice.increment();
+					break;
 				}
-				// we break the loop after checking for changed AP
-			}
-			// Update attachment point (will only be hit if the device
-			// already existed and no concurrent modification)
-			if (entity.hasSwitchPort()) {
-				boolean moved = device.updateAttachmentPoint(entity.getSwitchDPID(),
-						entity.getSwitchPort(),
-						entity.getLastSeenTimestamp());
-				// TODO: use update mechanism instead of sending the
-				// notification directly
-				if (moved) {
-					// we count device moved events in sendDeviceMovedNotification()
-					sendDeviceMovedNotification(device);
-					if (logger.isTraceEnabled()) {
-						logger.trace("Device moved: attachment points {}," +
-								"entities {}", device.attachmentPoints,
-								device.entities);
+				int entityindex = -1;
+				if ((entityindex = device.entityIndex(entity)) >= 0) {
+					// Entity already exists
+					// update timestamp on the found entity
+					Date lastSeen = entity.getLastSeenTimestamp();
+					if (lastSeen == null) {
+						lastSeen = new Date();
+						entity.setLastSeenTimestamp(lastSeen);
 					}
+					device.entities[entityindex].setLastSeenTimestamp(lastSeen);
+					// we break the loop after checking for changes to the AP
 				} else {
-					if (logger.isTraceEnabled()) {
-						logger.trace("Device attachment point updated: " +
-								"attachment points {}," +
-								"entities {}", device.attachmentPoints,
-								device.entities);
+					// New entity for this device
+					// compute the insertion point for the entity.
+					// see Arrays.binarySearch()
+					entityindex = -(entityindex + 1);
+					Device newDevice = allocateDevice(device, entity, entityindex);
+
+					// generate updates
+					EnumSet<DeviceField> changedFields = findChangedFields(device, entity);
+
+					// update the device map with a replace call
+					boolean res = deviceMap.replace(deviceKey, device, newDevice);
+					// If replace returns false, restart the process from the
+					// beginning (this implies another thread concurrently
+					// modified this Device).
+					if (!res)
+						continue;
+
+					device = newDevice;
+					// the new entity may be older than the device's others
+					scheduleExpiry(device);
+					// update indices
+					if (!updateIndices(device, deviceKey)) {
+						continue;
+					}
+					updateSecondaryIndices(entity,
+							device.getEntityClass(),
+							deviceKey);
+
+					// We need to count here after all the possible "continue"
+					// statements in this branch
+					cntNewEntity.increment();
+					if (changedFields.size() > 0) {
+						cntDeviceChanged.increment();
+						deviceUpdates =
+								updateUpdates(deviceUpdates,
+										new DeviceUpdate(newDevice, CHANGE,
+												changedFields));
+					}
+					// we break the loop after checking for changed AP
+				}
+				// Update attachment point (will only be hit if the device
+				// already existed and no concurrent modification)
+				if (entity.hasSwitchPort()) {
+					boolean moved = device.updateAttachmentPoint(entity.getSwitchDPID(),
+							entity.getSwitchPort(),
+							entity.getLastSeenTimestamp());
+					// TODO: use update mechanism instead of sending the
+					// notification directly
+					if (moved) {
+						// notified once the lock is released
+						movedDevice = device;
+						if (logger.isTraceEnabled()) {
+							logger.trace("Device moved: attachment points {}," +
+									"entities {}", device.attachmentPoints,
+									device.entities);
+						}
+					} else {
+						if (logger.isTraceEnabled()) {
+							logger.trace("Device attachment point updated: " +
+									"attachment points {}," +
+									"entities {}", device.attachmentPoints,
+									device.entities);
+						}
 					}
 				}
+				break;
 			}
-			break;
+		} finally {
+			lock.unlock();
 		}
 
+		if (movedDevice != null) {
+			// we count device moved events in sendDeviceMovedNotification()
+			sendDeviceMovedNotification(movedDevice);
+		}
 		if (deleteQueue != null) {
 			for (Long l : deleteQueue) {
 				Device dev = deviceMap.get(l);
@@ -1591,6 +1681,25 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 		return true;
 	}
 
+	/**
+	 * Get the lock serializing the learning of devices with the given MAC
+	 * address
+	 * @param mac the MAC address, may be null
+	 * @return the lock
+	 */
+	protected ReentrantLock getLearningLock(MacAddress mac) {
+		if (mac == null) {
+			return learningLocks[0];
+		}
+		long v = mac.getLong();
+		int h = (int) (v ^ (v >>> 32));
+		// MAC addresses are often sequential in the low bits
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return learningLocks[h & (LEARNING_LOCK_STRIPES - 1)];
+	}
+
 
 
 
@@ -1800,98 +1909,132 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	 protected void cleanupEntities () {
 		 cntCleanupEntitiesRuns.increment();
 
-		 Calendar c = Calendar.getInstance();
-		 c.add(Calendar.MILLISECOND, -ENTITY_TIMEOUT);
-		 Date cutoff = c.getTime();
+		 long now = System.currentTimeMillis();
+		 Date cutoff = new Date(now - ENTITY_TIMEOUT);
 
 		 ArrayList<Entity> toRemove = new ArrayList<Entity>();
 		 ArrayList<Entity> toKeep = new ArrayList<Entity>();
 
-		 Iterator<Device> diter = deviceMap.values().iterator();
 		 LinkedList<DeviceUpdate> deviceUpdates =
 				 new LinkedList<DeviceUpdate>();
 
-		 while (diter.hasNext()) {
-			 Device d = diter.next();
+		 // Only visit the devices whose oldest entity may have timed out
+		 for (Long deviceKey : expiryWheel.advance(now)) {
+			 Device d = deviceMap.get(deviceKey);
+			 if (d == null)
+				 continue;
+			 cntEntityExpiryChecks.increment();
 
-			 while (true) {
-				 deviceUpdates.clear();
-				 toRemove.clear();
-				 toKeep.clear();
-				 for (Entity e : d.getEntities()) {
-					 if (e.getLastSeenTimestamp() != null &&
-							 0 > e.getLastSeenTimestamp().compareTo(cutoff)) {
-						 // individual entity needs to be removed
-						 toRemove.add(e);
-					 } else {
-						 toKeep.add(e);
+			 ReentrantLock lock = getLearningLock(d.getMACAddress());
+			 if (!lock.tryLock()) {
+				 cntLearningLockContended.increment();
+				 lock.lock();
+			 }
+			 try {
+				 while (true) {
+					 deviceUpdates.clear();
+					 toRemove.clear();
+					 toKeep.clear();
+					 for (Entity e : d.getEntities()) {
+						 if (e.getLastSeenTimestamp() != null &&
+								 0 > e.getLastSeenTimestamp().compareTo(cutoff)) {
+							 // individual entity needs to be removed
+							 toRemove.add(e);
+						 } else {
+							 toKeep.add(e);
+						 }
+					 }
+					 if (toRemove.size() == 0) {
+						 break;
 					 }
-				 }
-				 if (toRemove.size() == 0) {
-					 break;
-				 }
-
-				 cntEntityRemovedTimeout.increment();
-				 for (Entity e : toRemove) {
-					 removeEntity(e, d.getEntityClass(), d.getDeviceKey(), toKeep);
-				 }
-
-				 if (toKeep.size() > 0) {
-					 Device newDevice = allocateDevice(d.getDeviceKey(),
-							 d.getDHCPClientName(),
-							 d.oldAPs,
-							 d.attachmentPoints,
-							 toKeep,
-							 d.getEntityClass());
 
-					 EnumSet<DeviceField> changedFields =
-							 EnumSet.noneOf(DeviceField.class);
+					 cntEntityRemovedTimeout.increment();
 					 for (Entity e : toRemove) {
-						 changedFields.addAll(findChangedFields(newDevice, e));
-					 }
-					 DeviceUpdate update = null;
-					 if (changedFields.size() > 0) {
-						 update = new DeviceUpdate(d, CHANGE, changedFields);
+						 removeEntity(e, d.getEntityClass(), d.getDeviceKey(), toKeep);
 					 }
 
-					 if (!deviceMap.replace(newDevice.getDeviceKey(),
-							 d,
-							 newDevice)) {
-						 // concurrent modification; try again
-						 // need to use device that is the map now for the next
-						 // iteration
-						 d = deviceMap.get(d.getDeviceKey());
-								 if (null != d)
-									 continue;
-					 }
-					 if (update != null) {
-						 // need to count after all possibly continue stmts in
-						 // this branch
-						 cntDeviceChanged.increment();
+					 if (toKeep.size() > 0) {
+						 Device newDevice = allocateDevice(d.getDeviceKey(),
+								 d.getDHCPClientName(),
+								 d.oldAPs,
+								 d.attachmentPoints,
+								 toKeep,
+								 d.getEntityClass());
+
+						 EnumSet<DeviceField> changedFields =
+								 EnumSet.noneOf(DeviceField.class);
+						 for (Entity e : toRemove) {
+							 changedFields.addAll(findChangedFields(newDevice, e));
+						 }
+						 DeviceUpdate update = null;
+						 if (changedFields.size() > 0) {
+							 update = new DeviceUpdate(d, CHANGE, changedFields);
+						 }
+
+						 if (!deviceMap.replace(newDevice.getDeviceKey(),
+								 d,
+								 newDevice)) {
+							 // concurrent modification; try again
+							 // need to use device that is the map now for the next
+							 // iteration
+							 d = deviceMap.get(d.getDeviceKey());
+									 if (null != d)
+										 continue;
+						 }
+						 if (update != null) {
+							 // need to count after all possibly continue stmts in
+							 // this branch
+							 cntDeviceChanged.increment();
+							 deviceUpdates.add(update);
+						 }
+					 } else {
+						 DeviceUpdate update = new DeviceUpdate(d, DELETE, null);
+						 if (!deviceMap.remove(d.getDeviceKey(), d)) {
+							 // concurrent modification; try again
+							 // need to use device that is the map now for the next
+							 // iteration
+							 d = deviceMap.get(d.getDeviceKey());
+							 if (null != d)
+								 continue;
+							 cntDeviceDeleted.increment();
+						 }
 						 deviceUpdates.add(update);
 					 }
-				 } else {
-					 DeviceUpdate update = new DeviceUpdate(d, DELETE, null);
-					 if (!deviceMap.remove(d.getDeviceKey(), d)) {
-						 // concurrent modification; try again
-						 // need to use device that is the map now for the next
-						 // iteration
-						 d = deviceMap.get(d.getDeviceKey());
-						 if (null != d)
-							 continue;
-						 cntDeviceDeleted.increment();
-					 }
-					 deviceUpdates.add(update);
+					 break;
 				 }
-				 processUpdates(deviceUpdates);
-				 break;
+				 // check the remaining entities again when the oldest one
+				 // may time out
+				 d = deviceMap.get(deviceKey);
+				 if (d != null)
+					 scheduleExpiry(d);
+			 } finally {
+				 lock.unlock();
 			 }
+			 processUpdates(deviceUpdates);
 		 }
 		 // Since cleanupEntities() is not called in the packet-in pipeline,
 		 // debugEvents need to be flushed explicitly
 		 debugEventService.flushEvents();
 	 }
 
+	 /**
+	  * Schedule the device to be checked by {@link #cleanupEntities()} when
+	  * its oldest entity times out. Entities without a timestamp never
+	  * time out.
+	  * @param device the device
+	  */
+	 protected void scheduleExpiry(Device device) {
+		 long oldest = Long.MAX_VALUE;
+		 for (Entity e : device.getEntities()) {
+			 Date lastSeen = e.getLastSeenTimestamp();
+			 if (lastSeen != null && lastSeen.getTime() < oldest)
+				 oldest = lastSeen.getTime();
+		 }
+		 if (oldest != Long.MAX_VALUE)
+			 expiryWheel.schedule(device.getDeviceKey(),
+					 oldest + ENTITY_TIMEOUT);
+	 }
+
 	 protected void removeEntity(Entity removed,
 			 IEntityClass entityClass,
 			 Long deviceKey,
@@ -1934,6 +2077,8 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 			 if (logger.isDebugEnabled())
 				 logger.debug("device map does not have this device -" +
 						 device.toString());
+		 } else {
+			 expiryWheel.cancel(device.getDeviceKey());
 		 }
 	 }
 
@@ -17,32 +17,75 @@
 
 package net.floodlightcontroller.devicemanager.internal;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+import net.floodlightcontroller.util.ConcurrentLongMultiHashMap;
 import net.floodlightcontroller.util.IterableIterator;
 
 /**
  * An index that maps key fields of an entity to device keys, with multiple
  * device keys allowed per entity
+ *
+ * When the key fields can be packed in a long (see {@link PackedEntityKey})
+ * entities are indexed in a primitive map, and only entities whose values
+ * can't be packed are kept in a map of {@link IndexedEntity}.
  */
 public class DeviceMultiIndex extends DeviceIndex {
     /**
-     * The index
+     * Rough size in bytes of an entry of {@link #index}: the map node, the
+     * {@link IndexedEntity} and the set of device keys with one element
+     */
+    private static final int INDEX_ENTRY_BYTES = 240;
+
+    /**
+     * The index of entities that can't be packed
      */
     private ConcurrentHashMap<IndexedEntity, Collection<Long>> index;
 
+    /**
+     * The index of packed entity keys, or null if the key fields can't be
+     * packed
+     */
+    private final ConcurrentLongMultiHashMap packedIndex;
+
     /**
      * @param keyFields
      */
     public DeviceMultiIndex(EnumSet<DeviceField> keyFields) {
         super(keyFields);
         index = new ConcurrentHashMap<IndexedEntity, Collection<Long>>();
+        packedIndex = PackedEntityKey.canPack(keyFields) ?
+                new ConcurrentLongMultiHashMap() : null;
+    }
+
+    /**
+     * @return the packed key of the entity, or
+     * {@link PackedEntityKey#NOT_PACKED} if it must be kept in {@link #index}
+     */
+    private long pack(Entity entity) {
+        if (packedIndex == null)
+            return PackedEntityKey.NOT_PACKED;
+        return PackedEntityKey.pack(keyFields, entity);
+    }
+
+    private static Iterator<Long> iterator(long[] deviceKeys) {
+        if (deviceKeys.length == 0)
+            return Collections.<Long>emptySet().iterator();
+        if (deviceKeys.length == 1)
+            return Collections.<Long>singleton(deviceKeys[0]).iterator();
+        List<Long> l = new ArrayList<Long>(deviceKeys.length);
+        for (long deviceKey : deviceKeys) {
+            l.add(deviceKey);
+        }
+        return l.iterator();
     }
 
     // ***********
@@ -51,6 +94,10 @@ public class DeviceMultiIndex extends DeviceIndex {
 
     @Override
     public Iterator<Long> queryByEntity(Entity entity) {
+        long key = pack(entity);
+        if (key != PackedEntityKey.NOT_PACKED)
+            return iterator(packedIndex.get(key));
+
         IndexedEntity ie = new IndexedEntity(keyFields, entity);
         Collection<Long> devices = index.get(ie);
         if (devices != null)
@@ -62,7 +109,16 @@ public class DeviceMultiIndex extends DeviceIndex {
     @Override
     public Iterator<Long> getAll() {
         Iterator<Collection<Long>> iter = index.values().iterator();
-        return new IterableIterator<Long>(iter);
+        if (packedIndex == null)
+            return new IterableIterator<Long>(iter);
+        List<Long> all = new ArrayList<Long>();
+        for (long deviceKey : packedIndex.values()) {
+            all.add(deviceKey);
+        }
+        while (iter.hasNext()) {
+            all.addAll(iter.next());
+        }
+        return all.iterator();
     }
     
     @Override
@@ -75,6 +131,13 @@ public class DeviceMultiIndex extends DeviceIndex {
     
     @Override
     public boolean updateIndex(Entity entity, Long deviceKey) {
+        long key = pack(entity);
+        if (key != PackedEntityKey.NOT_PACKED) {
+            if (!PackedEntityKey.hasNonNullKeys(keyFields, key)) return false;
+            packedIndex.add(key, deviceKey);
+            return true;
+        }
+
         Collection<Long> devices = null;
 
         IndexedEntity ie = new IndexedEntity(keyFields, entity);
@@ -95,15 +158,33 @@ public class DeviceMultiIndex extends DeviceIndex {
 
     @Override
     public void removeEntity(Entity entity) {
+        long key = pack(entity);
+        if (key != PackedEntityKey.NOT_PACKED) {
+            packedIndex.removeAll(key);
+            return;
+        }
         IndexedEntity ie = new IndexedEntity(keyFields, entity);
         index.remove(ie);        
     }
 
     @Override
     public void removeEntity(Entity entity, Long deviceKey) {
+        long key = pack(entity);
+        if (key != PackedEntityKey.NOT_PACKED) {
+            packedIndex.remove(key, deviceKey);
+            return;
+        }
         IndexedEntity ie = new IndexedEntity(keyFields, entity);
         Collection<Long> devices = index.get(ie);
         if (devices != null)
             devices.remove(deviceKey);
     }
+
+    @Override
+    public long getMemoryFootprint() {
+        long bytes = (long) index.size() * INDEX_ENTRY_BYTES;
+        if (packedIndex != null)
+            bytes += packedIndex.getMemoryFootprint();
+        return bytes;
+    }
 }
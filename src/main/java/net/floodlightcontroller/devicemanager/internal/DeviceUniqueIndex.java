@@ -17,22 +17,41 @@
 
 package net.floodlightcontroller.devicemanager.internal;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+import net.floodlightcontroller.util.ConcurrentLongLongHashMap;
 
 /**
  * An index that maps key fields of an entity uniquely to a device key
+ *
+ * When the key fields can be packed in a long (see {@link PackedEntityKey})
+ * entities are indexed in a primitive map, and only entities whose values
+ * can't be packed are kept in a map of {@link IndexedEntity}.
  */
 public class DeviceUniqueIndex extends DeviceIndex {
     /**
-     * The index
+     * Rough size in bytes of an entry of {@link #index}: the map node, the
+     * {@link IndexedEntity} and the boxed device key
+     */
+    private static final int INDEX_ENTRY_BYTES = 80;
+
+    /**
+     * The index of entities that can't be packed
      */
     private final ConcurrentHashMap<IndexedEntity, Long> index;
 
+    /**
+     * The index of packed entity keys, or null if the key fields can't be
+     * packed
+     */
+    private final ConcurrentLongLongHashMap packedIndex;
+
     /**
      * Construct a new device index using the provided key fields
      * @param keyFields the key fields to use
@@ -40,6 +59,18 @@ public class DeviceUniqueIndex extends DeviceIndex {
     public DeviceUniqueIndex(EnumSet<DeviceField> keyFields) {
         super(keyFields);
         index = new ConcurrentHashMap<IndexedEntity, Long>();
+        packedIndex = PackedEntityKey.canPack(keyFields) ?
+                new ConcurrentLongLongHashMap() : null;
+    }
+
+    /**
+     * @return the packed key of the entity, or
+     * {@link PackedEntityKey#NOT_PACKED} if it must be kept in {@link #index}
+     */
+    private long pack(Entity entity) {
+        if (packedIndex == null)
+            return PackedEntityKey.NOT_PACKED;
+        return PackedEntityKey.pack(keyFields, entity);
     }
 
     // ***********
@@ -57,12 +88,30 @@ public class DeviceUniqueIndex extends DeviceIndex {
 
     @Override
     public Iterator<Long> getAll() {
-        return index.values().iterator();
+        if (packedIndex == null)
+            return index.values().iterator();
+        long[] packed = packedIndex.values();
+        List<Long> all = new ArrayList<Long>(packed.length + index.size());
+        for (long deviceKey : packed) {
+            all.add(deviceKey);
+        }
+        all.addAll(index.values());
+        return all.iterator();
     }
 
     @Override
     public boolean updateIndex(Device device, Long deviceKey) {
         for (Entity e : device.entities) {
+            long key = pack(e);
+            if (key != PackedEntityKey.NOT_PACKED) {
+                if (!PackedEntityKey.hasNonNullKeys(keyFields, key)) continue;
+                long ret = packedIndex.putIfAbsent(key, deviceKey);
+                if (ret != ConcurrentLongLongHashMap.NO_VALUE &&
+                        ret != deviceKey.longValue())
+                    return false;
+                continue;
+            }
+
             IndexedEntity ie = new IndexedEntity(keyFields, e);
             if (!ie.hasNonNullKeys()) continue;
 
@@ -79,6 +128,12 @@ public class DeviceUniqueIndex extends DeviceIndex {
 
     @Override
     public boolean updateIndex(Entity entity, Long deviceKey) {
+        long key = pack(entity);
+        if (key != PackedEntityKey.NOT_PACKED) {
+            if (!PackedEntityKey.hasNonNullKeys(keyFields, key)) return false;
+            packedIndex.put(key, deviceKey);
+            return true;
+        }
         IndexedEntity ie = new IndexedEntity(keyFields, entity);
         if (!ie.hasNonNullKeys()) return false;
         index.put(ie, deviceKey);
@@ -87,16 +142,34 @@ public class DeviceUniqueIndex extends DeviceIndex {
 
     @Override
     public void removeEntity(Entity entity) {
+        long key = pack(entity);
+        if (key != PackedEntityKey.NOT_PACKED) {
+            packedIndex.remove(key);
+            return;
+        }
         IndexedEntity ie = new IndexedEntity(keyFields, entity);
         index.remove(ie);
     }
 
     @Override
     public void removeEntity(Entity entity, Long deviceKey) {
+        long key = pack(entity);
+        if (key != PackedEntityKey.NOT_PACKED) {
+            packedIndex.remove(key, deviceKey);
+            return;
+        }
         IndexedEntity ie = new IndexedEntity(keyFields, entity);
         index.remove(ie, deviceKey);
     }
 
+    @Override
+    public long getMemoryFootprint() {
+        long bytes = (long) index.size() * INDEX_ENTRY_BYTES;
+        if (packedIndex != null)
+            bytes += packedIndex.getMemoryFootprint();
+        return bytes;
+    }
+
     // **************
     // Public Methods
     // **************
@@ -107,6 +180,13 @@ public class DeviceUniqueIndex extends DeviceIndex {
      * @return The key for the {@link Device} object if found
      */
     public Long findByEntity(Entity entity) {
+        long key = pack(entity);
+        if (key != PackedEntityKey.NOT_PACKED) {
+            long deviceKey = packedIndex.get(key);
+            if (deviceKey == ConcurrentLongLongHashMap.NO_VALUE)
+                return null;
+            return deviceKey;
+        }
         IndexedEntity ie = new IndexedEntity(keyFields, entity);
         Long deviceKey = index.get(ie);
         if (deviceKey == null)
@@ -0,0 +1,170 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.devicemanager.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hashed timer wheel of device keys ordered by the time at which the
+ * oldest entity of the device may expire.
+ *
+ * Time is divided in ticks, and a device is kept in the slot of the tick
+ * at which it is due. Devices due more than one turn of the wheel ahead
+ * share a slot with earlier devices and are skipped until their tick comes.
+ * Advancing the wheel only visits the slots of the ticks that have passed,
+ * so the cost of finding the due devices does not depend on the total
+ * number of devices.
+ *
+ * A device is scheduled at most once: scheduling a device that is already
+ * due earlier has no effect, and scheduling it earlier supersedes the
+ * previous entry. Entity timestamps are refreshed in place without
+ * rescheduling, so a due device may turn out to have nothing to expire;
+ * the caller then schedules it again for its new oldest entity.
+ */
+public class EntityExpiryWheel {
+    private static class Entry {
+        final long deviceKey;
+        final long tick;
+
+        Entry(long deviceKey, long tick) {
+            this.deviceKey = deviceKey;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMs;
+    private final List<Entry>[] slots;
+    private final int mask;
+    /**
+     * Entries that were already due when they were scheduled
+     */
+    private final List<Entry> overdue = new ArrayList<Entry>();
+    /**
+     * The tick each scheduled device is due at
+     */
+    private final Map<Long, Long> scheduled = new HashMap<Long, Long>();
+    /**
+     * The last tick whose slot has been visited
+     */
+    private long lastTick;
+
+    /**
+     * @param tickMs the length of a tick in milliseconds
+     * @param spanMs the time covered by one turn of the wheel, typically the
+     * entity timeout
+     * @param nowMs the current time in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public EntityExpiryWheel(long tickMs, long spanMs, long nowMs) {
+        if (tickMs <= 0 || spanMs <= 0)
+            throw new IllegalArgumentException("tickMs and spanMs must be " +
+                    "positive");
+        this.tickMs = tickMs;
+        int size = 1;
+        while (size < (spanMs + tickMs - 1) / tickMs)
+            size <<= 1;
+        this.slots = new List[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayList<Entry>();
+        }
+        this.mask = size - 1;
+        this.lastTick = nowMs / tickMs;
+    }
+
+    /**
+     * Schedule a device to be returned by {@link #advance(long)} once the
+     * given time has passed
+     * @param deviceKey the device key
+     * @param expiryMs the time at which the device is due, in milliseconds
+     */
+    public synchronized void schedule(long deviceKey, long expiryMs) {
+        // round up so that a device is never returned before it is due
+        long tick = (expiryMs + tickMs - 1) / tickMs;
+        Long current = scheduled.get(deviceKey);
+        if (current != null && current.longValue() <= tick)
+            return;
+        scheduled.put(deviceKey, tick);
+        Entry e = new Entry(deviceKey, tick);
+        if (tick <= lastTick) {
+            overdue.add(e);
+        } else {
+            slots[(int) (tick & mask)].add(e);
+        }
+    }
+
+    /**
+     * Stop tracking a device, e.g. because it was deleted
+     * @param deviceKey the device key
+     */
+    public synchronized void cancel(long deviceKey) {
+        // the entry itself is dropped when its slot is visited
+        scheduled.remove(deviceKey);
+    }
+
+    /**
+     * Advance the wheel to the given time and remove the devices that are
+     * due by then
+     * @param nowMs the current time in milliseconds
+     * @return the keys of the due devices
+     */
+    public synchronized List<Long> advance(long nowMs) {
+        List<Long> due = new ArrayList<Long>();
+        collect(overdue, Long.MAX_VALUE, due);
+
+        long nowTick = nowMs / tickMs;
+        // after a full turn every slot has been visited once
+        long first = Math.max(lastTick + 1, nowTick - mask);
+        for (long t = first; t <= nowTick; t++) {
+            collect(slots[(int) (t & mask)], nowTick, due);
+        }
+        if (nowTick > lastTick)
+            lastTick = nowTick;
+        return due;
+    }
+
+    /**
+     * Move the entries of a slot that are due by the given tick to the due
+     * list, keeping the entries due on a later turn of the wheel
+     */
+    private void collect(List<Entry> slot, long nowTick, List<Long> due) {
+        int kept = 0;
+        for (int i = 0; i < slot.size(); i++) {
+            Entry e = slot.get(i);
+            if (e.tick > nowTick) {
+                slot.set(kept++, e);
+                continue;
+            }
+            Long current = scheduled.get(e.deviceKey);
+            // skip entries superseded by an earlier schedule or cancelled
+            if (current == null || current.longValue() != e.tick)
+                continue;
+            scheduled.remove(e.deviceKey);
+            due.add(e.deviceKey);
+        }
+        slot.subList(kept, slot.size()).clear();
+    }
+
+    /**
+     * @return the number of devices currently scheduled
+     */
+    public synchronized int size() {
+        return scheduled.size();
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.devicemanager.internal;
+
+import java.util.EnumSet;
+
+import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+
+/**
+ * Packs the key fields of an entity into a single non-negative long, so
+ * that indices can key on primitive longs instead of {@link IndexedEntity}
+ * wrappers. Two entities have the same packed key exactly when they are
+ * equal as {@link IndexedEntity} on the same key fields.
+ *
+ * Each field takes a fixed number of bits, with 0 meaning null. Key field
+ * sets that don't fit in 63 bits, i.e. those that include the switch DPID,
+ * can't be packed, and neither can entities with a VLAN outside the 802.1Q
+ * range.
+ */
+public class PackedEntityKey {
+    /**
+     * Returned by {@link #pack(EnumSet, Entity)} when the entity can't be
+     * packed
+     */
+    public static final long NOT_PACKED = -1;
+
+    private static final int MAC_BITS = 48;
+    private static final int VLAN_BITS = 13;
+    private static final int IPV4_BITS = 33;
+    private static final int PORT_BITS = 33;
+    private static final int MAX_BITS = 63;
+
+    /**
+     * Code for the untagged VLAN, 0xffff
+     */
+    private static final long VLAN_UNTAGGED_CODE = 0x1001;
+
+    /**
+     * Check whether entities can be packed on the given key fields
+     * @param keyFields the key fields
+     * @return true if the key fields fit in a long
+     */
+    public static boolean canPack(EnumSet<DeviceField> keyFields) {
+        int bits = 0;
+        for (DeviceField f : keyFields) {
+            switch (f) {
+                case MAC:
+                    bits += MAC_BITS;
+                    break;
+                case VLAN:
+                    bits += VLAN_BITS;
+                    break;
+                case IPV4:
+                    bits += IPV4_BITS;
+                    break;
+                case PORT:
+                    bits += PORT_BITS;
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return bits <= MAX_BITS;
+    }
+
+    /**
+     * Pack the key fields of an entity
+     * @param keyFields the key fields, which must satisfy
+     * {@link #canPack(EnumSet)}
+     * @param entity the entity
+     * @return the packed key, or {@link #NOT_PACKED} if this entity's
+     * values can't be packed
+     */
+    public static long pack(EnumSet<DeviceField> keyFields, Entity entity) {
+        long key = 0;
+        for (DeviceField f : keyFields) {
+            switch (f) {
+                case MAC:
+                    if (entity.macAddress == null)
+                        return NOT_PACKED;
+                    key = (key << MAC_BITS) | entity.macAddress.getLong();
+                    break;
+                case VLAN:
+                    long vlan = 0;
+                    if (entity.vlan != null) {
+                        int vid = entity.vlan.getVlan() & 0xffff;
+                        if (vid <= 0xfff)
+                            vlan = vid + 1;
+                        else if (vid == 0xffff)
+                            vlan = VLAN_UNTAGGED_CODE;
+                        else
+                            return NOT_PACKED;
+                    }
+                    key = (key << VLAN_BITS) | vlan;
+                    break;
+                case IPV4:
+                    key = (key << IPV4_BITS) |
+                        ((entity.ipv4Address == null) ? 0 :
+                            (entity.ipv4Address.getInt() & 0xffffffffL) + 1);
+                    break;
+                case PORT:
+                    key = (key << PORT_BITS) |
+                        ((entity.switchPort == null) ? 0 :
+                            (entity.switchPort.getPortNumber() & 0xffffffffL) + 1);
+                    break;
+                default:
+                    return NOT_PACKED;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Check whether a packed key has non-null values in any of its key
+     * fields, like {@link IndexedEntity#hasNonNullKeys()}
+     * @param keyFields the key fields the key was packed on
+     * @param key the packed key
+     * @return true if any key fields have a non-null value
+     */
+    public static boolean hasNonNullKeys(EnumSet<DeviceField> keyFields,
+                                         long key) {
+        return keyFields.contains(DeviceField.MAC) || key != 0;
+    }
+}
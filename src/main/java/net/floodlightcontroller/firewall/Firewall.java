@@ -83,7 +83,9 @@ public class Firewall implements IFirewallService, IOFMessageListener,
     protected IRestApiService restApi;
     protected static Logger logger;
 
-    protected List<FirewallRule> rules; // protected by synchronized
+    // copied on write under synchronized, read without locking
+    protected volatile List<FirewallRule> rules;
+    protected volatile FirewallRuleClassifier classifier;
     protected boolean enabled;
     protected IPv4Address subnet_mask = IPv4Address.of("255.255.255.0");
 
@@ -280,6 +282,7 @@ public class Firewall implements IFirewallService, IOFMessageListener,
         storageSource = context.getServiceImpl(IStorageSourceService.class);
         restApi = context.getServiceImpl(IRestApiService.class);
         rules = new ArrayList<FirewallRule>();
+        classifier = new FirewallRuleClassifier(rules);
         logger = LoggerFactory.getLogger(Firewall.class);
 
         // start disabled
@@ -297,7 +300,16 @@ public class Firewall implements IFirewallService, IOFMessageListener,
         // storage, create table and read rules
         storageSource.createTable(TABLE_NAME, null);
         storageSource.setTablePrimaryKeyName(TABLE_NAME, COLUMN_RULEID);
-        this.rules = readRulesFromStorage();
+        setRules(readRulesFromStorage());
+    }
+
+    /**
+     * Publish a new list of rules, and the classifier compiled from it. The
+     * list must not be modified afterwards.
+     */
+    protected synchronized void setRules(List<FirewallRule> newRules) {
+        this.rules = newRules;
+        this.classifier = new FirewallRuleClassifier(newRules);
     }
 
     @Override
@@ -372,18 +384,20 @@ public class Firewall implements IFirewallService, IOFMessageListener,
         // may want to check conflict
         rule.ruleid = rule.genID();
         
+        List<FirewallRule> newRules = new ArrayList<FirewallRule>(this.rules);
         int i = 0;
         // locate the position of the new rule in the sorted arraylist
-        for (i = 0; i < this.rules.size(); i++) {
-            if (this.rules.get(i).priority >= rule.priority)
+        for (i = 0; i < newRules.size(); i++) {
+            if (newRules.get(i).priority >= rule.priority)
                 break;
         }
         // now, add rule to the list
-        if (i <= this.rules.size()) {
-            this.rules.add(i, rule);
+        if (i <= newRules.size()) {
+            newRules.add(i, rule);
         } else {
-            this.rules.add(rule);
+            newRules.add(rule);
         }
+        setRules(newRules);
         // add rule to database
         Map<String, Object> entry = new HashMap<String, Object>();
         entry.put(COLUMN_RULEID, Integer.toString(rule.ruleid));
@@ -416,12 +430,14 @@ public class Firewall implements IFirewallService, IOFMessageListener,
 
     @Override
     public synchronized void deleteRule(int ruleid) {
-        Iterator<FirewallRule> iter = this.rules.iterator();
+        List<FirewallRule> newRules = new ArrayList<FirewallRule>(this.rules);
+        Iterator<FirewallRule> iter = newRules.iterator();
         while (iter.hasNext()) {
             FirewallRule r = iter.next();
             if (r.ruleid == ruleid) {
                 // found the rule, now remove it
                 iter.remove();
+                setRules(newRules);
                 break;
             }
         }
@@ -430,26 +446,19 @@ public class Firewall implements IFirewallService, IOFMessageListener,
     }
 
     /**
-     * Iterates over the firewall rules and tries to match them with the
-     * incoming packet (flow). Uses the FirewallRule class's matchWithFlow
-     * method to perform matching. It maintains a pair of wildcards (allow and
-     * deny) which are assigned later to the firewall's decision, where 'allow'
-     * wildcards are applied if the matched rule turns out to be an ALLOW rule
-     * and 'deny' wildcards are applied otherwise. Wildcards are applied to
-     * firewall decision to optimize flows in the switch, ensuring least number
-     * of flows per firewall rule. So, if a particular field is not "ANY" (i.e.
-     * not wildcarded) in a higher priority rule, then if a lower priority rule
-     * matches the packet and wildcards it, it can't be wildcarded in the
-     * switch's flow entry, because otherwise some packets matching the higher
-     * priority rule might escape the firewall. The reason for keeping different
-     * two different wildcards is that if a field is not wildcarded in a higher
-     * priority allow rule, the same field shouldn't be wildcarded for packets
-     * matching the lower priority deny rule (non-wildcarded fields in higher
-     * priority rules override the wildcarding of those fields in lower priority
-     * rules of the opposite type). So, to ensure that wildcards are
-     * appropriately set for different types of rules (allow vs. deny), separate
-     * wildcards are maintained. Iteration is performed on the sorted list of
-     * rules (sorted in decreasing order of priority).
+     * Finds the first firewall rule that matches the incoming packet (flow),
+     * using the classifier compiled from the rules, and builds the match of
+     * the firewall's decision. The matched rule's FirewallRule.matchesThisPacket
+     * sets the fields the rule constrains in the 'allow' or 'deny' match,
+     * according to its action; the other fields are wildcarded to keep the
+     * number of flows per firewall rule low in the switch. A field can't be
+     * wildcarded, though, if a higher priority rule of the opposite type
+     * constrains it and could match packets the flow would cover, because
+     * those packets would then escape that rule. The classifier sets such
+     * fields to the packet's values.
+     *
+     * The rules and the classifier are replaced as a whole when rules are
+     * added or deleted, so no lock is taken here.
      * 
      * @param sw
      *            the switch instance
@@ -464,21 +473,17 @@ public class Firewall implements IFirewallService, IOFMessageListener,
         FirewallRule matched_rule = null;
         Ethernet eth = IFloodlightProviderService.bcStore.get(cntx, IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
         AllowDropPair adp = new AllowDropPair(sw.getOFFactory());
+        OFPort inPort = (pi.getVersion().compareTo(OFVersion.OF_12) < 0 ? pi.getInPort() : pi.getMatch().get(MatchField.IN_PORT));
 
-        synchronized (rules) {
-            Iterator<FirewallRule> iter = this.rules.iterator();
-            FirewallRule rule = null;
-            // iterate through list to find a matching firewall rule
-            while (iter.hasNext()) {
-                // get next rule from list
-                rule = iter.next();
-
-                // check if rule matches
-                // AllowDropPair adp's allow and drop matches will modified with what matches
-                if (rule.matchesThisPacket(sw.getId(), (pi.getVersion().compareTo(OFVersion.OF_12) < 0 ? pi.getInPort() : pi.getMatch().get(MatchField.IN_PORT)), eth, adp) == true) {
-                    matched_rule = rule;
-                    break;
-                }
+        FirewallRuleClassifier c = this.classifier;
+        int index = c.match(sw.getId(), inPort, eth);
+        if (index >= 0) {
+            FirewallRule rule = c.getRule(index);
+            // AllowDropPair adp's allow and drop matches will modified with what matches
+            if (rule.matchesThisPacket(sw.getId(), inPort, eth, adp)) {
+                matched_rule = rule;
+                c.addGuardFields(index, inPort, eth,
+                        (rule.action == FirewallRule.FirewallAction.DROP) ? adp.drop : adp.allow);
             }
         }
 
@@ -0,0 +1,461 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.firewall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IpProtocol;
+import org.projectfloodlight.openflow.types.OFPort;
+
+/**
+ * An immutable classifier compiled from a priority-sorted list of firewall
+ * rules, which finds the first rule that matches a packet without scanning
+ * the list.
+ *
+ * The classifier does tuple space search: rules that constrain the same
+ * set of fields, with the same IP prefix masks, share a tuple, and each
+ * tuple has a hash table from the values of those fields to the first rule
+ * with them. A lookup probes each tuple with the packet's values, in order
+ * of the tuples' first rules, and stops once no tuple can hold an earlier
+ * match. The number of probes depends on the number of distinct rule
+ * shapes, not on the number of rules.
+ *
+ * The first matching rule is the same one {@link FirewallRule#matchesThisPacket}
+ * finds when trying the rules in order.
+ */
+public class FirewallRuleClassifier {
+    // Fields a rule constrains
+    protected static final int F_DPID = 1 << 0;
+    protected static final int F_IN_PORT = 1 << 1;
+    protected static final int F_DL_SRC = 1 << 2;
+    protected static final int F_DL_DST = 1 << 3;
+    protected static final int F_DL_TYPE = 1 << 4;
+    protected static final int F_NW_SRC = 1 << 5;
+    protected static final int F_NW_DST = 1 << 6;
+    protected static final int F_NW_PROTO = 1 << 7;
+    protected static final int F_TP_SRC = 1 << 8;
+    protected static final int F_TP_DST = 1 << 9;
+    private static final int F_IP = F_NW_SRC | F_NW_DST | F_NW_PROTO |
+                                    F_TP_SRC | F_TP_DST;
+
+    /**
+     * The fields of a packet, or the field values a rule requires. Fields
+     * that are not constrained, or not present, are 0.
+     */
+    protected static class Fields {
+        long dpid;
+        int inPort;
+        long dlSrc;
+        long dlDst;
+        int dlType;
+        int nwSrc;
+        int nwDst;
+        int nwProto;
+        int tpSrc;
+        int tpDst;
+    }
+
+    protected static class CompiledRule extends Fields {
+        final FirewallRule rule;
+        final int index;
+        int fields;
+        int nwSrcMask;
+        int nwDstMask;
+
+        CompiledRule(FirewallRule rule, int index) {
+            this.rule = rule;
+            this.index = index;
+        }
+
+        /**
+         * @return true if this rule and the other may both match a packet
+         */
+        boolean overlaps(CompiledRule o) {
+            int common = fields & o.fields;
+            if ((common & F_DPID) != 0 && dpid != o.dpid)
+                return false;
+            if ((common & F_IN_PORT) != 0 && inPort != o.inPort)
+                return false;
+            if ((common & F_DL_SRC) != 0 && dlSrc != o.dlSrc)
+                return false;
+            if ((common & F_DL_DST) != 0 && dlDst != o.dlDst)
+                return false;
+            if ((common & F_DL_TYPE) != 0 && dlType != o.dlType)
+                return false;
+            int mask = nwSrcMask & o.nwSrcMask;
+            if ((common & F_NW_SRC) != 0 && (nwSrc & mask) != (o.nwSrc & mask))
+                return false;
+            mask = nwDstMask & o.nwDstMask;
+            if ((common & F_NW_DST) != 0 && (nwDst & mask) != (o.nwDst & mask))
+                return false;
+            if ((common & F_NW_PROTO) != 0 && nwProto != o.nwProto)
+                return false;
+            if ((common & F_TP_SRC) != 0 && tpSrc != o.tpSrc)
+                return false;
+            if ((common & F_TP_DST) != 0 && tpDst != o.tpDst)
+                return false;
+            return true;
+        }
+    }
+
+    /**
+     * The values of the fields of a tuple, packed in longs. Fields outside
+     * the tuple are 0.
+     */
+    protected static class Key {
+        final long dpid;
+        /** dl_src, and nw_proto in the top 16 bits */
+        final long src;
+        /** dl_dst, and dl_type in the top 16 bits */
+        final long dst;
+        /** in_port, tp_src and tp_dst */
+        final long ports;
+        /** nw_src and nw_dst */
+        final long nw;
+        private final int hash;
+
+        Key(Fields f, int fields, int nwSrcMask, int nwDstMask) {
+            dpid = ((fields & F_DPID) != 0) ? f.dpid : 0;
+            src = (((fields & F_DL_SRC) != 0) ? f.dlSrc : 0) |
+                  (((fields & F_NW_PROTO) != 0) ? (long) f.nwProto << 48 : 0);
+            dst = (((fields & F_DL_DST) != 0) ? f.dlDst : 0) |
+                  (((fields & F_DL_TYPE) != 0) ? (long) f.dlType << 48 : 0);
+            long inPort = ((fields & F_IN_PORT) != 0) ? f.inPort : 0;
+            long tpSrc = ((fields & F_TP_SRC) != 0) ? f.tpSrc : 0;
+            long tpDst = ((fields & F_TP_DST) != 0) ? f.tpDst : 0;
+            ports = inPort << 32 | tpSrc << 16 | tpDst;
+            long nwSrc = ((fields & F_NW_SRC) != 0) ? f.nwSrc & nwSrcMask : 0;
+            long nwDst = ((fields & F_NW_DST) != 0) ? f.nwDst & nwDstMask : 0;
+            nw = nwSrc << 32 | (nwDst & 0xffffffffL);
+
+            long h = (((dpid * 31 + src) * 31 + dst) * 31 + ports) * 31 + nw;
+            hash = (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key o = (Key) obj;
+            return dpid == o.dpid && src == o.src && dst == o.dst &&
+                   ports == o.ports && nw == o.nw;
+        }
+    }
+
+    protected static class Tuple {
+        final int fields;
+        final int nwSrcMask;
+        final int nwDstMask;
+        final Map<Key, CompiledRule> table = new HashMap<Key, CompiledRule>();
+        /** Index of the first rule of the tuple */
+        final int first;
+
+        Tuple(CompiledRule r) {
+            fields = r.fields;
+            nwSrcMask = r.nwSrcMask;
+            nwDstMask = r.nwDstMask;
+            first = r.index;
+        }
+
+        boolean hasShapeOf(CompiledRule r) {
+            return fields == r.fields && nwSrcMask == r.nwSrcMask &&
+                   nwDstMask == r.nwDstMask;
+        }
+    }
+
+    private final List<FirewallRule> rules;
+    private final CompiledRule[] compiled;
+    private final Tuple[] tuples;
+    /**
+     * Fields of the rules before each rule that have the other action and
+     * overlap it, computed when first needed; -1 if not yet computed
+     */
+    private final int[] guardFields;
+
+    /**
+     * Compile a classifier
+     * @param rules the rules, sorted in the order in which they apply
+     */
+    public FirewallRuleClassifier(List<FirewallRule> rules) {
+        this.rules = rules;
+        this.compiled = new CompiledRule[rules.size()];
+        this.guardFields = new int[rules.size()];
+        Arrays.fill(guardFields, -1);
+
+        List<Tuple> tupleList = new ArrayList<Tuple>();
+        for (int i = 0; i < rules.size(); i++) {
+            CompiledRule r = compile(rules.get(i), i);
+            compiled[i] = r;
+            if (r == null)
+                continue;
+            Tuple t = null;
+            for (Tuple candidate : tupleList) {
+                if (candidate.hasShapeOf(r)) {
+                    t = candidate;
+                    break;
+                }
+            }
+            if (t == null) {
+                t = new Tuple(r);
+                tupleList.add(t);
+            }
+            Key key = new Key(r, r.fields, r.nwSrcMask, r.nwDstMask);
+            // rules of a tuple with the same key match the same packets,
+            // so only the first one can ever be the first match
+            if (!t.table.containsKey(key))
+                t.table.put(key, r);
+        }
+        Collections.sort(tupleList, new Comparator<Tuple>() {
+            @Override
+            public int compare(Tuple a, Tuple b) {
+                return Integer.compare(a.first, b.first);
+            }
+        });
+        this.tuples = tupleList.toArray(new Tuple[tupleList.size()]);
+    }
+
+    /**
+     * Compile the conditions {@link FirewallRule#matchesThisPacket} checks
+     * @return the compiled rule, or null if the rule can't match any packet
+     */
+    protected static CompiledRule compile(FirewallRule rule, int index) {
+        CompiledRule r = new CompiledRule(rule, index);
+        if (!rule.any_dpid) {
+            r.fields |= F_DPID;
+            r.dpid = rule.dpid.getLong();
+        }
+        if (!rule.any_in_port) {
+            r.fields |= F_IN_PORT;
+            r.inPort = rule.in_port.getPortNumber();
+        }
+        if (!rule.any_dl_src) {
+            r.fields |= F_DL_SRC;
+            r.dlSrc = rule.dl_src.getLong();
+        }
+        if (!rule.any_dl_dst) {
+            r.fields |= F_DL_DST;
+            r.dlDst = rule.dl_dst.getLong();
+        }
+        if (rule.any_dl_type)
+            return r;
+
+        if (rule.dl_type.equals(EthType.ARP)) {
+            r.fields |= F_DL_TYPE;
+            r.dlType = EthType.ARP.getValue();
+            return r;
+        }
+        if (!rule.dl_type.equals(EthType.IPv4)) {
+            // other types are not supported, and never match
+            return null;
+        }
+        r.fields |= F_DL_TYPE;
+        r.dlType = EthType.IPv4.getValue();
+        if (!rule.any_nw_src) {
+            r.fields |= F_NW_SRC;
+            r.nwSrcMask = rule.nw_src_prefix_and_mask.getMask().getInt();
+            r.nwSrc = rule.nw_src_prefix_and_mask.getValue().getInt() & r.nwSrcMask;
+        }
+        if (!rule.any_nw_dst) {
+            r.fields |= F_NW_DST;
+            r.nwDstMask = rule.nw_dst_prefix_and_mask.getMask().getInt();
+            r.nwDst = rule.nw_dst_prefix_and_mask.getValue().getInt() & r.nwDstMask;
+        }
+        if (rule.any_nw_proto)
+            return r;
+        boolean transport = rule.nw_proto.equals(IpProtocol.TCP) ||
+                rule.nw_proto.equals(IpProtocol.UDP);
+        if (transport || rule.nw_proto.equals(IpProtocol.ICMP)) {
+            r.fields |= F_NW_PROTO;
+            r.nwProto = rule.nw_proto.getIpProtocolNumber();
+        }
+        if (transport) {
+            if (rule.tp_src.getPort() != 0) {
+                r.fields |= F_TP_SRC;
+                r.tpSrc = rule.tp_src.getPort();
+            }
+            if (rule.tp_dst.getPort() != 0) {
+                r.fields |= F_TP_DST;
+                r.tpDst = rule.tp_dst.getPort();
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Extract the fields of a packet
+     */
+    protected static Fields getPacketFields(DatapathId dpid, OFPort inPort,
+                                            Ethernet eth) {
+        Fields f = new Fields();
+        f.dpid = dpid.getLong();
+        f.inPort = inPort.getPortNumber();
+        f.dlSrc = eth.getSourceMACAddress().getLong();
+        f.dlDst = eth.getDestinationMACAddress().getLong();
+        f.dlType = eth.getEtherType() & 0xffff;
+        if (f.dlType == EthType.IPv4.getValue() &&
+                eth.getPayload() instanceof IPv4) {
+            IPv4 ip = (IPv4) eth.getPayload();
+            f.nwSrc = ip.getSourceAddress().getInt();
+            f.nwDst = ip.getDestinationAddress().getInt();
+            f.nwProto = ip.getProtocol().getIpProtocolNumber();
+            if (ip.getPayload() instanceof TCP) {
+                TCP tcp = (TCP) ip.getPayload();
+                f.tpSrc = tcp.getSourcePort().getPort();
+                f.tpDst = tcp.getDestinationPort().getPort();
+            } else if (ip.getPayload() instanceof UDP) {
+                UDP udp = (UDP) ip.getPayload();
+                f.tpSrc = udp.getSourcePort().getPort();
+                f.tpDst = udp.getDestinationPort().getPort();
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Find the first rule that matches a packet
+     * @param dpid the switch the packet was received on
+     * @param inPort the port the packet was received on
+     * @param eth the packet
+     * @return the index of the rule, or -1 if no rule matches
+     */
+    public int match(DatapathId dpid, OFPort inPort, Ethernet eth) {
+        Fields f = getPacketFields(dpid, inPort, eth);
+        int best = Integer.MAX_VALUE;
+        for (Tuple t : tuples) {
+            if (t.first >= best)
+                break;
+            CompiledRule r = t.table.get(new Key(f, t.fields, t.nwSrcMask,
+                                                 t.nwDstMask));
+            if (r != null && r.index < best)
+                best = r.index;
+        }
+        return (best == Integer.MAX_VALUE) ? -1 : best;
+    }
+
+    /**
+     * @param index the index of a rule
+     * @return the rule
+     */
+    public FirewallRule getRule(int index) {
+        return rules.get(index);
+    }
+
+    /**
+     * @return the number of distinct rule shapes a lookup may probe
+     */
+    public int getTupleCount() {
+        return tuples.length;
+    }
+
+    /**
+     * Get the fields that rules before a given rule, with the other action,
+     * constrain where they overlap it
+     */
+    protected int getGuardFields(int index) {
+        int guard = guardFields[index];
+        if (guard >= 0)
+            return guard;
+        guard = 0;
+        CompiledRule r = compiled[index];
+        if (r != null) {
+            for (int i = 0; i < index; i++) {
+                CompiledRule o = compiled[i];
+                if (o != null && o.rule.action != r.rule.action &&
+                        o.overlaps(r))
+                    guard |= o.fields;
+            }
+        }
+        // racing threads compute the same value
+        guardFields[index] = guard;
+        return guard;
+    }
+
+    /**
+     * Narrow the match of a decision for a matched rule, so that the flow
+     * it installs doesn't also cover packets that an earlier rule with the
+     * other action would take. The fields those rules constrain are set to
+     * the packet's values: the packet failed each of those rules on one of
+     * them, and so does every packet the narrowed match covers.
+     * @param index the index of the matched rule
+     * @param inPort the port the packet was received on
+     * @param eth the packet
+     * @param mb the match of the decision
+     */
+    public void addGuardFields(int index, OFPort inPort, Ethernet eth,
+                               Match.Builder mb) {
+        int guard = getGuardFields(index) & ~F_DPID;
+        if (guard == 0)
+            return;
+        if ((guard & F_IN_PORT) != 0)
+            mb.setExact(MatchField.IN_PORT, inPort);
+        if ((guard & F_DL_SRC) != 0)
+            mb.setExact(MatchField.ETH_SRC, eth.getSourceMACAddress());
+        if ((guard & F_DL_DST) != 0)
+            mb.setExact(MatchField.ETH_DST, eth.getDestinationMACAddress());
+        if ((guard & (F_DL_TYPE | F_IP)) == 0)
+            return;
+
+        EthType ethType = EthType.of(eth.getEtherType() & 0xffff);
+        mb.setExact(MatchField.ETH_TYPE, ethType);
+        if ((guard & F_IP) == 0 || !ethType.equals(EthType.IPv4) ||
+                !(eth.getPayload() instanceof IPv4))
+            return;
+        IPv4 ip = (IPv4) eth.getPayload();
+        if ((guard & F_NW_SRC) != 0)
+            mb.setExact(MatchField.IPV4_SRC, ip.getSourceAddress());
+        if ((guard & F_NW_DST) != 0)
+            mb.setExact(MatchField.IPV4_DST, ip.getDestinationAddress());
+        if ((guard & (F_NW_PROTO | F_TP_SRC | F_TP_DST)) == 0)
+            return;
+        mb.setExact(MatchField.IP_PROTO, ip.getProtocol());
+        if (ip.getPayload() instanceof TCP) {
+            TCP tcp = (TCP) ip.getPayload();
+            if ((guard & F_TP_SRC) != 0)
+                mb.setExact(MatchField.TCP_SRC, tcp.getSourcePort());
+            if ((guard & F_TP_DST) != 0)
+                mb.setExact(MatchField.TCP_DST, tcp.getDestinationPort());
+        } else if (ip.getPayload() instanceof UDP) {
+            UDP udp = (UDP) ip.getPayload();
+            if ((guard & F_TP_SRC) != 0)
+                mb.setExact(MatchField.UDP_SRC, udp.getSourcePort());
+            if ((guard & F_TP_DST) != 0)
+                mb.setExact(MatchField.UDP_DST, udp.getDestinationPort());
+        }
+    }
+}
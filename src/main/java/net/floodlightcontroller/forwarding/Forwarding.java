@@ -41,6 +41,7 @@ import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.core.util.AppCookie;
 import net.floodlightcontroller.debugcounter.IDebugCounterService;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.TCP;
 import net.floodlightcontroller.packet.UDP;
@@ -75,6 +76,12 @@ import org.slf4j.LoggerFactory;
 public class Forwarding extends ForwardingBase implements IFloodlightModule {
 	protected static Logger log = LoggerFactory.getLogger(Forwarding.class);
 
+	/**
+	 * If true, flows are spread across the equal cost paths between two
+	 * switches by hashing their addresses and ports into the route cookie.
+	 */
+	protected static boolean MULTIPATH_ENABLED = false;
+
 	@Override
 	@LogMessageDoc(level="ERROR",
 	message="Unexpected decision made for this packet-in={}",
@@ -82,7 +89,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
 			"passed to the flow programming component",
 			recommendation=LogMessageDoc.REPORT_CONTROLLER_BUG)
 	public Command processPacketInMessage(IOFSwitch sw, OFPacketIn pi, IRoutingDecision decision, FloodlightContext cntx) {
-		Ethernet eth = IFloodlightProviderService.bcStore.get(cntx, IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+		EthernetView eth = IFloodlightProviderService.piViewStore.get(cntx, IFloodlightProviderService.CONTEXT_PI_VIEW_SLOT);
 		// We found a routing decision (i.e. Firewall is enabled... it's the only thing that makes RoutingDecisions)
 		if (decision != null) {
 			if (log.isTraceEnabled()) {
@@ -173,10 +180,10 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
 	protected void doForwardFlow(IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx, boolean requestFlowRemovedNotifn) {
 		OFPort inPort = (pi.getVersion().compareTo(OFVersion.OF_12) < 0 ? pi.getInPort() : pi.getMatch().get(MatchField.IN_PORT));
 		// Check if we have the location of the destination
-		IDevice dstDevice = IDeviceService.fcStore.get(cntx, IDeviceService.CONTEXT_DST_DEVICE);
+		IDevice dstDevice = IDeviceService.fcStore.get(cntx, IDeviceService.CONTEXT_DST_DEVICE_SLOT);
 
 		if (dstDevice != null) {
-			IDevice srcDevice = IDeviceService.fcStore.get(cntx, IDeviceService.CONTEXT_SRC_DEVICE);
+			IDevice srcDevice = IDeviceService.fcStore.get(cntx, IDeviceService.CONTEXT_SRC_DEVICE_SLOT);
 			DatapathId srcIsland = topologyService.getL2DomainId(sw.getId());
 
 			if (srcDevice == null) {
@@ -233,6 +240,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
 			Arrays.sort(dstDaps, clusterIdComparator);
 
 			int iSrcDaps = 0, iDstDaps = 0;
+			U64 routeCookie = MULTIPATH_ENABLED ? getFlowHash(cntx) : U64.of(0);
 
 			while ((iSrcDaps < srcDaps.length) && (iDstDaps < dstDaps.length)) {
 				SwitchPort srcDap = srcDaps[iSrcDaps];
@@ -250,7 +258,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
 								routingEngineService.getRoute(srcDap.getSwitchDPID(), 
 										srcDap.getPort(),
 										dstDap.getSwitchDPID(),
-										dstDap.getPort(), U64.of(0)); //cookie = 0, i.e., default route
+										dstDap.getPort(), routeCookie); // cookie = 0 selects the default route
 						if (route != null) {
 							if (log.isTraceEnabled()) {
 								log.trace("pushRoute inPort={} route={} " +
@@ -324,6 +332,46 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
 		}
 	}
 
+	/**
+	 * Hash the addresses and transport ports of the packet-in payload, so
+	 * that every packet of a flow selects the same one of several equal
+	 * cost routes. Only the first fragment of an IPv4 packet carries the
+	 * ports, so the ports of fragments are not hashed and all the
+	 * fragments of a flow select the same route.
+	 * @param cntx the packet-in context
+	 * @return the hash, used as the route cookie
+	 */
+	protected U64 getFlowHash(FloodlightContext cntx) {
+		Ethernet eth = IFloodlightProviderService.bcStore.get(cntx, IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+		if (eth == null) {
+			return U64.of(0);
+		}
+		long h = eth.getSourceMACAddress().getLong();
+		h = h * 31 + eth.getDestinationMACAddress().getLong();
+		if (eth.getPayload() instanceof IPv4) {
+			IPv4 ip = (IPv4) eth.getPayload();
+			h = h * 31 + ip.getSourceAddress().getInt();
+			h = h * 31 + ip.getDestinationAddress().getInt();
+			boolean fragment = ip.isFragment() ||
+					(ip.getFlags() & IPv4.IPV4_FLAGS_MOREFRAG) != 0 ||
+					ip.getFragmentOffset() != 0;
+			if (!fragment && ip.getPayload() instanceof TCP) {
+				TCP tcp = (TCP) ip.getPayload();
+				h = h * 31 + tcp.getSourcePort().getPort();
+				h = h * 31 + tcp.getDestinationPort().getPort();
+			} else if (!fragment && ip.getPayload() instanceof UDP) {
+				UDP udp = (UDP) ip.getPayload();
+				h = h * 31 + udp.getSourcePort().getPort();
+				h = h * 31 + udp.getDestinationPort().getPort();
+			}
+		}
+		// spread the bits so that consecutive addresses pick different paths
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		return U64.of(h);
+	}
+
 	/**
 	 * Creates a OFPacketOut with the OFPacketIn data that is flooded on all ports unless
 	 * the port is blocked, in which case the packet will be dropped.
@@ -453,6 +501,11 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
 		} else {
 			log.info("Default priority not configured. Using {}.", FLOWMOD_DEFAULT_PRIORITY);
 		}
+		tmp = configParameters.get("multipath");
+		if (tmp != null) {
+			MULTIPATH_ENABLED = Boolean.parseBoolean(tmp);
+		}
+		log.info("Multipath forwarding {}.", MULTIPATH_ENABLED ? "enabled" : "disabled");
 	}
 
 	@Override
@@ -30,4 +30,11 @@ public interface ILearningSwitchService extends IFloodlightService {
      * @return The learned host table
      */
     public Map<IOFSwitch, Map<MacVlanPair, OFPort>> getTable();
+
+    /**
+     * Returns the learned host table of each switch, along with its hit,
+     * miss and eviction counts
+     * @return The learned host table of each switch
+     */
+    public Map<IOFSwitch, MacVlanTable> getSwitchTables();
 }
@@ -38,6 +38,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -72,7 +73,6 @@ import org.projectfloodlight.openflow.types.OFPort;
 import org.projectfloodlight.openflow.types.OFVlanVidMatch;
 import org.projectfloodlight.openflow.types.U64;
 import org.projectfloodlight.openflow.types.VlanVid;
-import org.projectfloodlight.openflow.util.LRULinkedHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -90,7 +90,7 @@ public class LearningSwitch
 
 
     // Stores the learned state for each switch
-    protected Map<IOFSwitch, Map<MacVlanPair, OFPort>> macVlanToSwitchPortMap;
+    protected ConcurrentMap<IOFSwitch, MacVlanTable> macVlanToSwitchPortMap;
 
     // flow-mod - for use in the cookie
     public static final int LEARNING_SWITCH_APP_ID = 1;
@@ -107,6 +107,7 @@ public class LearningSwitch
 
     // for managing our map sizes
     protected static final int MAX_MACS_PER_SWITCH  = 1000;
+    protected int maxMacsPerSwitch = MAX_MACS_PER_SWITCH;
 
     // normally, setup reverse flow as well. Disable only for using cbench for comparison with NOX etc.
     protected static final boolean LEARNING_SWITCH_REVERSE_FLOW = true;
@@ -131,7 +132,7 @@ public class LearningSwitch
      * @param portVal The switchport that the host is on
      */
     protected void addToPortMap(IOFSwitch sw, MacAddress mac, VlanVid vlan, OFPort portVal) {
-        Map<MacVlanPair, OFPort> swMap = macVlanToSwitchPortMap.get(sw);
+        MacVlanTable swMap = macVlanToSwitchPortMap.get(sw);
 
         if (vlan == VlanVid.FULL_MASK) {
             // OFMatch.loadFromPacket sets VLAN ID to 0xffff if the packet contains no VLAN tag;
@@ -140,11 +141,14 @@ public class LearningSwitch
         }
 
         if (swMap == null) {
-            // May be accessed by REST API so we need to make it thread safe
-            swMap = Collections.synchronizedMap(new LRULinkedHashMap<MacVlanPair, OFPort>(MAX_MACS_PER_SWITCH));
-            macVlanToSwitchPortMap.put(sw, swMap);
+            // May be accessed by REST API and concurrent packet-ins, so the
+            // table is thread safe
+            swMap = new MacVlanTable(maxMacsPerSwitch);
+            MacVlanTable old = macVlanToSwitchPortMap.putIfAbsent(sw, swMap);
+            if (old != null)
+                swMap = old;
         }
-        swMap.put(new MacVlanPair(mac, vlan), portVal);
+        swMap.putPort(mac, vlan, portVal);
     }
 
     /**
@@ -158,9 +162,9 @@ public class LearningSwitch
             vlan = VlanVid.ofVlan(0);
         }
         
-        Map<MacVlanPair, OFPort> swMap = macVlanToSwitchPortMap.get(sw);
+        MacVlanTable swMap = macVlanToSwitchPortMap.get(sw);
         if (swMap != null) {
-            swMap.remove(new MacVlanPair(mac, vlan));
+            swMap.removePort(mac, vlan);
         }
     }
 
@@ -175,9 +179,9 @@ public class LearningSwitch
         if (vlan == VlanVid.FULL_MASK) {
             vlan = VlanVid.ofVlan(0);
         }
-        Map<MacVlanPair, OFPort> swMap = macVlanToSwitchPortMap.get(sw);
+        MacVlanTable swMap = macVlanToSwitchPortMap.get(sw);
         if (swMap != null) {
-            return swMap.get(new MacVlanPair(mac, vlan));
+            return swMap.getPort(mac, vlan);
         }
 
         // if none found
@@ -196,15 +200,20 @@ public class LearningSwitch
      * @param sw The switch to clear the mapping for
      */
     public void clearLearnedTable(IOFSwitch sw) {
-        Map<MacVlanPair, OFPort> swMap = macVlanToSwitchPortMap.get(sw);
+        MacVlanTable swMap = macVlanToSwitchPortMap.get(sw);
         if (swMap != null) {
             swMap.clear();
         }
     }
 
     @Override
-    public synchronized Map<IOFSwitch, Map<MacVlanPair, OFPort>> getTable() {
-        return macVlanToSwitchPortMap;
+    public Map<IOFSwitch, Map<MacVlanPair, OFPort>> getTable() {
+        return Collections.<IOFSwitch, Map<MacVlanPair, OFPort>>unmodifiableMap(macVlanToSwitchPortMap);
+    }
+
+    @Override
+    public Map<IOFSwitch, MacVlanTable> getSwitchTables() {
+        return Collections.unmodifiableMap(macVlanToSwitchPortMap);
     }
 
     /**
@@ -593,7 +602,7 @@ public class LearningSwitch
 
     @Override
     public void init(FloodlightModuleContext context) throws FloodlightModuleException {
-        macVlanToSwitchPortMap = new ConcurrentHashMap<IOFSwitch, Map<MacVlanPair, OFPort>>();
+        macVlanToSwitchPortMap = new ConcurrentHashMap<IOFSwitch, MacVlanTable>();
         floodlightProviderService = context.getServiceImpl(IFloodlightProviderService.class);
         debugCounterService = context.getServiceImpl(IDebugCounterService.class);
         restApiService = context.getServiceImpl(IRestApiService.class);
@@ -636,9 +645,23 @@ public class LearningSwitch
                      "using default of {}",
                      FLOWMOD_PRIORITY);
         }
+        try {
+            String maxMacs = configOptions.get("maxmacsperswitch");
+            if (maxMacs != null) {
+                int n = Integer.parseInt(maxMacs);
+                if (n <= 0)
+                    throw new NumberFormatException();
+                maxMacsPerSwitch = n;
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Error parsing MAC table size, " +
+                     "using default of {} entries per switch",
+                     maxMacsPerSwitch);
+        }
         log.debug("FlowMod idle timeout set to {} seconds", FLOWMOD_DEFAULT_IDLE_TIMEOUT);
         log.debug("FlowMod hard timeout set to {} seconds", FLOWMOD_DEFAULT_HARD_TIMEOUT);
         log.debug("FlowMod priority set to {}", FLOWMOD_PRIORITY);
+        log.debug("MAC table size set to {} entries per switch", maxMacsPerSwitch);
         
         debugCounterService.registerModule(this.getName());
         counterFlowMod = debugCounterService.registerCounter(this.getName(), "flow-mods-written", "Flow mods written to switches by LearningSwitch", MetaData.WARN);
@@ -0,0 +1,83 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+
+package net.floodlightcontroller.learningswitch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.internal.IOFSwitchService;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.restlet.data.Status;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The size, hit, miss and eviction counts of the learned host table of
+ * each switch
+ */
+public class LearningSwitchStats extends ServerResource {
+    protected static Logger log = LoggerFactory.getLogger(LearningSwitchStats.class);
+
+    protected Map<String, Object> formatStats(MacVlanTable table) {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("hosts", table.size());
+        stats.put("capacity", table.getCapacity());
+        stats.put("hits", table.getHits());
+        stats.put("misses", table.getMisses());
+        stats.put("evictions", table.getEvictions());
+        return stats;
+    }
+
+    @Get("json")
+    public Map<String, Map<String, Object>> getSwitchStatsJson() {
+        ILearningSwitchService lsp =
+                (ILearningSwitchService)getContext().getAttributes().
+                    get(ILearningSwitchService.class.getCanonicalName());
+
+        Map<IOFSwitch, MacVlanTable> tables = lsp.getSwitchTables();
+        Map<String, Map<String, Object>> allSwitchStatsJson = new HashMap<String, Map<String, Object>>();
+
+        String switchId = (String) getRequestAttributes().get("switch");
+        if (switchId.toLowerCase().equals("all")) {
+            for (Entry<IOFSwitch, MacVlanTable> e : tables.entrySet()) {
+                allSwitchStatsJson.put(e.getKey().getId().toString(), formatStats(e.getValue()));
+            }
+        } else {
+            try {
+                IOFSwitchService switchService =
+                        (IOFSwitchService) getContext().getAttributes().
+                            get(IOFSwitchService.class.getCanonicalName());
+                IOFSwitch sw = switchService.getSwitch(DatapathId.of(switchId));
+                MacVlanTable table = (sw == null) ? null : tables.get(sw);
+                if (table != null) {
+                    allSwitchStatsJson.put(sw.getId().toString(), formatStats(table));
+                }
+            } catch (NumberFormatException e) {
+                log.error("Could not decode switch ID = " + switchId);
+                setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+            }
+        }
+
+        return allSwitchStatsJson;
+    }
+}
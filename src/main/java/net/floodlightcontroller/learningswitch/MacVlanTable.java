@@ -0,0 +1,316 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.learningswitch;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.floodlightcontroller.core.types.MacVlanPair;
+
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.VlanVid;
+
+/**
+ * The learned MAC/VLAN to port table of one switch.
+ *
+ * Entries are kept in a ConcurrentHashMap keyed by the MAC address and VLAN
+ * packed into a long, so lookups and updates from concurrent packet-ins
+ * don't share a lock. The table holds at most about its capacity entries;
+ * when it is full, an entry is evicted with the CLOCK algorithm, which
+ * approximates LRU: each entry has a slot on a ring and a referenced bit
+ * that is set on every hit, and the clock hand sweeps the ring, clearing
+ * the bits it passes until it finds an entry that was not used since the
+ * last sweep.
+ *
+ * The table counts its hits, misses and evictions. The counts are striped
+ * by thread, each stripe on its own cache line, so packet-ins handled on
+ * different threads don't contend on a shared counter; reading a count
+ * sums the stripes.
+ *
+ * The table is also a Map from MacVlanPair to port, for the REST API.
+ */
+public class MacVlanTable extends AbstractMap<MacVlanPair, OFPort> {
+    private static class Entry {
+        final long key;
+        volatile OFPort port;
+        volatile boolean referenced;
+        /**
+         * The entry's slot on the clock ring, or -1 until it has one
+         */
+        volatile int slot = -1;
+
+        Entry(long key, OFPort port) {
+            this.key = key;
+            this.port = port;
+        }
+    }
+
+    private final int capacity;
+    private final ConcurrentHashMap<Long, Entry> entries;
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicInteger hand = new AtomicInteger();
+
+    // a power of two, at least the number of processors
+    private static final int STRIPES = Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+    // longs per stripe, so that each stripe fills a 64-byte cache line
+    private static final int STRIPE_WIDTH = 8;
+    private static final int HITS = 0;
+    private static final int MISSES = 1;
+    private static final int EVICTIONS = 2;
+    private final AtomicLongArray counts =
+            new AtomicLongArray(STRIPES * STRIPE_WIDTH);
+
+    /**
+     * @param capacity the maximum number of entries
+     */
+    public MacVlanTable(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<Long, Entry>(
+                Math.min(capacity, 1024));
+        this.slots = new AtomicReferenceArray<Entry>(capacity);
+    }
+
+    /**
+     * Pack a MAC address and VLAN into a long: the 48 bits of the MAC
+     * address above the 12 bits of the VLAN id
+     */
+    public static long pack(MacAddress mac, VlanVid vlan) {
+        return (mac.getLong() << 12) | (vlan.getVlan() & 0xfff);
+    }
+
+    private static MacVlanPair unpack(long key) {
+        return new MacVlanPair(MacAddress.of(key >>> 12),
+                               VlanVid.ofVlan((int) (key & 0xfff)));
+    }
+
+    /**
+     * Get the port of a host, and mark it as recently used
+     * @return the port, or null if the host is not in the table
+     */
+    public OFPort getPort(MacAddress mac, VlanVid vlan) {
+        Entry e = entries.get(pack(mac, vlan));
+        if (e == null) {
+            count(MISSES);
+            return null;
+        }
+        count(HITS);
+        // avoid dirtying the cache line when the bit is already set
+        if (!e.referenced)
+            e.referenced = true;
+        return e.port;
+    }
+
+    /**
+     * Learn the port of a host, evicting another host if the table is full
+     * @return the previous port of the host, or null
+     */
+    public OFPort putPort(MacAddress mac, VlanVid vlan, OFPort port) {
+        long key = pack(mac, vlan);
+        Entry e = entries.get(key);
+        if (e == null) {
+            Entry added = new Entry(key, port);
+            e = entries.putIfAbsent(key, added);
+            if (e == null) {
+                claimSlot(added);
+                return null;
+            }
+        }
+        OFPort old = e.port;
+        e.port = port;
+        if (!e.referenced)
+            e.referenced = true;
+        return old;
+    }
+
+    /**
+     * Forget the port of a host
+     * @return the port of the host, or null if it was not in the table
+     */
+    public OFPort removePort(MacAddress mac, VlanVid vlan) {
+        return removeKey(pack(mac, vlan));
+    }
+
+    private OFPort removeKey(long key) {
+        Entry e = entries.remove(key);
+        if (e == null)
+            return null;
+        int i = e.slot;
+        if (i >= 0)
+            slots.compareAndSet(i, e, null);
+        return e.port;
+    }
+
+    /**
+     * Give a new entry a slot on the ring, evicting the entry that had it
+     */
+    private void claimSlot(Entry e) {
+        int i;
+        for (;;) {
+            i = (hand.getAndIncrement() & Integer.MAX_VALUE) % capacity;
+            Entry old = slots.get(i);
+            if (old == null) {
+                if (slots.compareAndSet(i, null, e))
+                    break;
+            } else if (old.referenced) {
+                // second chance
+                old.referenced = false;
+            } else if (slots.compareAndSet(i, old, e)) {
+                if (entries.remove(old.key, old))
+                    count(EVICTIONS);
+                break;
+            }
+        }
+        e.slot = i;
+        // the entry may have been removed before it had a slot, in which
+        // case removeKey could not free the slot
+        if (entries.get(e.key) != e)
+            slots.compareAndSet(i, e, null);
+    }
+
+    @Override
+    public void clear() {
+        // free the slots first, so that an entry added concurrently either
+        // keeps its slot or is removed from the map as well
+        for (int i = 0; i < capacity; i++) {
+            slots.set(i, null);
+        }
+        entries.clear();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of lookups that found a host
+     */
+    public long getHits() {
+        return sum(HITS);
+    }
+
+    /**
+     * @return the number of lookups that did not find a host
+     */
+    public long getMisses() {
+        return sum(MISSES);
+    }
+
+    /**
+     * @return the number of hosts evicted to make room for others
+     */
+    public long getEvictions() {
+        return sum(EVICTIONS);
+    }
+
+    private void count(int counter) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * STRIPE_WIDTH + counter);
+    }
+
+    private long sum(int counter) {
+        long total = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            total += counts.get(i * STRIPE_WIDTH + counter);
+        }
+        return total;
+    }
+
+    // Map
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public boolean containsKey(Object o) {
+        if (!(o instanceof MacVlanPair))
+            return false;
+        MacVlanPair p = (MacVlanPair) o;
+        return entries.containsKey(pack(p.mac, p.vlan));
+    }
+
+    @Override
+    public OFPort get(Object o) {
+        if (!(o instanceof MacVlanPair))
+            return null;
+        MacVlanPair p = (MacVlanPair) o;
+        return getPort(p.mac, p.vlan);
+    }
+
+    @Override
+    public OFPort put(MacVlanPair p, OFPort port) {
+        return putPort(p.mac, p.vlan, port);
+    }
+
+    @Override
+    public OFPort remove(Object o) {
+        if (!(o instanceof MacVlanPair))
+            return null;
+        MacVlanPair p = (MacVlanPair) o;
+        return removePort(p.mac, p.vlan);
+    }
+
+    @Override
+    public Set<Map.Entry<MacVlanPair, OFPort>> entrySet() {
+        return new AbstractSet<Map.Entry<MacVlanPair, OFPort>>() {
+            @Override
+            public int size() {
+                return entries.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<MacVlanPair, OFPort>> iterator() {
+                final Iterator<Entry> it = entries.values().iterator();
+                return new Iterator<Map.Entry<MacVlanPair, OFPort>>() {
+                    private Entry last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<MacVlanPair, OFPort> next() {
+                        last = it.next();
+                        return new SimpleImmutableEntry<MacVlanPair, OFPort>(
+                                unpack(last.key), last.port);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last == null)
+                            throw new IllegalStateException();
+                        removeKey(last.key);
+                        last = null;
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.linkdiscovery.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+
+/**
+ * Spreads the discovery probes of each switch evenly over the discovery
+ * period, instead of probing all ports of all switches at once.
+ *
+ * Each switch has a token bucket that fills at the rate of one token per
+ * port per period, and is drained by one token per probed port. On each
+ * tick the ports whose turn has come are taken round-robin, so every port
+ * is probed once per period and about the same number of probes goes out
+ * on every tick.
+ *
+ * A new switch's first ports are probed within its first period, but
+ * ports are also probed as soon as they come up, independently of the
+ * pacer.
+ */
+public class DiscoveryPacer {
+    private static class Bucket {
+        /**
+         * Tokens, in units of 1/periodTicks of a probe so that they add up
+         * exactly
+         */
+        long tokens;
+        int next;
+    }
+
+    private final int periodTicks;
+    private final ConcurrentHashMap<DatapathId, Bucket> buckets =
+            new ConcurrentHashMap<DatapathId, Bucket>();
+
+    /**
+     * @param periodTicks the number of ticks over which all ports of a
+     * switch are probed
+     */
+    public DiscoveryPacer(int periodTicks) {
+        if (periodTicks <= 0)
+            throw new IllegalArgumentException("periodTicks must be positive");
+        this.periodTicks = periodTicks;
+    }
+
+    /**
+     * Get the ports of a switch to probe on this tick. Must be called once
+     * per tick for each switch, from a single thread.
+     * @param sw the switch
+     * @param ports the ports of the switch that may be probed, in a stable
+     * order
+     * @return the ports to probe
+     */
+    public <T> List<T> nextPorts(DatapathId sw, List<T> ports) {
+        Bucket b = buckets.get(sw);
+        if (b == null) {
+            b = new Bucket();
+            // start switches at different fill levels, so that switches
+            // with fewer ports than ticks don't all probe on the same ticks
+            long h = sw.getLong() * 0x9e3779b97f4a7c15L;
+            b.tokens = (h >>> 1) % periodTicks;
+            buckets.put(sw, b);
+        }
+        int n = ports.size();
+        if (n == 0)
+            return Collections.emptyList();
+
+        b.tokens = Math.min((long) n * periodTicks, b.tokens + n);
+        int count = (int) (b.tokens / periodTicks);
+        if (count == 0)
+            return Collections.emptyList();
+        b.tokens -= (long) count * periodTicks;
+
+        List<T> next = new ArrayList<T>(count);
+        int start = b.next % n;
+        for (int i = 0; i < count; i++) {
+            next.add(ports.get((start + i) % n));
+        }
+        b.next = (start + count) % n;
+        return next;
+    }
+
+    /**
+     * Forget the state of a switch, e.g. when it disconnects
+     * @param sw the switch
+     */
+    public void removeSwitch(DatapathId sw) {
+        buckets.remove(sw);
+    }
+
+    public int getPeriodTicks() {
+        return periodTicks;
+    }
+}
@@ -21,7 +21,6 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -31,13 +30,14 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.floodlightcontroller.core.FloodlightContext;
@@ -80,6 +80,7 @@ import net.floodlightcontroller.notification.INotificationManager;
 import net.floodlightcontroller.notification.NotificationManagerFactory;
 import net.floodlightcontroller.packet.BSN;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
 import net.floodlightcontroller.packet.LLDP;
 import net.floodlightcontroller.packet.LLDPTLV;
 import net.floodlightcontroller.restserver.IRestApiService;
@@ -198,6 +199,21 @@ IFloodlightModule, IInfoProvider {
 	protected final int LINK_TIMEOUT = 35; // timeout as part of LLDP process.
 	protected final int LLDP_TO_ALL_INTERVAL = 15; // 15 seconds.
 	protected long lldpClock = 0;
+	/**
+	 * Spreads the LLDPs to all ports over LLDP_TO_ALL_INTERVAL, instead of
+	 * sending them all at once when lldpClock wraps around.
+	 */
+	protected DiscoveryPacer discoveryPacer;
+	protected static final boolean PACED_DISCOVERY_DEFAULT = true;
+	protected boolean pacedDiscovery = PACED_DISCOVERY_DEFAULT;
+	// LLDP totals and their per-second rates over the last discovery tick
+	protected final AtomicLong lldpSent = new AtomicLong();
+	protected final AtomicLong lldpReceived = new AtomicLong();
+	private long lastRateTime = System.nanoTime();
+	private long lastLldpSent = 0;
+	private long lastLldpReceived = 0;
+	private volatile double lldpSentRate = 0;
+	private volatile double lldpReceivedRate = 0;
 	// This value is intentionally kept higher than LLDP_TO_ALL_INTERVAL.
 	// If we want to identify link failures faster, we could decrease this
 	// value to a small number, say 1 or 2 sec.
@@ -206,6 +222,19 @@ IFloodlightModule, IInfoProvider {
 
 	protected LLDPTLV controllerTLV;
 	protected ReentrantReadWriteLock lock;
+
+	/**
+	 * Serialized LLDP and BDDP frames for each switch, with the source MAC
+	 * address and port id left blank. Only those two fields depend on the
+	 * port, so a frame is made by copying the switch's template and
+	 * patching them in. The four templates of a switch are built before
+	 * the array is published and never written afterwards.
+	 */
+	protected ConcurrentHashMap<DatapathId, byte[][]> lldpTemplates;
+	private static final int LLDP_SRC_MAC_OFFSET = 6;
+	// Ethernet header, chassis id TLV, port id TLV header and subtype
+	private static final int LLDP_PORT_ID_OFFSET = 14 + 9 + 2 + 1;
+	private static final int BDDP_PORT_ID_OFFSET = LLDP_PORT_ID_OFFSET + 8;
 	int lldpTimeCount = 0;
 
 	/**
@@ -220,6 +249,36 @@ IFloodlightModule, IInfoProvider {
 	 */
 	protected Map<Link, LinkInfo> links;
 
+	/**
+	 * Links ordered by the time their earliest valid time times out, so
+	 * that timeoutLinks() only looks at the links that are due. A link has
+	 * at most one live entry, whose time is kept in linkExpiryTimes;
+	 * queue entries that don't match it are stale and skipped. Both are
+	 * guarded by lock, like links.
+	 */
+	protected PriorityQueue<LinkExpiry> linkExpiryQueue;
+	protected Map<Link, Long> linkExpiryTimes;
+	/**
+	 * Time of the head of linkExpiryQueue, to check for due links
+	 * without taking the lock
+	 */
+	protected volatile long nextLinkExpiry = Long.MAX_VALUE;
+
+	protected static class LinkExpiry implements Comparable<LinkExpiry> {
+		protected final long time;
+		protected final Link link;
+
+		public LinkExpiry(long time, Link link) {
+			this.time = time;
+			this.link = link;
+		}
+
+		@Override
+		public int compareTo(LinkExpiry o) {
+			return Long.compare(time, o.time);
+		}
+	}
+
 	/**
 	 * Map from switch id to a set of all links with it as an endpoint
 	 */
@@ -278,6 +337,8 @@ IFloodlightModule, IInfoProvider {
 	private IDebugCounter ctrIncoming;
 	private IDebugCounter ctrLinkLocalDrops;
 	private IDebugCounter ctrLldpEol;
+	private IDebugCounter ctrLldpSent;
+	private IDebugCounter ctrLldpReceived;
 
 	private final String PACKAGE = LinkDiscoveryManager.class.getPackage().getName();
 
@@ -298,6 +359,75 @@ IFloodlightModule, IInfoProvider {
 					sw.toString(), port);
 		}
 
+		// serialize and wrap in a packet out
+		byte[] data = generateLLDPFrame(sw, ofpPort, port, isStandard, isReverse);
+		OFPacketOut.Builder pob = iofSwitch.getOFFactory().buildPacketOut();
+		pob.setBufferId(OFBufferId.NO_BUFFER);
+		pob.setInPort(OFPort.ANY);
+
+		// set data and data length
+		pob.setData(data);
+
+		return pob.build();
+	}
+
+	/**
+	 * Make the LLDP or BDDP frame to send out of a switch port from the
+	 * switch's template
+	 * @param sw the switch
+	 * @param ofpPort the port description, for the source MAC address
+	 * @param port the port
+	 * @param isStandard LLDP if true, BDDP otherwise
+	 * @param isReverse whether the frame is sent in response to a received one
+	 * @return the serialized frame
+	 */
+	@LogMessageDoc(level="WARN",
+			message="Port {switch}/{port} has zero hareware address",
+			explanation="The hardware address of the port is needed as " +
+					"the source address of the LLDP sent out of the port",
+			recommendation=LogMessageDoc.CHECK_SWITCH)
+	protected byte[] generateLLDPFrame(DatapathId sw, OFPortDesc ofpPort,
+			OFPort port, boolean isStandard, boolean isReverse) {
+		byte[][] templates = lldpTemplates.get(sw);
+		if (templates == null) {
+			// concurrent callers may both build the templates, which is fine
+			templates = new byte[][] {
+					generateLLDPTemplate(sw, true, false),
+					generateLLDPTemplate(sw, true, true),
+					generateLLDPTemplate(sw, false, false),
+					generateLLDPTemplate(sw, false, true) };
+			byte[][] r = lldpTemplates.putIfAbsent(sw, templates);
+			if (r != null)
+				templates = r;
+		}
+		int index = (isStandard ? 0 : 2) + (isReverse ? 1 : 0);
+		byte[] data = templates[index].clone();
+
+		MacAddress srcMac = ofpPort.getHwAddr();
+		if (srcMac.getLong() == 0) {
+			log.warn("Port {}/{} has zero hareware address",
+					sw.toString(), ofpPort.getPortNo().getPortNumber());
+		}
+		System.arraycopy(srcMac.getBytes(), 0, data, LLDP_SRC_MAC_OFFSET, 6);
+
+		// set the portId to the outgoing port
+		short portNumber = port.getShortPortNumber();
+		int portOffset = isStandard ? LLDP_PORT_ID_OFFSET : BDDP_PORT_ID_OFFSET;
+		data[portOffset] = (byte) (portNumber >> 8);
+		data[portOffset + 1] = (byte) portNumber;
+		return data;
+	}
+
+	/**
+	 * Build the LLDP or BDDP frame of a switch, with a zero source MAC
+	 * address and port id
+	 * @param sw the switch
+	 * @param isStandard LLDP if true, BDDP otherwise
+	 * @param isReverse whether the frame is sent in response to a received one
+	 * @return the serialized frame
+	 */
+	protected byte[] generateLLDPTemplate(DatapathId sw, boolean isStandard,
+			boolean isReverse) {
 		// using "nearest customer bridge" MAC address for broadest possible
 		// propagation
 		// through provider and TPMR bridges (see IEEE 802.1AB-2009 and
@@ -306,7 +436,7 @@ IFloodlightModule, IInfoProvider {
 		// bridge
 		byte[] chassisId = new byte[] { 4, 0, 0, 0, 0, 0, 0 }; // filled in
 		// later
-		byte[] portId = new byte[] { 2, 0, 0 }; // filled in later
+		byte[] portId = new byte[] { 2, 0, 0 }; // filled in per port
 		byte[] ttlValue = new byte[] { 0, 0x78 };
 		// OpenFlow OUI - 00-26-E1
 		byte[] dpidTLVValue = new byte[] { 0x0, 0x26, (byte) 0xe1, 0, 0, 0,
@@ -317,7 +447,6 @@ IFloodlightModule, IInfoProvider {
 
 		byte[] dpidArray = new byte[8];
 		ByteBuffer dpidBB = ByteBuffer.wrap(dpidArray);
-		ByteBuffer portBB = ByteBuffer.wrap(portId, 1, 2);
 
 		DatapathId dpid = sw;
 		dpidBB.putLong(dpid.getLong());
@@ -326,26 +455,6 @@ IFloodlightModule, IInfoProvider {
 		// set the optional tlv to the full dpid
 		System.arraycopy(dpidArray, 0, dpidTLVValue, 4, 8);
 
-		// TODO: Consider remove this block of code.
-		// It's evil to overwrite port object. The the old code always
-		// overwrote mac address, we now only overwrite zero macs and
-		// log a warning, mostly for paranoia.
-		byte[] srcMac = ofpPort.getHwAddr().getBytes();
-		byte[] zeroMac = { 0, 0, 0, 0, 0, 0 };
-		if (Arrays.equals(srcMac, zeroMac)) {
-			log.warn("Port {}/{} has zero hareware address"
-					+ "overwrite with lower 6 bytes of dpid",
-					dpid.toString(), ofpPort.getPortNo().getPortNumber());
-			System.arraycopy(dpidArray, 2, srcMac, 0, 6);
-		}
-
-		// set the portId to the outgoing port
-		portBB.putShort(port.getShortPortNumber());
-		if (log.isTraceEnabled()) {
-			log.trace("Sending LLDP out of interface: {}/{}",
-					sw.toString(), port);
-		}
-
 		LLDP lldp = new LLDP();
 		lldp.setChassisId(new LLDPTLV().setType((byte) 1)
 				.setLength((short) chassisId.length)
@@ -368,7 +477,7 @@ IFloodlightModule, IInfoProvider {
 
 		Ethernet ethernet;
 		if (isStandard) {
-			ethernet = new Ethernet().setSourceMACAddress(ofpPort.getHwAddr())
+			ethernet = new Ethernet().setSourceMACAddress(MacAddress.NONE)
 					.setDestinationMACAddress(LLDP_STANDARD_DST_MAC_STRING)
 					.setEtherType(Ethernet.TYPE_LLDP);
 			ethernet.setPayload(lldp);
@@ -376,22 +485,12 @@ IFloodlightModule, IInfoProvider {
 			BSN bsn = new BSN(BSN.BSN_TYPE_BDDP);
 			bsn.setPayload(lldp);
 
-			ethernet = new Ethernet().setSourceMACAddress(ofpPort.getHwAddr())
+			ethernet = new Ethernet().setSourceMACAddress(MacAddress.NONE)
 					.setDestinationMACAddress(LLDP_BSN_DST_MAC_STRING)
 					.setEtherType(Ethernet.TYPE_BSN);
 			ethernet.setPayload(bsn);
 		}
-
-		// serialize and wrap in a packet out
-		byte[] data = ethernet.serialize();
-		OFPacketOut.Builder pob = switchService.getSwitch(sw).getOFFactory().buildPacketOut();
-		pob.setBufferId(OFBufferId.NO_BUFFER);
-		pob.setInPort(OFPort.ANY);
-
-		// set data and data length
-		pob.setData(data);
-
-		return pob.build();
+		return ethernet.serialize();
 	}
 
 	/**
@@ -568,10 +667,18 @@ IFloodlightModule, IInfoProvider {
 
 	protected Command handlePacketIn(DatapathId sw, OFPacketIn pi,
 			FloodlightContext cntx) {
-		Ethernet eth = IFloodlightProviderService.bcStore.get(cntx,
-				IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+		// Only discovery frames need to be decoded; everything else is
+		// checked against the Ethernet header alone.
+		EthernetView view = IFloodlightProviderService.piViewStore.get(cntx,
+				IFloodlightProviderService.CONTEXT_PI_VIEW_SLOT);
 		OFPort inPort = (pi.getVersion().compareTo(OFVersion.OF_12) < 0 ? pi.getInPort() : pi.getMatch().get(MatchField.IN_PORT));
-		if (eth.getPayload() instanceof BSN) {
+		short etherType = view.getEtherType();
+		Ethernet eth = null;
+		if (etherType == Ethernet.TYPE_BSN || etherType == Ethernet.TYPE_LLDP) {
+			eth = IFloodlightProviderService.bcStore.get(cntx,
+					IFloodlightProviderService.CONTEXT_PI_PAYLOAD_SLOT);
+		}
+		if (eth != null && eth.getPayload() instanceof BSN) {
 			BSN bsn = (BSN) eth.getPayload();
 			if (bsn == null) return Command.STOP;
 			if (bsn.getPayload() == null) return Command.STOP;
@@ -580,10 +687,10 @@ IFloodlightModule, IInfoProvider {
 			if (bsn.getPayload() instanceof LLDP == false)
 				return Command.CONTINUE;
 			return handleLldp((LLDP) bsn.getPayload(), sw, inPort, false, cntx);
-		} else if (eth.getPayload() instanceof LLDP) {
+		} else if (eth != null && eth.getPayload() instanceof LLDP) {
 			return handleLldp((LLDP) eth.getPayload(), sw, inPort, true, cntx);
-		} else if (eth.getEtherType() < 1536 && eth.getEtherType() >= 17) {
-	        long destMac = eth.getDestinationMACAddress().getLong();
+		} else if (etherType < 1536 && etherType >= 17) {
+	        long destMac = view.getDestinationMACAddressLong();
 	        if ((destMac & LINK_LOCAL_MASK) == LINK_LOCAL_VALUE) {
 	            ctrLinkLocalDrops.increment();
 	            if (log.isTraceEnabled()) {
@@ -592,12 +699,12 @@ IFloodlightModule, IInfoProvider {
 	            }
 	            return Command.STOP;
 	        }
-	    } else if (eth.getEtherType() < 17) {
-	        log.error("Received invalid ethertype of {}.", eth.getEtherType());
+	    } else if (etherType < 17) {
+	        log.error("Received invalid ethertype of {}.", etherType);
 	        return Command.STOP;
 	    }
 
-		if (ignorePacketInFromSource(eth.getSourceMACAddress())) {
+		if (ignorePacketInFromSource(view.getSourceMACAddress())) {
 			ctrIgnoreSrcMacDrops.increment();
 			return Command.STOP;
 		}
@@ -639,6 +746,8 @@ IFloodlightModule, IInfoProvider {
 		if (lldp.getPortId() == null || lldp.getPortId().getLength() != 3) {
 			return Command.STOP;
 		}
+		lldpReceived.incrementAndGet();
+		ctrLldpReceived.increment();
 
 		long myId = ByteBuffer.wrap(controllerTLV.getValue()).getLong();
 		long otherId = 0;
@@ -887,14 +996,37 @@ IFloodlightModule, IInfoProvider {
 		// timeout known links.
 		timeoutLinks();
 
-		// increment LLDP clock
-		lldpClock = (lldpClock + 1) % LLDP_TO_ALL_INTERVAL;
+		if (pacedDiscovery) {
+			discoverOnPacedPorts();
+		} else {
+			// increment LLDP clock
+			lldpClock = (lldpClock + 1) % LLDP_TO_ALL_INTERVAL;
+
+			if (lldpClock == 0) {
+				if (log.isTraceEnabled())
+					log.trace("Sending LLDP out on all ports.");
+				discoverOnAllPorts();
+			}
+		}
+
+		updateLldpRates();
+	}
 
-		if (lldpClock == 0) {
-			if (log.isTraceEnabled())
-				log.trace("Sending LLDP out on all ports.");
-			discoverOnAllPorts();
+	/**
+	 * Recompute the per-second LLDP rates since the previous call
+	 */
+	protected void updateLldpRates() {
+		long now = System.nanoTime();
+		long sent = lldpSent.get();
+		long received = lldpReceived.get();
+		double seconds = (now - lastRateTime) / 1e9;
+		if (seconds > 0) {
+			lldpSentRate = (sent - lastLldpSent) / seconds;
+			lldpReceivedRate = (received - lastLldpReceived) / seconds;
 		}
+		lastRateTime = now;
+		lastLldpSent = sent;
+		lastLldpReceived = received;
 	}
 
 	/**
@@ -1153,10 +1285,38 @@ IFloodlightModule, IInfoProvider {
 					recommendation = LogMessageDoc.CHECK_SWITCH)
 	protected void sendDiscoveryMessage(DatapathId sw, OFPort port,
 			boolean isStandard, boolean isReverse) {
+		OFPacketOut po = generateDiscoveryMessage(sw, port, isStandard, isReverse);
+		if (po == null)
+			return;
+
+		// send
+		// no more try-catch. switch will silently fail
+		IOFSwitch iofSwitch = switchService.getSwitch(sw);
+		iofSwitch.write(po);
+		iofSwitch.flush();
+		lldpSent.incrementAndGet();
+		ctrLldpSent.increment();
+	}
+
+	/**
+	 * Build the discovery message to send out of a given switch port,
+	 * including the actions.
+	 *
+	 * @param sw
+	 * @param port
+	 * @param isStandard
+	 *            indicates standard or modified LLDP
+	 * @param isReverse
+	 *            indicates whether the LLDP was sent as a response
+	 * @return the packet out, or null if no discovery message may be sent
+	 *            out of the port
+	 */
+	protected OFPacketOut generateDiscoveryMessage(DatapathId sw, OFPort port,
+			boolean isStandard, boolean isReverse) {
 
 		// Takes care of all checks including null pointer checks.
 		if (!isOutgoingDiscoveryAllowed(sw, port, isStandard, isReverse))
-			return;
+			return null;
 
 		IOFSwitch iofSwitch = switchService.getSwitch(sw);
 		OFPortDesc ofpPort = iofSwitch.getPort(port);
@@ -1165,19 +1325,18 @@ IFloodlightModule, IInfoProvider {
 			log.trace("Sending LLDP packet out of swich: {}, port: {}",
 					sw.toString(), port.getPortNumber());
 		}
-		OFPacketOut po = generateLLDPMessage(sw, port, isStandard, isReverse);
-		OFPacketOut.Builder pob = po.createBuilder();
+		byte[] data = generateLLDPFrame(sw, ofpPort, port, isStandard, isReverse);
+		OFPacketOut.Builder pob = iofSwitch.getOFFactory().buildPacketOut();
+		pob.setBufferId(OFBufferId.NO_BUFFER);
+		pob.setInPort(OFPort.ANY);
 
 		// Add actions
 		List<OFAction> actions = getDiscoveryActions(iofSwitch, ofpPort.getPortNo());
 		pob.setActions(actions);
-		
-		// no need to set length anymore
+		pob.setData(data);
 
-		// send
-		// no more try-catch. switch will silently fail
-		iofSwitch.write(pob.build());
-		iofSwitch.flush();
+		// no need to set length anymore
+		return pob.build();
 	}
 
 	/**
@@ -1190,22 +1349,66 @@ IFloodlightModule, IInfoProvider {
 			IOFSwitch iofSwitch = switchService.getSwitch(sw);
 			if (iofSwitch == null) continue;
 			if (iofSwitch.getEnabledPorts() != null) {
+				discoverOnPorts(iofSwitch, iofSwitch.getEnabledPorts());
+			}
+		}
+	}
+
+	/**
+	 * Send LLDPs to the switch-ports whose turn it is on this discovery
+	 * tick, so that every port is probed once per LLDP_TO_ALL_INTERVAL
+	 * without sending all the LLDPs in a single burst.
+	 */
+	protected void discoverOnPacedPorts() {
+		for (DatapathId sw : switchService.getAllSwitchDpids()) {
+			IOFSwitch iofSwitch = switchService.getSwitch(sw);
+			if (iofSwitch == null) continue;
+			if (iofSwitch.getEnabledPorts() != null) {
+				List<OFPortDesc> ports = new ArrayList<OFPortDesc>();
 				for (OFPortDesc ofp : iofSwitch.getEnabledPorts()) {
-					if (isLinkDiscoverySuppressed(sw, ofp.getPortNo())) {
-						continue;
+					if (!isLinkDiscoverySuppressed(sw, ofp.getPortNo())) {
+						ports.add(ofp);
 					}
-
-					sendDiscoveryMessage(sw, ofp.getPortNo(), true, false);
-
-					// If the switch port is not already in the maintenance
-					// queue, add it.
-					NodePortTuple npt = new NodePortTuple(sw, ofp.getPortNo());
-					addToMaintenanceQueue(npt);
 				}
+				discoverOnPorts(iofSwitch, discoveryPacer.nextPorts(sw, ports));
 			}
 		}
 	}
 
+	/**
+	 * Send standard LLDPs out of the given ports of a switch, writing them
+	 * to the switch at once.
+	 *
+	 * @param iofSwitch
+	 * @param ports
+	 */
+	protected void discoverOnPorts(IOFSwitch iofSwitch,
+			Collection<OFPortDesc> ports) {
+		DatapathId sw = iofSwitch.getId();
+		List<OFMessage> msgs = new ArrayList<OFMessage>();
+		for (OFPortDesc ofp : ports) {
+			if (isLinkDiscoverySuppressed(sw, ofp.getPortNo())) {
+				continue;
+			}
+
+			OFPacketOut po = generateDiscoveryMessage(sw,
+					ofp.getPortNo(), true, false);
+			if (po != null)
+				msgs.add(po);
+
+			// If the switch port is not already in the maintenance
+			// queue, add it.
+			NodePortTuple npt = new NodePortTuple(sw, ofp.getPortNo());
+			addToMaintenanceQueue(npt);
+		}
+		if (!msgs.isEmpty()) {
+			iofSwitch.write(msgs);
+			iofSwitch.flush();
+			lldpSent.addAndGet(msgs.size());
+			ctrLldpSent.add(msgs.size());
+		}
+	}
+
 	protected UpdateOperation getUpdateOperation(OFPortState srcPortState, OFPortState dstPortState) {
 		boolean added = ((srcPortState != OFPortState.STP_BLOCK) && (dstPortState != OFPortState.STP_BLOCK));
 
@@ -1361,6 +1564,8 @@ IFloodlightModule, IInfoProvider {
 				}
 			}
 
+			scheduleLinkTimeout(lt, newInfo);
+
 			// Write changes to storage. This will always write the updated
 			// valid time, plus the port states if they've changed (i.e. if
 			// they weren't set to null in the previous block of code.
@@ -1448,6 +1653,7 @@ IFloodlightModule, IInfoProvider {
 				}
 
 				LinkInfo info = this.links.remove(lt);
+				linkExpiryTimes.remove(lt);
 				LinkType linkType = getLinkType(lt, info);
 				linkUpdateList.add(new LDUpdate(lt.getSrc(),
 						lt.getSrcPort(),
@@ -1505,23 +1711,77 @@ IFloodlightModule, IInfoProvider {
 	}
 
 	/**
-	 * Iterates through the list of links and deletes if the last discovery
-	 * message reception time exceeds timeout values.
+	 * Get the time at which a link times out if no further discovery
+	 * messages are received for it.
+	 *
+	 * @param info
+	 * @return the time in milliseconds, or Long.MAX_VALUE if the link has
+	 *         no valid time
+	 */
+	protected long getLinkTimeout(LinkInfo info) {
+		long validTime = Long.MAX_VALUE;
+		if (info.getUnicastValidTime() != null)
+			validTime = info.getUnicastValidTime().getTime();
+		if (info.getMulticastValidTime() != null)
+			validTime = Math.min(validTime,
+					info.getMulticastValidTime().getTime());
+		if (validTime == Long.MAX_VALUE)
+			return validTime;
+		return validTime + (this.LINK_TIMEOUT * 1000);
+	}
+
+	/**
+	 * Make sure timeoutLinks() checks a link no later than its timeout.
+	 * A link is only queued again when it times out earlier than it is
+	 * already queued for; links whose valid times are refreshed are
+	 * requeued when their old entry comes up. Must be called with the
+	 * write lock held.
+	 *
+	 * @param lt
+	 * @param info
+	 */
+	protected void scheduleLinkTimeout(Link lt, LinkInfo info) {
+		long time = getLinkTimeout(info);
+		if (time == Long.MAX_VALUE)
+			return;
+		Long scheduled = linkExpiryTimes.get(lt);
+		if (scheduled != null && scheduled.longValue() <= time)
+			return;
+		linkExpiryTimes.put(lt, time);
+		linkExpiryQueue.add(new LinkExpiry(time, lt));
+		if (time < nextLinkExpiry)
+			nextLinkExpiry = time;
+	}
+
+	/**
+	 * Deletes the links whose last discovery message reception time
+	 * exceeds the timeout values. Only the links that are due in
+	 * linkExpiryQueue are examined, and the write lock is not taken at all
+	 * if none are.
 	 */
 	protected void timeoutLinks() {
 		List<Link> eraseList = new ArrayList<Link>();
-		Long curTime = System.currentTimeMillis();
-		boolean linkChanged = false;
+		long curTime = System.currentTimeMillis();
+		boolean anyLinkChanged = false;
+
+		if (nextLinkExpiry >= curTime)
+			return;
 
 		// reentrant required here because deleteLink also write locks
 		lock.writeLock().lock();
 		try {
-			Iterator<Entry<Link, LinkInfo>> it = this.links.entrySet()
-					.iterator();
-			while (it.hasNext()) {
-				Entry<Link, LinkInfo> entry = it.next();
-				Link lt = entry.getKey();
-				LinkInfo info = entry.getValue();
+			while (!linkExpiryQueue.isEmpty()
+					&& linkExpiryQueue.peek().time < curTime) {
+				LinkExpiry expiry = linkExpiryQueue.poll();
+				Link lt = expiry.link;
+				Long scheduled = linkExpiryTimes.get(lt);
+				if (scheduled == null || scheduled.longValue() != expiry.time)
+					continue;
+				linkExpiryTimes.remove(lt);
+				LinkInfo info = this.links.get(lt);
+				if (info == null)
+					continue;
+				boolean linkChanged = false;
 
 				// Timeout the unicast and multicast LLDP valid times
 				// independently.
@@ -1541,17 +1801,24 @@ IFloodlightModule, IInfoProvider {
 				// time is null.
 				if (info.getUnicastValidTime() == null
 						&& info.getMulticastValidTime() == null) {
-					eraseList.add(entry.getKey());
-				} else if (linkChanged) {
-					updates.add(new LDUpdate(lt.getSrc(), lt.getSrcPort(),
-							lt.getDst(), lt.getDstPort(),
-							getLinkType(lt, info),
-							UpdateOperation.LINK_UPDATED));
+					eraseList.add(lt);
+				} else {
+					if (linkChanged) {
+						updates.add(new LDUpdate(lt.getSrc(), lt.getSrcPort(),
+								lt.getDst(), lt.getDstPort(),
+								getLinkType(lt, info),
+								UpdateOperation.LINK_UPDATED));
+					}
+					// requeue for the remaining or refreshed valid time
+					scheduleLinkTimeout(lt, info);
 				}
+				anyLinkChanged |= linkChanged;
 			}
+			nextLinkExpiry = linkExpiryQueue.isEmpty() ? Long.MAX_VALUE
+					: linkExpiryQueue.peek().time;
 
 			// if any link was deleted or any link was changed.
-			if ((eraseList.size() > 0) || linkChanged) {
+			if ((eraseList.size() > 0) || anyLinkChanged) {
 				deleteLinks(eraseList, "LLDP timeout");
 			}
 		} finally {
@@ -1606,6 +1873,9 @@ IFloodlightModule, IInfoProvider {
 		this.controllerTLV = new LLDPTLV().setType((byte) 0x0c)
 				.setLength((short) controllerTLVValue.length)
 				.setValue(controllerTLVValue);
+		// the templates include the controller TLV
+		if (lldpTemplates != null)
+			lldpTemplates.clear();
 	}
 
 	//******************
@@ -1653,6 +1923,8 @@ IFloodlightModule, IInfoProvider {
 
 	@Override
 	public void switchRemoved(DatapathId sw) {
+        lldpTemplates.remove(sw);
+        discoveryPacer.removeSwitch(sw);
         List<Link> eraseList = new ArrayList<Link>();
         lock.writeLock().lock();
         try {
@@ -1918,6 +2190,12 @@ IFloodlightModule, IInfoProvider {
 		}
 		log.debug("Event history size set to {}", EVENT_HISTORY_SIZE);
 
+		String paced = configOptions.get("pacedDiscovery");
+		if (paced != null) {
+			pacedDiscovery = Boolean.parseBoolean(paced);
+		}
+		log.debug("Paced link discovery {}", pacedDiscovery ? "enabled" : "disabled");
+
 		// Set the autoportfast feature to false.
 		this.autoPortFastFeature = AUTOPORTFAST_DEFAULT;
 
@@ -1926,7 +2204,11 @@ IFloodlightModule, IInfoProvider {
 		this.lock = new ReentrantReadWriteLock();
 		this.updates = new LinkedBlockingQueue<LDUpdate>();
 		this.links = new HashMap<Link, LinkInfo>();
+		this.linkExpiryQueue = new PriorityQueue<LinkExpiry>();
+		this.linkExpiryTimes = new HashMap<Link, Long>();
 		this.portLinks = new HashMap<NodePortTuple, Set<Link>>();
+		this.lldpTemplates = new ConcurrentHashMap<DatapathId, byte[][]>();
+		this.discoveryPacer = new DiscoveryPacer(LLDP_TO_ALL_INTERVAL / DISCOVERY_TASK_INTERVAL);
 		this.suppressLinkDiscovery = Collections.synchronizedSet(new HashSet<NodePortTuple>());
 		this.switchLinks = new HashMap<DatapathId, Set<Link>>();
 		this.quarantineQueue = new LinkedBlockingQueue<NodePortTuple>();
@@ -2074,6 +2356,10 @@ IFloodlightModule, IInfoProvider {
 				"All incoming packets seen by this module");
 		ctrLldpEol  = debugCounterService.registerCounter(PACKAGE, "lldp-eol",
 				"End of Life for LLDP packets");
+		ctrLldpSent = debugCounterService.registerCounter(PACKAGE, "lldp-sent",
+				"LLDP packets sent out of switch ports");
+		ctrLldpReceived = debugCounterService.registerCounter(PACKAGE, "lldp-received",
+				"LLDP packets received on switch ports");
 		ctrLinkLocalDrops = debugCounterService.registerCounter(PACKAGE, "linklocal-drops",
 				"All link local packets dropped by this module");
 		ctrIgnoreSrcMacDrops = debugCounterService.registerCounter(PACKAGE, "ignore-srcmac-drops",
@@ -2145,6 +2431,8 @@ IFloodlightModule, IInfoProvider {
 		}
 		info.put("# inter-switch links", numDirectLinks / 2);
 		info.put("# quarantine ports", quarantineQueue.size());
+		info.put("LLDPs sent/s", Math.round(lldpSentRate));
+		info.put("LLDPs received/s", Math.round(lldpReceivedRate));
 		return info;
 	}
 
@@ -33,11 +33,14 @@ public class LBMember {
     protected String macString;
     
     protected int connectionLimit;
+    protected int weight;
     protected short adminState;
     protected short status;
 
     protected String poolId;
     protected String vipId;
+
+    protected LBStats stats;
     
     public LBMember() {
         id = String.valueOf((int) (Math.random()*10000));
@@ -46,9 +49,11 @@ public class LBMember {
         port = 0;
         
         connectionLimit = 0;
+        weight = 1;
         adminState = 0;
         status = 0;
         poolId = null;
         vipId = null;
+        stats = new LBStats();
     }
 }
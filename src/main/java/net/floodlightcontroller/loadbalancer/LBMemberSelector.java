@@ -0,0 +1,253 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
+
+/**
+ * Picks the member of a pool that serves a new client.
+ *
+ * A selector is built for a fixed list of members, and is replaced when the
+ * members of the pool change, so that picking a member needs no lock.
+ * Selectors may be called concurrently from several packet-in threads.
+ */
+public abstract class LBMemberSelector {
+    /**
+     * Weights are clamped to this, which bounds the size of the weighted
+     * round robin schedule and of the hash ring
+     */
+    public static final int MAX_WEIGHT = 256;
+
+    /**
+     * Pick a member for a client
+     * @param client the client
+     * @return the id of the member, or null if there are no members
+     */
+    public abstract String pickMember(IPClient client);
+
+    /**
+     * Create the selector of a load balancing method
+     * @param lbMethod the method, one of the LBPool.LB_METHOD_* values
+     * @param members the members of the pool, which must not be modified
+     * afterwards
+     * @return the selector
+     */
+    public static LBMemberSelector create(short lbMethod,
+                                          List<LBMember> members) {
+        switch (lbMethod) {
+            case LBPool.LB_METHOD_WEIGHTED_ROUND_ROBIN:
+                return new WeightedRoundRobin(members);
+            case LBPool.LB_METHOD_LEAST_CONNECTIONS:
+                return new LeastConnections(members);
+            case LBPool.LB_METHOD_SOURCE_IP:
+                return new ConsistentHash(members);
+            default:
+                return new RoundRobin(members);
+        }
+    }
+
+    protected static int getWeight(LBMember member) {
+        return Math.min(MAX_WEIGHT, Math.max(1, member.weight));
+    }
+
+    /**
+     * Take the members in turn
+     */
+    protected static class RoundRobin extends LBMemberSelector {
+        private final String[] ids;
+        private final AtomicInteger next = new AtomicInteger();
+
+        RoundRobin(List<LBMember> members) {
+            ids = new String[members.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = members.get(i).id;
+            }
+        }
+
+        @Override
+        public String pickMember(IPClient client) {
+            if (ids.length == 0)
+                return null;
+            int i = (next.getAndIncrement() & Integer.MAX_VALUE) % ids.length;
+            return ids[i];
+        }
+    }
+
+    /**
+     * Take the members in turn, each as many times per round as its weight.
+     * The round is computed up front with the smooth weighted round robin
+     * order, which spreads the turns of a heavy member over the round
+     * instead of giving them all in a row.
+     */
+    protected static class WeightedRoundRobin extends LBMemberSelector {
+        private final String[] schedule;
+        private final AtomicInteger next = new AtomicInteger();
+
+        WeightedRoundRobin(List<LBMember> members) {
+            int n = members.size();
+            int[] weights = new int[n];
+            int gcd = 0;
+            for (int i = 0; i < n; i++) {
+                weights[i] = getWeight(members.get(i));
+                gcd = gcd(gcd, weights[i]);
+            }
+            int total = 0;
+            for (int i = 0; i < n; i++) {
+                weights[i] /= gcd;
+                total += weights[i];
+            }
+            schedule = new String[total];
+            int[] current = new int[n];
+            for (int turn = 0; turn < total; turn++) {
+                int best = 0;
+                for (int i = 0; i < n; i++) {
+                    current[i] += weights[i];
+                    if (current[i] > current[best])
+                        best = i;
+                }
+                current[best] -= total;
+                schedule[turn] = members.get(best).id;
+            }
+        }
+
+        private static int gcd(int a, int b) {
+            while (b != 0) {
+                int t = a % b;
+                a = b;
+                b = t;
+            }
+            return a;
+        }
+
+        @Override
+        public String pickMember(IPClient client) {
+            if (schedule.length == 0)
+                return null;
+            int i = (next.getAndIncrement() & Integer.MAX_VALUE) % schedule.length;
+            return schedule[i];
+        }
+    }
+
+    /**
+     * Take the member with the fewest active connections for its weight
+     */
+    protected static class LeastConnections extends LBMemberSelector {
+        private final LBMember[] members;
+        private final AtomicInteger next = new AtomicInteger();
+
+        LeastConnections(List<LBMember> members) {
+            this.members = members.toArray(new LBMember[members.size()]);
+        }
+
+        @Override
+        public String pickMember(IPClient client) {
+            int n = members.length;
+            if (n == 0)
+                return null;
+            // start at a different member each time, so that ties are
+            // broken round robin
+            int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+            LBMember best = null;
+            long bestConnections = 0;
+            long bestWeight = 1;
+            for (int k = 0; k < n; k++) {
+                LBMember m = members[(start + k) % n];
+                long connections = m.stats.getActiveConnections();
+                long weight = getWeight(m);
+                // connections / weight < bestConnections / bestWeight
+                if (best == null ||
+                        connections * bestWeight < bestConnections * weight) {
+                    best = m;
+                    bestConnections = connections;
+                    bestWeight = weight;
+                }
+            }
+            return best.id;
+        }
+    }
+
+    /**
+     * Map clients to members by the client's IP address on a hash ring, so
+     * that a client keeps its member across connections, and a change of
+     * members only moves the clients of the members that were added or
+     * removed. Each member has a number of points on the ring proportional
+     * to its weight.
+     */
+    protected static class ConsistentHash extends LBMemberSelector {
+        protected static final int POINTS_PER_WEIGHT = 100;
+
+        private final long[] points;
+        private final String[] ids;
+
+        ConsistentHash(List<LBMember> members) {
+            List<long[]> ring = new ArrayList<long[]>();
+            for (int i = 0; i < members.size(); i++) {
+                LBMember m = members.get(i);
+                int count = POINTS_PER_WEIGHT * getWeight(m);
+                long seed = (long) m.id.hashCode() << 32;
+                for (int p = 0; p < count; p++) {
+                    ring.add(new long[] { mix(seed | p), i });
+                }
+            }
+            long[][] sorted = ring.toArray(new long[ring.size()][]);
+            Arrays.sort(sorted, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] a, long[] b) {
+                    return Long.compare(a[0], b[0]);
+                }
+            });
+            points = new long[sorted.length];
+            ids = new String[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                points[i] = sorted[i][0];
+                ids[i] = members.get((int) sorted[i][1]).id;
+            }
+        }
+
+        /**
+         * Spread the bits of a value over a long
+         */
+        protected static long mix(long v) {
+            v ^= (v >>> 33);
+            v *= 0xff51afd7ed558ccdL;
+            v ^= (v >>> 33);
+            v *= 0xc4ceb9fe1a85ec53L;
+            v ^= (v >>> 33);
+            return v;
+        }
+
+        @Override
+        public String pickMember(IPClient client) {
+            if (points.length == 0)
+                return null;
+            long h = mix(client.ipAddress.getInt() & 0xffffffffL);
+            int i = Arrays.binarySearch(points, h);
+            if (i < 0)
+                i = -(i + 1);
+            // wrap around the ring
+            if (i == points.length)
+                i = 0;
+            return ids[i];
+        }
+    }
+}
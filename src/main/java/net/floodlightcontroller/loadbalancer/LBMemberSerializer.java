@@ -36,6 +36,9 @@ public class LBMemberSerializer extends JsonSerializer<LBMember>{
         jGen.writeStringField("port", Short.toString(member.port));
         jGen.writeStringField("poolId", member.poolId);
         jGen.writeStringField("vipId", member.vipId);
+        jGen.writeStringField("weight", Integer.toString(member.weight));
+        jGen.writeStringField("activeConnections",
+                Integer.toString(member.stats.getActiveConnections()));
 
         jGen.writeEndObject();
     }
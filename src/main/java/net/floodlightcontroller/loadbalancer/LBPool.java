@@ -17,6 +17,7 @@
 package net.floodlightcontroller.loadbalancer;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
@@ -32,20 +33,28 @@ import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
 
 @JsonSerialize(using=LBPoolSerializer.class)
 public class LBPool {
+    // Load balancing methods; 0 (unset) is round robin
+    public static final short LB_METHOD_ROUND_ROBIN = 1;
+    public static final short LB_METHOD_LEAST_CONNECTIONS = 2;
+    public static final short LB_METHOD_SOURCE_IP = 3;
+    public static final short LB_METHOD_WEIGHTED_ROUND_ROBIN = 4;
+
     protected String id;
     protected String name;
     protected String tenantId;
     protected String netId;
     protected short lbMethod;
     protected byte protocol;
-    protected ArrayList<String> members;
+    // copied on write under the pool's lock, so it can be read without it
+    protected volatile ArrayList<String> members;
     protected ArrayList<String> monitors;
     protected short adminState;
     protected short status;
     
     protected String vipId;
     
-    protected int previousMemberIndex;
+    protected List<LBMember> memberList;
+    protected volatile LBMemberSelector selector;
     
     public LBPool() {
         id = String.valueOf((int) (Math.random()*10000));
@@ -58,17 +67,80 @@ public class LBPool {
         monitors = new ArrayList<String>();
         adminState = 0;
         status = 0;
-        previousMemberIndex = -1;
+        memberList = new ArrayList<LBMember>();
+        selector = LBMemberSelector.create(lbMethod, memberList);
     }
     
+    /**
+     * Pick the member that serves a new client, with the pool's load
+     * balancing method
+     * @param client the client
+     * @return the id of the member, or null if the pool has no members
+     */
     public String pickMember(IPClient client) {
-        // simple round robin for now; add different lbmethod later
-        if (members.size() > 0) {
-            previousMemberIndex = (previousMemberIndex + 1) % members.size();
-            return members.get(previousMemberIndex);
-        } else {
-            return null;
+        return selector.pickMember(client);
+    }
+
+    /**
+     * Add a member to the pool, or replace the member with the same id
+     */
+    public synchronized void addMember(LBMember member) {
+        List<LBMember> newList = new ArrayList<LBMember>(memberList);
+        boolean replaced = false;
+        for (int i = 0; i < newList.size(); i++) {
+            if (newList.get(i).id.equals(member.id)) {
+                newList.set(i, member);
+                replaced = true;
+                break;
+            }
         }
+        if (!replaced)
+            newList.add(member);
+        ArrayList<String> newIds = new ArrayList<String>(members);
+        if (!newIds.contains(member.id))
+            newIds.add(member.id);
+        setMembers(newIds, newList);
+    }
+
+    /**
+     * Remove a member from the pool
+     * @return true if the member was in the pool
+     */
+    public synchronized boolean removeMember(String memberId) {
+        if (!members.contains(memberId))
+            return false;
+        List<LBMember> newList = new ArrayList<LBMember>();
+        for (LBMember m : memberList) {
+            if (!m.id.equals(memberId))
+                newList.add(m);
+        }
+        ArrayList<String> newIds = new ArrayList<String>(members);
+        newIds.remove(memberId);
+        setMembers(newIds, newList);
+        return true;
+    }
+
+    /**
+     * Take over the members of another pool, e.g. the one this pool
+     * replaces
+     */
+    public synchronized void copyMembers(LBPool other) {
+        synchronized (other) {
+            setMembers(new ArrayList<String>(other.members),
+                       new ArrayList<LBMember>(other.memberList));
+        }
+    }
+
+    public synchronized void setLbMethod(short lbMethod) {
+        this.lbMethod = lbMethod;
+        selector = LBMemberSelector.create(lbMethod, memberList);
+    }
+
+    private void setMembers(ArrayList<String> ids, List<LBMember> list) {
+        // the selector is built from a list that is never modified
+        memberList = list;
+        members = ids;
+        selector = LBMemberSelector.create(lbMethod, list);
     }
 
 }
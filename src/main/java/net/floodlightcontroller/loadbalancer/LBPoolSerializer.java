@@ -17,6 +17,7 @@
 package net.floodlightcontroller.loadbalancer;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -35,8 +36,9 @@ public class LBPoolSerializer extends JsonSerializer<LBPool>{
         jGen.writeStringField("id", pool.id);
         jGen.writeStringField("vipId", pool.vipId);
 
-        for (int i=0; i<pool.members.size(); i++)
-            jGen.writeStringField("pool", pool.members.get(i));
+        ArrayList<String> members = pool.members;
+        for (int i=0; i<members.size(); i++)
+            jGen.writeStringField("pool", members.get(i));
 
         jGen.writeEndObject();
     }
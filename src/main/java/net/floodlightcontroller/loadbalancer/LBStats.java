@@ -16,6 +16,8 @@
 
 package net.floodlightcontroller.loadbalancer;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Data structure for Load Balancer based on
  * Quantum proposal http://wiki.openstack.org/LBaaS/CoreResourceModel/proposal 
@@ -26,13 +28,31 @@ package net.floodlightcontroller.loadbalancer;
 public class LBStats {
     protected int bytesIn;
     protected int bytesOut;
-    protected int activeConnections;
-    protected int totalConnections;
+    // updated concurrently from packet-in threads
+    protected AtomicInteger activeConnections;
+    protected AtomicInteger totalConnections;
     
     public LBStats() {
         bytesIn = 0;
         bytesOut = 0;
-        activeConnections = 0;
-        totalConnections = 0;
+        activeConnections = new AtomicInteger();
+        totalConnections = new AtomicInteger();
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+        totalConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public int getTotalConnections() {
+        return totalConnections.get();
     }
 }
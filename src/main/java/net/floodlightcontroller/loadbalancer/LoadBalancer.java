@@ -19,11 +19,15 @@ package net.floodlightcontroller.loadbalancer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.projectfloodlight.openflow.protocol.OFFlowMod;
 import org.projectfloodlight.openflow.protocol.match.Match;
@@ -77,6 +81,11 @@ import net.floodlightcontroller.topology.ITopologyService;
 import net.floodlightcontroller.topology.NodePortTuple;
 import net.floodlightcontroller.util.FlowModUtils;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
 /**
  * A simple load balancer module for ping, tcp, and udp flows. This module is accessed 
  * via a REST API defined close to the OpenStack Quantum LBaaS (Load-balancer-as-a-Service)
@@ -84,8 +93,8 @@ import net.floodlightcontroller.util.FlowModUtils;
  * made to confirm compatibility at this time. 
  * 
  * Limitations:
- * - client records and static flows not purged after use, will exhaust switch flow tables over time
- * - round robin policy among servers based on connections, not traffic volume
+ * - static flows not purged after use, will exhaust switch flow tables over time
+ * - member selection is based on connections, not traffic volume
  * - health monitoring feature not implemented yet
  *  
  * @author kcwang
@@ -108,17 +117,22 @@ public class LoadBalancer implements IFloodlightModule,
     protected IStaticFlowEntryPusherService sfpService;
     protected IOFSwitchService switchService;
     
-    protected HashMap<String, LBVip> vips;
-    protected HashMap<String, LBPool> pools;
-    protected HashMap<String, LBMember> members;
-    protected HashMap<Integer, String> vipIpToId;
-    protected HashMap<Integer, MacAddress> vipIpToMac;
-    protected HashMap<Integer, String> memberIpToId;
-    protected HashMap<IPClient, LBMember> clientToMember;
+    // read from packet-in threads while REST calls update them; vips
+    // looks up the vip ids of pools and members, which may be null
+    protected Map<String, LBVip> vips;
+    protected Map<String, LBPool> pools;
+    protected Map<String, LBMember> members;
+    protected Map<Integer, String> vipIpToId;
+    protected Map<Integer, MacAddress> vipIpToMac;
+    protected Map<Integer, String> memberIpToId;
+    protected Cache<VipClient, LBMember> clientToMember;
     
     //Copied from Forwarding with message damper routine for pushing proxy Arp 
     protected static int OFMESSAGE_DAMPER_CAPACITY = 10000; // ms. 
     protected static int OFMESSAGE_DAMPER_TIMEOUT = 250; // ms 
+    // a client not seen for this long loses its member, and no longer
+    // counts as a connection of the member
+    protected static int CLIENT_IDLE_TIMEOUT = 300; // s
     protected static String LB_ETHER_TYPE = "0x800";
     protected static int LB_PRIORITY = 32768;
     
@@ -146,6 +160,56 @@ public class LoadBalancer implements IFloodlightModule,
             srcPort = TransportPort.NONE;
             targetPort = TransportPort.NONE;
         }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ipAddress.hashCode();
+            result = prime * result + nw_proto.hashCode();
+            result = prime * result + srcPort.hashCode();
+            result = prime * result + targetPort.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof IPClient))
+                return false;
+            IPClient other = (IPClient) obj;
+            return ipAddress.equals(other.ipAddress) &&
+                   nw_proto.equals(other.nw_proto) &&
+                   srcPort.equals(other.srcPort) &&
+                   targetPort.equals(other.targetPort);
+        }
+    }
+
+    // a client of a given vip, as the key of the client's member
+    protected static class VipClient {
+        final String vipId;
+        final IPClient client;
+
+        VipClient(String vipId, IPClient client) {
+            this.vipId = vipId;
+            this.client = client;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * vipId.hashCode() + client.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof VipClient))
+                return false;
+            VipClient other = (VipClient) obj;
+            return vipId.equals(other.vipId) && client.equals(other.client);
+        }
     }
     
     @Override
@@ -227,8 +291,12 @@ public class LoadBalancer implements IFloodlightModule,
                     }
                     
                     LBVip vip = vips.get(vipIpToId.get(destIpAddress));
-                    LBPool pool = pools.get(vip.pickPool(client));
-                    LBMember member = members.get(pool.pickMember(client));
+                    LBMember member = (vip != null) ? pickMember(vip, client) : null;
+                    if (member == null) {
+                        log.debug("No member to serve client {} of vip {}",
+                                  client.ipAddress, destIpAddress);
+                        return Command.CONTINUE;
+                    }
 
                     // for chosen member, check device manager and find and push routes, in both directions                    
                     pushBidirectionalVipRoutes(sw, pi, cntx, client, member);
@@ -245,6 +313,63 @@ public class LoadBalancer implements IFloodlightModule,
         return Command.CONTINUE;
     }
 
+    /**
+     * used to find the member that serves a client of a vip. A client that
+     * was seen recently keeps its member while the member is in one of the
+     * vip's pools; a new client gets the member picked by the pool's load
+     * balancing method, and counts as a connection of that member until it
+     * is idle for CLIENT_IDLE_TIMEOUT.
+     * @param LBVip vip
+     * @param IPClient client
+     * @return the member, or null if the vip has no pool or members
+     */
+    protected LBMember pickMember(LBVip vip, IPClient client) {
+        VipClient key = new VipClient(vip.id, client);
+        LBMember current = clientToMember.getIfPresent(key);
+        if (current != null) {
+            LBMember live = members.get(current.id);
+            if (live != null && live.poolId != null &&
+                    vip.pools.contains(live.poolId))
+                return live;
+        }
+
+        String poolId = vip.pickPool(client);
+        LBPool pool = (poolId != null) ? pools.get(poolId) : null;
+        if (pool == null)
+            return null;
+        String memberId = pool.pickMember(client);
+        LBMember member = (memberId != null) ? members.get(memberId) : null;
+        if (member == null)
+            return null;
+
+        // the connection is counted before it is visible, so that its
+        // removal never runs ahead of it
+        member.stats.connectionOpened();
+        Map<VipClient, LBMember> map = clientToMember.asMap();
+        boolean added = (current == null) ?
+                map.putIfAbsent(key, member) == null :
+                map.replace(key, current, member);
+        if (!added) {
+            // another packet-in of the client got there first
+            member.stats.connectionClosed();
+            LBMember winner = map.get(key);
+            return (winner != null) ? winner : member;
+        }
+        return member;
+    }
+
+    // closes the connection of a client whose member is replaced, removed
+    // or idle
+    private static final RemovalListener<VipClient, LBMember>
+            connectionCloser = new RemovalListener<VipClient, LBMember>() {
+                @Override
+                public void onRemoval(RemovalNotification<VipClient,
+                                                          LBMember> n) {
+                    if (n.getValue() != null)
+                        n.getValue().stats.connectionClosed();
+                }
+            };
+
     /**
      * used to send proxy Arp for load balanced service requests
      * @param IOFSwitch sw
@@ -653,6 +778,9 @@ public class LoadBalancer implements IFloodlightModule,
 
     @Override
     public LBPool updatePool(LBPool pool) {
+        LBPool old = pools.get(pool.id);
+        if (old != null)
+            pool.copyMembers(old);
         pools.put(pool.id, pool);
         return null;
     }
@@ -703,10 +831,10 @@ public class LoadBalancer implements IFloodlightModule,
         members.put(member.id, member);
         memberIpToId.put(member.address, member.id);
 
-        if (member.poolId != null && pools.get(member.poolId) != null) {
-            member.vipId = pools.get(member.poolId).vipId;
-            if (!pools.get(member.poolId).members.contains(member.id))
-                pools.get(member.poolId).members.add(member.id);
+        LBPool pool = (member.poolId != null) ? pools.get(member.poolId) : null;
+        if (pool != null) {
+            member.vipId = pool.vipId;
+            pool.addMember(member);
         } else
             log.error("member must be specified with non-null pool_id");
         
@@ -715,7 +843,19 @@ public class LoadBalancer implements IFloodlightModule,
 
     @Override
     public LBMember updateMember(LBMember member) {
-        members.put(member.id, member);
+        LBMember old = members.put(member.id, member);
+        if (old != null) {
+            // the clients of the member stay with it
+            member.stats = old.stats;
+            if (old.poolId != null && !old.poolId.equals(member.poolId) &&
+                    pools.get(old.poolId) != null)
+                pools.get(old.poolId).removeMember(member.id);
+        }
+        LBPool pool = (member.poolId != null) ? pools.get(member.poolId) : null;
+        if (pool != null) {
+            member.vipId = pool.vipId;
+            pool.addMember(member);
+        }
         return member;
     }
 
@@ -725,9 +865,16 @@ public class LoadBalancer implements IFloodlightModule,
         member = members.get(memberId);
         
         if(member != null){
-            if (member.poolId != null)
-                pools.get(member.poolId).members.remove(memberId);
+            if (member.poolId != null && pools.get(member.poolId) != null)
+                pools.get(member.poolId).removeMember(memberId);
             members.remove(memberId);
+            // let the member's clients pick another member
+            Iterator<LBMember> iter =
+                    clientToMember.asMap().values().iterator();
+            while (iter.hasNext()) {
+                if (iter.next().id.equals(memberId))
+                    iter.remove();
+            }
             return 0;
         } else {
             return -1;
@@ -807,12 +954,16 @@ public class LoadBalancer implements IFloodlightModule,
         sfpService = context.getServiceImpl(IStaticFlowEntryPusherService.class);
         switchService = context.getServiceImpl(IOFSwitchService.class);
         
-        vips = new HashMap<String, LBVip>();
-        pools = new HashMap<String, LBPool>();
-        members = new HashMap<String, LBMember>();
-        vipIpToId = new HashMap<Integer, String>();
-        vipIpToMac = new HashMap<Integer, MacAddress>();
-        memberIpToId = new HashMap<Integer, String>();
+        vips = Collections.synchronizedMap(new HashMap<String, LBVip>());
+        pools = new ConcurrentHashMap<String, LBPool>();
+        members = new ConcurrentHashMap<String, LBMember>();
+        vipIpToId = new ConcurrentHashMap<Integer, String>();
+        vipIpToMac = new ConcurrentHashMap<Integer, MacAddress>();
+        memberIpToId = new ConcurrentHashMap<Integer, String>();
+        clientToMember = CacheBuilder.newBuilder()
+                .expireAfterAccess(CLIENT_IDLE_TIMEOUT, TimeUnit.SECONDS)
+                .removalListener(connectionCloser)
+                .build();
     }
 
     @Override
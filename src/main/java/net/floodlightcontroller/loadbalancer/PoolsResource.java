@@ -128,7 +128,18 @@ public class PoolsResource extends ServerResource {
                 continue;
             }
             if (n.equals("lb_method")) {
-                pool.lbMethod = Short.parseShort(jp.getText());
+                String tmp = jp.getText();
+                if (tmp.equalsIgnoreCase("ROUND_ROBIN")) {
+                    pool.setLbMethod(LBPool.LB_METHOD_ROUND_ROBIN);
+                } else if (tmp.equalsIgnoreCase("LEAST_CONNECTIONS")) {
+                    pool.setLbMethod(LBPool.LB_METHOD_LEAST_CONNECTIONS);
+                } else if (tmp.equalsIgnoreCase("SOURCE_IP")) {
+                    pool.setLbMethod(LBPool.LB_METHOD_SOURCE_IP);
+                } else if (tmp.equalsIgnoreCase("WEIGHTED_ROUND_ROBIN")) {
+                    pool.setLbMethod(LBPool.LB_METHOD_WEIGHTED_ROUND_ROBIN);
+                } else {
+                    pool.setLbMethod(Short.parseShort(tmp));
+                }
                 continue;
             }
             if (n.equals("protocol")) {
@@ -0,0 +1,258 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.packet;
+
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IpProtocol;
+import org.projectfloodlight.openflow.types.MacAddress;
+
+/**
+ * A read-only view of an Ethernet frame that reads header fields directly
+ * from the underlying byte array when they are asked for, without copying
+ * the frame or building the {@link Ethernet} object graph.
+ *
+ * The full {@link Ethernet} packet is only decoded by {@link #getEthernet()},
+ * and is then cached, so listeners that need nothing but the MAC addresses
+ * or the ethertype never pay for decoding the payload.
+ *
+ * A view may also wrap an already decoded {@link Ethernet}, in which case
+ * all fields are read from it.
+ *
+ * The byte array must not be modified while the view is in use. Views are
+ * not thread-safe, which is fine since a packet-in is handled by one thread.
+ */
+public class EthernetView {
+    protected static final short TYPE_VLAN = (short) 0x8100;
+    protected static final int ETH_HEADER_LENGTH = 14;
+    protected static final int VLAN_HEADER_LENGTH = 4;
+    protected static final int IPV4_MIN_HEADER_LENGTH = 20;
+
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+    private Ethernet ethernet;
+
+    /**
+     * Create a view over a whole byte array, typically the data of a
+     * packet-in message
+     * @param data the Ethernet frame
+     */
+    public EthernetView(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public EthernetView(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Create a view over an already decoded Ethernet packet
+     * @param ethernet the decoded packet
+     */
+    public EthernetView(Ethernet ethernet) {
+        this.data = null;
+        this.offset = 0;
+        this.length = 0;
+        this.ethernet = ethernet;
+    }
+
+    /**
+     * Whether fields are read from a decoded Ethernet packet rather than
+     * from the raw bytes. Frames too short for {@link Ethernet#deserialize}
+     * are also handled through the decoded packet so that both give the same
+     * answers, as are VLAN tagged frames that end inside the tag.
+     */
+    private boolean useDecoded() {
+        if (ethernet != null || length <= 16)
+            return true;
+        return length < ETH_HEADER_LENGTH + VLAN_HEADER_LENGTH &&
+                isVlanTagged();
+    }
+
+    private long getMac(int pos) {
+        long mac = 0;
+        for (int i = 0; i < 6; i++) {
+            mac = (mac << 8) | (data[offset + pos + i] & 0xff);
+        }
+        return mac;
+    }
+
+    private int getShort(int pos) {
+        return ((data[offset + pos] & 0xff) << 8) |
+                (data[offset + pos + 1] & 0xff);
+    }
+
+    private int getInt(int pos) {
+        return (getShort(pos) << 16) | getShort(pos + 2);
+    }
+
+    private boolean isVlanTagged() {
+        return (short) getShort(12) == TYPE_VLAN;
+    }
+
+    /**
+     * @return the destination MAC address as a long, without allocating
+     */
+    public long getDestinationMACAddressLong() {
+        if (useDecoded()) {
+            MacAddress mac = getEthernet().getDestinationMACAddress();
+            return (mac == null) ? 0 : mac.getLong();
+        }
+        return getMac(0);
+    }
+
+    public MacAddress getDestinationMACAddress() {
+        if (useDecoded())
+            return getEthernet().getDestinationMACAddress();
+        return MacAddress.of(getMac(0));
+    }
+
+    /**
+     * @return the source MAC address as a long, without allocating
+     */
+    public long getSourceMACAddressLong() {
+        if (useDecoded()) {
+            MacAddress mac = getEthernet().getSourceMACAddress();
+            return (mac == null) ? 0 : mac.getLong();
+        }
+        return getMac(6);
+    }
+
+    public MacAddress getSourceMACAddress() {
+        if (useDecoded())
+            return getEthernet().getSourceMACAddress();
+        return MacAddress.of(getMac(6));
+    }
+
+    /**
+     * @return the ethertype of the frame, after any 802.1Q tag
+     */
+    public short getEtherType() {
+        if (useDecoded())
+            return getEthernet().getEtherType();
+        return (short) getShort(isVlanTagged() ? 16 : 12);
+    }
+
+    public short getVlanID() {
+        if (useDecoded())
+            return getEthernet().getVlanID();
+        return isVlanTagged() ?
+                (short) (getShort(14) & 0x0fff) : Ethernet.VLAN_UNTAGGED;
+    }
+
+    public byte getPriorityCode() {
+        if (useDecoded())
+            return getEthernet().getPriorityCode();
+        return isVlanTagged() ? (byte) ((getShort(14) >> 13) & 0x07) : 0;
+    }
+
+    /**
+     * @return True if the Ethernet frame is broadcast, False otherwise
+     */
+    public boolean isBroadcast() {
+        if (useDecoded())
+            return getEthernet().isBroadcast();
+        return getMac(0) == 0xffffffffffffL;
+    }
+
+    /**
+     * @return True if the Ethernet frame is multicast, False otherwise
+     */
+    public boolean isMulticast() {
+        if (useDecoded())
+            return getEthernet().isMulticast();
+        return (data[offset] & 0x01) != 0 && !isBroadcast();
+    }
+
+    /**
+     * @return the offset in the underlying array at which the Ethernet
+     * payload starts, or -1 if the view wraps a decoded packet
+     */
+    public int getPayloadOffset() {
+        if (useDecoded())
+            return -1;
+        return offset + ETH_HEADER_LENGTH +
+                (isVlanTagged() ? VLAN_HEADER_LENGTH : 0);
+    }
+
+    /**
+     * Whether the frame carries an IPv4 packet whose fixed header can be
+     * read from the view
+     */
+    private boolean hasIPv4Header() {
+        if (getEtherType() != Ethernet.TYPE_IPv4)
+            return false;
+        if (useDecoded())
+            return getEthernet().getPayload() instanceof IPv4;
+        return getPayloadOffset() + IPV4_MIN_HEADER_LENGTH <= offset + length;
+    }
+
+    /**
+     * @return the IPv4 source address, or null if the frame is not IPv4
+     */
+    public IPv4Address getIPv4SourceAddress() {
+        if (!hasIPv4Header())
+            return null;
+        if (useDecoded())
+            return ((IPv4) getEthernet().getPayload()).getSourceAddress();
+        return IPv4Address.of(getInt(getPayloadOffset() - offset + 12));
+    }
+
+    /**
+     * @return the IPv4 destination address, or null if the frame is not IPv4
+     */
+    public IPv4Address getIPv4DestinationAddress() {
+        if (!hasIPv4Header())
+            return null;
+        if (useDecoded())
+            return ((IPv4) getEthernet().getPayload()).getDestinationAddress();
+        return IPv4Address.of(getInt(getPayloadOffset() - offset + 16));
+    }
+
+    /**
+     * @return the IP protocol, or null if the frame is not IPv4
+     */
+    public IpProtocol getIPv4Protocol() {
+        if (!hasIPv4Header())
+            return null;
+        if (useDecoded())
+            return ((IPv4) getEthernet().getPayload()).getProtocol();
+        return IpProtocol.of((short) (data[getPayloadOffset() + 9] & 0xff));
+    }
+
+    /**
+     * @return True if the full Ethernet packet has already been decoded
+     */
+    public boolean isDecoded() {
+        return ethernet != null;
+    }
+
+    /**
+     * Get the fully decoded Ethernet packet, decoding it on first use
+     * @return the decoded packet
+     */
+    public Ethernet getEthernet() {
+        if (ethernet == null) {
+            Ethernet eth = new Ethernet();
+            eth.deserialize(data, offset, length);
+            ethernet = eth;
+        }
+        return ethernet;
+    }
+}
@@ -50,4 +50,22 @@ public interface IPktInProcessingTimeService extends IFloodlightService {
     public void setEnabled(boolean enabled);
     
     public CumulativeTimeBucket getCtb();
+
+    /**
+     * Whether processing times are recorded into per-thread latency
+     * histograms rather than the shared CumulativeTimeBucket
+     */
+    public boolean isHistogramEnabled();
+
+    /**
+     * Merges the per-thread histograms into a percentile report. Only
+     * meaningful if isHistogramEnabled() is true.
+     * @return the merged report
+     */
+    public LatencyHistogramReport getHistogramReport();
+
+    /**
+     * Asks every dispatch thread to clear its histograms
+     */
+    public void resetHistograms();
 }
@@ -0,0 +1,167 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.perfmon;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear latency histogram in the style of HdrHistogram.
+ *
+ * Values are split into power-of-two ranges, each of which is divided
+ * into SUB_BUCKET_COUNT linear sub-buckets, so the relative error of any
+ * reported value is bounded by 1/SUB_BUCKET_COUNT (~3%).
+ *
+ * A histogram has a single writer: record() uses lazySet rather than
+ * CAS, so it must only be called by the thread that owns the histogram.
+ * Any thread may read it or merge it into another histogram with add();
+ * readers may see a slightly stale view but never a torn counter.
+ */
+public class LatencyHistogram {
+    protected static final int SUB_BUCKET_BITS = 5;
+    protected static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /**
+     * Values at or above 2^MAX_VALUE_BITS ns (~68s) are clamped into the
+     * last bucket; nothing in the packet-in path should take that long.
+     */
+    protected static final int MAX_VALUE_BITS = 36;
+    protected static final long MAX_TRACKABLE_VALUE =
+            (1L << MAX_VALUE_BITS) - 1;
+    protected static final int BUCKET_COUNT =
+            (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts;
+    // index 0: total count, 1: sum of values, 2: max value
+    private final AtomicLongArray totals;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKET_COUNT);
+        totals = new AtomicLongArray(3);
+    }
+
+    /**
+     * Map a value to its bucket index
+     * @param value a non-negative value
+     * @return the bucket index
+     */
+    protected static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) Math.max(value, 0);
+        }
+        if (value > MAX_TRACKABLE_VALUE) {
+            value = MAX_TRACKABLE_VALUE;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift);
+        return (shift + 1) * SUB_BUCKET_COUNT + (sub - SUB_BUCKET_COUNT);
+    }
+
+    /**
+     * Get the largest value that maps to the given bucket index
+     * @param index the bucket index
+     * @return the highest value equivalent to the bucket
+     */
+    protected static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long sub = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Record one value. Must only be called by the owning thread.
+     * @param value the value, typically in nanoseconds
+     */
+    public void record(long value) {
+        int i = indexOf(value);
+        counts.lazySet(i, counts.get(i) + 1);
+        totals.lazySet(0, totals.get(0) + 1);
+        totals.lazySet(1, totals.get(1) + value);
+        if (value > totals.get(2)) {
+            totals.lazySet(2, value);
+        }
+    }
+
+    /**
+     * Add the counts of another histogram into this one. This histogram
+     * must not be concurrently recorded into.
+     * @param other the histogram to merge
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.set(i, counts.get(i) + c);
+            }
+        }
+        totals.set(0, totals.get(0) + other.totals.get(0));
+        totals.set(1, totals.get(1) + other.totals.get(1));
+        if (other.totals.get(2) > totals.get(2)) {
+            totals.set(2, other.totals.get(2));
+        }
+    }
+
+    /**
+     * Reset all counts. Only safe when called by the owning thread; other
+     * threads should reset by replacing the histogram instead.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totals.set(0, 0);
+        totals.set(1, 0);
+        totals.set(2, 0);
+    }
+
+    public long getTotalCount() {
+        return totals.get(0);
+    }
+
+    public long getMaxValue() {
+        return totals.get(2);
+    }
+
+    public long getMean() {
+        long count = totals.get(0);
+        return (count == 0) ? 0 : totals.get(1) / count;
+    }
+
+    /**
+     * Get the value at the given percentile
+     * @param percentile a percentile between 0 and 100
+     * @return the highest value equivalent to the percentile, capped at
+     * the maximum recorded value
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getTotalCount();
+        if (count == 0) {
+            return 0;
+        }
+        double p = Math.min(Math.max(percentile, 0.0), 100.0);
+        long target = Math.max(1, (long) Math.ceil(p / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), getMaxValue());
+            }
+        }
+        return getMaxValue();
+    }
+}
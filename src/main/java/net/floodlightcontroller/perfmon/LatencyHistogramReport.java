@@ -0,0 +1,92 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.perfmon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import net.floodlightcontroller.core.IOFMessageListener;
+
+/**
+ * Packet-in latency percentiles merged from the histograms of every
+ * dispatch thread, overall and per IOFMessageListener.
+ */
+public class LatencyHistogramReport {
+    private final int numThreads;
+    private final LatencySummary total;
+    private final List<LatencySummary> modules;
+
+    /**
+     * Merge the histograms of a set of recorders
+     * @param recorders the per-thread recorders to merge
+     * @param listeners the listeners in dispatch order, used to order the
+     * per-module output. May be null.
+     */
+    LatencyHistogramReport(Collection<ThreadLatencyRecorder> recorders,
+                           List<IOFMessageListener> listeners) {
+        LatencyHistogram mergedTotal = new LatencyHistogram();
+        Map<IOFMessageListener, LatencyHistogram> merged =
+                new LinkedHashMap<IOFMessageListener, LatencyHistogram>();
+        if (listeners != null) {
+            for (IOFMessageListener l : listeners) {
+                merged.put(l, new LatencyHistogram());
+            }
+        }
+        for (ThreadLatencyRecorder r : recorders) {
+            mergedTotal.add(r.total);
+            for (Entry<IOFMessageListener, LatencyHistogram> e :
+                    r.components.entrySet()) {
+                LatencyHistogram h = merged.get(e.getKey());
+                if (h == null) {
+                    h = new LatencyHistogram();
+                    merged.put(e.getKey(), h);
+                }
+                h.add(e.getValue());
+            }
+        }
+
+        numThreads = recorders.size();
+        total = new LatencySummary("total", mergedTotal);
+        modules = new ArrayList<LatencySummary>(merged.size());
+        for (Entry<IOFMessageListener, LatencyHistogram> e :
+                merged.entrySet()) {
+            modules.add(new LatencySummary(
+                    e.getKey().getClass().getCanonicalName(), e.getValue()));
+        }
+    }
+
+    @JsonProperty("num-threads")
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    @JsonProperty("total")
+    public LatencySummary getTotal() {
+        return total;
+    }
+
+    @JsonProperty("modules")
+    public List<LatencySummary> getModules() {
+        return modules;
+    }
+}
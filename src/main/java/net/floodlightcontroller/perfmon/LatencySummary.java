@@ -0,0 +1,78 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.perfmon;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Percentile summary of a merged LatencyHistogram. All times are in
+ * nanoseconds.
+ */
+public class LatencySummary {
+    private final String name;
+    private final long count;
+    private final long mean;
+    private final long p50;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    public LatencySummary(String name, LatencyHistogram h) {
+        this.name = name;
+        this.count = h.getTotalCount();
+        this.mean = h.getMean();
+        this.p50 = h.getValueAtPercentile(50.0);
+        this.p99 = h.getValueAtPercentile(99.0);
+        this.p999 = h.getValueAtPercentile(99.9);
+        this.max = h.getMaxValue();
+    }
+
+    @JsonProperty("module-name")
+    public String getName() {
+        return name;
+    }
+
+    @JsonProperty("num-packets")
+    public long getCount() {
+        return count;
+    }
+
+    @JsonProperty("average")
+    public long getMean() {
+        return mean;
+    }
+
+    @JsonProperty("p50")
+    public long getP50() {
+        return p50;
+    }
+
+    @JsonProperty("p99")
+    public long getP99() {
+        return p99;
+    }
+
+    @JsonProperty("p999")
+    public long getP999() {
+        return p999;
+    }
+
+    @JsonProperty("max")
+    public long getMax() {
+        return max;
+    }
+}
@@ -122,4 +122,19 @@ public class NullPktInProcessingTime
     public CumulativeTimeBucket getCtb() {
         return ctb;
     }
+
+    @Override
+    public boolean isHistogramEnabled() {
+        return false;
+    }
+
+    @Override
+    public LatencyHistogramReport getHistogramReport() {
+        return null;
+    }
+
+    @Override
+    public void resetHistograms() {
+
+    }
 }
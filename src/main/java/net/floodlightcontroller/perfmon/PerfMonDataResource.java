@@ -31,7 +31,7 @@ public class PerfMonDataResource extends ServerResource {
     protected static Logger logger = LoggerFactory.getLogger(PerfMonDataResource.class);  
     
     @Get("json")
-    public CumulativeTimeBucket handleApiQuery() {        
+    public Object handleApiQuery() {        
         IPktInProcessingTimeService pktinProcTime = 
             (IPktInProcessingTimeService)getContext().getAttributes().
                 get(IPktInProcessingTimeService.class.getCanonicalName());
@@ -45,6 +45,9 @@ public class PerfMonDataResource extends ServerResource {
         }
         // Allocate output object
         if (pktinProcTime.isEnabled()) {
+            if (pktinProcTime.isHistogramEnabled()) {
+                return pktinProcTime.getHistogramReport();
+            }
             CumulativeTimeBucket ctb = pktinProcTime.getCtb();
             ctb.computeAverages();
             return ctb;
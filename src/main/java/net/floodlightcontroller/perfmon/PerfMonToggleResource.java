@@ -34,7 +34,11 @@ public class PerfMonToggleResource extends ServerResource {
         	if(!pktinProcTime.isEnabled()){
         		pktinProcTime.setEnabled(true);
         	}
-            pktinProcTime.getCtb().reset();
+            if (pktinProcTime.isHistogramEnabled()) {
+                pktinProcTime.resetHistograms();
+            } else {
+                pktinProcTime.getCtb().reset();
+            }
         } else {
             if (param.equals("enable") || param.equals("true")) {
                 pktinProcTime.setEnabled(true);
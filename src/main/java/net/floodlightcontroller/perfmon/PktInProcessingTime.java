@@ -24,6 +24,8 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -65,6 +67,11 @@ import org.slf4j.LoggerFactory;
  * TOT_PROC_TIME_ALERT_THRESHOLD_US: same as above but an alert level
  *    syslog is generated instead
  * 
+ * Start times are kept per dispatch thread. When the "histograms" config
+ * option is set, processing times are also recorded into per-thread,
+ * per-listener LatencyHistograms instead of the shared time bucket, and
+ * are only merged when the REST API asks for them.
+ * 
  */
 @LogMessageCategory("Performance Monitoring")
 public class PktInProcessingTime
@@ -91,6 +98,26 @@ public class PktInProcessingTime
     protected long lastPktTime_ns;
     private CumulativeTimeBucket ctb = null;
 
+    protected boolean histogramsEnabled = false;
+    // Incremented to ask every thread to reset its histograms
+    protected final AtomicLong histogramEpoch = new AtomicLong();
+    // The recorders of the dispatch threads; those of threads that have
+    // exited are dropped when a recorder is added or a report is built
+    protected final List<ThreadLatencyRecorder> recorders =
+            new CopyOnWriteArrayList<ThreadLatencyRecorder>();
+    protected final ThreadLocal<ThreadLatencyRecorder> localRecorder =
+            new ThreadLocal<ThreadLatencyRecorder>() {
+        @Override
+        protected ThreadLatencyRecorder initialValue() {
+            ThreadLatencyRecorder r =
+                    new ThreadLatencyRecorder(Thread.currentThread(),
+                                              histogramEpoch.get());
+            pruneRecorders();
+            recorders.add(r);
+            return r;
+        }
+    };
+
     
     /***
      * BUCKET_SET_SIZE buckets each holding 10s of processing time data, a total
@@ -124,27 +151,71 @@ public class PktInProcessingTime
         return ctb;
     }
     
-    private long startTimePktNs;
-    private long startTimeCompNs;
+    @Override
+    public boolean isHistogramEnabled() {
+        return histogramsEnabled;
+    }
+
+    @Override
+    public LatencyHistogramReport getHistogramReport() {
+        long epoch = histogramEpoch.get();
+        pruneRecorders();
+        List<ThreadLatencyRecorder> current =
+                new ArrayList<ThreadLatencyRecorder>(recorders.size());
+        for (ThreadLatencyRecorder r : recorders) {
+            // threads that have not recorded since the last reset still
+            // hold stale data
+            if (r.epoch == epoch)
+                current.add(r);
+        }
+        return new LatencyHistogramReport(current,
+                floodlightProvider.getListeners().get(OFType.PACKET_IN));
+    }
+
+    @Override
+    public void resetHistograms() {
+        histogramEpoch.incrementAndGet();
+    }
+
+    /**
+     * Drop the recorders of the threads that have exited, along with the
+     * samples they recorded
+     */
+    private void pruneRecorders() {
+        for (ThreadLatencyRecorder r : recorders) {
+            if (!r.isOwnerAlive())
+                recorders.remove(r);
+        }
+    }
+
     @Override
     public void recordStartTimeComp(IOFMessageListener listener) {
         if (isEnabled()) {
-            startTimeCompNs = System.nanoTime();
+            localRecorder.get().startTimeCompNs = System.nanoTime();
         }
     }
     
     @Override
     public void recordEndTimeComp(IOFMessageListener listener) {
         if (isEnabled()) {
-            long procTime = System.nanoTime() - startTimeCompNs;
-            ctb.updateOneComponent(listener, procTime);
+            ThreadLatencyRecorder r = localRecorder.get();
+            long procTime = System.nanoTime() - r.startTimeCompNs;
+            if (histogramsEnabled) {
+                r.recordComponent(listener, procTime);
+            } else {
+                ctb.updateOneComponent(listener, procTime);
+            }
         }
     }
     
     @Override
     public void recordStartTimePktIn() {
         if (isEnabled()) {
-            startTimePktNs = System.nanoTime();
+            ThreadLatencyRecorder r = localRecorder.get();
+            if (histogramsEnabled) {
+                r.checkEpoch(histogramEpoch.get());
+            }
+            r.startTimePktNs = System.nanoTime();
         }
     }
     
@@ -156,8 +227,13 @@ public class PktInProcessingTime
             recommendation=LogMessageDoc.CHECK_CONTROLLER)
     public void recordEndTimePktIn(IOFSwitch sw, OFMessage m, FloodlightContext cntx) {
         if (isEnabled()) {
-            long procTimeNs = System.nanoTime() - startTimePktNs;
-            ctb.updatePerPacketCounters(procTimeNs);
+            ThreadLatencyRecorder r = localRecorder.get();
+            long procTimeNs = System.nanoTime() - r.startTimePktNs;
+            if (histogramsEnabled) {
+                r.recordPacket(procTimeNs);
+            } else {
+                ctb.updatePerPacketCounters(procTimeNs);
+            }
             
             if (ptWarningThresholdInNano > 0 && 
                     procTimeNs > ptWarningThresholdInNano) {
@@ -204,6 +280,14 @@ public class PktInProcessingTime
     	floodlightProvider = context
                 .getServiceImpl(IFloodlightProviderService.class);
         restApi = context.getServiceImpl(IRestApiService.class);
+
+        Map<String, String> configOptions = context.getConfigParams(this);
+        String histograms = configOptions.get("histograms");
+        if (histograms != null) {
+            histogramsEnabled = Boolean.parseBoolean(histograms);
+        }
+        logger.debug("Per-thread latency histograms {}",
+                     histogramsEnabled ? "enabled" : "disabled");
     }
     
     @Override
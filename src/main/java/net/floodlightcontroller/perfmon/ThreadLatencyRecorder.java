@@ -0,0 +1,88 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.perfmon;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.floodlightcontroller.core.IOFMessageListener;
+
+/**
+ * Packet-in timing state owned by a single dispatch thread. The start
+ * times are only ever touched by the owning thread; the histograms are
+ * written by the owning thread and read by whoever builds a report. The
+ * recorder only holds its thread weakly, so that the recorders of threads
+ * that have exited can be dropped.
+ */
+class ThreadLatencyRecorder {
+    protected final String threadName;
+    protected final WeakReference<Thread> owner;
+    protected long startTimePktNs;
+    protected long startTimeCompNs;
+    // the reset generation these histograms belong to; written by the
+    // owning thread, read by the reports
+    protected volatile long epoch;
+    protected final LatencyHistogram total;
+    protected final Map<IOFMessageListener, LatencyHistogram> components;
+
+    ThreadLatencyRecorder(Thread owner, long epoch) {
+        this.threadName = owner.getName();
+        this.owner = new WeakReference<Thread>(owner);
+        this.epoch = epoch;
+        this.total = new LatencyHistogram();
+        this.components =
+                new ConcurrentHashMap<IOFMessageListener, LatencyHistogram>();
+    }
+
+    /**
+     * Reset the histograms if a reset was requested since we last
+     * recorded. Resetting from the owning thread keeps record() free of
+     * any synchronization.
+     * @param currentEpoch the current reset generation
+     */
+    void checkEpoch(long currentEpoch) {
+        if (epoch != currentEpoch) {
+            total.reset();
+            for (LatencyHistogram h : components.values()) {
+                h.reset();
+            }
+            epoch = currentEpoch;
+        }
+    }
+
+    /**
+     * @return whether the thread that owns this recorder is still running
+     */
+    boolean isOwnerAlive() {
+        Thread t = owner.get();
+        return t != null && t.isAlive();
+    }
+
+    void recordComponent(IOFMessageListener listener, long procTimeNs) {
+        LatencyHistogram h = components.get(listener);
+        if (h == null) {
+            h = new LatencyHistogram();
+            components.put(listener, h);
+        }
+        h.record(procTimeNs);
+    }
+
+    void recordPacket(long procTimeNs) {
+        total.record(procTimeNs);
+    }
+}
@@ -22,11 +22,14 @@ import java.util.EnumSet;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IInfoProvider;
 import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.annotations.LogMessageCategory;
@@ -38,6 +41,7 @@ import net.floodlightcontroller.debugcounter.IDebugCounterService;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.SwitchPort;
 import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.perfmon.LatencySummary;
 import net.floodlightcontroller.routing.IRoutingService;
 import net.floodlightcontroller.routing.IRoutingDecision;
 import net.floodlightcontroller.routing.Route;
@@ -72,7 +76,8 @@ import org.slf4j.LoggerFactory;
  * decision.
  */
 @LogMessageCategory("Flow Programming")
-public abstract class ForwardingBase implements IOFMessageListener {
+public abstract class ForwardingBase
+	implements IOFMessageListener, IInfoProvider {
 
 	protected static Logger log =
 			LoggerFactory.getLogger(ForwardingBase.class);
@@ -95,6 +100,7 @@ public abstract class ForwardingBase implements IOFMessageListener {
 	protected IDebugCounterService debugCounterService;
 
 	protected OFMessageDamper messageDamper;
+	protected RouteInstaller routeInstaller;
 
 	// for broadcast loop suppression
 	protected boolean broadcastCacheFeature = true;
@@ -129,7 +135,7 @@ public abstract class ForwardingBase implements IOFMessageListener {
 		messageDamper = new OFMessageDamper(OFMESSAGE_DAMPER_CAPACITY,
 				EnumSet.of(OFType.FLOW_MOD),
 				OFMESSAGE_DAMPER_TIMEOUT);
-
+		routeInstaller = new RouteInstaller(messageDamper);
 	}
 
 	/**
@@ -137,6 +143,27 @@ public abstract class ForwardingBase implements IOFMessageListener {
 	 */
 	protected void startUp() {
 		floodlightProviderService.addOFMessageListener(OFType.PACKET_IN, this);
+		floodlightProviderService.addInfoProvider("summary", this);
+	}
+
+	/**
+	 * Report the route installer's latency percentiles, in microseconds,
+	 * and message counts in the controller summary
+	 */
+	@Override
+	public Map<String, Object> getInfo(String type) {
+		if (!"summary".equals(type)) return null;
+
+		Map<String, Object> info = new HashMap<String, Object>();
+		LatencySummary latency = routeInstaller.getInstallLatency();
+		info.put("# Routes installed", latency.getCount());
+		info.put("Route install p50 (us)", latency.getP50() / 1000);
+		info.put("Route install p99 (us)", latency.getP99() / 1000);
+		info.put("Route install max (us)", latency.getMax() / 1000);
+		info.put("# Route messages written", routeInstaller.getMessagesWritten());
+		info.put("# Route messages dampened", routeInstaller.getMessagesDampened());
+		info.put("# Route installer drains", routeInstaller.getDrains());
+		return info;
 	}
 
 	/**
@@ -167,7 +194,7 @@ public abstract class ForwardingBase implements IOFMessageListener {
 		case PACKET_IN:
 			IRoutingDecision decision = null;
 			if (cntx != null) {
-				decision = RoutingDecision.rtStore.get(cntx, IRoutingDecision.CONTEXT_DECISION);
+				decision = RoutingDecision.rtStore.get(cntx, IRoutingDecision.CONTEXT_DECISION_SLOT);
 			}
 
 			return this.processPacketInMessage(sw, (OFPacketIn) msg, decision, cntx);
@@ -178,7 +205,9 @@ public abstract class ForwardingBase implements IOFMessageListener {
 	}
 
 	/**
-	 * Push routes from back to front
+	 * Push routes from back to front. The flow mods of all hops, and the
+	 * packet-out on the source switch, are written as one batch by the
+	 * route installer, together with those of routes pushed concurrently.
 	 * @param route Route to push
 	 * @param match OpenFlow fields to match on
 	 * @param srcSwPort Source switch port for the first hop
@@ -192,18 +221,18 @@ public abstract class ForwardingBase implements IOFMessageListener {
 	 * @param flowModCommand flow mod. command to use, e.g. OFFlowMod.OFPFC_ADD,
 	 *        OFFlowMod.OFPFC_MODIFY etc.
 	 * @return srcSwitchIncluded True if the source switch is included in this route
+	 * @throws RuntimeException if writing one of the messages of the route
+	 *        fails, for instance because a switch disconnected. It is not
+	 *        logged here but passed on to the caller. The messages after the
+	 *        failed one are not written; routes installed concurrently are
+	 *        not affected.
 	 */
 	@LogMessageDocs({
 		@LogMessageDoc(level="WARN",
 				message="Unable to push route, switch at DPID {dpid} not available",
 				explanation="A switch along the calculated path for the " +
 						"flow has disconnected.",
-						recommendation=LogMessageDoc.CHECK_SWITCH),
-						@LogMessageDoc(level="ERROR",
-						message="Failure writing flow mod",
-						explanation="An I/O error occurred while writing a " +
-								"flow modification to a switch",
-								recommendation=LogMessageDoc.CHECK_SWITCH)
+						recommendation=LogMessageDoc.CHECK_SWITCH)
 	})
 	public boolean pushRoute(Route route, Match match, OFPacketIn pi,
 			DatapathId pinSwitch, U64 cookie, FloodlightContext cntx,
@@ -213,6 +242,7 @@ public abstract class ForwardingBase implements IOFMessageListener {
 		boolean srcSwitchIncluded = false;
 
 		List<NodePortTuple> switchPortList = route.getPath();
+		RouteInstaller.Batch batch = new RouteInstaller.Batch(doFlush);
 
 		for (int indx = switchPortList.size() - 1; indx > 0; indx -= 2) {
 			// indx and indx-1 will always have the same switch DPID.
@@ -223,6 +253,9 @@ public abstract class ForwardingBase implements IOFMessageListener {
 				if (log.isWarnEnabled()) {
 					log.warn("Unable to push route, switch at DPID {} " + "not available", switchDPID);
 				}
+				// install the hops downstream of the missing switch, as
+				// they would have been if written one by one
+				routeInstaller.submit(batch);
 				return srcSwitchIncluded;
 			}
 			
@@ -270,32 +303,29 @@ public abstract class ForwardingBase implements IOFMessageListener {
 			.setOutPort(outPort)
 			.setPriority(FLOWMOD_DEFAULT_PRIORITY);
 
-			try {
-				if (log.isTraceEnabled()) {
-					log.trace("Pushing Route flowmod routeIndx={} " +
-							"sw={} inPort={} outPort={}",
-							new Object[] {indx,
-							sw,
-							fmb.getMatch().get(MatchField.IN_PORT),
-							outPort });
-				}
-				messageDamper.write(sw, fmb.build());
-				if (doFlush) {
-					sw.flush();
-				}
-
-				// Push the packet out the source switch
-				if (sw.getId().equals(pinSwitch)) {
-					// TODO: Instead of doing a packetOut here we could also
-					// send a flowMod with bufferId set....
-					pushPacket(sw, pi, false, outPort, cntx);
-					srcSwitchIncluded = true;
+			if (log.isTraceEnabled()) {
+				log.trace("Pushing Route flowmod routeIndx={} " +
+						"sw={} inPort={} outPort={}",
+						new Object[] {indx,
+						sw,
+						fmb.getMatch().get(MatchField.IN_PORT),
+						outPort });
+			}
+			batch.add(sw, fmb.build());
+
+			// Push the packet out the source switch
+			if (sw.getId().equals(pinSwitch)) {
+				// TODO: Instead of doing a packetOut here we could also
+				// send a flowMod with bufferId set....
+				OFPacketOut po = buildPacketOut(sw, pi, false, outPort);
+				if (po != null) {
+					batch.add(sw, po);
 				}
-			} catch (IOException e) {
-				log.error("Failure writing flow mod", e);
+				srcSwitchIncluded = true;
 			}
 		}
 
+		routeInstaller.submit(batch);
 		return srcSwitchIncluded;
 	}
 
@@ -342,9 +372,27 @@ public abstract class ForwardingBase implements IOFMessageListener {
 	 */
 	protected void pushPacket(IOFSwitch sw, OFPacketIn pi, boolean useBufferId,
 			OFPort outport, FloodlightContext cntx) {
+		OFPacketOut po = buildPacketOut(sw, pi, useBufferId, outport);
+		if (po == null) {
+			return;
+		}
+
+		try {
+			messageDamper.write(sw, po);
+		} catch (IOException e) {
+			log.error("Failure writing packet out", e);
+		}
+	}
+
+	/**
+	 * Builds the packet-out for pushPacket
+	 * @return the packet-out, or null if none should be sent
+	 */
+	protected OFPacketOut buildPacketOut(IOFSwitch sw, OFPacketIn pi,
+			boolean useBufferId, OFPort outport) {
 
 		if (pi == null) {
-			return;
+			return null;
 		}
 
 		// The assumption here is (sw) is the switch that generated the
@@ -356,7 +404,7 @@ public abstract class ForwardingBase implements IOFMessageListener {
 						"interface as packet-in. Dropping packet. " +
 						" SrcSwitch={}, pi={}",
 						new Object[]{sw, pi});
-				return;
+				return null;
 			}
 		}
 
@@ -384,11 +432,7 @@ public abstract class ForwardingBase implements IOFMessageListener {
 
 		pob.setInPort((pi.getVersion().compareTo(OFVersion.OF_12) < 0 ? pi.getInPort() : pi.getMatch().get(MatchField.IN_PORT)));
 
-		try {
-			messageDamper.write(sw, pob.build());
-		} catch (IOException e) {
-			log.error("Failure writing packet out", e);
-		}
+		return pob.build();
 	}
 
 
@@ -49,6 +49,8 @@ public interface IRoutingDecision {
         new FloodlightContextStore<IRoutingDecision>();
     public static final String CONTEXT_DECISION =
             "net.floodlightcontroller.routing.decision";
+    public static final int CONTEXT_DECISION_SLOT =
+            FloodlightContext.registerSlot(CONTEXT_DECISION);
 
     public void addToContext(FloodlightContext cntx);
     public RoutingAction getRoutingAction();
@@ -0,0 +1,206 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.perfmon.LatencyHistogram;
+import net.floodlightcontroller.perfmon.LatencySummary;
+import net.floodlightcontroller.util.OFMessageDamper;
+
+import org.projectfloodlight.openflow.protocol.OFMessage;
+
+/**
+ * Writes the messages that install routes, coalescing the writes of the
+ * routes that are being installed at the same time.
+ *
+ * A caller collects the messages of a route, in the order they must be
+ * written, into a Batch and submits it. Submitted batches are queued, and
+ * the thread that holds the installer's lock drains the queue for
+ * everyone: it drops the flow-mods the damper has seen recently and
+ * writes each route's remaining messages in the route's own order, so
+ * the tail-to-head order of every route is kept. Consecutive writes are
+ * coalesced by the switch connections. Threads waiting for the lock
+ * usually find their route already written when they get it.
+ *
+ * A single lock serializes the writes of all routes. The writes only
+ * queue the messages on the switch connections, so the lock is held
+ * briefly, and a lock per switch could not keep the order of a route
+ * that crosses several switches.
+ *
+ * The time from the creation of a batch to the write of its messages is
+ * recorded into a latency histogram.
+ */
+public class RouteInstaller {
+    /**
+     * The most routes written per drain, so that routes queued while a
+     * drain is writing don't hold back the return of the earlier ones
+     */
+    protected static final int MAX_ROUTES_PER_DRAIN = 64;
+
+    /**
+     * The messages of one route
+     */
+    public static class Batch {
+        private final long startNanos = System.nanoTime();
+        private final List<IOFSwitch> switches = new ArrayList<IOFSwitch>();
+        private final List<OFMessage> messages = new ArrayList<OFMessage>();
+        private final boolean flush;
+        // set under the installer's lock
+        private boolean done;
+        private RuntimeException failure;
+
+        /**
+         * @param flush whether to flush each switch of this route once
+         * its messages for the switch are written
+         */
+        public Batch(boolean flush) {
+            this.flush = flush;
+        }
+
+        /**
+         * Add a message to write
+         * @param sw the switch to write to
+         * @param msg the message
+         */
+        public void add(IOFSwitch sw, OFMessage msg) {
+            switches.add(sw);
+            messages.add(msg);
+        }
+
+        public boolean isEmpty() {
+            return messages.isEmpty();
+        }
+    }
+
+    private final OFMessageDamper damper;
+    private final ConcurrentLinkedQueue<Batch> pending =
+            new ConcurrentLinkedQueue<Batch>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // only recorded into under the lock
+    private final LatencyHistogram installLatency = new LatencyHistogram();
+    private final AtomicLong messagesWritten = new AtomicLong();
+    private final AtomicLong messagesDampened = new AtomicLong();
+    private final AtomicLong drains = new AtomicLong();
+
+    /**
+     * @param damper the damper for the messages, or null to write all
+     * messages
+     */
+    public RouteInstaller(OFMessageDamper damper) {
+        this.damper = damper;
+    }
+
+    /**
+     * Write the messages of a route, possibly together with those of
+     * other routes. The messages are written when this returns.
+     * @param batch the messages of the route
+     * @throws RuntimeException the exception thrown while writing the
+     * route's messages, if any
+     */
+    public void submit(Batch batch) {
+        if (batch.isEmpty())
+            return;
+        pending.add(batch);
+        lock.lock();
+        try {
+            while (!batch.done) {
+                drain();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (batch.failure != null)
+            throw batch.failure;
+    }
+
+    private void drain() {
+        int routes = 0;
+        Batch batch;
+        while (routes < MAX_ROUTES_PER_DRAIN &&
+                (batch = pending.poll()) != null) {
+            install(batch);
+            routes++;
+        }
+        drains.incrementAndGet();
+    }
+
+    private void install(Batch batch) {
+        boolean written = false;
+        try {
+            write(batch);
+            written = true;
+        } catch (RuntimeException e) {
+            batch.failure = e;
+        } finally {
+            if (!written && batch.failure == null)
+                batch.failure = new IllegalStateException("Route install " +
+                                                          "aborted");
+            batch.done = true;
+        }
+        installLatency.record(System.nanoTime() - batch.startNanos);
+    }
+
+    private void write(Batch batch) {
+        int n = batch.messages.size();
+        for (int i = 0; i < n; i++) {
+            IOFSwitch sw = batch.switches.get(i);
+            OFMessage msg = batch.messages.get(i);
+            if (damper != null && damper.isDampened(sw, msg)) {
+                messagesDampened.incrementAndGet();
+            } else {
+                sw.write(msg);
+                messagesWritten.incrementAndGet();
+            }
+            // flush once the route is done with the switch, as a hop
+            // written on its own would be
+            if (batch.flush &&
+                    (i == n - 1 || batch.switches.get(i + 1) != sw))
+                sw.flush();
+        }
+    }
+
+    /**
+     * @return the percentiles of the time to install a route, in
+     * nanoseconds
+     */
+    public LatencySummary getInstallLatency() {
+        return new LatencySummary("route-install", installLatency);
+    }
+
+    public long getMessagesWritten() {
+        return messagesWritten.get();
+    }
+
+    public long getMessagesDampened() {
+        return messagesDampened.get();
+    }
+
+    /**
+     * @return the number of times the queue was drained; the number of
+     * routes per drain is getInstallLatency().getCount() / getDrains()
+     */
+    public long getDrains() {
+        return drains.get();
+    }
+}
@@ -116,7 +116,7 @@ public class RoutingDecision implements IRoutingDecision {
 
     @Override
     public void addToContext(FloodlightContext cntx) {
-        rtStore.put(cntx, IRoutingDecision.CONTEXT_DECISION, this);
+        rtStore.put(cntx, IRoutingDecision.CONTEXT_DECISION_SLOT, this);
     }
     
     public String toString() {
@@ -0,0 +1,402 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.topology;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import net.floodlightcontroller.routing.BroadcastTree;
+import net.floodlightcontroller.routing.Link;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+
+/**
+ * A dense, int-indexed snapshot of the links of one {@link Cluster}, built
+ * once per cluster and reused for the shortest path tree of every root.
+ *
+ * Switches are numbered in ascending DPID order, compared as signed
+ * longs, and equal-cost nodes are expanded lowest number first, so a
+ * switch reached at the same cost through several neighbors hangs off the
+ * one with the lowest DPID. The map-based implementation compared DPIDs
+ * by truncating their difference to an int, so it only broke ties the
+ * same way for DPIDs less than 2^31 apart.
+ */
+public class ClusterGraph {
+    protected final DatapathId[] nodes;
+    protected final Map<DatapathId, Integer> indexes;
+    // Per node, the links toward its neighbors (in the direction the
+    // tree is grown), the index of the neighbor and the link weight.
+    protected final Link[][] adjLinks;
+    protected final int[][] adjNodes;
+    protected final int[][] adjWeights;
+    protected final boolean isDstRooted;
+    protected final Map<Link, Integer> linkCost;
+
+    /**
+     * @param c the cluster
+     * @param linkCost link weights, links not in the map weigh 1. May be null.
+     * @param isDstRooted whether trees are rooted at the destination, i.e.
+     * whether links are followed backwards from the root
+     */
+    public ClusterGraph(Cluster c, Map<Link, Integer> linkCost,
+                        boolean isDstRooted) {
+        this.isDstRooted = isDstRooted;
+        this.linkCost = linkCost;
+        Set<DatapathId> nodeSet = c.links.keySet();
+        nodes = nodeSet.toArray(new DatapathId[nodeSet.size()]);
+        Arrays.sort(nodes, new Comparator<DatapathId>() {
+            @Override
+            public int compare(DatapathId a, DatapathId b) {
+                long x = a.getLong();
+                long y = b.getLong();
+                return (x < y) ? -1 : ((x == y) ? 0 : 1);
+            }
+        });
+        indexes = new HashMap<DatapathId, Integer>(nodes.length * 2);
+        for (int i = 0; i < nodes.length; i++) {
+            indexes.put(nodes[i], i);
+        }
+
+        adjLinks = new Link[nodes.length][];
+        adjNodes = new int[nodes.length][];
+        adjWeights = new int[nodes.length][];
+        for (int i = 0; i < nodes.length; i++) {
+            Set<Link> links = c.links.get(nodes[i]);
+            Link[] l = new Link[links.size()];
+            int[] n = new int[links.size()];
+            int[] w = new int[links.size()];
+            int cnt = 0;
+            // keep the set's iteration order; among equal-cost links of a
+            // node, the first one in the set wins
+            for (Link link : links) {
+                DatapathId neighbor = isDstRooted ? link.getSrc() : link.getDst();
+                // links directed toward this node
+                if (neighbor.equals(nodes[i])) continue;
+                Integer ni = indexes.get(neighbor);
+                if (ni == null) continue;
+                l[cnt] = link;
+                n[cnt] = ni;
+                w[cnt] = getWeight(link);
+                cnt++;
+            }
+            adjLinks[i] = Arrays.copyOf(l, cnt);
+            adjNodes[i] = Arrays.copyOf(n, cnt);
+            adjWeights[i] = Arrays.copyOf(w, cnt);
+        }
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * Compute the shortest path tree rooted at the given switch.
+     * @param root the root switch, must be a member of the cluster
+     * @return the tree, or null if the root is not part of this graph
+     */
+    public BroadcastTree dijkstra(DatapathId root) {
+        Integer r = indexes.get(root);
+        if (r == null) return null;
+
+        int n = nodes.length;
+        int[] cost = new int[n];
+        Link[] nexthop = new Link[n];
+        boolean[] seen = new boolean[n];
+        Arrays.fill(cost, TopologyInstance.MAX_PATH_WEIGHT);
+
+        IndexedHeap heap = new IndexedHeap(cost);
+        cost[r] = 0;
+        heap.offer(r);
+        while (!heap.isEmpty()) {
+            int cnode = heap.poll();
+            int cdist = cost[cnode];
+            if (cdist >= TopologyInstance.MAX_PATH_WEIGHT) break;
+            seen[cnode] = true;
+
+            Link[] links = adjLinks[cnode];
+            int[] neighbors = adjNodes[cnode];
+            int[] weights = adjWeights[cnode];
+            for (int i = 0; i < links.length; i++) {
+                int neighbor = neighbors[i];
+                if (seen[neighbor]) continue;
+                int ndist = cdist + weights[i];
+                if (ndist < cost[neighbor]) {
+                    cost[neighbor] = ndist;
+                    nexthop[neighbor] = links[i];
+                    heap.offer(neighbor);
+                }
+            }
+        }
+
+        HashMap<DatapathId, Link> nexthoplinks =
+                new HashMap<DatapathId, Link>(n * 2);
+        HashMap<DatapathId, Integer> costs =
+                new HashMap<DatapathId, Integer>(n * 2);
+        for (int i = 0; i < n; i++) {
+            nexthoplinks.put(nodes[i], nexthop[i]);
+            costs.put(nodes[i], cost[i]);
+        }
+        return new BroadcastTree(nexthoplinks, costs);
+    }
+
+    protected int getWeight(Link link) {
+        Integer cost = (linkCost == null) ? null : linkCost.get(link);
+        return (cost == null) ? 1 : cost;
+    }
+
+    /**
+     * Compute the shortest path between two switches of a destination
+     * rooted graph, avoiding the given switches and links.
+     * @param src index of the source switch
+     * @param dst index of the destination switch
+     * @param excludedNodes switches that may not be used, or null
+     * @param excludedLinks links that may not be used, or null
+     * @return the links of the path, from src to dst, or null if there is
+     * no such path
+     */
+    protected List<Link> shortestPath(int src, int dst,
+                                      boolean[] excludedNodes,
+                                      Set<Link> excludedLinks) {
+        int n = nodes.length;
+        int[] cost = new int[n];
+        Link[] nexthop = new Link[n];
+        boolean[] seen = new boolean[n];
+        Arrays.fill(cost, TopologyInstance.MAX_PATH_WEIGHT);
+
+        IndexedHeap heap = new IndexedHeap(cost);
+        cost[dst] = 0;
+        heap.offer(dst);
+        while (!heap.isEmpty()) {
+            int cnode = heap.poll();
+            int cdist = cost[cnode];
+            if (cdist >= TopologyInstance.MAX_PATH_WEIGHT) break;
+            seen[cnode] = true;
+            if (cnode == src) break;
+
+            Link[] links = adjLinks[cnode];
+            int[] neighbors = adjNodes[cnode];
+            int[] weights = adjWeights[cnode];
+            for (int i = 0; i < links.length; i++) {
+                int neighbor = neighbors[i];
+                if (seen[neighbor]) continue;
+                if (excludedNodes != null && excludedNodes[neighbor]) continue;
+                if (excludedLinks != null && excludedLinks.contains(links[i]))
+                    continue;
+                int ndist = cdist + weights[i];
+                if (ndist < cost[neighbor]) {
+                    cost[neighbor] = ndist;
+                    nexthop[neighbor] = links[i];
+                    heap.offer(neighbor);
+                }
+            }
+        }
+        if (!seen[src]) return null;
+
+        List<Link> path = new ArrayList<Link>();
+        for (int node = src; node != dst; ) {
+            Link l = nexthop[node];
+            path.add(l);
+            node = indexes.get(l.getDst());
+        }
+        return path;
+    }
+
+    /**
+     * Compute up to k loopless shortest paths between two switches using
+     * Yen's algorithm. Only valid for destination rooted graphs.
+     * @param src the source switch
+     * @param dst the destination switch
+     * @param k the maximum number of paths
+     * @return the paths in order of increasing cost, each as the list of
+     * links from src to dst. Empty if there is no path.
+     */
+    public List<List<Link>> getKShortestPaths(DatapathId src, DatapathId dst,
+                                              int k) {
+        List<List<Link>> result = new ArrayList<List<Link>>();
+        Integer s = indexes.get(src);
+        Integer d = indexes.get(dst);
+        if (s == null || d == null || s.equals(d) || k < 1 || !isDstRooted)
+            return result;
+
+        List<Link> first = shortestPath(s, d, null, null);
+        if (first == null) return result;
+
+        List<Path> accepted = new ArrayList<Path>();
+        accepted.add(new Path(first, getCost(first), 0));
+        PriorityQueue<Path> candidates = new PriorityQueue<Path>();
+        Set<List<Link>> known = new HashSet<List<Link>>();
+        known.add(first);
+        int seq = 1;
+
+        while (accepted.size() < k) {
+            List<Link> prev = accepted.get(accepted.size() - 1).links;
+            for (int i = 0; i < prev.size(); i++) {
+                // The spur path leaves the previous path at its i-th switch
+                int spurNode = indexes.get(prev.get(i).getSrc());
+                List<Link> rootPath = prev.subList(0, i);
+
+                Set<Link> excludedLinks = new HashSet<Link>();
+                for (Path p : accepted) {
+                    if (p.links.size() > i &&
+                            p.links.subList(0, i).equals(rootPath))
+                        excludedLinks.add(p.links.get(i));
+                }
+                boolean[] excludedNodes = new boolean[nodes.length];
+                for (Link l : rootPath) {
+                    excludedNodes[indexes.get(l.getSrc())] = true;
+                }
+
+                List<Link> spur = shortestPath(spurNode, d, excludedNodes,
+                                               excludedLinks);
+                if (spur == null) continue;
+                List<Link> total = new ArrayList<Link>(rootPath);
+                total.addAll(spur);
+                if (known.add(total))
+                    candidates.add(new Path(total, getCost(total), seq++));
+            }
+            if (candidates.isEmpty()) break;
+            accepted.add(candidates.poll());
+        }
+
+        for (Path p : accepted) {
+            result.add(Collections.unmodifiableList(p.links));
+        }
+        return result;
+    }
+
+    public int getCost(List<Link> path) {
+        int cost = 0;
+        for (Link l : path) {
+            cost += getWeight(l);
+        }
+        return cost;
+    }
+
+    /**
+     * A candidate path, ordered by cost, then hop count, then discovery
+     * order so that results are deterministic.
+     */
+    protected static class Path implements Comparable<Path> {
+        final List<Link> links;
+        final int cost;
+        final int seq;
+
+        Path(List<Link> links, int cost, int seq) {
+            this.links = links;
+            this.cost = cost;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Path o) {
+            if (cost != o.cost) return (cost < o.cost) ? -1 : 1;
+            if (links.size() != o.links.size())
+                return (links.size() < o.links.size()) ? -1 : 1;
+            return (seq < o.seq) ? -1 : ((seq == o.seq) ? 0 : 1);
+        }
+    }
+
+    /**
+     * A binary min-heap of node indexes ordered by (cost, index) that
+     * supports decrease-key in O(log n) by tracking each node's position.
+     */
+    protected static class IndexedHeap {
+        private final int[] key;
+        private final int[] heap;
+        private final int[] pos;
+        private int size;
+
+        IndexedHeap(int[] key) {
+            this.key = key;
+            this.heap = new int[key.length];
+            this.pos = new int[key.length];
+            Arrays.fill(pos, -1);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Insert a node, or move it up if its key has decreased
+         */
+        void offer(int node) {
+            int p = pos[node];
+            if (p < 0) {
+                p = size++;
+                heap[p] = node;
+                pos[node] = p;
+            }
+            siftUp(p);
+        }
+
+        int poll() {
+            int top = heap[0];
+            pos[top] = -1;
+            size--;
+            if (size > 0) {
+                heap[0] = heap[size];
+                pos[heap[0]] = 0;
+                siftDown(0);
+            }
+            return top;
+        }
+
+        private boolean less(int a, int b) {
+            if (key[a] != key[b]) return key[a] < key[b];
+            return a < b;
+        }
+
+        private void siftUp(int p) {
+            int node = heap[p];
+            while (p > 0) {
+                int parent = (p - 1) >>> 1;
+                if (!less(node, heap[parent])) break;
+                heap[p] = heap[parent];
+                pos[heap[p]] = p;
+                p = parent;
+            }
+            heap[p] = node;
+            pos[node] = p;
+        }
+
+        private void siftDown(int p) {
+            int node = heap[p];
+            int half = size >>> 1;
+            while (p < half) {
+                int child = 2 * p + 1;
+                int right = child + 1;
+                if (right < size && less(heap[right], heap[child]))
+                    child = right;
+                if (!less(heap[child], node)) break;
+                heap[p] = heap[child];
+                pos[heap[p]] = p;
+                p = child;
+            }
+            heap[p] = node;
+            pos[node] = p;
+        }
+    }
+}
@@ -22,8 +22,8 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.projectfloodlight.openflow.types.DatapathId;
 import org.projectfloodlight.openflow.types.OFPort;
@@ -82,6 +82,21 @@ public class TopologyInstance {
     protected Map<DatapathId, BroadcastTree> destinationRootedTrees;
     protected Map<DatapathId, Set<NodePortTuple>> clusterBroadcastNodePorts;
     protected Map<DatapathId, BroadcastTree> clusterBroadcastTrees;
+    protected Map<Link, Integer> linkCost;
+
+    /** The instance this one replaces. Only held during compute() so
+     * that unaffected shortest path trees can be reused.
+     */
+    protected TopologyInstance previous;
+
+    /** The maximum number of paths computed between a pair of switches
+     * for multipath routing. 1 disables multipath.
+     */
+    protected int maxPaths;
+    /** Dense graphs of the clusters, keyed by cluster id. Built on demand
+     * for clusters whose trees were all reused.
+     */
+    protected Map<DatapathId, ClusterGraph> clusterGraphs;
 
     protected class PathCacheLoader extends CacheLoader<RouteId, Route> {
         TopologyInstance ti;
@@ -99,6 +114,8 @@ public class TopologyInstance {
     // in the cache.
     private final PathCacheLoader pathCacheLoader = new PathCacheLoader(this);
     protected LoadingCache<RouteId, Route> pathcache;
+    // k shortest paths per switch pair, computed on demand
+    protected LoadingCache<RouteId, List<Route>> multipathcache;
 
     public TopologyInstance() {
         this.switches = new HashSet<DatapathId>();
@@ -131,6 +148,24 @@ public class TopologyInstance {
                             Map<NodePortTuple, Set<Link>> switchPortLinks,
                             Set<NodePortTuple> broadcastDomainPorts,
                             Set<NodePortTuple> tunnelPorts){
+        this(switchPorts, blockedPorts, switchPortLinks, broadcastDomainPorts,
+             tunnelPorts, null, 1);
+    }
+
+    /**
+     * Create a topology instance that may reuse the shortest path trees
+     * of the instance it replaces.
+     * @param previous the current instance, or null
+     * @param maxPaths the maximum number of paths to compute between a
+     * pair of switches for getRoutes() and multipath getRoute()
+     */
+    public TopologyInstance(Map<DatapathId, Set<OFPort>> switchPorts,
+                            Set<NodePortTuple> blockedPorts,
+                            Map<NodePortTuple, Set<Link>> switchPortLinks,
+                            Set<NodePortTuple> broadcastDomainPorts,
+                            Set<NodePortTuple> tunnelPorts,
+                            TopologyInstance previous,
+                            int maxPaths){
 
         // copy these structures
         this.switches = new HashSet<DatapathId>(switchPorts.keySet());
@@ -154,6 +189,9 @@ public class TopologyInstance {
         destinationRootedTrees = new HashMap<DatapathId, BroadcastTree>();
         clusterBroadcastTrees = new HashMap<DatapathId, BroadcastTree>();
         clusterBroadcastNodePorts = new HashMap<DatapathId, Set<NodePortTuple>>();
+        this.previous = previous;
+        this.maxPaths = Math.max(maxPaths, 1);
+        clusterGraphs = new ConcurrentHashMap<DatapathId, ClusterGraph>();
 
         pathcache = CacheBuilder.newBuilder().concurrencyLevel(4)
                     .maximumSize(1000L)
@@ -163,6 +201,14 @@ public class TopologyInstance {
                                     return pathCacheLoader.load(rid);
                                 }
                             });
+        multipathcache = CacheBuilder.newBuilder().concurrencyLevel(4)
+                    .maximumSize(PATH_CACHE_SIZE)
+                    .build(
+                            new CacheLoader<RouteId, List<Route>>() {
+                                public List<Route> load(RouteId rid) {
+                                    return buildroutes(rid);
+                                }
+                            });
     }
 
     public void compute() {
@@ -190,6 +236,9 @@ public class TopologyInstance {
 
         // Step 4. print topology.
         printTopology();
+
+        // Don't keep a chain of old instances alive.
+        previous = null;
     }
 
     public void printTopology() {
@@ -426,125 +475,29 @@ public class TopologyInstance {
         return broadcastDomainPorts.contains(npt);
     }
 
-    protected class NodeDist implements Comparable<NodeDist> {
-        private final DatapathId node;
-        public DatapathId getNode() {
-            return node;
-        }
-
-        private final int dist;
-        public int getDist() {
-            return dist;
-        }
-
-        public NodeDist(DatapathId node, int dist) {
-            this.node = node;
-            this.dist = dist;
-        }
-
-        @Override
-        public int compareTo(NodeDist o) {
-            if (o.dist == this.dist) {
-                return (int)(this.node.getLong() - o.node.getLong());
-            }
-            return this.dist - o.dist;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            NodeDist other = (NodeDist) obj;
-            if (!getOuterType().equals(other.getOuterType()))
-                return false;
-            if (node == null) {
-                if (other.node != null)
-                    return false;
-            } else if (!node.equals(other.node))
-                return false;
-            return true;
-        }
-
-        @Override
-        public int hashCode() {
-            assert false : "hashCode not designed";
-            return 42;
-        }
-
-        private TopologyInstance getOuterType() {
-            return TopologyInstance.this;
-        }
-    }
-
     protected BroadcastTree dijkstra(Cluster c, DatapathId root,
                                      Map<Link, Integer> linkCost,
                                      boolean isDstRooted) {
-        HashMap<DatapathId, Link> nexthoplinks = new HashMap<DatapathId, Link>();
-        //HashMap<Long, Long> nexthopnodes = new HashMap<Long, Long>();
-        HashMap<DatapathId, Integer> cost = new HashMap<DatapathId, Integer>();
-        int w;
-
-        for (DatapathId node: c.links.keySet()) {
-            nexthoplinks.put(node, null);
-            //nexthopnodes.put(node, null);
-            cost.put(node, MAX_PATH_WEIGHT);
-        }
-
-        HashMap<DatapathId, Boolean> seen = new HashMap<DatapathId, Boolean>();
-        PriorityQueue<NodeDist> nodeq = new PriorityQueue<NodeDist>();
-        nodeq.add(new NodeDist(root, 0));
-        cost.put(root, 0);
-        while (nodeq.peek() != null) {
-            NodeDist n = nodeq.poll();
-            DatapathId cnode = n.getNode();
-            int cdist = n.getDist();
-            if (cdist >= MAX_PATH_WEIGHT) break;
-            if (seen.containsKey(cnode)) continue;
-            seen.put(cnode, true);
-
-            for (Link link: c.links.get(cnode)) {
-                DatapathId neighbor;
-
-                if (isDstRooted == true) neighbor = link.getSrc();
-                else neighbor = link.getDst();
-
-                // links directed toward cnode will result in this condition
-                if (neighbor.equals(cnode)) continue;
-
-                if (seen.containsKey(neighbor)) continue;
-
-                if (linkCost == null || linkCost.get(link)==null) w = 1;
-                else w = linkCost.get(link);
-
-                int ndist = cdist + w; // the weight of the link, always 1 in current version of floodlight.
-                if (ndist < cost.get(neighbor)) {
-                    cost.put(neighbor, ndist);
-                    nexthoplinks.put(neighbor, link);
-                    //nexthopnodes.put(neighbor, cnode);
-                    NodeDist ndTemp = new NodeDist(neighbor, ndist);
-                    // Remove an object that's already in there.
-                    // Note that the comparison is based on only the node id,
-                    // and not node id and distance.
-                    nodeq.remove(ndTemp);
-                    // add the current object to the queue.
-                    nodeq.add(ndTemp);
-                }
-            }
-        }
-
-        BroadcastTree ret = new BroadcastTree(nexthoplinks, cost);
-        return ret;
+        return new ClusterGraph(c, linkCost, isDstRooted).dijkstra(root);
     }
 
+    /**
+     * Compute the destination rooted shortest path trees of every cluster.
+     *
+     * If a previous instance is available, a tree is only recomputed when
+     * the links that changed since the previous instance can affect it:
+     * a removed link that the tree uses, or an added link that shortens
+     * the path of its source switch. All other trees, and the routes
+     * cached for their destinations, are carried over. Clusters whose
+     * membership changed are always recomputed.
+     */
     protected void calculateShortestPathTreeInClusters() {
         pathcache.invalidateAll();
+        multipathcache.invalidateAll();
         destinationRootedTrees.clear();
+        clusterGraphs.clear();
 
-        Map<Link, Integer> linkCost = new HashMap<Link, Integer>();
+        linkCost = new HashMap<Link, Integer>();
         int tunnel_weight = switchPorts.size() + 1;
 
         for(NodePortTuple npt: tunnelPorts) {
@@ -555,12 +508,98 @@ public class TopologyInstance {
             }
         }
 
+        boolean incremental = (previous != null &&
+                previous.destinationRootedTrees != null &&
+                linkCost.equals(previous.linkCost));
+        Set<DatapathId> reusedDsts = new HashSet<DatapathId>();
+        int recomputed = 0;
+
         for(Cluster c: clusters) {
+            Cluster old = null;
+            if (incremental) {
+                old = previous.switchClusterMap.get(c.id);
+                if (old != null && !old.getNodes().equals(c.getNodes()))
+                    old = null;
+            }
+
+            Set<Link> added = null;
+            Set<Link> removed = null;
+            if (old != null) {
+                Set<Link> newLinks = getClusterLinks(c);
+                Set<Link> oldLinks = getClusterLinks(old);
+                added = new HashSet<Link>(newLinks);
+                added.removeAll(oldLinks);
+                removed = oldLinks;
+                removed.removeAll(newLinks);
+            }
+
+            ClusterGraph graph = null;
             for (DatapathId node : c.links.keySet()) {
-                BroadcastTree tree = dijkstra(c, node, linkCost, true);
-                destinationRootedTrees.put(node, tree);
+                if (old != null) {
+                    BroadcastTree oldTree =
+                            previous.destinationRootedTrees.get(node);
+                    if (oldTree != null &&
+                            !isTreeAffected(oldTree, added, removed)) {
+                        destinationRootedTrees.put(node, oldTree);
+                        reusedDsts.add(node);
+                        continue;
+                    }
+                }
+                if (graph == null) {
+                    graph = new ClusterGraph(c, linkCost, true);
+                    clusterGraphs.put(c.id, graph);
+                }
+                destinationRootedTrees.put(node, graph.dijkstra(node));
+                recomputed++;
+            }
+        }
+
+        if (incremental && !reusedDsts.isEmpty()) {
+            // Routes toward a destination whose tree did not change are
+            // still valid.
+            for (Map.Entry<RouteId, Route> e :
+                    previous.pathcache.asMap().entrySet()) {
+                if (reusedDsts.contains(e.getKey().getDst()))
+                    pathcache.put(e.getKey(), e.getValue());
             }
         }
+        if (log.isDebugEnabled()) {
+            log.debug("Shortest path trees: {} recomputed, {} reused",
+                      recomputed, reusedDsts.size());
+        }
+    }
+
+    protected Set<Link> getClusterLinks(Cluster c) {
+        Set<Link> links = new HashSet<Link>();
+        for (Set<Link> l : c.links.values()) {
+            links.addAll(l);
+        }
+        return links;
+    }
+
+    /**
+     * Check whether a destination rooted tree may no longer be a shortest
+     * path tree after the given link changes.
+     * @param tree the tree computed before the change
+     * @param added links added to the cluster
+     * @param removed links removed from the cluster
+     * @return true if the tree must be recomputed
+     */
+    protected boolean isTreeAffected(BroadcastTree tree, Set<Link> added,
+                                     Set<Link> removed) {
+        for (Link l : removed) {
+            // only links on the tree carry a shortest path
+            if (l.equals(tree.getTreeLink(l.getSrc()))) return true;
+        }
+        for (Link l : added) {
+            int srcCost = tree.getCost(l.getSrc());
+            int dstCost = tree.getCost(l.getDst());
+            if (srcCost < 0 || dstCost < 0) return true;
+            if (dstCost >= MAX_PATH_WEIGHT) continue;
+            Integer w = linkCost.get(l);
+            if (dstCost + ((w == null) ? 1 : w) < srcCost) return true;
+        }
+        return false;
     }
 
     protected void calculateBroadcastTreeInClusters() {
@@ -641,6 +680,52 @@ public class TopologyInstance {
         return result;
     }
 
+    protected ClusterGraph getClusterGraph(DatapathId sw) {
+        Cluster c = switchClusterMap.get(sw);
+        if (c == null) return null;
+        ClusterGraph graph = clusterGraphs.get(c.id);
+        if (graph == null) {
+            graph = new ClusterGraph(c, linkCost, true);
+            clusterGraphs.put(c.id, graph);
+        }
+        return graph;
+    }
+
+    /**
+     * Compute up to maxPaths loopless paths between two switches using
+     * Yen's k-shortest paths. The routeCount of every returned route is
+     * set to the number of leading routes that share the lowest cost,
+     * i.e. the size of the ECMP set.
+     */
+    protected List<Route> buildroutes(RouteId id) {
+        List<Route> routes = new ArrayList<Route>();
+        DatapathId srcId = id.getSrc();
+        DatapathId dstId = id.getDst();
+        if (!inSameOpenflowDomain(srcId, dstId)) return routes;
+        ClusterGraph graph = getClusterGraph(srcId);
+        if (graph == null) return routes;
+
+        List<List<Link>> paths = graph.getKShortestPaths(srcId, dstId, maxPaths);
+        int ecmpCount = 0;
+        for (List<Link> path : paths) {
+            if (graph.getCost(path) == graph.getCost(paths.get(0)))
+                ecmpCount++;
+            LinkedList<NodePortTuple> switchPorts = new LinkedList<NodePortTuple>();
+            for (Link l : path) {
+                switchPorts.addLast(new NodePortTuple(l.getSrc(), l.getSrcPort()));
+                switchPorts.addLast(new NodePortTuple(l.getDst(), l.getDstPort()));
+            }
+            routes.add(new Route(new RouteId(srcId, dstId), switchPorts));
+        }
+        for (Route r : routes) {
+            r.setRouteCount(ecmpCount);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("buildroutes: {}", routes);
+        }
+        return routes;
+    }
+
     protected int getCost(DatapathId srcId, DatapathId dstId) {
         BroadcastTree bt = destinationRootedTrees.get(dstId);
         if (bt == null) return -1;
@@ -675,7 +760,7 @@ public class TopologyInstance {
 
         List<NodePortTuple> nptList;
         NodePortTuple npt;
-        Route r = getRoute(srcId, dstId, U64.of(0));
+        Route r = getRoute(srcId, dstId, cookie);
         if (r == null && !srcId.equals(dstId)) return null;
 
         if (r != null) {
@@ -704,6 +789,22 @@ public class TopologyInstance {
         RouteId id = new RouteId(srcId, dstId);
         Route result = null;
 
+        // A non-zero cookie selects one of the equal cost paths, so that
+        // flows with different cookies are spread across them.
+        if (maxPaths > 1 && cookie != null && !cookie.equals(U64.ZERO)) {
+            List<Route> routes = getRoutes(srcId, dstId);
+            if (!routes.isEmpty() && routes.get(0).getRouteCount() > 1) {
+                long v = cookie.getValue();
+                int h = (int) (v ^ (v >>> 32)) & Integer.MAX_VALUE;
+                result = routes.get(h % routes.get(0).getRouteCount());
+                if (log.isTraceEnabled()) {
+                    log.trace("getRoute: {} cookie {} -> {}",
+                              new Object[] { id, cookie, result });
+                }
+                return result;
+            }
+        }
+
         try {
             result = pathcache.get(id);
         } catch (Exception e) {
@@ -716,6 +817,23 @@ public class TopologyInstance {
         return result;
     }
 
+    /**
+     * Get up to maxPaths loopless paths between two switches, in order of
+     * increasing cost.
+     * @return the routes, empty if there is none or srcId equals dstId
+     */
+    protected List<Route> getRoutes(DatapathId srcId, DatapathId dstId) {
+        List<Route> result = null;
+        if (!srcId.equals(dstId)) {
+            try {
+                result = multipathcache.get(new RouteId(srcId, dstId));
+            } catch (Exception e) {
+                log.error("{}", e);
+            }
+        }
+        return (result == null) ? new ArrayList<Route>() : result;
+    }
+
     protected BroadcastTree getBroadcastTreeForCluster(long clusterId){
         Cluster c = switchClusterMap.get(clusterId);
         if (c == null) return null;
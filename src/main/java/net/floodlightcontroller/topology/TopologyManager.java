@@ -57,6 +57,7 @@ import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryListener;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
 import net.floodlightcontroller.packet.BSN;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
 import net.floodlightcontroller.packet.LLDP;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.routing.IRoutingService;
@@ -160,6 +161,12 @@ public class TopologyManager implements IFloodlightModule, ITopologyService, IRo
 
 	protected int TOPOLOGY_COMPUTE_INTERVAL_MS = 500;
 
+	/**
+	 * Maximum number of paths computed between two switches for
+	 * multipath routing. 1 means single path routing.
+	 */
+	protected int maxPathsToCompute = 4;
+
 	private IHAListener haListener;
 
 	/**
@@ -710,12 +717,8 @@ public class TopologyManager implements IFloodlightModule, ITopologyService, IRo
 	@Override
 	public ArrayList<Route> getRoutes(DatapathId srcDpid, DatapathId dstDpid,
 			boolean tunnelEnabled) {
-		// Floodlight supports single path routing now
-
-		// return single path now
-		ArrayList<Route> result=new ArrayList<Route>();
-		result.add(getRoute(srcDpid, dstDpid, U64.of(0), tunnelEnabled));
-		return result;
+		TopologyInstance ti = getCurrentInstance(tunnelEnabled);
+		return new ArrayList<Route>(ti.getRoutes(srcDpid, dstDpid));
 	}
 
 	// ******************
@@ -858,6 +861,17 @@ public class TopologyManager implements IFloodlightModule, ITopologyService, IRo
 		topologyAware = new ArrayList<ITopologyListener>();
 		ldUpdates = new LinkedBlockingQueue<LDUpdate>();
 		haListener = new HAListenerDelegate();
+
+		Map<String, String> configParameters = context.getConfigParams(this);
+		String tmp = configParameters.get("max-paths");
+		if (tmp != null) {
+			try {
+				maxPathsToCompute = Integer.parseInt(tmp);
+				log.info("Maximum number of paths set to {}.", maxPathsToCompute);
+			} catch (NumberFormatException e) {
+				log.warn("Error parsing max-paths, using default of {}.", maxPathsToCompute);
+			}
+		}
 		registerTopologyDebugCounters();
 		registerTopologyDebugEvents();
 	}
@@ -1078,11 +1092,18 @@ public class TopologyManager implements IFloodlightModule, ITopologyService, IRo
 
 	protected Command processPacketInMessage(IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx) {
 		// get the packet-in switch.
-		Ethernet eth =
-				IFloodlightProviderService.bcStore.
-				get(cntx,IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+		EthernetView view =
+				IFloodlightProviderService.piViewStore.
+				get(cntx,IFloodlightProviderService.CONTEXT_PI_VIEW_SLOT);
+
+		// only BDDP frames need the decoded payload
+		Ethernet eth = null;
+		if (view.getEtherType() == Ethernet.TYPE_BSN) {
+			eth = IFloodlightProviderService.bcStore.
+					get(cntx,IFloodlightProviderService.CONTEXT_PI_PAYLOAD_SLOT);
+		}
 
-		if (eth.getPayload() instanceof BSN) {
+		if (eth != null && eth.getPayload() instanceof BSN) {
 			BSN bsn = (BSN) eth.getPayload();
 			if (bsn == null) return Command.STOP;
 			if (bsn.getPayload() == null) return Command.STOP;
@@ -1224,7 +1245,9 @@ public class TopologyManager implements IFloodlightModule, ITopologyService, IRo
 				blockedPorts,
 				openflowLinks,
 				broadcastDomainPorts,
-				tunnelPorts);
+				tunnelPorts,
+				currentInstance,
+				maxPathsToCompute);
 		nt.compute();
 		// We set the instances with and without tunnels to be identical.
 		// If needed, we may compute them differently.
@@ -0,0 +1,289 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+import java.util.Arrays;
+
+/**
+ * A thread-safe hash map from non-negative longs to non-negative longs.
+ *
+ * Keys and values are kept in primitive arrays with open addressing, so an
+ * entry costs 16 bytes plus free slots instead of a map node and two boxed
+ * longs. The map is split in segments, each guarded by its own lock, so
+ * that writers to different segments don't contend.
+ */
+public class ConcurrentLongLongHashMap {
+    /**
+     * Returned by lookups when the key is not in the map
+     */
+    public static final long NO_VALUE = -1;
+
+    private static final long EMPTY = -1;
+    private static final int NUM_SEGMENTS = 16;
+    private static final int SEGMENT_SHIFT = 60;
+    private static final int MIN_CAPACITY = 8;
+
+    /**
+     * Spread the bits of a key, so that sequential keys don't cluster
+     */
+    static long hash(long key) {
+        key ^= (key >>> 33);
+        key *= 0xff51afd7ed558ccdL;
+        key ^= (key >>> 33);
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= (key >>> 33);
+        return key;
+    }
+
+    private static final class Segment {
+        long[] keys;
+        long[] values;
+        int size;
+
+        Segment() {
+            keys = new long[MIN_CAPACITY];
+            values = new long[MIN_CAPACITY];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        /**
+         * @return the slot of the key, or -(slot + 1) for the free slot
+         * where it would be inserted
+         */
+        int find(long key, long h) {
+            int mask = keys.length - 1;
+            int i = (int) h & mask;
+            while (keys[i] != EMPTY) {
+                if (keys[i] == key)
+                    return i;
+                i = (i + 1) & mask;
+            }
+            return -(i + 1);
+        }
+
+        void insert(int slot, long key, long value) {
+            keys[slot] = key;
+            values[slot] = value;
+            size += 1;
+            // keep the load factor at or below 3/4
+            if (size * 4 > keys.length * 3)
+                resize(keys.length * 2);
+        }
+
+        void resize(int capacity) {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[capacity];
+            values = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == EMPTY)
+                    continue;
+                int slot = -(find(oldKeys[i], hash(oldKeys[i])) + 1);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+
+        /**
+         * Free a slot, moving back the entries that were displaced past it
+         * so that lookups don't need tombstones
+         */
+        void delete(int slot) {
+            int mask = keys.length - 1;
+            int i = slot;
+            int j = slot;
+            while (true) {
+                j = (j + 1) & mask;
+                if (keys[j] == EMPTY)
+                    break;
+                int home = (int) hash(keys[j]) & mask;
+                // leave the entry if its home slot lies in (i, j]
+                if ((i <= j) ? (i < home && home <= j)
+                             : (i < home || home <= j))
+                    continue;
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+            keys[i] = EMPTY;
+            size -= 1;
+            if (keys.length > MIN_CAPACITY && size * 8 < keys.length)
+                resize(keys.length / 2);
+        }
+    }
+
+    private final Segment[] segments;
+
+    public ConcurrentLongLongHashMap() {
+        segments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private Segment segmentFor(long h) {
+        return segments[(int) (h >>> SEGMENT_SHIFT)];
+    }
+
+    private static void checkKey(long key) {
+        if (key < 0)
+            throw new IllegalArgumentException("Negative key " + key);
+    }
+
+    private static void checkValue(long value) {
+        if (value < 0)
+            throw new IllegalArgumentException("Negative value " + value);
+    }
+
+    /**
+     * @param key the key
+     * @return the value of the key, or {@link #NO_VALUE}
+     */
+    public long get(long key) {
+        checkKey(key);
+        long h = hash(key);
+        Segment s = segmentFor(h);
+        synchronized (s) {
+            int slot = s.find(key, h);
+            return (slot >= 0) ? s.values[slot] : NO_VALUE;
+        }
+    }
+
+    /**
+     * @param key the key
+     * @param value the value
+     * @return the previous value of the key, or {@link #NO_VALUE}
+     */
+    public long put(long key, long value) {
+        checkKey(key);
+        checkValue(value);
+        long h = hash(key);
+        Segment s = segmentFor(h);
+        synchronized (s) {
+            int slot = s.find(key, h);
+            if (slot >= 0) {
+                long old = s.values[slot];
+                s.values[slot] = value;
+                return old;
+            }
+            s.insert(-(slot + 1), key, value);
+            return NO_VALUE;
+        }
+    }
+
+    /**
+     * Set the value of a key only if it doesn't have one
+     * @param key the key
+     * @param value the value
+     * @return the current value of the key, or {@link #NO_VALUE} if the
+     * value was set
+     */
+    public long putIfAbsent(long key, long value) {
+        checkKey(key);
+        checkValue(value);
+        long h = hash(key);
+        Segment s = segmentFor(h);
+        synchronized (s) {
+            int slot = s.find(key, h);
+            if (slot >= 0)
+                return s.values[slot];
+            s.insert(-(slot + 1), key, value);
+            return NO_VALUE;
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return the removed value, or {@link #NO_VALUE}
+     */
+    public long remove(long key) {
+        checkKey(key);
+        long h = hash(key);
+        Segment s = segmentFor(h);
+        synchronized (s) {
+            int slot = s.find(key, h);
+            if (slot < 0)
+                return NO_VALUE;
+            long old = s.values[slot];
+            s.delete(slot);
+            return old;
+        }
+    }
+
+    /**
+     * Remove a key only if it has the given value
+     * @return true if the key was removed
+     */
+    public boolean remove(long key, long value) {
+        checkKey(key);
+        long h = hash(key);
+        Segment s = segmentFor(h);
+        synchronized (s) {
+            int slot = s.find(key, h);
+            if (slot < 0 || s.values[slot] != value)
+                return false;
+            s.delete(slot);
+            return true;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                size += s.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return a copy of the values in the map. Each segment is copied
+     * atomically, but not the map as a whole.
+     */
+    public long[] values() {
+        long[] all = new long[0];
+        int n = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                if (n + s.size > all.length)
+                    all = Arrays.copyOf(all, Math.max(n + s.size,
+                                                      all.length * 2));
+                for (int i = 0; i < s.keys.length; i++) {
+                    if (s.keys[i] != EMPTY)
+                        all[n++] = s.values[i];
+                }
+            }
+        }
+        return Arrays.copyOf(all, n);
+    }
+
+    /**
+     * @return an estimate of the heap used by the map, in bytes
+     */
+    public long getMemoryFootprint() {
+        // array headers and segment objects
+        long bytes = 16 + NUM_SEGMENTS * (24 + 2 * 16);
+        for (Segment s : segments) {
+            synchronized (s) {
+                bytes += 16L * s.keys.length;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+import java.util.Arrays;
+
+/**
+ * A thread-safe hash map from non-negative longs to sets of longs.
+ *
+ * Like {@link ConcurrentLongLongHashMap} the keys are kept in a primitive
+ * array with open addressing. The set of a key is a plain long array, which
+ * is copied on every change and never modified once published, so the
+ * arrays returned by {@link #get(long)} can be read without locking. Sets
+ * are expected to be small; most keys map to a single value.
+ */
+public class ConcurrentLongMultiHashMap {
+    private static final long EMPTY = -1;
+    private static final long[] NO_VALUES = new long[0];
+    private static final int NUM_SEGMENTS = 16;
+    private static final int SEGMENT_SHIFT = 60;
+    private static final int MIN_CAPACITY = 8;
+
+    private static final class Segment {
+        long[] keys;
+        long[][] values;
+        int size;
+        long valueCount;
+
+        Segment() {
+            keys = new long[MIN_CAPACITY];
+            values = new long[MIN_CAPACITY][];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        int find(long key, long h) {
+            int mask = keys.length - 1;
+            int i = (int) h & mask;
+            while (keys[i] != EMPTY) {
+                if (keys[i] == key)
+                    return i;
+                i = (i + 1) & mask;
+            }
+            return -(i + 1);
+        }
+
+        void insert(int slot, long key, long[] set) {
+            keys[slot] = key;
+            values[slot] = set;
+            size += 1;
+            valueCount += set.length;
+            if (size * 4 > keys.length * 3)
+                resize(keys.length * 2);
+        }
+
+        void resize(int capacity) {
+            long[] oldKeys = keys;
+            long[][] oldValues = values;
+            keys = new long[capacity];
+            values = new long[capacity][];
+            Arrays.fill(keys, EMPTY);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == EMPTY)
+                    continue;
+                int slot = -(find(oldKeys[i],
+                        ConcurrentLongLongHashMap.hash(oldKeys[i])) + 1);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+
+        void delete(int slot) {
+            valueCount -= values[slot].length;
+            int mask = keys.length - 1;
+            int i = slot;
+            int j = slot;
+            while (true) {
+                j = (j + 1) & mask;
+                if (keys[j] == EMPTY)
+                    break;
+                int home = (int) ConcurrentLongLongHashMap.hash(keys[j]) & mask;
+                if ((i <= j) ? (i < home && home <= j)
+                             : (i < home || home <= j))
+                    continue;
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+            keys[i] = EMPTY;
+            values[i] = null;
+            size -= 1;
+            if (keys.length > MIN_CAPACITY && size * 8 < keys.length)
+                resize(keys.length / 2);
+        }
+    }
+
+    private final Segment[] segments;
+
+    public ConcurrentLongMultiHashMap() {
+        segments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private Segment segmentFor(long h) {
+        return segments[(int) (h >>> SEGMENT_SHIFT)];
+    }
+
+    private static void checkKey(long key) {
+        if (key < 0)
+            throw new IllegalArgumentException("Negative key " + key);
+    }
+
+    /**
+     * @param key the key
+     * @return the values of the key, empty if there are none. The returned
+     * array must not be modified.
+     */
+    public long[] get(long key) {
+        checkKey(key);
+        long h = ConcurrentLongLongHashMap.hash(key);
+        Segment s = segmentFor(h);
+        synchronized (s) {
+            int slot = s.find(key, h);
+            return (slot >= 0) ? s.values[slot] : NO_VALUES;
+        }
+    }
+
+    /**
+     * Add a value to the set of a key
+     * @return true if the value was not already in the set
+     */
+    public boolean add(long key, long value) {
+        checkKey(key);
+        long h = ConcurrentLongLongHashMap.hash(key);
+        Segment s = segmentFor(h);
+        synchronized (s) {
+            int slot = s.find(key, h);
+            if (slot < 0) {
+                s.insert(-(slot + 1), key, new long[] { value });
+                return true;
+            }
+            long[] set = s.values[slot];
+            for (long v : set) {
+                if (v == value)
+                    return false;
+            }
+            long[] newSet = Arrays.copyOf(set, set.length + 1);
+            newSet[set.length] = value;
+            s.values[slot] = newSet;
+            s.valueCount += 1;
+            return true;
+        }
+    }
+
+    /**
+     * Remove a value from the set of a key. The key is removed with its
+     * last value.
+     * @return true if the value was in the set
+     */
+    public boolean remove(long key, long value) {
+        checkKey(key);
+        long h = ConcurrentLongLongHashMap.hash(key);
+        Segment s = segmentFor(h);
+        synchronized (s) {
+            int slot = s.find(key, h);
+            if (slot < 0)
+                return false;
+            long[] set = s.values[slot];
+            int pos = -1;
+            for (int i = 0; i < set.length; i++) {
+                if (set[i] == value) {
+                    pos = i;
+                    break;
+                }
+            }
+            if (pos < 0)
+                return false;
+            if (set.length == 1) {
+                s.delete(slot);
+                return true;
+            }
+            long[] newSet = new long[set.length - 1];
+            System.arraycopy(set, 0, newSet, 0, pos);
+            System.arraycopy(set, pos + 1, newSet, pos, newSet.length - pos);
+            s.values[slot] = newSet;
+            s.valueCount -= 1;
+            return true;
+        }
+    }
+
+    /**
+     * Remove a key with all its values
+     * @return true if the key was in the map
+     */
+    public boolean removeAll(long key) {
+        checkKey(key);
+        long h = ConcurrentLongLongHashMap.hash(key);
+        Segment s = segmentFor(h);
+        synchronized (s) {
+            int slot = s.find(key, h);
+            if (slot < 0)
+                return false;
+            s.delete(slot);
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of keys in the map
+     */
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                size += s.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return a copy of the values of all keys. A value in the sets of
+     * several keys is returned once per key.
+     */
+    public long[] values() {
+        long[] all = new long[0];
+        int n = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                if (n + s.valueCount > all.length)
+                    all = Arrays.copyOf(all, (int) Math.max(n + s.valueCount,
+                                                            all.length * 2));
+                for (int i = 0; i < s.keys.length; i++) {
+                    if (s.keys[i] == EMPTY)
+                        continue;
+                    long[] set = s.values[i];
+                    System.arraycopy(set, 0, all, n, set.length);
+                    n += set.length;
+                }
+            }
+        }
+        return Arrays.copyOf(all, n);
+    }
+
+    /**
+     * @return an estimate of the heap used by the map, in bytes
+     */
+    public long getMemoryFootprint() {
+        long bytes = 16 + NUM_SEGMENTS * (32 + 2 * 16);
+        for (Segment s : segments) {
+            synchronized (s) {
+                // key, set reference and set array header per slot or entry
+                bytes += 16L * s.keys.length + 16L * s.size +
+                        8L * s.valueCount;
+            }
+        }
+        return bytes;
+    }
+}
@@ -127,24 +127,29 @@ public class OFMessageDamper {
      * @throws IOException
      */
     public boolean write(IOFSwitch sw, OFMessage msg, boolean flush) throws IOException {
-        if (!msgTypesToCache.contains(msg.getType())) {
-            sw.write(msg);
-            if (flush) {
-                sw.flush();
-            }
-            return true;
+        if (isDampened(sw, msg)) {
+            return false;
         }
-        
-        DamperEntry entry = new DamperEntry(msg, sw);
-        if (cache.update(entry)) {
-            // entry exists in cache. Dampening.
-            return false; 
-        } else {
-            sw.write(msg);
-            if (flush) {
-                sw.flush();
-            }
-            return true;
+        sw.write(msg);
+        if (flush) {
+            sw.flush();
+        }
+        return true;
+    }
+
+    /**
+     * Check whether a message should be dampened, and if not, record it as
+     * written. For callers that write the message themselves, e.g. as
+     * part of a batch.
+     * @param sw
+     * @param msg
+     * @return true if the message should not be written to the switch
+     */
+    public boolean isDampened(IOFSwitch sw, OFMessage msg) {
+        if (!msgTypesToCache.contains(msg.getType())) {
+            return false;
         }
+        // true if the entry exists in the cache
+        return cache.update(new DamperEntry(msg, sw));
     }
 }
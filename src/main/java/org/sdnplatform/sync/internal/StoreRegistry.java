@@ -1,9 +1,12 @@
 package org.sdnplatform.sync.internal;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -12,6 +15,7 @@ import javax.sql.ConnectionPoolDataSource;
 
 import net.floodlightcontroller.core.annotations.LogMessageDoc;
 
+import org.sdnplatform.sync.IClosableIterator;
 import org.sdnplatform.sync.Versioned;
 import org.sdnplatform.sync.ISyncService.Scope;
 import org.sdnplatform.sync.error.PersistException;
@@ -19,6 +23,7 @@ import org.sdnplatform.sync.error.SyncException;
 import org.sdnplatform.sync.internal.store.IStorageEngine;
 import org.sdnplatform.sync.internal.store.InMemoryStorageEngine;
 import org.sdnplatform.sync.internal.store.JavaDBStorageEngine;
+import org.sdnplatform.sync.internal.store.LogStructuredStorageEngine;
 import org.sdnplatform.sync.internal.store.SynchronizingStorageEngine;
 import org.sdnplatform.sync.internal.util.ByteArray;
 import org.slf4j.Logger;
@@ -42,6 +47,27 @@ public class StoreRegistry {
      * Directory where the persistent store will be located
      */
     private final String dbPath;
+
+    /**
+     * The engine for persistent stores: {@link #ENGINE_LOG} or 
+     * {@link #ENGINE_JAVADB}
+     */
+    private final String persistentEngine;
+
+    /**
+     * Keep persistent stores in a {@link LogStructuredStorageEngine}
+     */
+    public static final String ENGINE_LOG = "log";
+
+    /**
+     * Keep persistent stores in a {@link JavaDBStorageEngine}
+     */
+    public static final String ENGINE_JAVADB = "javadb";
+
+    /**
+     * The file that marks a log-structured store as migrated from Java DB
+     */
+    private static final String MIGRATED_MARKER = "migrated";
     
     /**
      * A data source suitable for use in persistent stores
@@ -69,11 +95,23 @@ public class StoreRegistry {
     /**
      * Construct a new {@link StoreRegistry}
      * @param syncManager The associated syncManager
+     * @param dbPath the directory where the persistent stores are kept
+     * @param persistentEngine the engine for persistent stores, or null
+     * for {@link #ENGINE_LOG}
+     * @throws IllegalArgumentException if the engine is not known
      */
-    public StoreRegistry(SyncManager syncManager, String dbPath) {
+    public StoreRegistry(SyncManager syncManager, String dbPath,
+                         String persistentEngine) {
         super();
+        if (persistentEngine == null)
+            persistentEngine = ENGINE_LOG;
+        if (!ENGINE_LOG.equals(persistentEngine) &&
+            !ENGINE_JAVADB.equals(persistentEngine))
+            throw new IllegalArgumentException("Unknown persistent store " +
+                                               "engine " + persistentEngine);
         this.syncManager = syncManager;
         this.dbPath = dbPath;
+        this.persistentEngine = persistentEngine;
         hints = new InMemoryStorageEngine<HintKey, byte[]>("system-hints");
     }
     
@@ -110,10 +148,11 @@ public class StoreRegistry {
         }
                 
         IStorageEngine<ByteArray, byte[]> dstore;
-        if (persistent) {
-            if (persistentDataSource == null)
-                persistentDataSource = JavaDBStorageEngine.getDataSource(dbPath, false);
-            dstore = new JavaDBStorageEngine(storeName, persistentDataSource);
+        if (persistent && ENGINE_JAVADB.equals(persistentEngine)) {
+            dstore = new JavaDBStorageEngine(storeName, 
+                                             getPersistentDataSource());
+        } else if (persistent) {
+            dstore = getLogStore(storeName);
         } else {
             dstore = new InMemoryStorageEngine<ByteArray, byte[]>(storeName);
         }
@@ -137,68 +176,183 @@ public class StoreRegistry {
      * @param storeName the name of the store for the keyed value
      * @param key the key
      * @param value the value
+     * @return true if a new hint was queued, or false if the value was
+     * merged into the hint already queued for the key or was obsolete
      */
     @LogMessageDoc(level="ERROR",
                    message="Failed to queue hint for store {storeName}",
                    explanation="There was an error synchronizing data to " + 
                                "remote nodes",
                    recommendation=LogMessageDoc.REPORT_CONTROLLER_BUG)
-    public void queueHint(String storeName, 
-                          ByteArray key, Versioned<byte[]> value) {
+    public boolean queueHint(String storeName, 
+                             ByteArray key, Versioned<byte[]> value) {
         try {
             HintKey hk = new HintKey(storeName,key);
             hintLock.lock();
             try {
+                // a key that is already queued keeps its place in the
+                // queue; the new version is merged into its hint, and
+                // the versions it supersedes will not be sent
                 boolean needed = !hints.containsKey(hk);
                 needed &= hints.doput(hk, value);
                 if (needed) {
                     hintQueue.add(hk);
                     hintsAvailable.signal();
                 }
+                return needed;
             } finally {
                 hintLock.unlock();
             }
         } catch (SyncException e) {
             logger.error("Failed to queue hint for store " + storeName, e);
         }
+        return false;
     }
 
     /**
-     * Drain up to the given number of hints to the provided collection.
-     * This method will block until at least one hint is available
+     * Drain hints to the provided collection.  This method will block
+     * until at least one hint is available, and then drain hints until
+     * either the maximum number of hints or bytes is reached, or no more
+     * hints arrive within the linger time.
      * @param c the collection to which the hints should be copied
      * @param maxElements the maximum number of hints to drain
+     * @param maxBytes the maximum total size of the keys and values of
+     * the drained hints; at least one hint is drained even if it is larger
+     * @param lingerNanos the maximum time to wait for more hints once at
+     * least one is available, in nanoseconds
      * @throws InterruptedException
      */
-    public void takeHints(Collection<Hint> c, int maxElements) 
+    public void takeHints(Collection<Hint> c, int maxElements,
+                          int maxBytes, long lingerNanos)
             throws InterruptedException {
         int count = 0;
+        int bytes = 0;
+        long deadline = 0;
+        hintLock.lock();
         try {
-            while (count == 0) {
-                hintLock.lock();
-                while (hintQueue.isEmpty()) {
-                    hintsAvailable.await();
-                }
-                while (count < maxElements && !hintQueue.isEmpty()) {
-                    HintKey hintKey = hintQueue.pollFirst();
-                    if (hintKey != null) {
-                        List<Versioned<byte[]>> values = hints.remove(hintKey);
-                        if (values == null) {
-                            continue;
-                        }
-                        c.add(new Hint(hintKey, values));
-                        count += 1;
+            while (count < maxElements && bytes < maxBytes) {
+                if (hintQueue.isEmpty()) {
+                    if (count == 0) {
+                        hintsAvailable.await();
+                        continue;
                     }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    hintsAvailable.awaitNanos(remaining);
+                    continue;
                 }
+
+                HintKey hintKey = hintQueue.peekFirst();
+                List<Versioned<byte[]>> values = hints.get(hintKey);
+                int size = getSize(hintKey, values);
+                if (count > 0 && bytes + size > maxBytes) break;
+
+                hintQueue.pollFirst();
+                if (values.size() == 0) continue;
+                hints.remove(hintKey);
+                c.add(new Hint(hintKey, values));
+                if (count == 0)
+                    deadline = System.nanoTime() + lingerNanos;
+                count += 1;
+                bytes += size;
             }
+        } catch (SyncException e) {
+            // can't happen for the in-memory hint store
+            throw new RuntimeException(e);
         } finally {
             hintLock.unlock();
         }
     }
 
-    public void shutdown() {
+    private static int getSize(HintKey hintKey,
+                               List<Versioned<byte[]>> values) {
+        int size = hintKey.getKey().length();
+        for (Versioned<byte[]> v : values) {
+            if (v.getValue() != null)
+                size += v.getValue().length;
+        }
+        return size;
+    }
+
+    @LogMessageDoc(level="ERROR",
+                   message="Failed to close store {storeName}",
+                   explanation="The store could not be written to disk " +
+                               "on shutdown",
+                   recommendation=LogMessageDoc.CHECK_CONTROLLER)
+    public synchronized void shutdown() {
         hintQueue.clear();
         hints.close();
+        for (SynchronizingStorageEngine store : localStores.values()) {
+            try {
+                store.close();
+            } catch (SyncException e) {
+                logger.error("Failed to close store " + store.getName(), e);
+            }
+        }
+    }
+
+    // *************
+    // Local methods
+    // *************
+
+    private ConnectionPoolDataSource getPersistentDataSource() {
+        if (persistentDataSource == null)
+            persistentDataSource = JavaDBStorageEngine.getDataSource(dbPath, false);
+        return persistentDataSource;
+    }
+
+    /**
+     * Open the log-structured store with the given name.  Until the store
+     * has been migrated, the data of the store is copied from the Java DB
+     * database if one was left by a previous version.  A marker file in
+     * the store's directory records that the copy completed, so a copy
+     * that was interrupted is run again.
+     * @param storeName the name of the store
+     * @return the store
+     * @throws PersistException
+     */
+    @LogMessageDoc(level="INFO",
+                   message="Migrated {count} keys of store {storeName} " +
+                           "from Java DB",
+                   explanation="The data of a persistent store was copied " +
+                               "to the log-structured store format")
+    private IStorageEngine<ByteArray, byte[]> getLogStore(String storeName)
+            throws PersistException {
+        File logPath = LogStructuredStorageEngine.getLogPath(dbPath);
+        File marker = new File(new File(logPath, storeName), MIGRATED_MARKER);
+        LogStructuredStorageEngine store = 
+                new LogStructuredStorageEngine(storeName, logPath);
+        File javaDbPath = (dbPath == null) ? 
+                new File("SyncDB") : new File(dbPath, "SyncDB");
+        if (marker.exists() || !javaDbPath.exists()) return store;
+
+        JavaDBStorageEngine old = 
+                new JavaDBStorageEngine(storeName, getPersistentDataSource());
+        IClosableIterator<Entry<ByteArray, List<Versioned<byte[]>>>> it = 
+                old.entries();
+        int count = 0;
+        try {
+            while (it.hasNext()) {
+                Entry<ByteArray, List<Versioned<byte[]>>> e = it.next();
+                if (store.writeSyncValue(e.getKey(), e.getValue()))
+                    count += 1;
+            }
+        } finally {
+            it.close();
+        }
+        // the data must be on disk before the marker says it is there;
+        // copying again after a crash only rewrites the same versions
+        store.sync();
+        try {
+            if (!marker.createNewFile())
+                throw new PersistException("Could not create " + marker);
+        } catch (IOException e) {
+            throw new PersistException("Could not create " + marker, e);
+        }
+        if (count > 0)
+            logger.info("Migrated {} keys of store {} from Java DB", 
+                        count, storeName);
+        return store;
     }
 
     /**
@@ -3,11 +3,13 @@ package org.sdnplatform.sync.internal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -40,12 +42,14 @@ import org.sdnplatform.sync.internal.rpc.TProtocolUtil;
 import org.sdnplatform.sync.internal.store.IStorageEngine;
 import org.sdnplatform.sync.internal.store.IStore;
 import org.sdnplatform.sync.internal.store.MappingStoreListener;
+import org.sdnplatform.sync.internal.store.StoreDigest;
 import org.sdnplatform.sync.internal.store.SynchronizingStorageEngine;
 import org.sdnplatform.sync.internal.util.ByteArray;
 import org.sdnplatform.sync.internal.version.VectorClock;
 import org.sdnplatform.sync.thrift.SyncMessage;
 import org.sdnplatform.sync.thrift.KeyedValues;
 import org.sdnplatform.sync.thrift.KeyedVersions;
+import org.sdnplatform.sync.thrift.SyncDigestMessage;
 import org.sdnplatform.sync.thrift.SyncOfferMessage;
 import org.sdnplatform.sync.thrift.SyncValueMessage;
 import org.slf4j.Logger;
@@ -125,6 +129,27 @@ public class SyncManager extends AbstractSyncManager {
      */
     private static final int SYNC_WORKER_POOL = 2;
 
+    /**
+     * The maximum number of hints sent in one batch
+     */
+    private static final int MAX_HINTS_PER_BATCH = 1000;
+
+    /**
+     * The maximum total size of the keys and values of the hints sent in
+     * one batch.  This keeps the messages of a batch well under the
+     * maximum frame size of the RPC channel.
+     */
+    private static final int MAX_HINT_BYTES_PER_BATCH = 128 * 1024;
+
+    /**
+     * How long a {@link HintWorker} waits for more hints to fill a batch,
+     * in nanoseconds.  The worker only waits when the previous batch had
+     * more than one hint, so that single writes to an otherwise idle store
+     * are sent right away.
+     */
+    private static final long HINT_LINGER_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(5);
+
     /**
      * A thread pool for the {@link HintWorker} threads.
      */
@@ -147,6 +172,17 @@ public class SyncManager extends AbstractSyncManager {
      */
     private boolean persistenceEnabled = true;
 
+    /**
+     * Whether to compress the larger messages sent to other nodes
+     */
+    private boolean compressionEnabled = false;
+
+    /**
+     * Whether antientropy should exchange store digests before offering
+     * keys, rather than offering every key of every store
+     */
+    private boolean digestAntientropyEnabled = false;
+
     private static final String PACKAGE =
             ISyncService.class.getPackage().getName();
 
@@ -161,6 +197,12 @@ public class SyncManager extends AbstractSyncManager {
     public static IDebugCounter counterIterators;
     public static IDebugCounter counterErrorRemote;
     public static IDebugCounter counterErrorProcessing;
+    public static IDebugCounter counterDigests;
+    public static IDebugCounter counterDivergentBuckets;
+    public static IDebugCounter counterOfferedKeys;
+    public static IDebugCounter counterCoalescedHints;
+    public static IDebugCounter counterSentBytes;
+    public static IDebugCounter counterSentBytesUncompressed;
 
     // ************
     // ISyncService
@@ -208,7 +250,12 @@ public class SyncManager extends AbstractSyncManager {
     }
 
     /**
-     * Perform a synchronization with the node specified
+     * Perform a synchronization with the node specified.  Unless digest
+     * antientropy is enabled, all the keys of each store are offered.
+     * Otherwise, for each store, the digest of the store is sent first, and
+     * the remote node replies with the buckets of the digest that differ
+     * from its own; only the keys in those buckets are then offered.  See
+     * {@link #antientropy(Node, String, Collection)}.
      */
     @LogMessageDoc(level="INFO",
                    message="[{id}->{id}] Synchronizing local state to remote node",
@@ -220,49 +267,67 @@ public class SyncManager extends AbstractSyncManager {
                     getLocalNodeId(), node.getNodeId());
 
         for (SynchronizingStorageEngine store : storeRegistry.values()) {
-            if (Scope.LOCAL.equals(store.getScope())) {
-                if (node.getDomainId() !=
-                        getClusterConfig().getNode().getDomainId())
-                    continue;
-            } else if (Scope.UNSYNCHRONIZED.equals(store.getScope())) {
-                continue;
-            }
+            if (!isSynchronized(store, node)) continue;
 
-            IClosableIterator<Entry<ByteArray,
-                                  List<Versioned<byte[]>>>> entries =
-                    store.entries();
             try {
-                SyncMessage bsm =
-                        TProtocolUtil.getTSyncOfferMessage(store.getName(),
-                                                           store.getScope(),
-                                                           store.isPersistent());
-                int count = 0;
-                while (entries.hasNext()) {
-                    if (!rpcService.isConnected(node.getNodeId())) return;
-
-                    Entry<ByteArray, List<Versioned<byte[]>>> pair =
-                            entries.next();
-                    KeyedVersions kv =
-                            TProtocolUtil.getTKeyedVersions(pair.getKey(),
-                                                            pair.getValue());
-                    bsm.getSyncOffer().addToVersions(kv);
-                    count += 1;
-                    if (count >= 50) {
-                        sendSyncOffer(node.getNodeId(), bsm);
-                        bsm.getSyncOffer().unsetVersions();
-                        count = 0;
-                    }
+                if (!digestAntientropyEnabled) {
+                    offerEntries(node, store, null);
+                    continue;
+                }
+                StoreDigest digest = store.getDigest();
+                if (!digest.isValid()) {
+                    offerEntries(node, store, null);
+                    continue;
                 }
-                sendSyncOffer(node.getNodeId(), bsm);
+
+                SyncMessage bsm =
+                        TProtocolUtil.getTSyncDigestMessage(store.getName(),
+                                                            store.getScope(),
+                                                            store.isPersistent());
+                SyncDigestMessage sdm = bsm.getSyncDigest();
+                sdm.setDigests(digest.getDigests());
+                sdm.getHeader().setTransactionId(rpcService.getTransactionId());
+                counterDigests.increment();
+                if (!rpcService.writeToNode(node.getNodeId(), bsm)) return;
             } catch (InterruptedException e) {
                 // This can't really happen
                 throw new RuntimeException(e);
-            } finally {
-                entries.close();
             }
         }
     }
 
+    /**
+     * Offer the keys of a store in the given buckets of its digest to the
+     * node specified.  This is called when the node replies to the digest
+     * sent by {@link #antientropy(Node)}.
+     * @param node the node to offer the keys to
+     * @param storeName the store
+     * @param buckets the buckets of the digest for which the node holds
+     * different versions, or null to offer all the keys of the store
+     */
+    public void antientropy(Node node, String storeName,
+                            Collection<Integer> buckets) {
+        if (node == null || !rpcService.isConnected(node.getNodeId())) return;
+        SynchronizingStorageEngine store = storeRegistry.get(storeName);
+        if (store == null || !isSynchronized(store, node)) return;
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("[{}->{}] Offering {} buckets of store {}",
+                         new Object[]{getLocalNodeId(), node.getNodeId(),
+                                      (buckets == null) ? "all" :
+                                          buckets.size(),
+                                      storeName});
+        }
+        try {
+            offerEntries(node, store,
+                         (buckets == null) ? null :
+                             new HashSet<Integer>(buckets));
+        } catch (InterruptedException e) {
+            // This can't really happen
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Communicate with a random node and do a full synchronization of the
      * all the stores on each node that have the appropriate scope.
@@ -333,6 +398,25 @@ public class SyncManager extends AbstractSyncManager {
         return false;
     }
 
+    /**
+     * Compare the digest of a store on another node with the local one
+     * @param storeName the store to check
+     * @param digests the bucket values of the digest of the other node
+     * @return the buckets that differ, or null if the whole store should
+     * be offered because the digests can't be compared
+     */
+    public List<Integer> handleSyncDigest(String storeName,
+                                          List<Long> digests) {
+        SynchronizingStorageEngine store = storeRegistry.get(storeName);
+        if (store == null) return null;
+
+        List<Integer> buckets = store.getDigest().diff(digests);
+        counterDivergentBuckets.add((buckets == null) ?
+                                    store.getDigest().getNumBuckets() :
+                                    buckets.size());
+        return buckets;
+    }
+
     /**
      * Get access to the raw storage engine.  This is useful for some
      * on-the-wire communication
@@ -345,6 +429,25 @@ public class SyncManager extends AbstractSyncManager {
         return getStoreInternal(storeName);
     }
 
+    /**
+     * Check whether the larger messages sent to other nodes should be
+     * compressed.  Nodes can always receive compressed messages.
+     * @return true if compression is enabled
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Check whether antientropy sends store digests to other nodes before
+     * offering keys.  Nodes can always answer digests, but nodes that
+     * predate them cannot, so this is off unless configured.
+     * @return true if digest antientropy is enabled
+     */
+    public boolean isDigestAntientropyEnabled() {
+        return digestAntientropyEnabled;
+    }
+
     /**
      * Return the threadpool
      * @return the {@link IThreadPoolService}
@@ -365,7 +468,8 @@ public class SyncManager extends AbstractSyncManager {
             recommendation=LogMessageDoc.CHECK_CONTROLLER)
     public void queueSyncTask(SynchronizingStorageEngine e,
                               ByteArray key, Versioned<byte[]> value) {
-        storeRegistry.queueHint(e.getName(), key, value);
+        if (!storeRegistry.queueHint(e.getName(), key, value))
+            counterCoalescedHints.increment();
     }
 
     @Override
@@ -462,7 +566,13 @@ public class SyncManager extends AbstractSyncManager {
         threadPool = context.getServiceImpl(IThreadPoolService.class);
         debugCounter = context.getServiceImpl(IDebugCounterService.class);
         Map<String, String> config = context.getConfigParams(this);
-        storeRegistry = new StoreRegistry(this, config.get("dbPath"));
+        try {
+            storeRegistry = 
+                    new StoreRegistry(this, config.get("dbPath"),
+                                      config.get("persistentStoreEngine"));
+        } catch (IllegalArgumentException e) {
+            throw new FloodlightModuleException(e.getMessage(), e);
+        }
 
         String[] configProviders =
              {PropertyCCProvider.class.getName(),
@@ -474,6 +584,18 @@ public class SyncManager extends AbstractSyncManager {
                 persistenceEnabled =
                         Boolean.parseBoolean(config.get("persistenceEnabled"));
             }
+            if (config.containsKey("compressionEnabled")) {
+                compressionEnabled =
+                        Boolean.parseBoolean(config.get("compressionEnabled"));
+            }
+            if (config.containsKey("digestAntientropyEnabled")) {
+                digestAntientropyEnabled = Boolean.parseBoolean(
+                        config.get("digestAntientropyEnabled"));
+            }
+            if (config.containsKey("packedClocksEnabled")) {
+                TProtocolUtil.setPackedClocks(Boolean.parseBoolean(
+                        config.get("packedClocksEnabled")));
+            }
             if (config.containsKey("configProviders")) {
                 configProviders = config.get("configProviders").split(",");
             }
@@ -532,6 +654,23 @@ public class SyncManager extends AbstractSyncManager {
     				"error-processing",
     				"Number of errors processing messages from remote clients",
     				IDebugCounterService.MetaData.ERROR);
+    		counterDigests = debugCounter.registerCounter(PACKAGE, "digests",
+    				"Store digests sent to remote node for antientropy");
+    		counterDivergentBuckets = debugCounter.registerCounter(PACKAGE,
+    				"divergent-buckets",
+    				"Digest buckets found to differ from remote node");
+    		counterOfferedKeys = debugCounter.registerCounter(PACKAGE,
+    				"offered-keys",
+    				"Keys offered to remote node for antientropy");
+    		counterCoalescedHints = debugCounter.registerCounter(PACKAGE,
+    				"coalesced-hints",
+    				"Local puts merged into a hint already queued for the key");
+    		counterSentBytes = debugCounter.registerCounter(PACKAGE,
+    				"sent-bytes",
+    				"Bytes written to remote nodes");
+    		counterSentBytesUncompressed = debugCounter.registerCounter(PACKAGE,
+    				"sent-bytes-uncompressed",
+    				"Bytes written to remote nodes before compression");
     	}
 
     }
@@ -656,6 +795,61 @@ public class SyncManager extends AbstractSyncManager {
         return store;
     }
 
+    /**
+     * Check whether a store is synchronized with the node specified
+     */
+    private boolean isSynchronized(SynchronizingStorageEngine store,
+                                   Node node) {
+        if (Scope.LOCAL.equals(store.getScope())) {
+            return node.getDomainId() ==
+                    getClusterConfig().getNode().getDomainId();
+        }
+        return !Scope.UNSYNCHRONIZED.equals(store.getScope());
+    }
+
+    /**
+     * Offer the keys of the store in the given digest buckets to the node
+     * @param buckets the buckets, or null for all keys
+     */
+    private void offerEntries(Node node, SynchronizingStorageEngine store,
+                              Set<Integer> buckets)
+            throws InterruptedException {
+        StoreDigest digest = store.getDigest();
+        IClosableIterator<Entry<ByteArray,
+                              List<Versioned<byte[]>>>> entries =
+                store.entries();
+        try {
+            SyncMessage bsm =
+                    TProtocolUtil.getTSyncOfferMessage(store.getName(),
+                                                       store.getScope(),
+                                                       store.isPersistent());
+            int count = 0;
+            while (entries.hasNext()) {
+                if (!rpcService.isConnected(node.getNodeId())) return;
+
+                Entry<ByteArray, List<Versioned<byte[]>>> pair =
+                        entries.next();
+                if (buckets != null &&
+                    !buckets.contains(digest.getBucket(pair.getKey())))
+                    continue;
+                KeyedVersions kv =
+                        TProtocolUtil.getTKeyedVersions(pair.getKey(),
+                                                        pair.getValue());
+                bsm.getSyncOffer().addToVersions(kv);
+                counterOfferedKeys.increment();
+                count += 1;
+                if (count >= 50) {
+                    sendSyncOffer(node.getNodeId(), bsm);
+                    bsm.getSyncOffer().unsetVersions();
+                    count = 0;
+                }
+            }
+            sendSyncOffer(node.getNodeId(), bsm);
+        } finally {
+            entries.close();
+        }
+    }
+
     private void sendSyncOffer(short nodeId, SyncMessage bsm)
             throws InterruptedException {
         SyncOfferMessage som = bsm.getSyncOffer();
@@ -755,17 +949,23 @@ public class SyncManager extends AbstractSyncManager {
             explanation="Failed to synchronize state to remote node",
             recommendation=LogMessageDoc.REPORT_CONTROLLER_BUG)
     protected class HintWorker implements Runnable {
-        ArrayList<Hint> tasks = new ArrayList<Hint>(50);
+        ArrayList<Hint> tasks = new ArrayList<Hint>(MAX_HINTS_PER_BATCH);
         protected Map<String, SyncMessage> messages =
                 new LinkedHashMap<String, SyncMessage>();
 
         @Override
         public void run() {
+            int lastBatchSize = 0;
             while (rpcService != null) {
                 try {
-                    // Batch up sync tasks so we use fewer, larger messages
+                    // Batch up sync tasks so we use fewer, larger messages.
+                    // Wait a little for a batch to fill only while writes
+                    // are arriving in bursts.
                     // XXX - todo - handle hints targeted to specific nodes
-                    storeRegistry.takeHints(tasks, 50);
+                    long linger = (lastBatchSize > 1) ? HINT_LINGER_NANOS : 0;
+                    storeRegistry.takeHints(tasks, MAX_HINTS_PER_BATCH,
+                                            MAX_HINT_BYTES_PER_BATCH, linger);
+                    lastBatchSize = tasks.size();
                     for (Hint task : tasks) {
                         counterHints.increment();
                         SynchronizingStorageEngine store =
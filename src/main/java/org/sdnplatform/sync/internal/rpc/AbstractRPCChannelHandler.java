@@ -51,6 +51,8 @@ import org.sdnplatform.sync.thrift.PutRequestMessage;
 import org.sdnplatform.sync.thrift.PutResponseMessage;
 import org.sdnplatform.sync.thrift.RegisterRequestMessage;
 import org.sdnplatform.sync.thrift.RegisterResponseMessage;
+import org.sdnplatform.sync.thrift.SyncDigestMessage;
+import org.sdnplatform.sync.thrift.SyncDigestResponseMessage;
 import org.sdnplatform.sync.thrift.SyncOfferMessage;
 import org.sdnplatform.sync.thrift.SyncRequestMessage;
 import org.sdnplatform.sync.thrift.SyncValueMessage;
@@ -326,6 +328,12 @@ public abstract class AbstractRPCChannelHandler
             case CLUSTER_JOIN_RESPONSE:
                 handleClusterJoinResponse(bsm.getClusterJoinResponse(), channel);
                 break;
+            case SYNC_DIGEST:
+                handleSyncDigest(bsm.getSyncDigest(), channel);
+                break;
+            case SYNC_DIGEST_RESPONSE:
+                handleSyncDigestResponse(bsm.getSyncDigestResponse(), channel);
+                break;
             case ERROR:
                 handleError(bsm.getError(), channel);
                 break;
@@ -527,6 +535,18 @@ public abstract class AbstractRPCChannelHandler
                           MessageType.CLUSTER_JOIN_RESPONSE, channel);
     }
 
+    protected void handleSyncDigest(SyncDigestMessage request,
+                                    Channel channel) {
+        unexpectedMessage(request.getHeader().getTransactionId(),
+                          MessageType.SYNC_DIGEST, channel);
+    }
+
+    protected void handleSyncDigestResponse(SyncDigestResponseMessage response,
+                                            Channel channel) {
+        unexpectedMessage(response.getHeader().getTransactionId(),
+                          MessageType.SYNC_DIGEST_RESPONSE, channel);
+    }
+
     @LogMessageDoc(level="ERROR",
                    message="[{id}->{id}] Error for message {id} ({type}): " + 
                            "{message} {error code}",
@@ -371,6 +371,60 @@ public class RPCChannelHandler extends AbstractRPCChannelHandler {
         }
     }
 
+    @Override
+    protected void handleSyncDigest(SyncDigestMessage request,
+                                    Channel channel) {
+        try {
+            List<Integer> buckets =
+                    syncManager.handleSyncDigest(request.getStore().
+                                                 getStoreName(),
+                                                 request.getDigests());
+            // nothing to offer if all the buckets match
+            if (buckets != null && buckets.size() == 0) return;
+
+            SyncDigestResponseMessage sdrm = new SyncDigestResponseMessage();
+            AsyncMessageHeader header = new AsyncMessageHeader();
+            header.setTransactionId(request.getHeader().getTransactionId());
+            sdrm.setHeader(header);
+            sdrm.setStore(request.getStore());
+            // without buckets, the whole store will be offered
+            if (buckets != null)
+                sdrm.setBuckets(buckets);
+
+            SyncMessage bsm =
+                    new SyncMessage(MessageType.SYNC_DIGEST_RESPONSE);
+            bsm.setSyncDigestResponse(sdrm);
+            if (logger.isTraceEnabled()) {
+                logger.trace("[{}->{}] Sending SyncDigestResponse with {} " +
+                             "buckets",
+                             new Object[]{getLocalNodeIdString(),
+                                          getRemoteNodeIdString(),
+                                          (buckets == null) ? "all" :
+                                              buckets.size()});
+            }
+            channel.write(bsm);
+        } catch (Exception e) {
+            channel.write(getError(request.getHeader().getTransactionId(),
+                                   e, MessageType.SYNC_DIGEST));
+        }
+    }
+
+    @Override
+    protected void handleSyncDigestResponse(SyncDigestResponseMessage response,
+                                            Channel channel) {
+        final String storeName = response.getStore().getStoreName();
+        final List<Integer> buckets = response.getBuckets();
+        // Offer the keys in a background task since writing the offers
+        // can block waiting for the message window
+        Runnable offerTask = new Runnable() {
+            @Override
+            public void run() {
+                syncManager.antientropy(remoteNode, storeName, buckets);
+            }
+        };
+        syncManager.getThreadPool().getScheduledExecutor().execute(offerTask);
+    }
+
     @Override
     protected void handleFullSyncRequest(FullSyncRequestMessage request,
                                          Channel channel) {
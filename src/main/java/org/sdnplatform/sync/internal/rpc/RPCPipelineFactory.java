@@ -52,8 +52,11 @@ public class RPCPipelineFactory
 
         pipeline.addLast("frameDecoder",
                          new ThriftFrameDecoder(maxFrameSize));
-        pipeline.addLast("frameEncoder",
-                         new ThriftFrameEncoder());
+        ThriftFrameEncoder frameEncoder =
+                new ThriftFrameEncoder(syncManager.isCompressionEnabled(),
+                                       SyncManager.counterSentBytes,
+                                       SyncManager.counterSentBytesUncompressed);
+        pipeline.addLast("frameEncoder", frameEncoder);
 
         pipeline.addLast("handler", channelHandler);
         return pipeline;
@@ -14,6 +14,7 @@ import org.sdnplatform.sync.thrift.KeyedValues;
 import org.sdnplatform.sync.thrift.KeyedVersions;
 import org.sdnplatform.sync.thrift.MessageType;
 import org.sdnplatform.sync.thrift.Store;
+import org.sdnplatform.sync.thrift.SyncDigestMessage;
 import org.sdnplatform.sync.thrift.SyncOfferMessage;
 import org.sdnplatform.sync.thrift.SyncValueMessage;
 import org.sdnplatform.sync.thrift.VersionedValue;
@@ -28,7 +29,24 @@ import org.slf4j.LoggerFactory;
 public class TProtocolUtil {
     protected static Logger logger =
             LoggerFactory.getLogger(TProtocolUtil.class.getName());
-    
+
+    /**
+     * Whether to send vector clocks in their packed encoding.  Every node
+     * reads both encodings, but nodes that predate the packed encoding
+     * only read the list of entries, so this is only enabled once all the
+     * nodes of the cluster have been upgraded.
+     */
+    private static volatile boolean packedClocks = false;
+
+    /**
+     * Set whether to send vector clocks in their packed encoding
+     * @param packed true to send the packed encoding, false to send the
+     * list of entries
+     */
+    public static void setPackedClocks(boolean packed) {
+        packedClocks = packed;
+    }
+
     /**
      * Convert a {@link VectorClock} into a 
      * {@link org.sdnplatform.sync.thrift.VectorClock}
@@ -40,13 +58,17 @@ public class TProtocolUtil {
         org.sdnplatform.sync.thrift.VectorClock tvc =
                 new org.sdnplatform.sync.thrift.VectorClock();
         tvc.setTimestamp(vc.getTimestamp());
-        for (ClockEntry ce : vc.getEntries()) {
-            org.sdnplatform.sync.thrift.ClockEntry tce =
-                    new org.sdnplatform.sync.thrift.ClockEntry();
-            tce.setNodeId(ce.getNodeId());
-            tce.setVersion(ce.getVersion());
-            tvc.addToVersions(tce);
+        if (packedClocks) {
+            tvc.setPacked(vc.pack());
+            return tvc;
         }
+        List<org.sdnplatform.sync.thrift.ClockEntry> entries =
+                new ArrayList<org.sdnplatform.sync.thrift.ClockEntry>(vc.size());
+        for (int i = 0; i < vc.size(); i++) {
+            entries.add(new org.sdnplatform.sync.thrift.
+                        ClockEntry(vc.getNodeId(i), vc.getVersion(i)));
+        }
+        tvc.setVersions(entries);
         
         return tvc;
     }
@@ -247,6 +269,27 @@ public class TProtocolUtil {
         return bsm;
     }
 
+    /**
+     * Get a partially-initialized {@link SyncDigestMessage} wrapped with a 
+     * {@link SyncMessage}.
+     * @param storeName the name of the store associated with the message
+     * @param scope the {@link Scope} for the store
+     * @param persist the scope for the store 
+     * @return the {@link SyncMessage}
+     */
+    public static SyncMessage getTSyncDigestMessage(String storeName,
+                                                    Scope scope,
+                                                    boolean persist) {
+        SyncMessage bsm = new SyncMessage(MessageType.SYNC_DIGEST);
+        AsyncMessageHeader header = new AsyncMessageHeader();
+        SyncDigestMessage sdm = new SyncDigestMessage();
+        sdm.setHeader(header);
+        sdm.setStore(getTStore(storeName, scope, persist));
+
+        bsm.setSyncDigest(sdm);
+        return bsm;
+    }
+
     /**
      * Convert a thrift {@link org.sdnplatform.sync.thrift.VectorClock} into
      * a {@link VectorClock}.
@@ -254,6 +297,9 @@ public class TProtocolUtil {
      * @param the {@link VectorClock}
      */
     public static VectorClock getVersion(org.sdnplatform.sync.thrift.VectorClock tvc) {
+        if (tvc.isSetPacked()) {
+            return VectorClock.unpack(tvc.getPacked(), tvc.getTimestamp());
+        }
         ArrayList<ClockEntry> entries =
                 new ArrayList<ClockEntry>();
         if (tvc.getVersions() != null) {
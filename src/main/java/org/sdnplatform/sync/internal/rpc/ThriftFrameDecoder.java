@@ -2,24 +2,39 @@ package org.sdnplatform.sync.internal.rpc;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.apache.thrift.protocol.TCompactProtocol;
 import org.apache.thrift.transport.TIOStreamTransport;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
 import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
 import org.sdnplatform.sync.thrift.SyncMessage;
 
 /**
- * Decode a {@link SyncMessage} from the channel
+ * Decode a {@link SyncMessage} from the channel.  Compressed frames are
+ * always accepted, whether or not this node compresses the frames it sends.
+ * @see ThriftFrameEncoder
  * @author readams
  */
 public class ThriftFrameDecoder extends LengthFieldBasedFrameDecoder {
 
+    protected int maxSize;
+
+    /**
+     * Only used from the channel's I/O thread
+     */
+    private Inflater inflater;
+
     public ThriftFrameDecoder(int maxSize) {
         super(maxSize, 0, 4, 0, 4);
+        this.maxSize = maxSize;
     }
 
     @Override
@@ -31,6 +46,11 @@ public class ThriftFrameDecoder extends LengthFieldBasedFrameDecoder {
         while (null != (frame = (ChannelBuffer) super.decode(ctx, channel, 
                                                              buffer))) {
             if (ms == null) ms = new ArrayList<SyncMessage>();
+            if (frame.readable() &&
+                frame.getByte(frame.readerIndex()) ==
+                    ThriftFrameEncoder.COMPRESSED_MARKER) {
+                frame = inflate(frame);
+            }
             ChannelBufferInputStream is = new ChannelBufferInputStream(frame);
             TCompactProtocol thriftProtocol =
                     new TCompactProtocol(new TIOStreamTransport(is));
@@ -46,4 +66,57 @@ public class ThriftFrameDecoder extends LengthFieldBasedFrameDecoder {
                                          int index, int length) {
         return buffer.slice(index, length);
     }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx,
+                              ChannelStateEvent e) throws Exception {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    /**
+     * Decompress a frame
+     * @param frame the frame, starting with the compression marker
+     * @return the encoded message
+     * @throws CorruptedFrameException if the frame can't be decompressed
+     * or is larger than the maximum frame size once decompressed
+     */
+    private ChannelBuffer inflate(ChannelBuffer frame)
+            throws CorruptedFrameException {
+        if (frame.readableBytes() < 5)
+            throw new CorruptedFrameException("Truncated compressed frame");
+        frame.skipBytes(1);
+        int size = frame.readInt();
+        if (size < 0 || size > maxSize)
+            throw new CorruptedFrameException("Compressed frame of " + size +
+                                              " bytes is larger than " +
+                                              maxSize);
+        byte[] in = new byte[frame.readableBytes()];
+        frame.readBytes(in);
+
+        if (inflater == null) inflater = new Inflater();
+        inflater.reset();
+        inflater.setInput(in);
+        try {
+            // one spare byte to detect a frame longer than its length
+            byte[] out = new byte[size + 1];
+            int outLen = 0;
+            while (!inflater.finished() && outLen < out.length) {
+                int n = inflater.inflate(out, outLen, out.length - outLen);
+                if (n == 0 && (inflater.needsInput() ||
+                               inflater.needsDictionary()))
+                    break;
+                outLen += n;
+            }
+            if (outLen != size || !inflater.finished())
+                throw new CorruptedFrameException("Compressed frame does " +
+                                                  "not match its length");
+            return ChannelBuffers.wrappedBuffer(out, 0, size);
+        } catch (DataFormatException e) {
+            throw new CorruptedFrameException(e);
+        }
+    }
 }
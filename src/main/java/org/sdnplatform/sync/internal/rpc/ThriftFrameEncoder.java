@@ -1,5 +1,9 @@
 package org.sdnplatform.sync.internal.rpc;
 
+import java.util.zip.Deflater;
+
+import net.floodlightcontroller.debugcounter.IDebugCounter;
+
 import org.apache.thrift.protocol.TCompactProtocol;
 import org.apache.thrift.transport.TIOStreamTransport;
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -7,17 +11,72 @@ import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.buffer.DynamicChannelBuffer;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
 import org.sdnplatform.sync.thrift.SyncMessage;
 
 
 /**
- * Encode a {@link SyncMessage} into the channel
+ * Encode a {@link SyncMessage} into the channel.  When compression is
+ * enabled, frames larger than {@link #MIN_COMPRESS_SIZE} are deflated if
+ * that makes them smaller.  A compressed frame starts with
+ * {@link #COMPRESSED_MARKER}, followed by the length of the uncompressed
+ * message and the deflated message.  An encoded message can't start with
+ * the marker, since it would be the end of the message's fields.  The
+ * deflater is released when the channel is closed.
+ * @see ThriftFrameDecoder
  * @author readams
  *
  */
-public class ThriftFrameEncoder extends OneToOneEncoder {
+public class ThriftFrameEncoder extends OneToOneEncoder
+    implements ChannelUpstreamHandler {
+    /**
+     * The first byte of a compressed frame
+     */
+    public static final byte COMPRESSED_MARKER = 0;
+
+    /**
+     * Frames smaller than this are never compressed
+     */
+    public static final int MIN_COMPRESS_SIZE = 512;
+
+    protected boolean compress;
+    protected IDebugCounter wireBytes;
+    protected IDebugCounter uncompressedBytes;
+
+    /**
+     * Guarded by itself, since messages can be written to a channel from
+     * several threads
+     */
+    private Deflater deflater;
+    // guarded by the deflater
+    private boolean ended = false;
+
+    public ThriftFrameEncoder() {
+        this(false, null, null);
+    }
+
+    /**
+     * Construct a frame encoder
+     * @param compress whether to compress the larger frames
+     * @param wireBytes counts the bytes of the encoded frames, or null
+     * @param uncompressedBytes counts the bytes of the frames before
+     * compression, or null
+     */
+    public ThriftFrameEncoder(boolean compress,
+                              IDebugCounter wireBytes,
+                              IDebugCounter uncompressedBytes) {
+        super();
+        this.compress = compress;
+        this.wireBytes = wireBytes;
+        this.uncompressedBytes = uncompressedBytes;
+        if (compress)
+            deflater = new Deflater(Deflater.BEST_SPEED);
+    }
 
     @Override
     protected Object encode(ChannelHandlerContext ctx, Channel channel,
@@ -29,11 +88,75 @@ public class ThriftFrameEncoder extends OneToOneEncoder {
                     new TCompactProtocol(new TIOStreamTransport(os));
             ((SyncMessage) message).write(thriftProtocol);
 
+            int size = buf.readableBytes();
+            if (compress && size >= MIN_COMPRESS_SIZE) {
+                ChannelBuffer compressed = deflate(buf);
+                if (compressed != null) buf = compressed;
+            }
+
             ChannelBuffer len = ChannelBuffers.buffer(4);
             len.writeInt(buf.readableBytes());
+            if (uncompressedBytes != null) uncompressedBytes.add(4 + size);
+            if (wireBytes != null) wireBytes.add(4 + buf.readableBytes());
             return ChannelBuffers.wrappedBuffer(len, buf);
         }
         return message;
     }
 
+    @Override
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e)
+            throws Exception {
+        if (e instanceof ChannelStateEvent) {
+            ChannelStateEvent se = (ChannelStateEvent) e;
+            if (se.getState() == ChannelState.OPEN &&
+                Boolean.FALSE.equals(se.getValue()))
+                end();
+        }
+        ctx.sendUpstream(e);
+    }
+
+    /**
+     * Release the deflater.  Messages encoded afterwards, which a closed
+     * channel will not send anyway, are left uncompressed.
+     */
+    protected void end() {
+        if (deflater == null) return;
+        synchronized (deflater) {
+            if (!ended) {
+                ended = true;
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Compress a message
+     * @param buf the encoded message
+     * @return the compressed frame, or null if the message did not
+     * get smaller or the deflater was released
+     */
+    private ChannelBuffer deflate(ChannelBuffer buf) {
+        int size = buf.readableBytes();
+        byte[] in = new byte[size];
+        buf.getBytes(buf.readerIndex(), in);
+        // give up as soon as the output reaches the size of the input
+        byte[] out = new byte[size];
+        out[0] = COMPRESSED_MARKER;
+        out[1] = (byte)(size >>> 24);
+        out[2] = (byte)(size >>> 16);
+        out[3] = (byte)(size >>> 8);
+        out[4] = (byte)size;
+        int outLen = 5;
+        synchronized (deflater) {
+            if (ended) return null;
+            deflater.reset();
+            deflater.setInput(in);
+            deflater.finish();
+            while (!deflater.finished() && outLen < out.length) {
+                outLen += deflater.deflate(out, outLen, out.length - outLen);
+            }
+            if (!deflater.finished()) return null;
+        }
+        return ChannelBuffers.wrappedBuffer(out, 0, outLen);
+    }
 }
@@ -18,6 +18,8 @@
 package org.sdnplatform.sync.internal.store;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
@@ -35,10 +37,15 @@ import org.sdnplatform.sync.internal.util.Pair;
 
 /**
  * A simple non-persistent, in-memory store.
+ *
+ * Each key maps to an immutable array of its concurrent versions.  A write
+ * builds the new array from the current one and installs it with a
+ * compare-and-set on the map, retrying if another write to the key got
+ * there first, so reads never block and a write allocates a single array.
  */
 public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
 
-    private final ConcurrentMap<K, List<Versioned<V>>> map;
+    private final ConcurrentMap<K, Versioned<V>[]> map;
     private final String name;
     
     /**
@@ -48,13 +55,7 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
 
     public InMemoryStorageEngine(String name) {
         this.name = name;
-        this.map = new ConcurrentHashMap<K, List<Versioned<V>>>();
-    }
-
-    public InMemoryStorageEngine(String name, 
-                                 ConcurrentMap<K, List<Versioned<V>>> map) {
-        this.name = name;
-        this.map = map;
+        this.map = new ConcurrentHashMap<K, Versioned<V>[]>();
     }
 
     // ******************
@@ -72,13 +73,11 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
     @Override
     public List<Versioned<V>> get(K key) throws SyncException {
         StoreUtils.assertValidKey(key);
-        List<Versioned<V>> results = map.get(key);
+        Versioned<V>[] results = map.get(key);
         if(results == null) {
             return new ArrayList<Versioned<V>>(0);
         }
-        synchronized(results) {
-            return new ArrayList<Versioned<V>>(results);
-        }
+        return new ArrayList<Versioned<V>>(Arrays.asList(results));
     }
 
     @Override
@@ -93,37 +92,46 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
         IVersion version = value.getVersion();
 
         while(true) {
-            List<Versioned<V>> items = map.get(key);
+            Versioned<V>[] items = map.get(key);
             // If we have no value, optimistically try to add one
             if(items == null) {
-                items = new ArrayList<Versioned<V>>();
-                items.add(new Versioned<V>(value.getValue(), version));
-                if (map.putIfAbsent(key, items) != null)
+                Versioned<V>[] newItems = newArray(1);
+                newItems[0] = new Versioned<V>(value.getValue(), version);
+                if (map.putIfAbsent(key, newItems) != null)
                     continue;
                 return true;
-            } else {
-                synchronized(items) {
-                    // if this check fails, items has been removed from the map
-                    // by delete, so we try again.
-                    if(map.get(key) != items)
-                        continue;
-
-                    // Check for existing versions - remember which items to
-                    // remove in case of success
-                    List<Versioned<V>> itemsToRemove = new ArrayList<Versioned<V>>(items.size());
-                    for(Versioned<V> versioned: items) {
-                        Occurred occurred = value.getVersion().compare(versioned.getVersion());
-                        if(occurred == Occurred.BEFORE) {
-                            return false;
-                        } else if(occurred == Occurred.AFTER) {
-                            itemsToRemove.add(versioned);
-                        }
-                    }
-                    items.removeAll(itemsToRemove);
-                    items.add(value);
+            }
+
+            // Check for existing versions, remembering the first 64 of
+            // those that the new version supersedes so that they aren't
+            // compared twice
+            long superseded = 0;
+            int kept = items.length;
+            for (int i = 0; i < items.length; i++) {
+                Occurred occurred = version.compare(items[i].getVersion());
+                if(occurred == Occurred.BEFORE) {
+                    return false;
+                } else if(occurred == Occurred.AFTER) {
+                    kept -= 1;
+                    if (i < 64) superseded |= 1L << i;
                 }
-                return true;
             }
+
+            Versioned<V>[] newItems = newArray(kept + 1);
+            int j = 0;
+            for (int i = 0; i < items.length; i++) {
+                boolean isSuperseded = (i < 64) ?
+                        (superseded & (1L << i)) != 0 :
+                        version.compare(items[i].getVersion()) == 
+                            Occurred.AFTER;
+                if (!isSuperseded)
+                    newItems[j++] = items[i];
+            }
+            newItems[j] = value;
+            // if this fails, the key was written or removed since we read
+            // it, so we try again.
+            if (map.replace(key, items, newItems))
+                return true;
         }
     }
 
@@ -168,15 +176,11 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
         // threshold.  If a value is deleted and the tombstone has been 
         // cleaned up before the cluster is fully synchronized, then there
         // is a chance that deleted values could be resurrected
-        Iterator<Entry<K, List<Versioned<V>>>> iter = map.entrySet().iterator();
-        while (iter.hasNext()) {
-            Entry<K, List<Versioned<V>>> e = iter.next();
-            List<Versioned<V>> items = e.getValue();
-
-            synchronized (items) {
-                if (StoreUtils.canDelete(items, tombstoneDeletion))
-                    iter.remove();
-            }
+        for (Entry<K, Versioned<V>[]> e : map.entrySet()) {
+            Versioned<V>[] items = e.getValue();
+            // only remove the key if it was not written since
+            if (StoreUtils.canDelete(Arrays.asList(items), tombstoneDeletion))
+                map.remove(e.getKey(), items);
         }
     }
 
@@ -209,13 +213,9 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
      * @return the mapped values
      */
     public List<Versioned<V>> remove(K key) {
-        while (true) {
-            List<Versioned<V>> items = map.get(key);
-            synchronized (items) {
-                if (map.remove(key, items))
-                    return items;                
-            }
-        }
+        Versioned<V>[] items = map.remove(key);
+        if (items == null) return null;
+        return new ArrayList<Versioned<V>>(Arrays.asList(items));
     }
 
     /**
@@ -240,18 +240,23 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
     // Local methods
     // *************
 
+    @SuppressWarnings("unchecked")
+    private static <V> Versioned<V>[] newArray(int size) {
+        return (Versioned<V>[])new Versioned[size];
+    }
+
     protected String toString(int size) {
         StringBuilder builder = new StringBuilder();
         builder.append("{");
         int count = 0;
-        for(Entry<K, List<Versioned<V>>> entry: map.entrySet()) {
+        for(Entry<K, Versioned<V>[]> entry: map.entrySet()) {
             if(count > size) {
                 builder.append("...");
                 break;
             }
             builder.append(entry.getKey());
             builder.append(':');
-            builder.append(entry.getValue());
+            builder.append(Arrays.toString(entry.getValue()));
             builder.append(',');
         }
         builder.append('}');
@@ -261,9 +266,9 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
     private static class InMemoryIterator<K, V> implements 
         IClosableIterator<Entry<K, List<Versioned<V>>>> {
 
-        private final Iterator<Entry<K, List<Versioned<V>>>> iterator;
+        private final Iterator<Entry<K, Versioned<V>[]>> iterator;
 
-        public InMemoryIterator(ConcurrentMap<K, List<Versioned<V>>> map) {
+        public InMemoryIterator(ConcurrentMap<K, Versioned<V>[]> map) {
             this.iterator = map.entrySet().iterator();
         }
 
@@ -272,9 +277,10 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
         }
 
         public Pair<K, List<Versioned<V>>> next() {
-            Entry<K, List<Versioned<V>>> entry = iterator.next();
+            Entry<K, Versioned<V>[]> entry = iterator.next();
+            // the arrays are shared, so they must not be modified
             return new Pair<K, List<Versioned<V>>>(entry.getKey(), 
-                    entry.getValue());
+                    Collections.unmodifiableList(Arrays.asList(entry.getValue())));
         }
 
         public void remove() {
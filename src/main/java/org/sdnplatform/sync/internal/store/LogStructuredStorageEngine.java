@@ -0,0 +1,966 @@
+package org.sdnplatform.sync.internal.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import net.floodlightcontroller.core.annotations.LogMessageCategory;
+import net.floodlightcontroller.core.annotations.LogMessageDoc;
+import net.floodlightcontroller.core.annotations.LogMessageDocs;
+
+import org.sdnplatform.sync.IClosableIterator;
+import org.sdnplatform.sync.IVersion;
+import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.IVersion.Occurred;
+import org.sdnplatform.sync.error.ObsoleteVersionException;
+import org.sdnplatform.sync.error.PersistException;
+import org.sdnplatform.sync.error.SyncException;
+import org.sdnplatform.sync.error.SyncRuntimeException;
+import org.sdnplatform.sync.internal.util.ByteArray;
+import org.sdnplatform.sync.internal.util.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Persistent storage engine that appends its data to a log of
+ * memory-mapped segment files.
+ *
+ * Each write appends a record holding all the current versions of a key,
+ * and an in-memory index maps every key to its latest record, so a get is
+ * a single read from the mapped segment and a put is a single append.
+ * Records carry a CRC32, and on startup the segments are replayed in
+ * order to rebuild the index; a torn or corrupt record ends its segment,
+ * so a crash while writing loses at most the records that were being
+ * written.  The data is forced to disk when a segment is sealed, on
+ * cleanup and on close.
+ *
+ * Records that are superseded by later writes are reclaimed by a
+ * compaction that runs from {@link #cleanupTask()} once less than half of
+ * the log is live: the live records of the sealed segments are copied to
+ * the end of the log and the sealed segments are deleted.  The compaction
+ * only holds the write lock while copying a single record, and reads never
+ * take it.  A reader pins the segment it reads from, and a segment that is
+ * deleted is unmapped and closed once its last reader is done, so its
+ * disk space is freed without waiting for the garbage collector.
+ */
+@LogMessageCategory("State Synchronization")
+public class LogStructuredStorageEngine
+    implements IStorageEngine<ByteArray, byte[]> {
+    protected static final Logger logger =
+            LoggerFactory.getLogger(LogStructuredStorageEngine.class.getName());
+
+    /**
+     * The default size of a segment file
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * A record is the length of its body, the CRC32 of its body, and a
+     * body holding the record type, the key length, the key and the
+     * encoded versions
+     */
+    private static final int HEADER_SIZE = 8;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+
+    /**
+     * Compact once less than this fraction of the log is live
+     */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    private static final ObjectMapper mapper =
+            new ObjectMapper(new SmileFactory());
+
+    private final String name;
+    private final File directory;
+    private final int segmentSize;
+
+    /**
+     * The latest record of every key in the store
+     */
+    private final ConcurrentHashMap<ByteArray, Location> index =
+            new ConcurrentHashMap<ByteArray, Location>();
+
+    /**
+     * Serializes the writes to the log
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    // guarded by writeLock
+    private final TreeMap<Long, Segment> segments =
+            new TreeMap<Long, Segment>();
+    private Segment active;
+    private long totalBytes;
+    private long liveBytes;
+
+    /**
+     * Interval in milliseconds before tombstones will be cleared.
+     */
+    private int tombstoneDeletion = 24 * 60 * 60 * 1000;
+
+    /**
+     * Construct a new storage engine with the default segment size
+     * @param name the name of the store
+     * @param path the directory containing the logs of all stores
+     * @throws PersistException
+     * @see #getLogPath(String)
+     */
+    public LogStructuredStorageEngine(String name, File path)
+            throws PersistException {
+        this(name, path, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Construct a new storage engine, recovering the data already
+     * logged for the store
+     * @param name the name of the store
+     * @param path the directory containing the logs of all stores
+     * @param segmentSize the size of a segment file
+     * @throws PersistException
+     */
+    public LogStructuredStorageEngine(String name, File path,
+                                      int segmentSize)
+            throws PersistException {
+        super();
+        this.name = name;
+        this.directory = new File(path, name);
+        this.segmentSize = segmentSize;
+
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new PersistException("Could not initialize persistent " +
+                                       "storage", e);
+        }
+    }
+
+    // *******************************
+    // StorageEngine<ByteArray,byte[]>
+    // *******************************
+
+    @Override
+    public List<Versioned<byte[]>> get(ByteArray key) throws SyncException {
+        StoreUtils.assertValidKey(key);
+        try {
+            return readLatest(key, index.get(key));
+        } catch (IOException e) {
+            throw new PersistException("Could not retrieve key from log", e);
+        }
+    }
+
+    @Override
+    public IClosableIterator<Entry<ByteArray, List<Versioned<byte[]>>>>
+            entries() {
+        return new LogIterator(index.entrySet().iterator());
+    }
+
+    @Override
+    public void put(ByteArray key, Versioned<byte[]> value)
+            throws SyncException {
+        StoreUtils.assertValidKey(key);
+        writeLock.lock();
+        try {
+            Location loc = index.get(key);
+            List<Versioned<byte[]>> items = read(loc);
+            if (!merge(items, value))
+                throw new ObsoleteVersionException("Obsolete version for key '"
+                                                   + key + "': " +
+                                                   value.getVersion());
+            writeVersions(key, loc, items);
+        } catch (IOException e) {
+            throw new PersistException("Could not write key to log", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public IClosableIterator<ByteArray> keys() {
+        final Iterator<ByteArray> it = index.keySet().iterator();
+        return new IClosableIterator<ByteArray>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public ByteArray next() {
+                return it.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+                // nothing to do
+            }
+        };
+    }
+
+    @Override
+    public void truncate() throws SyncException {
+        writeLock.lock();
+        try {
+            index.clear();
+            for (Segment s : segments.values()) {
+                s.retire();
+            }
+            long next = (active == null) ? 0 : active.id + 1;
+            segments.clear();
+            totalBytes = 0;
+            liveBytes = 0;
+            active = openSegment(next, segmentSize);
+        } catch (IOException e) {
+            throw new PersistException("Could not truncate store " + name, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void close() throws SyncException {
+        writeLock.lock();
+        try {
+            sync();
+            // the mappings stay valid for the readers still holding them
+            for (Segment s : segments.values()) {
+                s.closeChannel();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @LogMessageDoc(level="ERROR",
+                   message="Failed to sync value because of " +
+                           "persistence exception",
+                   explanation="The value received from a remote node " +
+                               "could not be written to the local log",
+                   recommendation=LogMessageDoc.CHECK_CONTROLLER)
+    @Override
+    public boolean writeSyncValue(ByteArray key,
+                                  Iterable<Versioned<byte[]>> values) {
+        // merge all the values into a single record
+        writeLock.lock();
+        try {
+            Location loc = index.get(key);
+            List<Versioned<byte[]>> items = read(loc);
+            boolean success = false;
+            for (Versioned<byte[]> value : values) {
+                success |= merge(items, value);
+            }
+            if (success)
+                writeVersions(key, loc, items);
+            return success;
+        } catch (IOException e) {
+            logger.error("Failed to sync value because of " +
+                         "persistence exception", e);
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public List<IVersion> getVersions(ByteArray key) throws SyncException {
+        return StoreUtils.getVersions(get(key));
+    }
+
+    @LogMessageDocs({
+        @LogMessageDoc(level="ERROR",
+                       message="Failed to delete key",
+                       explanation="An old tombstone could not be removed " +
+                                   "from the log",
+                       recommendation=LogMessageDoc.CHECK_CONTROLLER),
+        @LogMessageDoc(level="ERROR",
+                       message="Failed to compact store {store}",
+                       explanation="The log of the store could not be " +
+                                   "compacted",
+                       recommendation=LogMessageDoc.CHECK_CONTROLLER)
+    })
+    @Override
+    public void cleanupTask() throws SyncException {
+        // Remove tombstones that are older than the tombstone deletion
+        // threshold.
+        for (Entry<ByteArray, Location> e : index.entrySet()) {
+            try {
+                if (!StoreUtils.canDelete(readLatest(e.getKey(),
+                                                     e.getValue()),
+                                          tombstoneDeletion))
+                    continue;
+                writeLock.lock();
+                try {
+                    // skip the key if it was written since
+                    if (index.get(e.getKey()) != e.getValue()) continue;
+                    writeDelete(e.getKey(), e.getValue());
+                } finally {
+                    writeLock.unlock();
+                }
+            } catch (IOException ex) {
+                logger.error("Failed to delete key", ex);
+            }
+        }
+
+        try {
+            if (needsCompaction())
+                compact();
+            writeLock.lock();
+            try {
+                active.buffer.force();
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            logger.error("Failed to compact store " + name, e);
+        }
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    @Override
+    public void setTombstoneInterval(int interval) {
+        this.tombstoneDeletion = interval;
+    }
+
+    // **************************
+    // LogStructuredStorageEngine
+    // **************************
+
+    /**
+     * Get the directory containing the logs of the stores
+     * @param dbPath The path where the logs will be located, or null for
+     * the working directory
+     * @return the directory
+     */
+    public static File getLogPath(String dbPath) {
+        if (dbPath == null)
+            return new File("SyncLog").getAbsoluteFile();
+        return new File(dbPath, "SyncLog");
+    }
+
+    /**
+     * Force the records written so far to disk
+     */
+    public void sync() {
+        writeLock.lock();
+        try {
+            if (active != null)
+                active.buffer.force();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of keys currently in the store
+     * @return the number of keys
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Get the number of bytes used by the records in the log
+     * @return the size of the log
+     */
+    public long getLogBytes() {
+        writeLock.lock();
+        try {
+            return totalBytes;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of bytes used by the latest records of the keys
+     * @return the live size of the log
+     */
+    public long getLiveBytes() {
+        writeLock.lock();
+        try {
+            return liveBytes;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of segment files of the log
+     * @return the number of segments
+     */
+    public int getSegmentCount() {
+        writeLock.lock();
+        try {
+            return segments.size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Copy the live records of all the sealed segments to the end of the
+     * log and delete the sealed segments.  Writes and reads can proceed
+     * while this runs.
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        if (!compacting.compareAndSet(false, true)) return;
+        try {
+            List<Segment> sealed;
+            writeLock.lock();
+            try {
+                roll(0);
+                sealed = new ArrayList<Segment>(segments.headMap(active.id)
+                                                        .values());
+                // keep a truncate from unmapping them while they are read
+                for (Segment s : sealed) {
+                    s.acquire();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+
+            try {
+                compact(sealed);
+            } finally {
+                for (Segment s : sealed) {
+                    s.release();
+                }
+            }
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    // *************
+    // Local methods
+    // *************
+
+    private void compact(List<Segment> sealed) throws IOException {
+        for (Segment s : sealed) {
+            int pos = 0;
+            Record r;
+            while (null != (r = s.readRecord(pos))) {
+                if (r.type == RECORD_PUT)
+                    copyIfLive(s, pos, r);
+                pos += r.length;
+            }
+        }
+
+        writeLock.lock();
+        try {
+            // the copies must be on disk before the originals go away;
+            // the segments are deleted oldest first so that a crash
+            // part way never exposes a record without the deletes
+            // that follow it
+            active.buffer.force();
+            for (Segment s : sealed) {
+                // unless the store was truncated in the meantime
+                if (segments.remove(s.id) == null) continue;
+                totalBytes -= s.position;
+                s.retire();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private boolean needsCompaction() {
+        writeLock.lock();
+        try {
+            return totalBytes > segmentSize &&
+                   liveBytes < totalBytes * COMPACTION_THRESHOLD;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void copyIfLive(Segment s, int pos, Record r) throws IOException {
+        writeLock.lock();
+        try {
+            Location loc = index.get(r.key);
+            if (loc == null || loc.segment != s || loc.offset != pos)
+                return;
+            byte[] record = new byte[r.length];
+            s.read(pos, record);
+            Location copy = append(record);
+            index.put(r.key, copy);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Merge a value into the versions of a key
+     * @return false if the value is obsolete
+     */
+    private static boolean merge(List<Versioned<byte[]>> items,
+                                 Versioned<byte[]> value) {
+        List<Versioned<byte[]>> itemsToRemove =
+                new ArrayList<Versioned<byte[]>>(items.size());
+        for (Versioned<byte[]> versioned : items) {
+            Occurred occurred =
+                    value.getVersion().compare(versioned.getVersion());
+            if (occurred == Occurred.BEFORE) {
+                return false;
+            } else if (occurred == Occurred.AFTER) {
+                itemsToRemove.add(versioned);
+            }
+        }
+        items.removeAll(itemsToRemove);
+        items.add(value);
+        return true;
+    }
+
+    /**
+     * Read the versions of a key from its location without the write
+     * lock, following the key if its segment is retired in the meantime
+     */
+    private List<Versioned<byte[]>> readLatest(ByteArray key, Location loc)
+            throws IOException {
+        List<Versioned<byte[]>> items;
+        while (null == (items = read(loc))) {
+            // a segment is only retired once the index no longer refers
+            // to it, so the key was moved or removed
+            loc = index.get(key);
+        }
+        return items;
+    }
+
+    /**
+     * Read the versions at a location
+     * @return the versions, or null if the segment of the location was
+     * retired; this can't happen while holding the write lock with a
+     * location from the index
+     */
+    private List<Versioned<byte[]>> read(Location loc) throws IOException {
+        if (loc == null) return new ArrayList<Versioned<byte[]>>(0);
+        if (!loc.segment.acquire()) return null;
+        byte[] record = new byte[loc.length];
+        try {
+            loc.segment.read(loc.offset, record);
+        } finally {
+            loc.segment.release();
+        }
+        int keyLength = ByteBuffer.wrap(record, HEADER_SIZE + 1, 4).getInt();
+        int valueOffset = HEADER_SIZE + 5 + keyLength;
+        return mapper.readValue(record, valueOffset,
+                                record.length - valueOffset,
+                                new TypeReference<List<VCVersioned<byte[]>>>() {});
+    }
+
+    private void writeVersions(ByteArray key, Location old,
+                               List<Versioned<byte[]>> items)
+            throws IOException {
+        byte[] value = mapper.writeValueAsBytes(items);
+        Location loc = append(encode(RECORD_PUT, key.get(), value));
+        index.put(key, loc);
+        liveBytes += loc.length;
+        if (old != null) liveBytes -= old.length;
+    }
+
+    private void writeDelete(ByteArray key, Location old) throws IOException {
+        append(encode(RECORD_DELETE, key.get(), new byte[0]));
+        index.remove(key);
+        liveBytes -= old.length;
+    }
+
+    private static byte[] encode(byte type, byte[] key, byte[] value) {
+        int bodyLength = 5 + key.length + value.length;
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE + bodyLength);
+        bb.putInt(bodyLength);
+        bb.putInt(0);
+        bb.put(type);
+        bb.putInt(key.length);
+        bb.put(key);
+        bb.put(value);
+        CRC32 crc = new CRC32();
+        crc.update(bb.array(), HEADER_SIZE, bodyLength);
+        bb.putInt(4, (int)crc.getValue());
+        return bb.array();
+    }
+
+    /**
+     * Append a record to the active segment.  Must be called with the
+     * write lock held.
+     */
+    private Location append(byte[] record) throws IOException {
+        if (active.position + record.length > active.capacity)
+            roll(record.length);
+        Location loc = new Location(active, active.position, record.length);
+        active.write(active.position, record);
+        active.position += record.length;
+        totalBytes += record.length;
+        return loc;
+    }
+
+    /**
+     * Seal the active segment and start a new one, unless the active
+     * segment is still empty.  Must be called with the write lock held.
+     */
+    private void roll(int minSize) throws IOException {
+        if (active.position == 0 && active.capacity >= minSize) return;
+        active.buffer.force();
+        active = openSegment(active.id + 1, Math.max(segmentSize, minSize));
+    }
+
+    private Segment openSegment(long id, int size) throws IOException {
+        File file = new File(directory, String.format("%016x", id) +
+                                        SEGMENT_SUFFIX);
+        Segment s = new Segment(id, file, size);
+        segments.put(id, s);
+        return s;
+    }
+
+    @LogMessageDoc(level="WARN",
+                   message="Discarding corrupt records at offset {offset} " +
+                           "of {file}",
+                   explanation="A record of the persistent store was not " +
+                               "completely written, most likely because " +
+                               "the controller stopped while writing it",
+                   recommendation="The data will be resynchronized from the " +
+                                  "other nodes in the cluster.  No action " +
+                                  "is required.")
+    private void recover() throws IOException {
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+
+        TreeMap<Long, File> files = new TreeMap<Long, File>();
+        File[] list = directory.listFiles();
+        if (list == null)
+            throw new IOException("Could not list " + directory);
+        for (File f : list) {
+            String fname = f.getName();
+            if (!fname.endsWith(SEGMENT_SUFFIX)) continue;
+            try {
+                long id = Long.parseLong(fname.substring(0, fname.length() -
+                                                  SEGMENT_SUFFIX.length()),
+                                         16);
+                files.put(id, f);
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+
+        writeLock.lock();
+        try {
+            for (Entry<Long, File> e : files.entrySet()) {
+                int size = (int)Math.max(segmentSize, e.getValue().length());
+                Segment s = openSegment(e.getKey(), size);
+                int pos = 0;
+                Record r;
+                while (null != (r = s.readRecord(pos))) {
+                    Location loc = new Location(s, pos, r.length);
+                    Location old;
+                    if (r.type == RECORD_PUT) {
+                        old = index.put(r.key, loc);
+                        liveBytes += r.length;
+                    } else {
+                        old = index.remove(r.key);
+                    }
+                    if (old != null) liveBytes -= old.length;
+                    pos += r.length;
+                }
+                if (!s.isZero(pos))
+                    logger.warn("Discarding corrupt records at offset {} " +
+                                "of {}", pos, s.file);
+                s.position = pos;
+                totalBytes += pos;
+                active = s;
+            }
+            if (active == null) {
+                active = openSegment(0, segmentSize);
+            } else if (!active.isZero(active.position)) {
+                // new records will be appended to the last segment, so
+                // clear what follows them to keep the remains of a torn
+                // write from being read as records
+                active.zero(active.position);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * The location of a record in the log
+     */
+    private static class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        public Location(Segment segment, int offset, int length) {
+            super();
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A decoded record
+     */
+    private static class Record {
+        final byte type;
+        final ByteArray key;
+        final int length;
+
+        public Record(byte type, ByteArray key, int length) {
+            super();
+            this.type = type;
+            this.key = key;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A segment file, mapped into memory.  The segment is referenced by
+     * the log until it is retired, and by each reader while it reads from
+     * it.  Retiring the segment deletes its file, and the last reference
+     * to go unmaps and closes it, which frees its disk space.
+     */
+    private static class Segment {
+        final long id;
+        final File file;
+        final int capacity;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        // the log's reference plus one per reader; zero once released
+        final AtomicInteger refs = new AtomicInteger(1);
+        // guarded by the write lock of the engine
+        int position;
+
+        public Segment(long id, File file, int capacity) throws IOException {
+            super();
+            this.id = id;
+            this.file = file;
+            this.capacity = capacity;
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                              0, capacity);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Pin the segment for a read
+         * @return false if the segment was retired
+         */
+        boolean acquire() {
+            while (true) {
+                int r = refs.get();
+                if (r == 0) return false;
+                if (refs.compareAndSet(r, r + 1)) return true;
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                unmap(buffer);
+                closeChannel();
+            }
+        }
+
+        /**
+         * Delete the segment and drop the log's reference, once the index
+         * no longer refers to it.  Must be called with the write lock
+         * held.
+         */
+        void retire() {
+            delete();
+            release();
+        }
+
+        void closeChannel() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.warn("Could not close {}", file);
+            }
+        }
+
+        int getInt(int offset) {
+            return buffer.getInt(offset);
+        }
+
+        void read(int offset, byte[] dst) {
+            ByteBuffer bb = buffer.duplicate();
+            bb.position(offset);
+            bb.get(dst);
+        }
+
+        void write(int offset, byte[] src) {
+            ByteBuffer bb = buffer.duplicate();
+            bb.position(offset);
+            bb.put(src);
+        }
+
+        boolean isZero(int offset) {
+            for (int i = offset; i < capacity; i++) {
+                if (buffer.get(i) != 0) return false;
+            }
+            return true;
+        }
+
+        void zero(int offset) {
+            byte[] zeros = new byte[Math.min(64 * 1024, capacity - offset)];
+            while (offset < capacity) {
+                int n = Math.min(zeros.length, capacity - offset);
+                ByteBuffer bb = buffer.duplicate();
+                bb.position(offset);
+                bb.put(zeros, 0, n);
+                offset += n;
+            }
+            buffer.force();
+        }
+
+        /**
+         * Read the record at the given offset
+         * @return the record, or null if there is no valid record there
+         */
+        Record readRecord(int offset) {
+            if (offset + HEADER_SIZE > capacity) return null;
+            int bodyLength = getInt(offset);
+            if (bodyLength < 5 || bodyLength > capacity - offset - HEADER_SIZE)
+                return null;
+            byte[] body = new byte[bodyLength];
+            read(offset + HEADER_SIZE, body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int)crc.getValue() != getInt(offset + 4)) return null;
+
+            ByteBuffer bb = ByteBuffer.wrap(body);
+            byte type = bb.get();
+            int keyLength = bb.getInt();
+            if ((type != RECORD_PUT && type != RECORD_DELETE) ||
+                keyLength < 0 || keyLength > bodyLength - 5)
+                return null;
+            byte[] key = new byte[keyLength];
+            bb.get(key);
+            return new Record(type, new ByteArray(key),
+                              HEADER_SIZE + bodyLength);
+        }
+
+        void delete() {
+            if (!file.delete())
+                logger.warn("Could not delete {}", file);
+        }
+    }
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * Release the mapping of a buffer that is no longer read.  The JDK has
+     * no public call for this, so this uses the cleaner of the buffer, and
+     * leaves the mapping to the garbage collector if that is not
+     * accessible.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            logger.debug("Could not unmap segment", e);
+        }
+    }
+
+    private class LogIterator implements
+        IClosableIterator<Entry<ByteArray,List<Versioned<byte[]>>>> {
+
+        private final Iterator<Entry<ByteArray, Location>> it;
+
+        public LogIterator(Iterator<Entry<ByteArray, Location>> it) {
+            super();
+            this.it = it;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public Pair<ByteArray, List<Versioned<byte[]>>> next() {
+            Entry<ByteArray, Location> e = it.next();
+            try {
+                return new Pair<ByteArray,
+                                List<Versioned<byte[]>>>(e.getKey(),
+                                                         readLatest(e.getKey(),
+                                                                    e.getValue()));
+            } catch (IOException ex) {
+                throw new SyncRuntimeException("Error in log iterator",
+                                               new PersistException(ex));
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            // nothing to do
+        }
+    }
+}
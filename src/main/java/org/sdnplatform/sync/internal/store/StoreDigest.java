@@ -0,0 +1,345 @@
+package org.sdnplatform.sync.internal.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.sdnplatform.sync.IClosableIterator;
+import org.sdnplatform.sync.IVersion;
+import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.internal.util.ByteArray;
+import org.sdnplatform.sync.internal.version.VectorClock;
+
+/**
+ * A digest of the versions held by a store, used to find out which keys two
+ * nodes disagree about without exchanging all the keys.
+ *
+ * The keys are hashed into a fixed number of buckets, and each bucket holds
+ * the XOR of the hashes of the keys in it together with their versions.
+ * Two nodes that hold the same versions for the keys of a bucket have the
+ * same value for it, so comparing the digests gives the buckets whose keys
+ * need to be offered.  The hashes only depend on the key bytes and on the
+ * vector clocks, so they agree across nodes.
+ *
+ * The digest is maintained incrementally: a write hashes the versions of the
+ * key before and after it and XORs the difference into the bucket.  Writes
+ * to a bucket are serialized by one of a set of locks, so the before and
+ * after versions of a key are consistent with the writes of other threads.
+ *
+ * A rebuild scans the store without holding the locks, then installs the
+ * recomputed buckets one lock at a time.  A bucket written to during the
+ * scan keeps its incrementally maintained value, since the scan may have
+ * seen the key before or after the write.
+ */
+public class StoreDigest {
+    /**
+     * The default number of buckets
+     */
+    public static final int DEFAULT_BUCKETS = 1024;
+
+    private static final int LOCKS = 64;
+
+    private final AtomicLongArray buckets;
+    private final ReentrantLock[] locks;
+
+    /**
+     * False when a write could not be accounted for, until the next
+     * rebuild
+     */
+    private volatile boolean valid = true;
+
+    /**
+     * Counts the invalidations, so a rebuild can tell whether one happened
+     * while it was scanning
+     */
+    private final AtomicInteger invalidations = new AtomicInteger();
+
+    /**
+     * Serializes the rebuilds
+     */
+    private final ReentrantLock rebuildLock = new ReentrantLock();
+
+    /**
+     * While a rebuild is scanning, the buckets written to since it
+     * started; null otherwise.  Set with all the locks held, and read and
+     * written with the lock of the bucket held.
+     */
+    private boolean[] dirty;
+
+    /**
+     * Allocate a digest with the default number of buckets
+     */
+    public StoreDigest() {
+        this(DEFAULT_BUCKETS);
+    }
+
+    /**
+     * Allocate a digest
+     * @param numBuckets the number of buckets; a power of two
+     */
+    public StoreDigest(int numBuckets) {
+        if (numBuckets <= 0 || (numBuckets & (numBuckets - 1)) != 0)
+            throw new IllegalArgumentException("Number of buckets must be " +
+                                               "a power of two");
+        buckets = new AtomicLongArray(numBuckets);
+        locks = new ReentrantLock[Math.min(LOCKS, numBuckets)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Get the number of buckets
+     * @return the number of buckets
+     */
+    public int getNumBuckets() {
+        return buckets.length();
+    }
+
+    /**
+     * Get the bucket of a key
+     * @param key the key
+     * @return the bucket
+     */
+    public int getBucket(ByteArray key) {
+        return (int)mix(hashKey(key.get())) & (buckets.length() - 1);
+    }
+
+    /**
+     * Get the lock that must be held while the versions of a key are
+     * read, written, and passed to {@link #update(ByteArray, List, List)}
+     * @param key the key
+     * @return the lock
+     */
+    public ReentrantLock getLock(ByteArray key) {
+        return locks[getBucket(key) & (locks.length - 1)];
+    }
+
+    /**
+     * Account for a write to a key.  The caller must hold the key's lock
+     * from before reading the old versions until after this returns.
+     * @param key the key
+     * @param before the versions of the key before the write
+     * @param after the versions of the key after the write
+     */
+    public void update(ByteArray key,
+                       List<IVersion> before, List<IVersion> after) {
+        long delta = hashEntry(key, before) ^ hashEntry(key, after);
+        if (delta == 0) return;
+        int b = getBucket(key);
+        buckets.set(b, buckets.get(b) ^ delta);
+        if (dirty != null) dirty[b] = true;
+    }
+
+    /**
+     * Recompute the digest from the entries of a store.  Writes can go on
+     * during the scan; the buckets they touch are left as they are.  The
+     * digest is valid afterwards if no write could not be accounted for
+     * during the scan, and either it was valid before or no bucket was
+     * left out.
+     * @param store the store to scan
+     */
+    public void rebuild(IStorageEngine<ByteArray, byte[]> store) {
+        rebuildLock.lock();
+        try {
+            int n = buckets.length();
+            boolean[] written = new boolean[n];
+            int invalidationsBefore;
+            lockAll();
+            try {
+                dirty = written;
+                invalidationsBefore = invalidations.get();
+            } finally {
+                unlockAll();
+            }
+
+            long[] fresh = new long[n];
+            boolean complete = false;
+            try {
+                IClosableIterator<Entry<ByteArray,
+                                        List<Versioned<byte[]>>>> it =
+                        store.entries();
+                try {
+                    while (it.hasNext()) {
+                        Entry<ByteArray, List<Versioned<byte[]>>> e =
+                                it.next();
+                        fresh[getBucket(e.getKey())] ^=
+                                hashEntry(e.getKey(), StoreUtils
+                                          .getVersions(e.getValue()));
+                    }
+                } finally {
+                    it.close();
+                }
+                complete = true;
+            } finally {
+                boolean allInstalled = complete;
+                for (int i = 0; i < locks.length; i++) {
+                    locks[i].lock();
+                    try {
+                        for (int b = i; b < n; b += locks.length) {
+                            if (complete && !written[b])
+                                buckets.set(b, fresh[b]);
+                            else
+                                allInstalled = false;
+                        }
+                    } finally {
+                        locks[i].unlock();
+                    }
+                }
+                lockAll();
+                try {
+                    dirty = null;
+                    if (invalidations.get() != invalidationsBefore)
+                        valid = false;
+                    else if (allInstalled)
+                        valid = true;
+                } finally {
+                    unlockAll();
+                }
+            }
+        } finally {
+            rebuildLock.unlock();
+        }
+    }
+
+    /**
+     * Reset the digest to that of an empty store
+     */
+    public void clear() {
+        lockAll();
+        try {
+            clearBuckets();
+            // a rebuild in progress may have scanned the old entries
+            if (dirty != null)
+                Arrays.fill(dirty, true);
+            valid = true;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Mark the digest as out of date, after a write that could not be
+     * accounted for
+     */
+    public void invalidate() {
+        invalidations.incrementAndGet();
+        valid = false;
+    }
+
+    /**
+     * Check whether the digest reflects all the writes to the store
+     * @return true if the digest can be compared with another
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Get the value of every bucket
+     * @return the bucket values
+     */
+    public List<Long> getDigests() {
+        int n = buckets.length();
+        List<Long> result = new ArrayList<Long>(n);
+        for (int i = 0; i < n; i++) {
+            result.add(buckets.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Find the buckets for which another node's digest differs from this
+     * one
+     * @param digests the bucket values of the other node
+     * @return the differing buckets, or null if the digests can't be
+     * compared because one is out of date or they do not have the same
+     * number of buckets
+     */
+    public List<Integer> diff(List<Long> digests) {
+        int n = buckets.length();
+        if (!valid || digests == null || digests.size() != n) return null;
+        List<Integer> result = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) {
+            if (buckets.get(i) != digests.get(i).longValue())
+                result.add(i);
+        }
+        return result;
+    }
+
+    // *************
+    // Local methods
+    // *************
+
+    private void clearBuckets() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+    }
+
+    private void lockAll() {
+        for (ReentrantLock l : locks) {
+            l.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Hash a key and its versions.  A key without versions hashes to zero,
+     * so it does not change its bucket.  The versions are combined with
+     * a sum, so their order does not matter.
+     */
+    private static long hashEntry(ByteArray key, List<IVersion> versions) {
+        if (versions == null || versions.size() == 0) return 0;
+        long keyHash = hashKey(key.get());
+        long h = 0;
+        for (IVersion v : versions) {
+            h += mix(keyHash + hashClock((VectorClock)v));
+        }
+        // keep a non-empty entry from hashing to zero
+        return (h == 0) ? 1 : h;
+    }
+
+    private static long hashClock(VectorClock vc) {
+        // the timestamp is not compared when resolving versions, so it is
+        // left out
+        long h = 0;
+        for (int i = 0; i < vc.size(); i++) {
+            h += mix(((long)vc.getNodeId(i) << 48) ^ vc.getVersion(i));
+        }
+        return h;
+    }
+
+    /**
+     * 64-bit FNV-1a
+     */
+    private static long hashKey(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * The finalizer of MurmurHash3
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9a53fe1a85bL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
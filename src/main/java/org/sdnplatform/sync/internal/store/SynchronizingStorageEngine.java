@@ -1,9 +1,15 @@
 package org.sdnplatform.sync.internal.store;
 
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.floodlightcontroller.core.annotations.LogMessageDoc;
 import net.floodlightcontroller.debugcounter.IDebugCounterService;
 
+import org.sdnplatform.sync.IVersion;
 import org.sdnplatform.sync.Versioned;
 import org.sdnplatform.sync.ISyncService.Scope;
+import org.sdnplatform.sync.IStoreListener.UpdateType;
 import org.sdnplatform.sync.error.SyncException;
 import org.sdnplatform.sync.internal.SyncManager;
 import org.sdnplatform.sync.internal.util.ByteArray;
@@ -30,6 +36,11 @@ public class SynchronizingStorageEngine extends ListenerStorageEngine {
      */
     protected Scope scope;
 
+    /**
+     * The digest of the versions in this store, used for antientropy
+     */
+    protected StoreDigest digest = new StoreDigest();
+
     /**
      * Allocate a synchronizing storage engine
      * @param localStorage the local storage
@@ -48,6 +59,8 @@ public class SynchronizingStorageEngine extends ListenerStorageEngine {
         this.localStorage = localStorage;
         this.syncManager = syncManager;
         this.scope = scope;
+        // a persistent store may already hold data
+        digest.rebuild(localStorage);
     }
 
     // *************************
@@ -57,10 +70,58 @@ public class SynchronizingStorageEngine extends ListenerStorageEngine {
     @Override
     public void put(ByteArray key, Versioned<byte[]> value)
             throws SyncException {
-        super.put(key, value);
+        updateCounter(SyncManager.counterPuts);
+        ReentrantLock lock = digest.getLock(key);
+        lock.lock();
+        try {
+            List<IVersion> before = localStorage.getVersions(key);
+            localStorage.put(key, value);
+            updateDigest(key, before);
+        } finally {
+            lock.unlock();
+        }
+        // listeners are notified outside the lock since they may write
+        // to other keys
+        notifyListeners(key, UpdateType.LOCAL);
         if (!Scope.UNSYNCHRONIZED.equals(scope))
             syncManager.queueSyncTask(this, key, value);
     }
+
+    @Override
+    public boolean writeSyncValue(ByteArray key,
+                                  Iterable<Versioned<byte[]>> values) {
+        boolean r;
+        ReentrantLock lock = digest.getLock(key);
+        lock.lock();
+        try {
+            List<IVersion> before = null;
+            try {
+                before = localStorage.getVersions(key);
+            } catch (SyncException e) {
+                digestFailed(e);
+            }
+            r = localStorage.writeSyncValue(key, values);
+            if (r && before != null)
+                updateDigest(key, before);
+        } finally {
+            lock.unlock();
+        }
+        if (r) notifyListeners(key, UpdateType.REMOTE);
+        return r;
+    }
+
+    @Override
+    public void truncate() throws SyncException {
+        super.truncate();
+        digest.clear();
+    }
+
+    @Override
+    public void cleanupTask() throws SyncException {
+        super.cleanupTask();
+        // the tombstones removed by the cleanup are not seen key by key
+        digest.rebuild(localStorage);
+    }
     
     // **************
     // Public methods
@@ -73,4 +134,35 @@ public class SynchronizingStorageEngine extends ListenerStorageEngine {
     public Scope getScope() {
         return scope;
     }
+
+    /**
+     * Get the digest of the versions in this store
+     * @return the {@link StoreDigest}
+     */
+    public StoreDigest getDigest() {
+        return digest;
+    }
+
+    // *************
+    // Local methods
+    // *************
+
+    private void updateDigest(ByteArray key, List<IVersion> before) {
+        try {
+            digest.update(key, before, localStorage.getVersions(key));
+        } catch (SyncException e) {
+            digestFailed(e);
+        }
+    }
+
+    @LogMessageDoc(level="ERROR",
+            message="Failed to update the digest of store {name}",
+            explanation="The versions of a key could not be read after " +
+                        "a write, so antientropy will offer all keys " +
+                        "of the store until the next cleanup",
+            recommendation=LogMessageDoc.CHECK_CONTROLLER)
+    private void digestFailed(SyncException e) {
+        logger.error("Failed to update the digest of store " + getName(), e);
+        digest.invalidate();
+    }
 }
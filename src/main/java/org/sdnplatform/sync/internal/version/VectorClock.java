@@ -18,8 +18,11 @@
 package org.sdnplatform.sync.internal.version;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import org.sdnplatform.sync.IVersion;
@@ -28,22 +31,31 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
-import com.google.common.collect.Lists;
-
 /**
  * A vector of the number of writes mastered by each node. The vector is stored
  * sparely, since, in general, writes will be mastered by only one node. This
  * means implicitly all the versions are at zero, but we only actually store
  * those greater than zero.
+ *
+ * The entries are kept in two parallel arrays of node ids and versions,
+ * sorted by node id. The arrays are never modified once the clock is
+ * constructed, so clocks derived from this one share them where they can,
+ * and comparing clocks does not allocate.
  */
 public class VectorClock implements IVersion, Serializable, Cloneable {
 
-    private static final long serialVersionUID = 7663945747147638702L;
+    private static final long serialVersionUID = -2936125738912074953L;
 
     private static final int MAX_NUMBER_OF_VERSIONS = Short.MAX_VALUE;
 
-    /* A sorted list of live versions ordered from least to greatest */
-    private final List<ClockEntry> versions;
+    private static final short[] EMPTY_NODE_IDS = new short[0];
+    private static final long[] EMPTY_VERSIONS = new long[0];
+
+    /* The node ids of the live versions ordered from least to greatest */
+    private final short[] nodeIds;
+
+    /* The version of each node in nodeIds */
+    private final long[] versions;
 
     /*
      * The time of the last update on the server on which the update was
@@ -55,11 +67,11 @@ public class VectorClock implements IVersion, Serializable, Cloneable {
      * Construct an empty VectorClock
      */
     public VectorClock() {
-        this(new ArrayList<ClockEntry>(0), System.currentTimeMillis());
+        this(System.currentTimeMillis());
     }
 
     public VectorClock(long timestamp) {
-        this(new ArrayList<ClockEntry>(0), timestamp);
+        this(EMPTY_NODE_IDS, EMPTY_VERSIONS, timestamp);
     }
 
     /**
@@ -71,6 +83,43 @@ public class VectorClock implements IVersion, Serializable, Cloneable {
     @JsonCreator
     public VectorClock(@JsonProperty("entries") List<ClockEntry> versions, 
                        @JsonProperty("timestamp") long timestamp) {
+        int size = (versions == null) ? 0 : versions.size();
+        short[] ids = new short[size];
+        long[] vers = new long[size];
+        boolean sorted = true;
+        for(int i = 0; i < size; i++) {
+            ClockEntry entry = versions.get(i);
+            ids[i] = entry.getNodeId();
+            vers[i] = entry.getVersion();
+            if(i > 0 && ids[i] <= ids[i - 1])
+                sorted = false;
+        }
+        if(!sorted) {
+            List<ClockEntry> entries = new ArrayList<ClockEntry>(versions);
+            Collections.sort(entries, ClockEntryComparator.INSTANCE);
+            for(int i = 0; i < size; i++) {
+                ids[i] = entries.get(i).getNodeId();
+                vers[i] = entries.get(i).getVersion();
+            }
+        }
+        this.nodeIds = ids;
+        this.versions = vers;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Create a VectorClock from its packed entries. The arrays are not
+     * copied, so the caller must not modify them afterwards.
+     *
+     * @param nodeIds The node ids, strictly increasing
+     * @param versions The version of each node, at least 1
+     * @param timestamp The timestamp to prepopulate
+     */
+    public VectorClock(short[] nodeIds, long[] versions, long timestamp) {
+        if(nodeIds.length != versions.length)
+            throw new IllegalArgumentException("Node ids and versions " +
+                                               "have different lengths");
+        this.nodeIds = nodeIds;
         this.versions = versions;
         this.timestamp = timestamp;
     }
@@ -87,37 +136,33 @@ public class VectorClock implements IVersion, Serializable, Cloneable {
             throw new IllegalArgumentException(nodeId
                                                + " is outside the acceptable range of node ids.");
 
-        // stop on the index greater or equal to the node
-        List<ClockEntry> newversions = Lists.newArrayList(versions);
-        boolean found = false;
-        int index = 0;
-        for(; index < newversions.size(); index++) {
-            if(newversions.get(index).getNodeId() == nodeId) {
-                found = true;
-                break;
-            } else if(newversions.get(index).getNodeId() > nodeId) {
-                found = false;
-                break;
-            }
-        }
-
-        if(found) {
-            newversions.set(index, newversions.get(index).incremented());
-        } else if(index < newversions.size() - 1) {
-            newversions.add(index, new ClockEntry((short) nodeId, 1));
-        } else {
-            // we don't already have a version for this, so add it
-            if(newversions.size() > MAX_NUMBER_OF_VERSIONS)
-                throw new IllegalStateException("Vector clock is full!");
-            newversions.add(index, new ClockEntry((short) nodeId, 1));
+        int index = Arrays.binarySearch(nodeIds, (short) nodeId);
+        if(index >= 0) {
+            long[] newversions = versions.clone();
+            newversions[index] += 1;
+            return new VectorClock(nodeIds, newversions, time);
         }
 
-        return new VectorClock(newversions, time);
+        // we don't already have a version for this, so add it
+        if(nodeIds.length >= MAX_NUMBER_OF_VERSIONS)
+            throw new IllegalStateException("Vector clock is full!");
+        index = -index - 1;
+        int size = nodeIds.length;
+        short[] newids = new short[size + 1];
+        long[] newversions = new long[size + 1];
+        System.arraycopy(nodeIds, 0, newids, 0, index);
+        System.arraycopy(versions, 0, newversions, 0, index);
+        newids[index] = (short) nodeId;
+        newversions[index] = 1;
+        System.arraycopy(nodeIds, index, newids, index + 1, size - index);
+        System.arraycopy(versions, index, newversions, index + 1, size - index);
+        return new VectorClock(newids, newversions, time);
     }
 
     @Override
     public VectorClock clone() {
-        return new VectorClock(Lists.newArrayList(versions), this.timestamp);
+        // the arrays are immutable, so they can be shared
+        return new VectorClock(nodeIds, versions, this.timestamp);
     }
 
     @Override
@@ -125,8 +170,8 @@ public class VectorClock implements IVersion, Serializable, Cloneable {
         final int prime = 31;
         int result = 1;
         result = prime * result + (int) (timestamp ^ (timestamp >>> 32));
-        result = prime * result
-                 + ((versions == null) ? 0 : versions.hashCode());
+        result = prime * result + Arrays.hashCode(nodeIds);
+        result = prime * result + Arrays.hashCode(versions);
         return result;
     }
 
@@ -137,64 +182,89 @@ public class VectorClock implements IVersion, Serializable, Cloneable {
         if (getClass() != obj.getClass()) return false;
         VectorClock other = (VectorClock) obj;
         if (timestamp != other.timestamp) return false;
-        if (versions == null) {
-            if (other.versions != null) return false;
-        } else if (!versions.equals(other.versions)) return false;
-        return true;
+        return Arrays.equals(nodeIds, other.nodeIds) &&
+               Arrays.equals(versions, other.versions);
     }
 
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
         builder.append("version(");
-        if(this.versions.size() > 0) {
-            for(int i = 0; i < this.versions.size() - 1; i++) {
-                builder.append(this.versions.get(i));
+        for(int i = 0; i < nodeIds.length; i++) {
+            if(i > 0)
                 builder.append(", ");
-            }
-            builder.append(this.versions.get(this.versions.size() - 1));
+            builder.append(nodeIds[i]).append(':').append(versions[i]);
         }
         builder.append(")");
-        builder.append(" ts:" + timestamp);
+        builder.append(" ts:").append(timestamp);
         return builder.toString();
     }
 
     @JsonIgnore
     public long getMaxVersion() {
         long max = -1;
-        for(ClockEntry entry: versions)
-            max = Math.max(entry.getVersion(), max);
+        for(long version: versions)
+            max = Math.max(version, max);
         return max;
     }
 
     public VectorClock merge(VectorClock clock) {
-        VectorClock newClock = new VectorClock();
+        short[] ids1 = this.nodeIds;
+        short[] ids2 = clock.nodeIds;
+        long[] vers1 = this.versions;
+        long[] vers2 = clock.versions;
+
+        // count the entries of the union so the arrays are allocated once
+        int size = 0;
         int i = 0;
         int j = 0;
-        while(i < this.versions.size() && j < clock.versions.size()) {
-            ClockEntry v1 = this.versions.get(i);
-            ClockEntry v2 = clock.versions.get(j);
-            if(v1.getNodeId() == v2.getNodeId()) {
-                newClock.versions.add(new ClockEntry(v1.getNodeId(), Math.max(v1.getVersion(),
-                                                                              v2.getVersion())));
+        while(i < ids1.length && j < ids2.length) {
+            if(ids1[i] == ids2[j]) {
+                i++;
+                j++;
+            } else if(ids1[i] < ids2[j]) {
+                i++;
+            } else {
+                j++;
+            }
+            size++;
+        }
+        size += (ids1.length - i) + (ids2.length - j);
+
+        short[] newids = new short[size];
+        long[] newversions = new long[size];
+        int k = 0;
+        i = 0;
+        j = 0;
+        while(i < ids1.length && j < ids2.length) {
+            if(ids1[i] == ids2[j]) {
+                newids[k] = ids1[i];
+                newversions[k] = Math.max(vers1[i], vers2[j]);
                 i++;
                 j++;
-            } else if(v1.getNodeId() < v2.getNodeId()) {
-                newClock.versions.add(v1.clone());
+            } else if(ids1[i] < ids2[j]) {
+                newids[k] = ids1[i];
+                newversions[k] = vers1[i];
                 i++;
             } else {
-                newClock.versions.add(v2.clone());
+                newids[k] = ids2[j];
+                newversions[k] = vers2[j];
                 j++;
             }
+            k++;
         }
 
         // Okay now there may be leftovers on one or the other list remaining
-        for(int k = i; k < this.versions.size(); k++)
-            newClock.versions.add(this.versions.get(k).clone());
-        for(int k = j; k < clock.versions.size(); k++)
-            newClock.versions.add(clock.versions.get(k).clone());
+        for(; i < ids1.length; i++, k++) {
+            newids[k] = ids1[i];
+            newversions[k] = vers1[i];
+        }
+        for(; j < ids2.length; j++, k++) {
+            newids[k] = ids2[j];
+            newversions[k] = vers2[j];
+        }
 
-        return newClock;
+        return new VectorClock(newids, newversions, System.currentTimeMillis());
     }
 
     @Override
@@ -222,20 +292,22 @@ public class VectorClock implements IVersion, Serializable, Cloneable {
         // We do two checks: v1 <= v2 and v2 <= v1 if both are true then
         boolean v1Bigger = false;
         boolean v2Bigger = false;
+        short[] ids1 = v1.nodeIds;
+        short[] ids2 = v2.nodeIds;
         int p1 = 0;
         int p2 = 0;
 
-        while(p1 < v1.versions.size() && p2 < v2.versions.size()) {
-            ClockEntry ver1 = v1.versions.get(p1);
-            ClockEntry ver2 = v2.versions.get(p2);
-            if(ver1.getNodeId() == ver2.getNodeId()) {
-                if(ver1.getVersion() > ver2.getVersion())
+        while(p1 < ids1.length && p2 < ids2.length) {
+            if(ids1[p1] == ids2[p2]) {
+                long ver1 = v1.versions[p1];
+                long ver2 = v2.versions[p2];
+                if(ver1 > ver2)
                     v1Bigger = true;
-                else if(ver2.getVersion() > ver1.getVersion())
+                else if(ver2 > ver1)
                     v2Bigger = true;
                 p1++;
                 p2++;
-            } else if(ver1.getNodeId() > ver2.getNodeId()) {
+            } else if(ids1[p1] > ids2[p2]) {
                 // since ver1 is bigger that means it is missing a version that
                 // ver2 has
                 v2Bigger = true;
@@ -246,12 +318,15 @@ public class VectorClock implements IVersion, Serializable, Cloneable {
                 v1Bigger = true;
                 p1++;
             }
+            // nothing left to learn once each clock is ahead somewhere
+            if(v1Bigger && v2Bigger)
+                return Occurred.CONCURRENTLY;
         }
 
         /* Okay, now check for left overs */
-        if(p1 < v1.versions.size())
+        if(p1 < ids1.length)
             v1Bigger = true;
-        else if(p2 < v2.versions.size())
+        else if(p2 < ids2.length)
             v2Bigger = true;
 
         /* This is the case where they are equal, return BEFORE arbitrarily */
@@ -272,7 +347,127 @@ public class VectorClock implements IVersion, Serializable, Cloneable {
         return this.timestamp;
     }
 
+    /**
+     * Get the entries of the clock. This allocates a list of entries; use
+     * {@link #size()}, {@link #getNodeId(int)} and {@link #getVersion(int)}
+     * to walk the entries without allocating.
+     * @return the entries, ordered by node id
+     */
     public List<ClockEntry> getEntries() {
-        return Collections.unmodifiableList(this.versions);
+        List<ClockEntry> entries = new ArrayList<ClockEntry>(nodeIds.length);
+        for(int i = 0; i < nodeIds.length; i++)
+            entries.add(new ClockEntry(nodeIds[i], versions[i]));
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return the number of nodes with a version in this clock
+     */
+    public int size() {
+        return nodeIds.length;
+    }
+
+    /**
+     * @param index the index of an entry, from 0 to {@link #size()}
+     * @return the node id of the entry; node ids increase with the index
+     */
+    public short getNodeId(int index) {
+        return nodeIds[index];
+    }
+
+    /**
+     * @param index the index of an entry, from 0 to {@link #size()}
+     * @return the version of the entry
+     */
+    public long getVersion(int index) {
+        return versions[index];
+    }
+
+    /**
+     * Encode the entries of the clock compactly. Each entry is written as
+     * the difference between its node id and that of the previous entry
+     * followed by its version, both as unsigned varints, so a clock with a
+     * few small versions takes a few bytes. The timestamp is not included.
+     * @return the encoded entries
+     * @see #unpack(byte[], long)
+     */
+    public byte[] pack() {
+        // a delta takes at most 3 bytes and a version at most 10
+        byte[] buf = new byte[nodeIds.length * 13];
+        int pos = 0;
+        int last = 0;
+        for(int i = 0; i < nodeIds.length; i++) {
+            pos = writeVarLong(buf, pos, nodeIds[i] - last);
+            pos = writeVarLong(buf, pos, versions[i]);
+            last = nodeIds[i];
+        }
+        return Arrays.copyOf(buf, pos);
+    }
+
+    /**
+     * Decode entries encoded by {@link #pack()}
+     * @param packed the encoded entries
+     * @param timestamp the timestamp of the clock
+     * @return the clock
+     * @throws IllegalArgumentException if the entries are malformed
+     */
+    public static VectorClock unpack(byte[] packed, long timestamp) {
+        // every entry takes at least two bytes
+        short[] ids = new short[packed.length / 2];
+        long[] vers = new long[ids.length];
+        int size = 0;
+        ByteBuffer buf = ByteBuffer.wrap(packed);
+        long last = 0;
+        while(buf.hasRemaining()) {
+            long delta = readVarLong(buf);
+            long version = readVarLong(buf);
+            long nodeId = last + delta;
+            if((size > 0 && delta == 0) || delta < 0 ||
+               nodeId > Short.MAX_VALUE)
+                throw new IllegalArgumentException("Invalid node id " + nodeId);
+            if(version < 1)
+                throw new IllegalArgumentException("Invalid version " + version);
+            ids[size] = (short) nodeId;
+            vers[size] = version;
+            last = nodeId;
+            size++;
+        }
+        if(size < ids.length) {
+            ids = Arrays.copyOf(ids, size);
+            vers = Arrays.copyOf(vers, size);
+        }
+        return new VectorClock(ids, vers, timestamp);
+    }
+
+    private static int writeVarLong(byte[] buf, int pos, long value) {
+        while((value & ~0x7fL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static long readVarLong(ByteBuffer buf) {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            if(!buf.hasRemaining())
+                throw new IllegalArgumentException("Truncated vector clock");
+            byte b = buf.get();
+            value |= (long) (b & 0x7f) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed vector clock");
+    }
+
+    private static class ClockEntryComparator
+        implements Comparator<ClockEntry> {
+        static final ClockEntryComparator INSTANCE = new ClockEntryComparator();
+
+        @Override
+        public int compare(ClockEntry o1, ClockEntry o2) {
+            return o1.getNodeId() - o2.getNodeId();
+        }
     }
 }
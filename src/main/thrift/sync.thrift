@@ -21,7 +21,10 @@ struct ClockEntry {
 
 struct VectorClock {
   1: optional list<ClockEntry> versions,
-  2: optional i64 timestamp
+  2: optional i64 timestamp,
+  # The entries as encoded by VectorClock.pack(); takes precedence over
+  # versions when set
+  3: optional binary packed
 }
 
 struct VersionedValue {
@@ -93,6 +96,8 @@ enum MessageType {
   REGISTER_RESPONSE = 19,
   CLUSTER_JOIN_REQUEST = 20,
   CLUSTER_JOIN_RESPONSE = 21,
+  SYNC_DIGEST = 22,
+  SYNC_DIGEST_RESPONSE = 23,
 }
 
 enum AuthScheme {
@@ -223,6 +228,18 @@ struct ClusterJoinResponseMessage {
   3: optional list<KeyedValues> nodeStore
 }
 
+struct SyncDigestMessage {
+  1: required AsyncMessageHeader header,
+  2: required Store store,
+  3: optional list<i64> digests
+}
+
+struct SyncDigestResponseMessage {
+  1: required AsyncMessageHeader header,
+  2: required Store store,
+  3: optional list<i32> buckets
+}
+
 #
 # Message wrapper
 #
@@ -250,4 +267,6 @@ struct SyncMessage {
   20: optional RegisterResponseMessage registerResponse,
   21: optional ClusterJoinRequestMessage clusterJoinRequest,
   22: optional ClusterJoinResponseMessage clusterJoinResponse,
+  23: optional SyncDigestMessage syncDigest,
+  24: optional SyncDigestResponseMessage syncDigestResponse,
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FloodlightContextTest {
+    protected static final String SLOT_KEY =
+            "net.floodlightcontroller.core.FloodlightContextTest.slot";
+    protected static final String MAP_KEY =
+            "net.floodlightcontroller.core.FloodlightContextTest.map";
+
+    @Test
+    public void testSlotsAndNamedKeys() {
+        FloodlightContextStore<String> store =
+                new FloodlightContextStore<String>();
+        FloodlightContext cntx = new FloodlightContext();
+        // registered after the context was created
+        int slot = FloodlightContext.registerSlot(SLOT_KEY);
+        assertEquals(slot, FloodlightContext.registerSlot(SLOT_KEY));
+        assertEquals(slot, FloodlightContext.getSlot(SLOT_KEY));
+        assertEquals(-1, FloodlightContext.getSlot(MAP_KEY));
+
+        assertNull(store.get(cntx, slot));
+        store.put(cntx, SLOT_KEY, "a");
+        assertEquals("a", store.get(cntx, slot));
+        assertEquals("a", store.get(cntx, SLOT_KEY));
+        store.put(cntx, slot, "b");
+        assertEquals("b", store.get(cntx, SLOT_KEY));
+        // slotted keys never touch the map
+        assertNull(cntx.storage);
+
+        store.put(cntx, MAP_KEY, "c");
+        assertEquals("c", store.get(cntx, MAP_KEY));
+        assertEquals("c", cntx.getStorage().get(MAP_KEY));
+
+        store.remove(cntx, SLOT_KEY);
+        assertNull(store.get(cntx, slot));
+        store.put(cntx, slot, "d");
+        cntx.clear();
+        assertNull(store.get(cntx, SLOT_KEY));
+        assertNull(store.get(cntx, MAP_KEY));
+    }
+}
@@ -10,10 +10,13 @@ import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 import org.easymock.Capture;
+import org.easymock.CaptureType;
 import org.easymock.EasyMock;
 import org.hamcrest.CoreMatchers;
 import org.hamcrest.Matchers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.util.HashedWheelTimer;
 import org.jboss.netty.util.Timer;
 import org.junit.Before;
@@ -255,4 +258,53 @@ public class OFConnectionTest {
                 Matchers.<OFMessage> contains(hello, packetOut));
     }
 
+    /** packetOuts written while a write is in flight are coalesced */
+    @Test(timeout = 5000)
+    public void testWriteCoalescing() throws InterruptedException, ExecutionException {
+        EasyMock.expect(channel.isConnected()).andReturn(Boolean.TRUE).anyTimes();
+        ChannelFuture future = EasyMock.createMock(ChannelFuture.class);
+        Capture<ChannelFutureListener> cListener = new Capture<>(CaptureType.ALL);
+        future.addListener(capture(cListener));
+        EasyMock.expectLastCall().anyTimes();
+        Capture<List<OFMessage>> cMsgList = new Capture<>(CaptureType.ALL);
+        expect(channel.write(capture(cMsgList))).andReturn(future).anyTimes();
+        replay(channel, future);
+
+        OFPacketOut po1 = factory.buildPacketOut().setXid(1).build();
+        OFPacketOut po2 = factory.buildPacketOut().setXid(2).build();
+        OFPacketOut po3 = factory.buildPacketOut().setXid(3).build();
+
+        // nothing in flight: written right away
+        conn.write(po1);
+        assertThat(cMsgList.getValues().size(), equalTo(1));
+
+        // queued behind the first write
+        conn.write(po2);
+        conn.write(po3);
+        assertThat(cMsgList.getValues().size(), equalTo(1));
+
+        // written as one batch once the first write completes
+        cListener.getValue().operationComplete(future);
+        assertThat(cMsgList.getValues().size(), equalTo(2));
+        assertThat(cMsgList.getValues().get(1),
+                Matchers.<OFMessage> contains(po2, po3));
+
+        // flush() doesn't wait for the write in flight
+        OFPacketOut po4 = factory.buildPacketOut().setXid(4).build();
+        conn.write(po4);
+        assertThat(cMsgList.getValues().size(), equalTo(2));
+        conn.flush();
+        assertThat(cMsgList.getValues().size(), equalTo(3));
+        assertThat(cMsgList.getValues().get(2),
+                Matchers.<OFMessage> contains(po4));
+
+        // other messages go out right away, behind what was queued
+        OFPacketOut po5 = factory.buildPacketOut().setXid(5).build();
+        OFHello hello = factory.hello(ImmutableList.<OFHelloElem>of());
+        conn.write(po5);
+        conn.write(hello);
+        assertThat(cMsgList.getValues().size(), equalTo(4));
+        assertThat(cMsgList.getValues().get(3),
+                Matchers.<OFMessage> contains(po5, hello));
+    }
 }
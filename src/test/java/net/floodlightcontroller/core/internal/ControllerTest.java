@@ -20,6 +20,7 @@ package net.floodlightcontroller.core.internal;
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
 
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -33,6 +34,7 @@ import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IHAListener;
 import net.floodlightcontroller.core.IListener;
 import net.floodlightcontroller.core.IListener.Command;
+import net.floodlightcontroller.core.IOFMessageBatchListener;
 import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.RoleInfo;
@@ -414,6 +416,112 @@ public class ControllerTest extends FloodlightTestCase {
         verify(sw);
     }
 
+    /**
+     * Test dispatching a batch of messages: a batch listener gets the
+     * messages at once, and the messages it stops are not passed to the
+     * listeners after it.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDispatchMessageBatch() throws Exception {
+        controller.removeOFMessageListeners(OFType.PACKET_IN);
+
+        IOFSwitch sw = createMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(DatapathId.NONE).anyTimes();
+
+        IOFMessageBatchListener test1 = createMock(IOFMessageBatchListener.class);
+        expect(test1.getName()).andReturn("test1").anyTimes();
+        setupListenerOrdering(test1);
+
+        IOFMessageListener test2 = createMock(IOFMessageListener.class);
+        expect(test2.getName()).andReturn("test2").anyTimes();
+        expect(test2.isCallbackOrderingPrereq(OFType.PACKET_IN, "test1"))
+                .andReturn(true).anyTimes();
+        setupListenerOrdering(test2);
+
+        replay(test1, test2, sw);
+        controller.addOFMessageListener(OFType.PACKET_IN, test1);
+        controller.addOFMessageListener(OFType.PACKET_IN, test2);
+        verify(test1, test2);
+
+        OFPacketIn pi2 = pi.createBuilder().setXid(2).build();
+        OFPacketIn pi3 = pi.createBuilder().setXid(3).build();
+        List<OFMessage> msgs = ImmutableList.<OFMessage>of(pi, pi2, pi3);
+
+        //------------------
+        // test1 stops pi2, so test2 only gets pi and pi3
+        reset(test1, test2);
+        expect(test1.receiveBatch(eq(sw), eq(msgs), anyObject(List.class)))
+                .andReturn(new Command[] { Command.CONTINUE, Command.STOP,
+                                           Command.CONTINUE });
+        expect(test2.receive(eq(sw), eq(pi), isA(FloodlightContext.class)))
+                .andReturn(Command.CONTINUE);
+        expect(test2.receive(eq(sw), eq(pi3), isA(FloodlightContext.class)))
+                .andReturn(Command.CONTINUE);
+        replay(test1, test2);
+        controller.dispatchMessages(sw, msgs);
+        verify(test1, test2);
+
+        //------------------
+        // A single message is delivered through receive()
+        reset(test1, test2);
+        expect(test1.receive(eq(sw), eq(pi), isA(FloodlightContext.class)))
+                .andReturn(Command.STOP);
+        replay(test1, test2);
+        controller.dispatchMessages(sw, ImmutableList.<OFMessage>of(pi));
+        verify(test1, test2);
+
+        //------------------
+        // The batch payload is decoded from each packet-in
+        reset(test1, test2);
+        expect(test1.receiveBatch(eq(sw), eq(msgs), anyObject(List.class)))
+                .andAnswer(new IAnswer<Command[]>() {
+            @Override
+            public Command[] answer() throws Throwable {
+                List<FloodlightContext> cntxs =
+                        (List<FloodlightContext>) getCurrentArguments()[2];
+                assertEquals(3, cntxs.size());
+                for (FloodlightContext cntx : cntxs) {
+                    Ethernet eth = IFloodlightProviderService.bcStore.get(cntx,
+                            IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+                    assertArrayEquals(testPacket.serialize(), eth.serialize());
+                }
+                return null;
+            }
+        });
+        expect(test2.receive(eq(sw), isA(OFPacketIn.class),
+                             isA(FloodlightContext.class)))
+                .andReturn(Command.CONTINUE).times(3);
+        replay(test1, test2);
+        controller.dispatchMessages(sw, msgs);
+        verify(test1, test2);
+
+        //------------------
+        // An exception for pi does not keep pi2 and pi3 from test2, and is
+        // rethrown once the batch is dispatched
+        reset(test1, test2);
+        expect(test1.receiveBatch(eq(sw), eq(msgs), anyObject(List.class)))
+                .andReturn(null);
+        expect(test2.receive(eq(sw), eq(pi), isA(FloodlightContext.class)))
+                .andThrow(new RuntimeException("This is NOT an error! We " +
+                                           "are testing exception catching."));
+        expect(test2.receive(eq(sw), eq(pi2), isA(FloodlightContext.class)))
+                .andReturn(Command.CONTINUE);
+        expect(test2.receive(eq(sw), eq(pi3), isA(FloodlightContext.class)))
+                .andReturn(Command.CONTINUE);
+        replay(test1, test2);
+        try {
+            controller.dispatchMessages(sw, msgs);
+            fail("Expected exception was not thrown!");
+        } catch (RuntimeException e) {
+            assertTrue("The caught exception was not the expected one",
+                       e.getMessage().startsWith("This is NOT an error!"));
+        }
+        verify(test1, test2);
+
+        verify(sw);
+    }
+
     @Test
     public void testHandleMessagesSlave() throws Exception {
         doSetUp(HARole.STANDBY);
@@ -0,0 +1,241 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.internal;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.debugcounter.DebugCounterServiceImpl;
+import net.floodlightcontroller.debugcounter.MockDebugCounterService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFType;
+import org.projectfloodlight.openflow.types.DatapathId;
+
+public class DispatchPipelineTest {
+    private ControllerCounters counters;
+    private DispatchPipeline pipeline;
+
+    @Before
+    public void setUp() {
+        counters = new ControllerCounters(new MockDebugCounterService());
+    }
+
+    @After
+    public void tearDown() {
+        if (pipeline != null)
+            pipeline.stop();
+    }
+
+    private static IOFSwitch makeSwitch(long dpid) {
+        IOFSwitch sw = createMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(DatapathId.of(dpid)).anyTimes();
+        replay(sw);
+        return sw;
+    }
+
+    private static OFMessage makeMessage() {
+        return makeMessage(OFType.PORT_STATUS);
+    }
+
+    private static OFMessage makeMessage(OFType type) {
+        OFMessage m = createMock(OFMessage.class);
+        expect(m.getType()).andReturn(type).anyTimes();
+        replay(m);
+        return m;
+    }
+
+    @Test
+    public void testPerSwitchOrdering() throws Exception {
+        final int numSwitches = 16;
+        final int numMessages = 200;
+        final Map<IOFSwitch, List<OFMessage>> received =
+                new HashMap<IOFSwitch, List<OFMessage>>();
+        final CountDownLatch done =
+                new CountDownLatch(numSwitches * numMessages);
+
+        pipeline = new DispatchPipeline(
+                new DispatchPipeline.IMessageDispatcher() {
+            @Override
+            public void dispatchMessage(IOFSwitch sw, OFMessage m,
+                                        FloodlightContext bContext) {
+                synchronized (received) {
+                    received.get(sw).add(m);
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void dispatchMessages(IOFSwitch sw, List<OFMessage> msgs) {
+                for (OFMessage m : msgs) {
+                    dispatchMessage(sw, m, null);
+                }
+            }
+        }, counters, 4, 16);
+        pipeline.start();
+
+        List<IOFSwitch> switches = new ArrayList<IOFSwitch>();
+        Map<IOFSwitch, List<OFMessage>> sent =
+                new HashMap<IOFSwitch, List<OFMessage>>();
+        for (int i = 1; i <= numSwitches; i++) {
+            IOFSwitch sw = makeSwitch(i);
+            switches.add(sw);
+            sent.put(sw, new ArrayList<OFMessage>());
+            received.put(sw, new ArrayList<OFMessage>());
+        }
+        for (int j = 0; j < numMessages; j++) {
+            for (IOFSwitch sw : switches) {
+                OFMessage m = makeMessage();
+                sent.get(sw).add(m);
+                assertTrue(pipeline.submit(sw, m));
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        synchronized (received) {
+            for (IOFSwitch sw : switches) {
+                assertEquals(sent.get(sw), received.get(sw));
+            }
+        }
+    }
+
+    @Test
+    public void testLaneAssignment() {
+        pipeline = new DispatchPipeline(null, counters, 8, 1);
+        IOFSwitch sw = makeSwitch(42);
+        int lane = pipeline.getLaneIndex(sw);
+        assertEquals(lane, pipeline.getLaneIndex(makeSwitch(42)));
+
+        // sequential DPIDs should not all land on the same lane
+        boolean spread = false;
+        for (int i = 1; i <= 8; i++) {
+            if (pipeline.getLaneIndex(makeSwitch(i)) !=
+                    pipeline.getLaneIndex(makeSwitch(1)))
+                spread = true;
+        }
+        assertTrue(spread);
+    }
+
+    @Test
+    public void testSubmitFromLane() throws Exception {
+        final IOFSwitch sw = makeSwitch(1);
+        final AtomicBoolean reentrantQueued = new AtomicBoolean(true);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        pipeline = new DispatchPipeline(
+                new DispatchPipeline.IMessageDispatcher() {
+            @Override
+            public void dispatchMessage(IOFSwitch s, OFMessage m,
+                                        FloodlightContext bContext) {
+                reentrantQueued.set(pipeline.submit(s, makeMessage()));
+                done.countDown();
+            }
+
+            @Override
+            public void dispatchMessages(IOFSwitch s, List<OFMessage> msgs) {
+                fail("Only one message was submitted");
+            }
+        }, counters, 1, 1);
+        pipeline.start();
+
+        assertTrue(pipeline.submit(sw, makeMessage()));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(reentrantQueued.get());
+    }
+
+    @Test
+    public void testFullLane() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<OFMessage> received = new ArrayList<OFMessage>();
+        final CountDownLatch done = new CountDownLatch(3);
+        final IOFSwitch sw = makeSwitch(1);
+        // the mock counters do not count
+        counters = new ControllerCounters(new DebugCounterServiceImpl());
+
+        pipeline = new DispatchPipeline(
+                new DispatchPipeline.IMessageDispatcher() {
+            @Override
+            public void dispatchMessage(IOFSwitch s, OFMessage m,
+                                        FloodlightContext bContext) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                synchronized (received) {
+                    received.add(m);
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void dispatchMessages(IOFSwitch s, List<OFMessage> msgs) {
+                for (OFMessage m : msgs) {
+                    dispatchMessage(s, m, null);
+                }
+            }
+        }, counters, 1, 1);
+        pipeline.start();
+
+        // the first message is taken by the lane and the second fills the
+        // queue. Submitting to the full lane must not wait: the packet-in
+        // is dropped and the port status is queued past the bound.
+        OFMessage first = makeMessage(OFType.PACKET_IN);
+        assertTrue(pipeline.submit(sw, first));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        OFMessage second = makeMessage(OFType.PACKET_IN);
+        assertTrue(pipeline.submit(sw, second));
+        assertEquals(1, pipeline.getQueuedCount());
+
+        assertTrue(pipeline.submit(sw, makeMessage(OFType.PACKET_IN)));
+        assertEquals(1, pipeline.getQueuedCount());
+        OFMessage portStatus = makeMessage(OFType.PORT_STATUS);
+        assertTrue(pipeline.submit(sw, portStatus));
+        assertEquals(2, pipeline.getQueuedCount());
+
+        assertEquals(2, counters.dispatchLaneFull.getCounterValue());
+        assertEquals(1, counters.dispatchLaneDrop.getCounterValue());
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, pipeline.getQueuedCount());
+        synchronized (received) {
+            assertEquals(Arrays.asList(first, second, portStatus), received);
+        }
+    }
+}
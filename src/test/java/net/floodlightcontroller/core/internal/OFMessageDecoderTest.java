@@ -0,0 +1,110 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.internal;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectfloodlight.openflow.protocol.OFFactories;
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.OFAuxId;
+
+import net.floodlightcontroller.core.OFConnectionCounters;
+import net.floodlightcontroller.debugcounter.DebugCounterResource;
+import net.floodlightcontroller.debugcounter.DebugCounterServiceImpl;
+
+public class OFMessageDecoderTest {
+    private OFFactory factory;
+    private Channel channel;
+    private OFMessageDecoder decoder;
+    private DebugCounterServiceImpl debugCounters;
+
+    @Before
+    public void setUp() {
+        factory = OFFactories.getFactory(OFVersion.OF_13);
+        channel = createNiceMock(Channel.class);
+        expect(channel.isConnected()).andReturn(true).anyTimes();
+        replay(channel);
+        decoder = new OFMessageDecoder(OFVersion.OF_13);
+        debugCounters = new DebugCounterServiceImpl();
+        debugCounters.registerModule(OFConnectionCounters.COUNTER_MODULE);
+        decoder.setCounters(new OFConnectionCounters(debugCounters,
+                DatapathId.of(1), OFAuxId.MAIN));
+    }
+
+    private long getCounter(String name) {
+        for (DebugCounterResource c : debugCounters.getAllCounterValues()) {
+            if (c.getCounterHierarchy().endsWith("/read/" + name))
+                return c.getCounterValue();
+        }
+        throw new AssertionError("No counter " + name);
+    }
+
+    @Test
+    public void testDecodeCompleteFramesOnly() throws Exception {
+        OFMessage m1 = factory.buildEchoRequest().setXid(1).build();
+        OFMessage m2 = factory.buildBarrierRequest().setXid(2).build();
+        OFMessage m3 = factory.buildEchoRequest().setXid(3)
+                .setData(new byte[] { 1, 2, 3, 4 }).build();
+        ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+        m1.writeTo(buf);
+        m2.writeTo(buf);
+        int complete = buf.writerIndex();
+        m3.writeTo(buf);
+        ChannelBuffer all = buf.copy();
+
+        // the read ends in the middle of the third message
+        ChannelBuffer partial = all.slice(0, complete + 10);
+        @SuppressWarnings("unchecked")
+        List<OFMessage> msgs =
+                (List<OFMessage>) decoder.decode(null, channel, partial);
+        assertEquals(2, msgs.size());
+        assertEquals(m1, msgs.get(0));
+        assertEquals(m2, msgs.get(1));
+        assertEquals(complete, partial.readerIndex());
+        assertEquals(2, getCounter("decoded-messages"));
+        assertEquals(complete, getCounter("decoded-bytes"));
+
+        // nothing complete left
+        assertNull(decoder.decode(null, channel, partial));
+
+        // the list is reused for the next read
+        all.readerIndex(complete);
+        @SuppressWarnings("unchecked")
+        List<OFMessage> next =
+                (List<OFMessage>) decoder.decode(null, channel, all);
+        assertSame(msgs, next);
+        assertEquals(1, next.size());
+        assertEquals(m3, next.get(0));
+        assertEquals(3, getCounter("decoded-messages"));
+        assertEquals(all.writerIndex(), getCounter("decoded-bytes"));
+    }
+}
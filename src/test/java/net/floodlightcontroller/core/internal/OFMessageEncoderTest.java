@@ -0,0 +1,98 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectfloodlight.openflow.protocol.OFFactories;
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.types.U64;
+
+public class OFMessageEncoderTest {
+    private OFFactory factory;
+    private OFMessageEncoder encoder;
+
+    @Before
+    public void setUp() {
+        factory = OFFactories.getFactory(OFVersion.OF_13);
+        encoder = new OFMessageEncoder();
+    }
+
+    private List<OFMessage> flowMods(int count) {
+        List<OFMessage> msgs = new ArrayList<OFMessage>();
+        for (int i = 0; i < count; i++) {
+            msgs.add(factory.buildFlowAdd()
+                     .setXid(i)
+                     .setCookie(U64.of(i))
+                     .build());
+        }
+        return msgs;
+    }
+
+    @Test
+    public void testEncodeBatch() throws Exception {
+        List<OFMessage> msgs = flowMods(10);
+        ChannelBuffer buf = (ChannelBuffer) encoder.encode(null, null, msgs);
+
+        ChannelBuffer expected = ChannelBuffers.dynamicBuffer();
+        for (OFMessage m : msgs) {
+            m.writeTo(expected);
+        }
+        byte[] expectedBytes = new byte[expected.readableBytes()];
+        expected.readBytes(expectedBytes);
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.readBytes(bytes);
+        assertArrayEquals(expectedBytes, bytes);
+
+        assertEquals(0, ((ChannelBuffer) encoder.encode(null, null,
+                new ArrayList<OFMessage>())).readableBytes());
+    }
+
+    @Test
+    public void testBufferSizedFromHistory() throws Exception {
+        List<OFMessage> msgs = flowMods(100);
+        ChannelBuffer buf = (ChannelBuffer) encoder.encode(null, null, msgs);
+        int size = buf.readableBytes() / msgs.size();
+        assertEquals(size, encoder.getAverageMessageSize());
+
+        // the next batch of the same messages fits without growing
+        int capacity = encoder.getBufferSize(msgs.size());
+        buf = (ChannelBuffer) encoder.encode(null, null, msgs);
+        assertTrue(buf.readableBytes() <= capacity);
+        assertEquals(capacity, buf.capacity());
+
+        // smaller messages only lower the estimate gradually
+        List<OFMessage> small = new ArrayList<OFMessage>();
+        for (int i = 0; i < 100; i++) {
+            small.add(factory.buildBarrierRequest().setXid(i).build());
+        }
+        encoder.encode(null, null, small);
+        assertTrue(encoder.getAverageMessageSize() > 8);
+        assertTrue(encoder.getAverageMessageSize() < size);
+    }
+}
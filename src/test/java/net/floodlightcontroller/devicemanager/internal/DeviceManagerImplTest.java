@@ -510,6 +510,104 @@ public class DeviceManagerImplTest extends FloodlightTestCase {
 	}
 
 
+	/**
+	 * Learn entities of the same device from several threads at once and
+	 * make sure they all end up in a single device.
+	 */
+	@Test
+	public void testConcurrentEntityLearning() throws Exception {
+		deviceManager.startUp(null);
+
+		ITopologyService mockTopology = createMock(ITopologyService.class);
+		expect(mockTopology.getL2DomainId(DatapathId.of(anyLong()))).
+		andReturn(DatapathId.of(1L)).anyTimes();
+		expect(mockTopology.isBroadcastDomainPort(DatapathId.of(anyLong()), OFPort.of(anyShort()))).
+		andReturn(false).anyTimes();
+		expect(mockTopology.isAttachmentPointPort(DatapathId.of(anyLong()),
+				OFPort.of(anyShort()))).andReturn(true).anyTimes();
+		expect(mockTopology.isConsistent(DatapathId.of(anyLong()), OFPort.of(anyShort()),
+				DatapathId.of(anyLong()), OFPort.of(anyShort()))).andReturn(true).anyTimes();
+		expect(mockTopology.getLastUpdateTime()).andReturn(new Date()).anyTimes();
+		replay(mockTopology);
+		deviceManager.topology = mockTopology;
+
+		final int numThreads = 8;
+		final int numEntities = 50;
+		final List<Throwable> errors =
+				Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final int base = t * numEntities;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 1; i <= numEntities; i++) {
+							Entity e = new Entity(MacAddress.of(1L), null,
+									IPv4Address.of(base + i), DatapathId.of(1L),
+									OFPort.of(1), new Date());
+							assertNotNull(deviceManager.learnDeviceByEntity(e));
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(1, deviceManager.getAllDevices().size());
+		IDevice d = deviceManager.getAllDevices().iterator().next();
+		assertEquals(numThreads * numEntities, d.getIPv4Addresses().length);
+	}
+
+	@Test
+	public void testEntityExpiryWheel() throws Exception {
+		ITopologyService mockTopology = createMock(ITopologyService.class);
+		expect(mockTopology.getL2DomainId(DatapathId.of(anyLong()))).
+		andReturn(DatapathId.of(1L)).anyTimes();
+		expect(mockTopology.isBroadcastDomainPort(DatapathId.of(anyLong()), OFPort.of(anyShort()))).
+		andReturn(false).anyTimes();
+		expect(mockTopology.isAttachmentPointPort(DatapathId.of(anyLong()),
+				OFPort.of(anyShort()))).andReturn(true).anyTimes();
+		expect(mockTopology.isConsistent(DatapathId.of(anyLong()), OFPort.of(anyShort()),
+				DatapathId.of(anyLong()), OFPort.of(anyShort()))).andReturn(true).anyTimes();
+		expect(mockTopology.getLastUpdateTime()).andReturn(new Date()).anyTimes();
+		replay(mockTopology);
+		deviceManager.topology = mockTopology;
+
+		Date now = new Date();
+		Date old = new Date(now.getTime() - DeviceManagerImpl.ENTITY_TIMEOUT - 1);
+		Device d1 = deviceManager.learnDeviceByEntity(new Entity(MacAddress.of(1L),
+				null, IPv4Address.of(1), DatapathId.of(1L), OFPort.of(1), now));
+		Device d2 = deviceManager.learnDeviceByEntity(new Entity(MacAddress.of(2L),
+				null, IPv4Address.of(2), DatapathId.of(1L), OFPort.of(2), old));
+		deviceManager.learnDeviceByEntity(new Entity(MacAddress.of(3L),
+				null, IPv4Address.of(3), DatapathId.of(1L), OFPort.of(3), now));
+		Device d3 = deviceManager.learnDeviceByEntity(new Entity(MacAddress.of(3L),
+				null, IPv4Address.of(4), DatapathId.of(1L), OFPort.of(3), old));
+		assertEquals(3, deviceManager.expiryWheel.size());
+
+		deviceManager.cleanupEntities();
+
+		// only the devices with an expired entity were visited
+		assertNotNull(deviceManager.getDevice(d1.getDeviceKey()));
+		assertNull(deviceManager.getDevice(d2.getDeviceKey()));
+		IDevice d = deviceManager.getDevice(d3.getDeviceKey());
+		assertArrayEquals(new IPv4Address[] { IPv4Address.of(3) },
+				d.getIPv4Addresses());
+		// d3 is checked again when its remaining entity times out
+		assertEquals(2, deviceManager.expiryWheel.size());
+		deviceManager.cleanupEntities();
+		assertEquals(2, deviceManager.getAllDevices().size());
+	}
+
 	private void doTestEntityOrdering(boolean computeInsertionPoint) throws Exception {
 		Entity e = new Entity(MacAddress.of(10L), null, null, null, null, null);
 		IEntityClass ec = createNiceMock(IEntityClass.class);
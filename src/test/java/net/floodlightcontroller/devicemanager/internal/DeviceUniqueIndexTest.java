@@ -17,6 +17,7 @@
 package net.floodlightcontroller.devicemanager.internal;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
@@ -172,4 +173,55 @@ public class DeviceUniqueIndexTest extends TestCase {
         // anyways. We can now add d1 ;-)
         assertEquals(true, idx3.updateIndex(d1, 1L));
     }
+
+    @Test
+    public void testPackedKeys() {
+        assertTrue(PackedEntityKey.canPack(EnumSet.of(DeviceField.MAC,
+                                                      DeviceField.VLAN)));
+        assertTrue(PackedEntityKey.canPack(EnumSet.of(DeviceField.IPV4)));
+        assertFalse(PackedEntityKey.canPack(EnumSet.of(DeviceField.IPV4,
+                                                       DeviceField.SWITCH)));
+
+        DeviceUniqueIndex idx = new DeviceUniqueIndex(
+                                            EnumSet.of(DeviceField.MAC,
+                                                       DeviceField.VLAN));
+        // null, 0 and 4095 are distinct VLANs
+        Entity untagged = new Entity(MacAddress.of(5L), null, null, null, null, null);
+        Entity vlan0 = new Entity(MacAddress.of(5L), VlanVid.ofVlan(0), null, null, null, null);
+        Entity vlan4095 = new Entity(MacAddress.of(5L), VlanVid.ofVlan(4095), null, null, null, null);
+        idx.updateIndex(untagged, 5L);
+        idx.updateIndex(vlan0, 6L);
+        idx.updateIndex(vlan4095, 7L);
+        assertEquals(Long.valueOf(5L), idx.findByEntity(untagged));
+        assertEquals(Long.valueOf(6L), idx.findByEntity(vlan0));
+        assertEquals(Long.valueOf(7L), idx.findByEntity(vlan4095));
+        // the MAC address is all ones in the top bits
+        Entity bcast = new Entity(MacAddress.of(0xffffffffffffL), VlanVid.ofVlan(4095), null, null, null, null);
+        assertEquals(null, idx.findByEntity(bcast));
+        idx.updateIndex(bcast, 8L);
+        assertEquals(Long.valueOf(8L), idx.findByEntity(bcast));
+        verifyIterator(new HashSet<Long>(Arrays.asList(5L, 6L, 7L, 8L)),
+                       idx.getAll());
+        assertTrue(idx.getMemoryFootprint() > 0);
+
+        DeviceMultiIndex midx = new DeviceMultiIndex(
+                                            EnumSet.of(DeviceField.IPV4));
+        midx.updateIndex(e1a, 1L);
+        midx.updateIndex(e1b, 1L);
+        midx.updateIndex(e2, 2L);
+        Entity e5 = new Entity(MacAddress.of(5L), null, IPv4Address.of(1), null, null, null);
+        midx.updateIndex(e5, 5L);
+        // null IP is not indexed
+        assertFalse(midx.updateIndex(e3, 3L));
+        verifyIterator(new HashSet<Long>(Arrays.asList(1L, 5L)),
+                       midx.queryByEntity(e1a));
+        verifyIterator(Collections.<Long>singleton(2L),
+                       midx.queryByEntity(e2));
+        midx.removeEntity(e5, 5L);
+        verifyIterator(Collections.<Long>singleton(1L),
+                       midx.queryByEntity(e1a));
+        midx.removeEntity(e2);
+        assertFalse(midx.queryByEntity(e2).hasNext());
+        verifyIterator(Collections.<Long>singleton(1L), midx.getAll());
+    }
 }
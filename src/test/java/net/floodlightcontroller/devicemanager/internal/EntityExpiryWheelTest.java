@@ -0,0 +1,95 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.devicemanager.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EntityExpiryWheelTest {
+    private static final long TICK = 1000;
+    private static final long SPAN = 8 * TICK;
+
+    @Test
+    public void testDueInOrder() {
+        EntityExpiryWheel wheel = new EntityExpiryWheel(TICK, SPAN, 0);
+        wheel.schedule(1L, 2 * TICK);
+        wheel.schedule(2L, 3 * TICK + 1);
+        wheel.schedule(3L, 5 * TICK);
+        assertEquals(3, wheel.size());
+
+        assertTrue(wheel.advance(TICK).isEmpty());
+        assertEquals(Arrays.asList(1L), wheel.advance(2 * TICK));
+        // rounded up to the next tick, never returned early
+        assertTrue(wheel.advance(3 * TICK + 1).isEmpty());
+        assertEquals(Arrays.asList(2L), wheel.advance(4 * TICK));
+        assertEquals(Arrays.asList(3L), wheel.advance(10 * TICK));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testBeyondOneTurn() {
+        EntityExpiryWheel wheel = new EntityExpiryWheel(TICK, SPAN, 0);
+        // shares a slot with tick 2 but is due on a later turn
+        wheel.schedule(1L, 2 * TICK + SPAN);
+        assertTrue(wheel.advance(2 * TICK).isEmpty());
+        assertTrue(wheel.advance(SPAN).isEmpty());
+        assertEquals(Arrays.asList(1L), wheel.advance(2 * TICK + SPAN));
+    }
+
+    @Test
+    public void testOverdue() {
+        EntityExpiryWheel wheel = new EntityExpiryWheel(TICK, SPAN, 5 * TICK);
+        wheel.schedule(1L, 0);
+        wheel.schedule(2L, 5 * TICK);
+        List<Long> due = wheel.advance(5 * TICK);
+        Collections.sort(due);
+        assertEquals(Arrays.asList(1L, 2L), due);
+    }
+
+    @Test
+    public void testReschedule() {
+        EntityExpiryWheel wheel = new EntityExpiryWheel(TICK, SPAN, 0);
+        wheel.schedule(1L, 3 * TICK);
+        // a later time does not postpone the device
+        wheel.schedule(1L, 6 * TICK);
+        assertEquals(1, wheel.size());
+        assertEquals(Arrays.asList(1L), wheel.advance(3 * TICK));
+        assertTrue(wheel.advance(6 * TICK).isEmpty());
+
+        // an earlier time supersedes the previous entry
+        wheel.schedule(2L, 9 * TICK);
+        wheel.schedule(2L, 7 * TICK);
+        assertEquals(Arrays.asList(2L), wheel.advance(7 * TICK));
+        assertTrue(wheel.advance(9 * TICK).isEmpty());
+    }
+
+    @Test
+    public void testCancel() {
+        EntityExpiryWheel wheel = new EntityExpiryWheel(TICK, SPAN, 0);
+        wheel.schedule(1L, 2 * TICK);
+        wheel.schedule(2L, 2 * TICK);
+        wheel.cancel(1L);
+        assertEquals(1, wheel.size());
+        assertEquals(Arrays.asList(2L), wheel.advance(2 * TICK));
+    }
+}
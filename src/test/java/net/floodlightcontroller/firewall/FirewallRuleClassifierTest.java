@@ -0,0 +1,399 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.firewall;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+import org.junit.Test;
+import org.projectfloodlight.openflow.protocol.OFFactories;
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IpProtocol;
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.TransportPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class FirewallRuleClassifierTest {
+    protected static Logger logger =
+            LoggerFactory.getLogger(FirewallRuleClassifierTest.class);
+
+    private static final OFFactory factory =
+            OFFactories.getFactory(OFVersion.OF_13);
+    private static final IpProtocol[] protocols = {
+        IpProtocol.TCP, IpProtocol.UDP, IpProtocol.ICMP
+    };
+    private static final int[] prefixLengths = { 8, 16, 24, 32 };
+
+    /**
+     * A packet and the switch port it was received on
+     */
+    private static class PacketIn {
+        DatapathId dpid;
+        OFPort inPort;
+        Ethernet eth;
+    }
+
+    /**
+     * Make a random rule over small value ranges, so that the rules
+     * overlap each other and the random packets
+     */
+    private FirewallRule randomRule(Random r) {
+        FirewallRule rule = new FirewallRule();
+        if (r.nextInt(4) == 0) {
+            rule.any_dpid = false;
+            rule.dpid = DatapathId.of(1 + r.nextInt(2));
+        }
+        if (r.nextInt(3) == 0) {
+            rule.any_in_port = false;
+            rule.in_port = OFPort.of(1 + r.nextInt(4));
+        }
+        if (r.nextInt(4) == 0) {
+            rule.any_dl_src = false;
+            rule.dl_src = MacAddress.of(1 + r.nextInt(4));
+        }
+        if (r.nextInt(4) == 0) {
+            rule.any_dl_dst = false;
+            rule.dl_dst = MacAddress.of(1 + r.nextInt(4));
+        }
+        int type = r.nextInt(20);
+        if (type < 2) {
+            rule.any_dl_type = false;
+            rule.dl_type = EthType.ARP;
+        } else if (type == 2) {
+            // not supported, never matches
+            rule.any_dl_type = false;
+            rule.dl_type = EthType.of(0x86dd);
+        } else if (type < 12) {
+            rule.any_dl_type = false;
+            rule.dl_type = EthType.IPv4;
+        }
+        if (r.nextInt(3) == 0) {
+            rule.any_nw_src = false;
+            rule.nw_src_prefix_and_mask = randomAddress(r)
+                    .withMaskOfLength(prefixLengths[r.nextInt(4)]);
+        }
+        if (r.nextInt(3) == 0) {
+            rule.any_nw_dst = false;
+            rule.nw_dst_prefix_and_mask = randomAddress(r)
+                    .withMaskOfLength(prefixLengths[r.nextInt(4)]);
+        }
+        int proto = r.nextInt(8);
+        if (proto < 3) {
+            rule.any_nw_proto = false;
+            rule.nw_proto = protocols[proto];
+        } else if (proto == 3) {
+            // not checked against the packet
+            rule.any_nw_proto = false;
+            rule.nw_proto = IpProtocol.of((short) 47);
+        }
+        if (r.nextInt(3) == 0) {
+            rule.any_tp_src = false;
+            rule.tp_src = TransportPort.of(1 + r.nextInt(3));
+        }
+        if (r.nextInt(3) == 0) {
+            rule.any_tp_dst = false;
+            rule.tp_dst = TransportPort.of(1 + r.nextInt(3));
+        }
+        rule.priority = r.nextInt(100);
+        rule.action = r.nextBoolean() ? FirewallRule.FirewallAction.ALLOW
+                                      : FirewallRule.FirewallAction.DROP;
+        return rule;
+    }
+
+    private IPv4Address randomAddress(Random r) {
+        return IPv4Address.of(10 << 24 | r.nextInt(2) << 16 |
+                              r.nextInt(2) << 8 | r.nextInt(3));
+    }
+
+    private PacketIn randomPacket(Random r) {
+        PacketIn p = new PacketIn();
+        p.dpid = DatapathId.of(1 + r.nextInt(2));
+        p.inPort = OFPort.of(1 + r.nextInt(4));
+        p.eth = new Ethernet()
+            .setSourceMACAddress(MacAddress.of(1 + r.nextInt(4)))
+            .setDestinationMACAddress(MacAddress.of(1 + r.nextInt(4)));
+        if (r.nextInt(5) == 0) {
+            p.eth.setEtherType(Ethernet.TYPE_ARP);
+            p.eth.setPayload(new ARP());
+            return p;
+        }
+        IPv4 ip = new IPv4()
+            .setSourceAddress(randomAddress(r))
+            .setDestinationAddress(randomAddress(r));
+        IpProtocol proto = protocols[r.nextInt(3)];
+        ip.setProtocol(proto);
+        if (proto.equals(IpProtocol.TCP)) {
+            ip.setPayload(new TCP()
+                .setSourcePort(1 + r.nextInt(3))
+                .setDestinationPort(1 + r.nextInt(3)));
+        } else if (proto.equals(IpProtocol.UDP)) {
+            ip.setPayload(new UDP()
+                .setSourcePort((short) (1 + r.nextInt(3)))
+                .setDestinationPort((short) (1 + r.nextInt(3))));
+        } else {
+            ip.setPayload(new Data(new byte[] {0x01}));
+        }
+        p.eth.setEtherType(Ethernet.TYPE_IPv4);
+        p.eth.setPayload(ip);
+        return p;
+    }
+
+    private List<FirewallRule> randomRules(Random r, int count) {
+        List<FirewallRule> rules = new ArrayList<FirewallRule>();
+        for (int i = 0; i < count; i++) {
+            rules.add(randomRule(r));
+        }
+        Collections.sort(rules);
+        return rules;
+    }
+
+    /**
+     * Find the first matching rule the way the firewall used to
+     */
+    private int linearMatch(List<FirewallRule> rules, PacketIn p) {
+        for (int i = 0; i < rules.size(); i++) {
+            AllowDropPair adp = new AllowDropPair(factory);
+            if (rules.get(i).matchesThisPacket(p.dpid, p.inPort, p.eth, adp))
+                return i;
+        }
+        return -1;
+    }
+
+    @Test
+    public void testMatchesLinearScan() {
+        Random r = new Random(17);
+        for (int round = 0; round < 20; round++) {
+            List<FirewallRule> rules = randomRules(r, 1 + r.nextInt(200));
+            FirewallRuleClassifier classifier =
+                    new FirewallRuleClassifier(rules);
+            for (int i = 0; i < 500; i++) {
+                PacketIn p = randomPacket(r);
+                assertEquals(linearMatch(rules, p),
+                             classifier.match(p.dpid, p.inPort, p.eth));
+            }
+        }
+    }
+
+    @Test
+    public void testNoRules() {
+        FirewallRuleClassifier classifier =
+                new FirewallRuleClassifier(new ArrayList<FirewallRule>());
+        PacketIn p = randomPacket(new Random(1));
+        assertEquals(-1, classifier.match(p.dpid, p.inPort, p.eth));
+        assertEquals(0, classifier.getTupleCount());
+    }
+
+    @Test
+    public void testGuardFields() {
+        List<FirewallRule> rules = new ArrayList<FirewallRule>();
+        FirewallRule drop = new FirewallRule();
+        drop.any_in_port = false;
+        drop.in_port = OFPort.of(1);
+        drop.any_dl_type = false;
+        drop.dl_type = EthType.IPv4;
+        drop.any_nw_src = false;
+        drop.nw_src_prefix_and_mask =
+                IPv4Address.of("10.0.0.0").withMaskOfLength(8);
+        drop.priority = 1;
+        drop.action = FirewallRule.FirewallAction.DROP;
+        rules.add(drop);
+        FirewallRule arp = new FirewallRule();
+        arp.any_dl_type = false;
+        arp.dl_type = EthType.ARP;
+        arp.priority = 2;
+        arp.action = FirewallRule.FirewallAction.ALLOW;
+        rules.add(arp);
+        FirewallRule allow = new FirewallRule();
+        allow.priority = 3;
+        allow.action = FirewallRule.FirewallAction.ALLOW;
+        rules.add(allow);
+        FirewallRuleClassifier classifier = new FirewallRuleClassifier(rules);
+
+        // an IPv4 packet that escapes the drop rule by its in_port only
+        Ethernet eth = (Ethernet) new Ethernet()
+            .setSourceMACAddress(MacAddress.of(1))
+            .setDestinationMACAddress(MacAddress.of(2))
+            .setEtherType(Ethernet.TYPE_IPv4)
+            .setPayload(new IPv4()
+                .setSourceAddress("10.0.0.1")
+                .setDestinationAddress("10.0.0.2")
+                .setProtocol(IpProtocol.ICMP)
+                .setPayload(new Data(new byte[] {0x01})));
+        DatapathId dpid = DatapathId.of(1);
+        OFPort inPort = OFPort.of(2);
+        int index = classifier.match(dpid, inPort, eth);
+        assertEquals(2, index);
+        AllowDropPair adp = new AllowDropPair(factory);
+        assertTrue(rules.get(index).matchesThisPacket(dpid, inPort, eth, adp));
+        classifier.addGuardFields(index, inPort, eth, adp.allow);
+        Match m = adp.allow.build();
+        // the flow must not cover the same packets on port 1
+        assertEquals(inPort, m.get(MatchField.IN_PORT));
+        assertEquals(EthType.IPv4, m.get(MatchField.ETH_TYPE));
+        assertEquals(IPv4Address.of("10.0.0.1"), m.get(MatchField.IPV4_SRC));
+        assertNull(m.get(MatchField.IPV4_DST));
+        assertNull(m.get(MatchField.ETH_SRC));
+
+        // the ARP rule can't overlap the drop rule, so it needs no guard
+        eth = (Ethernet) new Ethernet()
+            .setSourceMACAddress(MacAddress.of(1))
+            .setDestinationMACAddress(MacAddress.of(2))
+            .setEtherType(Ethernet.TYPE_ARP)
+            .setPayload(new ARP());
+        index = classifier.match(dpid, OFPort.of(1), eth);
+        assertEquals(1, index);
+        adp = new AllowDropPair(factory);
+        assertTrue(rules.get(index).matchesThisPacket(dpid, OFPort.of(1), eth, adp));
+        classifier.addGuardFields(index, OFPort.of(1), eth, adp.allow);
+        m = adp.allow.build();
+        assertNull(m.get(MatchField.IN_PORT));
+        assertEquals(EthType.ARP, m.get(MatchField.ETH_TYPE));
+    }
+
+    /**
+     * Make a rule of an access list: a service on a host or subnet, maybe
+     * only for some sources
+     */
+    private FirewallRule aclRule(Random r) {
+        FirewallRule rule = new FirewallRule();
+        rule.any_dl_type = false;
+        rule.dl_type = EthType.IPv4;
+        rule.any_nw_dst = false;
+        rule.nw_dst_prefix_and_mask = IPv4Address.of(10 << 24 | r.nextInt(1 << 16))
+                .withMaskOfLength(r.nextInt(4) == 0 ? 24 : 32);
+        if (r.nextInt(4) == 0) {
+            rule.any_nw_src = false;
+            rule.nw_src_prefix_and_mask = IPv4Address.of(172 << 24 | r.nextInt(1 << 16) << 8)
+                    .withMaskOfLength(16);
+        }
+        rule.any_nw_proto = false;
+        rule.nw_proto = r.nextBoolean() ? IpProtocol.TCP : IpProtocol.UDP;
+        rule.any_tp_dst = false;
+        rule.tp_dst = TransportPort.of(1 + r.nextInt(1024));
+        rule.priority = r.nextInt(1000);
+        rule.action = (r.nextInt(5) == 0) ? FirewallRule.FirewallAction.DROP
+                                          : FirewallRule.FirewallAction.ALLOW;
+        return rule;
+    }
+
+    private PacketIn aclPacket(Random r, FirewallRule target) {
+        PacketIn p = new PacketIn();
+        p.dpid = DatapathId.of(1);
+        p.inPort = OFPort.of(1);
+        int src = 172 << 24 | r.nextInt(1 << 24);
+        int dst = 10 << 24 | r.nextInt(1 << 16);
+        IpProtocol proto = r.nextBoolean() ? IpProtocol.TCP : IpProtocol.UDP;
+        int port = 1 + r.nextInt(1024);
+        if (target != null) {
+            // a packet for a given rule, which may match an earlier one
+            dst = target.nw_dst_prefix_and_mask.getValue().getInt();
+            if (!target.any_nw_src)
+                src = target.nw_src_prefix_and_mask.getValue().getInt() | 1;
+            proto = target.nw_proto;
+            port = target.tp_dst.getPort();
+        }
+        IPv4 ip = new IPv4()
+            .setSourceAddress(src)
+            .setDestinationAddress(dst)
+            .setProtocol(proto);
+        if (proto.equals(IpProtocol.TCP))
+            ip.setPayload(new TCP().setSourcePort(40000).setDestinationPort(port));
+        else
+            ip.setPayload(new UDP().setSourcePort((short) 40000)
+                                   .setDestinationPort((short) port));
+        p.eth = (Ethernet) new Ethernet()
+            .setSourceMACAddress(MacAddress.of(1))
+            .setDestinationMACAddress(MacAddress.of(2))
+            .setEtherType(Ethernet.TYPE_IPv4)
+            .setPayload(ip);
+        return p;
+    }
+
+    /**
+     * Compare the lookup time of the classifier with the linear scan on a
+     * large access list, with a default drop rule at the end. Only the
+     * results are checked; the timings are logged.
+     */
+    @Test
+    public void testBenchmarkAgainstLinearScan() {
+        Random r = new Random(42);
+        List<FirewallRule> rules = new ArrayList<FirewallRule>();
+        for (int i = 0; i < 5000; i++) {
+            rules.add(aclRule(r));
+        }
+        FirewallRule defaultDrop = new FirewallRule();
+        defaultDrop.priority = Integer.MAX_VALUE;
+        defaultDrop.action = FirewallRule.FirewallAction.DROP;
+        rules.add(defaultDrop);
+        Collections.sort(rules);
+
+        List<PacketIn> packets = new ArrayList<PacketIn>();
+        for (int i = 0; i < 2000; i++) {
+            // half the packets are for some rule, half fall through
+            FirewallRule target = (i % 2 == 0) ?
+                    rules.get(r.nextInt(rules.size() - 1)) : null;
+            packets.add(aclPacket(r, target));
+        }
+
+        long start = System.nanoTime();
+        FirewallRuleClassifier classifier = new FirewallRuleClassifier(rules);
+        long compileNs = System.nanoTime() - start;
+
+        int[] expected = new int[packets.size()];
+        start = System.nanoTime();
+        for (int i = 0; i < packets.size(); i++) {
+            expected[i] = linearMatch(rules, packets.get(i));
+        }
+        long linearNs = System.nanoTime() - start;
+
+        int[] actual = new int[packets.size()];
+        start = System.nanoTime();
+        for (int i = 0; i < packets.size(); i++) {
+            PacketIn p = packets.get(i);
+            actual[i] = classifier.match(p.dpid, p.inPort, p.eth);
+        }
+        long classifierNs = System.nanoTime() - start;
+
+        for (int i = 0; i < packets.size(); i++) {
+            assertEquals(expected[i], actual[i]);
+        }
+        logger.info("{} rules in {} tuples, compiled in {} us; " +
+                    "{} lookups: linear scan {} us, classifier {} us",
+                    new Object[] { rules.size(), classifier.getTupleCount(),
+                                   compileNs / 1000, packets.size(),
+                                   linearNs / 1000, classifierNs / 1000 });
+    }
+}
@@ -486,6 +486,11 @@ public class ForwardingTest extends FloodlightTestCase {
         forwarding.receive(sw1, this.packetIn, cntx);
         forwarding.receive(sw1, this.packetIn, cntx);
         verify(sw1, routingEngine);
+
+        // the route installer reports the dampened flow mods
+        Map<String, Object> info = forwarding.getInfo("summary");
+        assertEquals(3L, info.get("# Routes installed"));
+        assertEquals(2L, info.get("# Route messages dampened"));
     }
 
     @Test
@@ -517,4 +522,56 @@ public class ForwardingTest extends FloodlightTestCase {
         assertTrue(OFMessageUtils.equalsIgnoreXid(wc1.getValue(), packetOutFlooded));
     }
 
+    private U64 getFlowHash(IPv4 ip) {
+        Ethernet eth = new Ethernet()
+            .setDestinationMACAddress("00:11:22:33:44:55")
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setEtherType(Ethernet.TYPE_IPv4);
+        eth.setPayload(ip);
+        FloodlightContext fc = new FloodlightContext();
+        IFloodlightProviderService.bcStore.
+            put(fc, IFloodlightProviderService.CONTEXT_PI_PAYLOAD, eth);
+        return forwarding.getFlowHash(fc);
+    }
+
+    private IPv4 makeIPv4(byte flags, short fragmentOffset, IPacket payload) {
+        IPv4 ip = new IPv4()
+            .setTtl((byte) 128)
+            .setSourceAddress("192.168.1.1")
+            .setDestinationAddress("192.168.1.2")
+            .setProtocol(IpProtocol.UDP)
+            .setFlags(flags)
+            .setFragmentOffset(fragmentOffset);
+        ip.setPayload(payload);
+        return ip;
+    }
+
+    @Test
+    public void testFlowHashFragments() throws Exception {
+        IPacket udp1 = new UDP()
+            .setSourcePort((short) 5000)
+            .setDestinationPort((short) 5001)
+            .setPayload(new Data(new byte[] {0x01}));
+        IPacket udp2 = new UDP()
+            .setSourcePort((short) 5002)
+            .setDestinationPort((short) 5001)
+            .setPayload(new Data(new byte[] {0x01}));
+
+        // the ports of whole packets are hashed
+        assertFalse(getFlowHash(makeIPv4((byte) 0, (short) 0, udp1)).equals(
+                getFlowHash(makeIPv4((byte) 0, (short) 0, udp2))));
+
+        // only the first fragment carries the UDP header, later fragments
+        // are left as data; all of them must hash the same
+        U64 first = getFlowHash(makeIPv4(IPv4.IPV4_FLAGS_MOREFRAG,
+                                         (short) 0, udp1));
+        U64 middle = getFlowHash(makeIPv4(IPv4.IPV4_FLAGS_MOREFRAG,
+                                          (short) 185,
+                                          new Data(new byte[] {0x02})));
+        U64 last = getFlowHash(makeIPv4((byte) 0, (short) 370,
+                                        new Data(new byte[] {0x03})));
+        assertEquals(first, middle);
+        assertEquals(first, last);
+    }
+
 }
@@ -0,0 +1,165 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.learningswitch;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.core.types.MacVlanPair;
+
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.VlanVid;
+
+public class MacVlanTableTest {
+    private static final VlanVid VLAN = VlanVid.ofVlan(42);
+
+    private static MacAddress mac(long i) {
+        return MacAddress.of(0x000102000000L + i);
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        MacVlanTable table = new MacVlanTable(10);
+        assertNull(table.getPort(mac(1), VLAN));
+        assertNull(table.putPort(mac(1), VLAN, OFPort.of(1)));
+        assertEquals(OFPort.of(1), table.getPort(mac(1), VLAN));
+        // the same MAC on another VLAN is another host
+        assertNull(table.getPort(mac(1), VlanVid.ofVlan(43)));
+        assertEquals(OFPort.of(1), table.putPort(mac(1), VLAN, OFPort.of(2)));
+        assertEquals(OFPort.of(2), table.getPort(mac(1), VLAN));
+        assertEquals(1, table.size());
+
+        assertEquals(OFPort.of(2), table.removePort(mac(1), VLAN));
+        assertNull(table.removePort(mac(1), VLAN));
+        assertNull(table.getPort(mac(1), VLAN));
+        assertEquals(0, table.size());
+
+        assertEquals(2, table.getHits());
+        assertEquals(3, table.getMisses());
+    }
+
+    @Test
+    public void testMapView() {
+        MacVlanTable table = new MacVlanTable(10);
+        MacAddress highMac = MacAddress.of(0xfeffffffffffL);
+        table.put(new MacVlanPair(highMac, VlanVid.ofVlan(4095)), OFPort.of(7));
+        table.putPort(mac(2), VLAN, OFPort.of(3));
+        assertEquals(OFPort.of(7),
+                     table.get(new MacVlanPair(highMac, VlanVid.ofVlan(4095))));
+        assertTrue(table.containsKey(new MacVlanPair(mac(2), VLAN)));
+        assertFalse(table.containsKey("foo"));
+
+        int found = 0;
+        for (Map.Entry<MacVlanPair, OFPort> e : table.entrySet()) {
+            if (e.getKey().equals(new MacVlanPair(highMac, VlanVid.ofVlan(4095)))) {
+                assertEquals(OFPort.of(7), e.getValue());
+                found++;
+            } else if (e.getKey().equals(new MacVlanPair(mac(2), VLAN))) {
+                assertEquals(OFPort.of(3), e.getValue());
+                found++;
+            }
+        }
+        assertEquals(2, found);
+
+        Iterator<Map.Entry<MacVlanPair, OFPort>> it = table.entrySet().iterator();
+        it.next();
+        it.remove();
+        assertEquals(1, table.size());
+        table.clear();
+        assertTrue(table.isEmpty());
+    }
+
+    @Test
+    public void testEviction() {
+        int capacity = 100;
+        MacVlanTable table = new MacVlanTable(capacity);
+        for (int i = 0; i < capacity; i++) {
+            table.putPort(mac(i), VLAN, OFPort.of(1));
+        }
+        assertEquals(capacity, table.size());
+        assertEquals(0, table.getEvictions());
+
+        // hosts that are looked up survive a burst of new hosts, as long
+        // as they are used again between sweeps of the clock
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 10; i++) {
+                assertNotNull(table.getPort(mac(i), VLAN));
+            }
+            for (int i = 0; i < 10; i++) {
+                table.putPort(mac(1000 + round * 10 + i), VLAN, OFPort.of(2));
+            }
+            assertEquals(capacity, table.size());
+        }
+        assertEquals(100, table.getEvictions());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(OFPort.of(1), table.getPort(mac(i), VLAN));
+        }
+        // the newest hosts are still there
+        assertEquals(OFPort.of(2), table.getPort(mac(1099), VLAN));
+    }
+
+    @Test
+    public void testRemoveFreesSlot() {
+        MacVlanTable table = new MacVlanTable(2);
+        table.putPort(mac(1), VLAN, OFPort.of(1));
+        table.putPort(mac(2), VLAN, OFPort.of(1));
+        table.removePort(mac(1), VLAN);
+        table.putPort(mac(3), VLAN, OFPort.of(1));
+        assertEquals(0, table.getEvictions());
+        assertEquals(2, table.size());
+        table.clear();
+        table.putPort(mac(4), VLAN, OFPort.of(1));
+        table.putPort(mac(5), VLAN, OFPort.of(1));
+        assertEquals(0, table.getEvictions());
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    public void testConcurrentPuts() throws Exception {
+        final int capacity = 1000;
+        final MacVlanTable table = new MacVlanTable(capacity);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int base = t * 100000;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        table.putPort(mac(base + i), VLAN, OFPort.of(1));
+                        table.getPort(mac(base + i / 2), VLAN);
+                        if (i % 7 == 0)
+                            table.removePort(mac(base + i - 3), VLAN);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(table.size() <= capacity);
+        assertTrue(table.getEvictions() > 0);
+        assertEquals(80000, table.getHits() + table.getMisses());
+    }
+}
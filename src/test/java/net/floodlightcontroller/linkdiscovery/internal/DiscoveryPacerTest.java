@@ -0,0 +1,87 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.linkdiscovery.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.DatapathId;
+
+public class DiscoveryPacerTest {
+    private static List<Integer> ports(int n) {
+        List<Integer> ports = new ArrayList<Integer>();
+        for (int i = 1; i <= n; i++) {
+            ports.add(i);
+        }
+        return ports;
+    }
+
+    @Test
+    public void testEachPortOncePerPeriod() {
+        DiscoveryPacer pacer = new DiscoveryPacer(15);
+        DatapathId sw = DatapathId.of(1L);
+        List<Integer> ports = ports(48);
+
+        // after the first period every period probes each port exactly once
+        for (int tick = 0; tick < 15; tick++) {
+            pacer.nextPorts(sw, ports);
+        }
+        for (int period = 0; period < 3; period++) {
+            Map<Integer, Integer> probes = new HashMap<Integer, Integer>();
+            for (int tick = 0; tick < 15; tick++) {
+                List<Integer> next = pacer.nextPorts(sw, ports);
+                // 48 ports over 15 ticks: 3 or 4 per tick
+                assertTrue(next.size() == 3 || next.size() == 4);
+                for (Integer p : next) {
+                    Integer c = probes.get(p);
+                    probes.put(p, (c == null) ? 1 : c + 1);
+                }
+            }
+            assertEquals(48, probes.size());
+            for (Integer c : probes.values()) {
+                assertEquals(1, c.intValue());
+            }
+        }
+    }
+
+    @Test
+    public void testSwitchesSpread() {
+        DiscoveryPacer pacer = new DiscoveryPacer(15);
+        List<Integer> ports = ports(1);
+        int[] perTick = new int[15];
+        for (int tick = 0; tick < 30; tick++) {
+            for (long dpid = 1; dpid <= 150; dpid++) {
+                perTick[tick % 15] +=
+                        pacer.nextPorts(DatapathId.of(dpid), ports).size();
+            }
+        }
+        // one port per switch per period: 2 periods * 150 switches
+        int total = 0;
+        for (int c : perTick) {
+            total += c;
+            // no tick gets a large share of the probes
+            assertTrue(c < 60);
+        }
+        assertEquals(300, total);
+    }
+}
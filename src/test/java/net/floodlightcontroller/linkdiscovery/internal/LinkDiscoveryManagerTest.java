@@ -26,6 +26,7 @@ import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -53,6 +54,7 @@ import net.floodlightcontroller.packet.Data;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPacket;
 import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.LLDP;
 import net.floodlightcontroller.packet.UDP;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.restserver.RestApiServer;
@@ -75,6 +77,7 @@ import org.projectfloodlight.openflow.protocol.OFFactories;
 import org.projectfloodlight.openflow.protocol.OFMessage;
 import org.projectfloodlight.openflow.protocol.OFPacketIn;
 import org.projectfloodlight.openflow.protocol.OFPacketInReason;
+import org.projectfloodlight.openflow.protocol.OFPacketOut;
 import org.projectfloodlight.openflow.protocol.OFPortDesc;
 import org.projectfloodlight.openflow.protocol.OFPortFeatures;
 import org.projectfloodlight.openflow.protocol.OFVersion;
@@ -583,4 +586,164 @@ public class LinkDiscoveryManagerTest extends FloodlightTestCase {
 
         verify(mockSwitch);
     }
-}
\ No newline at end of file
+
+    private OFPortDesc createPortDesc(int port, String mac) {
+        return OFFactories.getFactory(OFVersion.OF_13).buildPortDesc()
+                .setName("eth" + port)
+                .setPortNo(OFPort.of(port))
+                .setHwAddr(MacAddress.of(mac))
+                .setCurr(new HashSet<OFPortFeatures>())
+                .build();
+    }
+
+    @Test
+    public void testLLDPTemplate() throws Exception {
+        LinkDiscoveryManager linkDiscovery = getLinkDiscoveryManager();
+        OFPortDesc p1 = createPortDesc(1, "5c:16:c7:00:00:01");
+        OFPortDesc p2 = createPortDesc(0x102, "5c:16:c7:00:00:02");
+        IOFSwitch sw1 = createMockSwitch(1L);
+        expect(sw1.getPort(OFPort.of(1))).andReturn(p1).anyTimes();
+        expect(sw1.getPort(OFPort.of(0x102))).andReturn(p2).anyTimes();
+        expect(sw1.getOFFactory()).andReturn(OFFactories.getFactory(OFVersion.OF_13)).anyTimes();
+        replay(sw1);
+        Map<DatapathId, IOFSwitch> switches = new HashMap<DatapathId, IOFSwitch>();
+        switches.put(DatapathId.of(1L), sw1);
+        getMockSwitchService().setSwitches(switches);
+
+        for (boolean isStandard : new boolean[] { true, false }) {
+            for (OFPortDesc p : new OFPortDesc[] { p1, p2, p1 }) {
+                OFPacketOut po = linkDiscovery.generateLLDPMessage(
+                        DatapathId.of(1L), p.getPortNo(), isStandard, false);
+                Ethernet eth = new Ethernet();
+                eth.deserialize(po.getData(), 0, po.getData().length);
+                assertEquals(p.getHwAddr(), eth.getSourceMACAddress());
+                LLDP lldp = (LLDP) (isStandard ? eth.getPayload() :
+                                    eth.getPayload().getPayload());
+                ByteBuffer portBB = ByteBuffer.wrap(lldp.getPortId().getValue());
+                portBB.position(1);
+                assertEquals(p.getPortNo().getShortPortNumber(), portBB.getShort());
+                assertEquals(1L, ByteBuffer.wrap(
+                        lldp.getOptionalTLVList().get(0).getValue(), 4, 8).getLong());
+            }
+        }
+        assertEquals(1, linkDiscovery.lldpTemplates.size());
+        linkDiscovery.switchRemoved(DatapathId.of(1L));
+        assertTrue(linkDiscovery.lldpTemplates.isEmpty());
+    }
+
+    @Test
+    public void testDiscoverOnAllPortsBatched() throws Exception {
+        LinkDiscoveryManager linkDiscovery = getLinkDiscoveryManager();
+        List<OFPortDesc> ports = new ArrayList<OFPortDesc>();
+        IOFSwitch sw1 = createMock(IOFSwitch.class);
+        expect(sw1.getId()).andReturn(DatapathId.of(1L)).anyTimes();
+        for (int p = 1; p <= 4; p++) {
+            OFPortDesc desc = createPortDesc(p, "5c:16:c7:00:00:0" + p);
+            ports.add(desc);
+            expect(sw1.getPort(OFPort.of(p))).andReturn(desc).anyTimes();
+        }
+        expect(sw1.getEnabledPorts()).andReturn(ports).anyTimes();
+        expect(sw1.getOFFactory()).andReturn(OFFactories.getFactory(OFVersion.OF_13)).anyTimes();
+        Capture<Iterable<OFMessage>> wc = new Capture<Iterable<OFMessage>>();
+        sw1.write(capture(wc));
+        expectLastCall().once();
+        sw1.flush();
+        expectLastCall().once();
+        replay(sw1);
+        Map<DatapathId, IOFSwitch> switches = new HashMap<DatapathId, IOFSwitch>();
+        switches.put(DatapathId.of(1L), sw1);
+        getMockSwitchService().setSwitches(switches);
+
+        linkDiscovery.discoverOnAllPorts();
+        verify(sw1);
+        int count = 0;
+        for (OFMessage m : wc.getValue()) {
+            assertTrue(m instanceof OFPacketOut);
+            count++;
+        }
+        assertEquals(ports.size(), count);
+    }
+
+    @Test
+    public void testDiscoverOnPacedPorts() throws Exception {
+        LinkDiscoveryManager linkDiscovery = getLinkDiscoveryManager();
+        List<OFPortDesc> ports = new ArrayList<OFPortDesc>();
+        IOFSwitch sw1 = createMock(IOFSwitch.class);
+        expect(sw1.getId()).andReturn(DatapathId.of(1L)).anyTimes();
+        for (int p = 1; p <= 30; p++) {
+            OFPortDesc desc = createPortDesc(p, String.format("5c:16:c7:00:00:%02x", p));
+            ports.add(desc);
+            expect(sw1.getPort(OFPort.of(p))).andReturn(desc).anyTimes();
+        }
+        expect(sw1.getEnabledPorts()).andReturn(ports).anyTimes();
+        expect(sw1.getOFFactory()).andReturn(OFFactories.getFactory(OFVersion.OF_13)).anyTimes();
+        Capture<Iterable<OFMessage>> wc =
+                new Capture<Iterable<OFMessage>>(CaptureType.ALL);
+        sw1.write(capture(wc));
+        expectLastCall().anyTimes();
+        sw1.flush();
+        expectLastCall().anyTimes();
+        replay(sw1);
+        Map<DatapathId, IOFSwitch> switches = new HashMap<DatapathId, IOFSwitch>();
+        switches.put(DatapathId.of(1L), sw1);
+        getMockSwitchService().setSwitches(switches);
+
+        // over one interval every port is probed once, a few ports per tick
+        int period = linkDiscovery.discoveryPacer.getPeriodTicks();
+        for (int tick = 0; tick < period; tick++) {
+            linkDiscovery.discoverOnPacedPorts();
+        }
+        verify(sw1);
+        int count = 0;
+        for (Iterable<OFMessage> msgs : wc.getValues()) {
+            int perTick = 0;
+            for (OFMessage m : msgs) {
+                assertTrue(m instanceof OFPacketOut);
+                perTick++;
+            }
+            assertTrue(perTick <= 3);
+            count += perTick;
+        }
+        assertEquals(ports.size(), count);
+        assertEquals(ports.size(), linkDiscovery.lldpSent.get());
+    }
+
+    @Test
+    public void testTimeoutOnlyDueLinks() throws Exception {
+        LinkDiscoveryManager linkDiscovery = getLinkDiscoveryManager();
+        long now = System.currentTimeMillis();
+
+        // many fresh links and a single stale one
+        for (int p = 1; p <= 100; p++) {
+            Link lt = new Link(DatapathId.of(1L), OFPort.of(p),
+                               DatapathId.of(2L), OFPort.of(p));
+            linkDiscovery.addOrUpdateLink(lt,
+                    new LinkInfo(new Date(now), new Date(now), null));
+        }
+        Link stale = new Link(DatapathId.of(1L), OFPort.of(101),
+                              DatapathId.of(2L), OFPort.of(101));
+        linkDiscovery.addOrUpdateLink(stale,
+                new LinkInfo(new Date(now - 40000), new Date(now - 40000), null));
+        assertEquals(101, linkDiscovery.linkExpiryTimes.size());
+        assertEquals(now - 40000 + linkDiscovery.LINK_TIMEOUT * 1000,
+                     linkDiscovery.nextLinkExpiry);
+
+        linkDiscovery.timeoutLinks();
+        assertNull(linkDiscovery.links.get(stale));
+        assertEquals(100, linkDiscovery.links.size());
+        assertEquals(100, linkDiscovery.linkExpiryQueue.size());
+        assertEquals(now + linkDiscovery.LINK_TIMEOUT * 1000,
+                     linkDiscovery.nextLinkExpiry);
+
+        // refreshing a link doesn't queue it again
+        Link lt = new Link(DatapathId.of(1L), OFPort.of(1),
+                           DatapathId.of(2L), OFPort.of(1));
+        linkDiscovery.addOrUpdateLink(lt,
+                new LinkInfo(new Date(now), new Date(now + 1000), null));
+        assertEquals(100, linkDiscovery.linkExpiryQueue.size());
+
+        // deleted links are dropped from the timeout index
+        linkDiscovery.deleteLink(lt, "test");
+        assertEquals(99, linkDiscovery.linkExpiryTimes.size());
+    }
+}
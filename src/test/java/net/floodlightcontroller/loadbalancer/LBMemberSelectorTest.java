@@ -0,0 +1,261 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.IPv4Address;
+
+public class LBMemberSelectorTest {
+    private LoadBalancer lb;
+
+    @Before
+    public void setUp() {
+        lb = new LoadBalancer();
+    }
+
+    private LBMember member(String id, int weight) {
+        LBMember m = new LBMember();
+        m.id = id;
+        m.weight = weight;
+        return m;
+    }
+
+    private IPClient client(int address) {
+        IPClient c = lb.new IPClient();
+        c.ipAddress = IPv4Address.of(address);
+        return c;
+    }
+
+    private Map<String, Integer> count(LBPool pool, int picks) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < picks; i++) {
+            String id = pool.pickMember(client(i));
+            Integer c = counts.get(id);
+            counts.put(id, (c == null) ? 1 : c + 1);
+        }
+        return counts;
+    }
+
+    @Test
+    public void testRoundRobin() {
+        LBPool pool = new LBPool();
+        assertNull(pool.pickMember(client(1)));
+        pool.addMember(member("1", 1));
+        pool.addMember(member("2", 5));
+        pool.addMember(member("3", 1));
+        assertEquals("1", pool.pickMember(client(1)));
+        assertEquals("2", pool.pickMember(client(1)));
+        assertEquals("3", pool.pickMember(client(1)));
+        assertEquals("1", pool.pickMember(client(1)));
+
+        // replacing a member keeps its place
+        pool.addMember(member("1", 1));
+        assertEquals(3, pool.members.size());
+        assertEquals("1", pool.pickMember(client(1)));
+        assertEquals("2", pool.pickMember(client(1)));
+    }
+
+    @Test
+    public void testConcurrentRoundRobin() throws Exception {
+        final LBPool pool = new LBPool();
+        for (int i = 0; i < 4; i++) {
+            pool.addMember(member(Integer.toString(i), 1));
+        }
+        final Map<String, AtomicInteger> counts =
+                new HashMap<String, AtomicInteger>();
+        for (String id : pool.members) {
+            counts.put(id, new AtomicInteger());
+        }
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        counts.get(pool.pickMember(client(i))).incrementAndGet();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (AtomicInteger c : counts.values()) {
+            assertEquals(1000, c.get());
+        }
+    }
+
+    @Test
+    public void testWeightedRoundRobin() {
+        LBPool pool = new LBPool();
+        pool.setLbMethod(LBPool.LB_METHOD_WEIGHTED_ROUND_ROBIN);
+        pool.addMember(member("a", 3));
+        pool.addMember(member("b", 1));
+        // the turns of the heavy member are spread over the round
+        assertEquals("a", pool.pickMember(client(1)));
+        assertEquals("a", pool.pickMember(client(1)));
+        assertEquals("b", pool.pickMember(client(1)));
+        assertEquals("a", pool.pickMember(client(1)));
+
+        pool.addMember(member("c", 2));
+        Map<String, Integer> counts = count(pool, 600);
+        assertEquals(300, counts.get("a").intValue());
+        assertEquals(100, counts.get("b").intValue());
+        assertEquals(200, counts.get("c").intValue());
+    }
+
+    @Test
+    public void testLeastConnections() {
+        LBPool pool = new LBPool();
+        pool.setLbMethod(LBPool.LB_METHOD_LEAST_CONNECTIONS);
+        LBMember a = member("a", 1);
+        LBMember b = member("b", 1);
+        LBMember c = member("c", 1);
+        pool.addMember(a);
+        pool.addMember(b);
+        pool.addMember(c);
+        for (int i = 0; i < 5; i++) {
+            a.stats.connectionOpened();
+        }
+        b.stats.connectionOpened();
+        for (int i = 0; i < 3; i++) {
+            c.stats.connectionOpened();
+        }
+        assertEquals("b", pool.pickMember(client(1)));
+        b.stats.connectionOpened();
+        b.stats.connectionOpened();
+        // b and c have 3 connections each; a weighted member with more
+        // connections can still have fewer for its weight
+        a.weight = 2;
+        pool.addMember(a);
+        assertEquals("a", pool.pickMember(client(1)));
+        assertEquals(5, a.stats.getActiveConnections());
+        a.stats.connectionClosed();
+        assertEquals(4, a.stats.getActiveConnections());
+        assertEquals(5, a.stats.getTotalConnections());
+    }
+
+    @Test
+    public void testConsistentHash() {
+        LBPool pool = new LBPool();
+        pool.setLbMethod(LBPool.LB_METHOD_SOURCE_IP);
+        for (int i = 0; i < 5; i++) {
+            pool.addMember(member(Integer.toString(i), 1));
+        }
+        int clients = 5000;
+        String[] before = new String[clients];
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < clients; i++) {
+            before[i] = pool.pickMember(client(0x0a000000 + i));
+            // a client keeps its member
+            assertEquals(before[i], pool.pickMember(client(0x0a000000 + i)));
+            Integer c = counts.get(before[i]);
+            counts.put(before[i], (c == null) ? 1 : c + 1);
+        }
+        assertEquals(5, counts.size());
+        for (int c : counts.values()) {
+            assertTrue(c > clients / 5 / 2 && c < clients / 5 * 2);
+        }
+
+        // removing a member only moves its own clients
+        pool.removeMember("2");
+        for (int i = 0; i < clients; i++) {
+            String after = pool.pickMember(client(0x0a000000 + i));
+            if (before[i].equals("2"))
+                assertFalse(after.equals("2"));
+            else
+                assertEquals(before[i], after);
+        }
+
+        // adding a member only moves clients to it
+        pool.addMember(member("2", 1));
+        pool.addMember(member("5", 1));
+        int moved = 0;
+        for (int i = 0; i < clients; i++) {
+            String after = pool.pickMember(client(0x0a000000 + i));
+            if (!after.equals(before[i])) {
+                assertEquals("5", after);
+                moved++;
+            }
+        }
+        assertTrue(moved > 0 && moved < clients / 6 * 2);
+    }
+
+    @Test
+    public void testClientAffinity() throws Exception {
+        lb.init(new FloodlightModuleContext());
+        LBVip vipA = new LBVip();
+        vipA.id = "vipA";
+        LBVip vipB = new LBVip();
+        vipB.id = "vipB";
+        lb.createVip(vipA);
+        lb.createVip(vipB);
+        LBPool poolA = new LBPool();
+        poolA.id = "poolA";
+        poolA.vipId = "vipA";
+        LBPool poolB = new LBPool();
+        poolB.id = "poolB";
+        poolB.vipId = "vipB";
+        lb.createPool(poolA);
+        lb.createPool(poolB);
+        LBMember a = member("a", 1);
+        a.poolId = "poolA";
+        LBMember b = member("b", 1);
+        b.poolId = "poolB";
+        lb.createMember(a);
+        lb.createMember(b);
+
+        // the same client of two vips gets a member of each vip's pool
+        IPClient client = client(1);
+        assertSame(a, lb.pickMember(vipA, client));
+        assertSame(b, lb.pickMember(vipB, client));
+        assertSame(a, lb.pickMember(vipA, client));
+        assertEquals(1, a.stats.getActiveConnections());
+        assertEquals(1, b.stats.getActiveConnections());
+
+        // a member moved to another pool loses the clients of its old vip
+        LBMember c = member("c", 1);
+        c.poolId = "poolA";
+        lb.createMember(c);
+        LBMember moved = member("a", 1);
+        moved.poolId = "poolB";
+        lb.updateMember(moved);
+        assertSame(c, lb.pickMember(vipA, client));
+        assertEquals(0, moved.stats.getActiveConnections());
+        assertEquals(1, c.stats.getActiveConnections());
+
+        // removing a member closes its clients' connections
+        lb.removeMember("c");
+        assertEquals(0, c.stats.getActiveConnections());
+        lb.clientToMember.invalidateAll();
+        assertEquals(0, b.stats.getActiveConnections());
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.packet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.BufferUnderflowException;
+
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IpProtocol;
+import org.projectfloodlight.openflow.types.TransportPort;
+
+public class EthernetViewTest {
+
+    private static Ethernet makeUdpPacket(short vlan) {
+        Ethernet eth = (Ethernet) new Ethernet()
+            .setDestinationMACAddress("00:11:22:33:44:55")
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setEtherType(Ethernet.TYPE_IPv4)
+            .setVlanID(vlan)
+            .setPriorityCode((byte) 5)
+            .setPayload(
+                new IPv4()
+                .setTtl((byte) 128)
+                .setSourceAddress("192.168.1.1")
+                .setDestinationAddress("192.168.1.2")
+                .setPayload(new UDP()
+                            .setSourcePort(TransportPort.of(5000))
+                            .setDestinationPort(TransportPort.of(5001))
+                            .setPayload(new Data(new byte[] {1,2,3,4}))));
+        return eth;
+    }
+
+    private static void assertSameHeader(Ethernet eth, EthernetView view) {
+        assertEquals(eth.getDestinationMACAddress(),
+                     view.getDestinationMACAddress());
+        assertEquals(eth.getDestinationMACAddress().getLong(),
+                     view.getDestinationMACAddressLong());
+        assertEquals(eth.getSourceMACAddress(), view.getSourceMACAddress());
+        assertEquals(eth.getSourceMACAddress().getLong(),
+                     view.getSourceMACAddressLong());
+        assertEquals(eth.getEtherType(), view.getEtherType());
+        assertEquals(eth.getVlanID(), view.getVlanID());
+        assertEquals(eth.getPriorityCode(), view.getPriorityCode());
+        assertEquals(eth.isBroadcast(), view.isBroadcast());
+        assertEquals(eth.isMulticast(), view.isMulticast());
+    }
+
+    @Test
+    public void testUntagged() {
+        byte[] data = makeUdpPacket(Ethernet.VLAN_UNTAGGED).serialize();
+        Ethernet eth = new Ethernet();
+        eth.deserialize(data, 0, data.length);
+        EthernetView view = new EthernetView(data);
+
+        assertSameHeader(eth, view);
+        assertEquals(14, view.getPayloadOffset());
+        assertEquals(IPv4Address.of("192.168.1.1"),
+                     view.getIPv4SourceAddress());
+        assertEquals(IPv4Address.of("192.168.1.2"),
+                     view.getIPv4DestinationAddress());
+        assertEquals(IpProtocol.UDP, view.getIPv4Protocol());
+        // reading the header must not decode the packet
+        assertFalse(view.isDecoded());
+    }
+
+    @Test
+    public void testVlanTagged() {
+        byte[] data = makeUdpPacket((short) 42).serialize();
+        Ethernet eth = new Ethernet();
+        eth.deserialize(data, 0, data.length);
+        EthernetView view = new EthernetView(data);
+
+        assertSameHeader(eth, view);
+        assertEquals(42, view.getVlanID());
+        assertEquals(5, view.getPriorityCode());
+        assertEquals(18, view.getPayloadOffset());
+        assertEquals(IPv4Address.of("192.168.1.2"),
+                     view.getIPv4DestinationAddress());
+        assertFalse(view.isDecoded());
+    }
+
+    /**
+     * A frame that ends inside its VLAN tag is handled as the decoder
+     * handles it, rather than by reading the bytes after the frame
+     */
+    @Test
+    public void testTruncatedVlanTag() {
+        byte[] data = new byte[64];
+        System.arraycopy(makeUdpPacket((short) 42).serialize(), 0,
+                         data, 0, 17);
+        EthernetView view = new EthernetView(data, 0, 17);
+        try {
+            view.getVlanID();
+            fail("Expected exception was not thrown!");
+        } catch (BufferUnderflowException e) {
+            // Ethernet.deserialize fails the same way
+        }
+    }
+
+    @Test
+    public void testBroadcastArp() {
+        Ethernet arp = (Ethernet) new Ethernet()
+            .setDestinationMACAddress("ff:ff:ff:ff:ff:ff")
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setEtherType(Ethernet.TYPE_ARP)
+            .setPayload(
+                new ARP()
+                .setHardwareType(ARP.HW_TYPE_ETHERNET)
+                .setProtocolType(ARP.PROTO_TYPE_IP)
+                .setHardwareAddressLength((byte) 6)
+                .setProtocolAddressLength((byte) 4)
+                .setOpCode(ARP.OP_REQUEST)
+                .setSenderHardwareAddress(Ethernet.toMACAddress("00:44:33:22:11:00"))
+                .setSenderProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.1"))
+                .setTargetHardwareAddress(Ethernet.toMACAddress("00:00:00:00:00:00"))
+                .setTargetProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.2")));
+        byte[] data = arp.serialize();
+        Ethernet eth = new Ethernet();
+        eth.deserialize(data, 0, data.length);
+        EthernetView view = new EthernetView(data);
+
+        assertSameHeader(eth, view);
+        assertTrue(view.isBroadcast());
+        assertFalse(view.isMulticast());
+        assertNull(view.getIPv4SourceAddress());
+    }
+
+    @Test
+    public void testGetEthernet() {
+        byte[] data = makeUdpPacket(Ethernet.VLAN_UNTAGGED).serialize();
+        Ethernet expected = new Ethernet();
+        expected.deserialize(data, 0, data.length);
+        EthernetView view = new EthernetView(data);
+
+        Ethernet eth = view.getEthernet();
+        assertTrue(view.isDecoded());
+        assertEquals(expected, eth);
+        assertSame(eth, view.getEthernet());
+    }
+
+    @Test
+    public void testWrapDecoded() {
+        Ethernet eth = makeUdpPacket((short) 42);
+        EthernetView view = new EthernetView(eth);
+
+        assertTrue(view.isDecoded());
+        assertSame(eth, view.getEthernet());
+        assertSameHeader(eth, view);
+        assertEquals(-1, view.getPayloadOffset());
+        assertEquals(IPv4Address.of("192.168.1.1"),
+                     view.getIPv4SourceAddress());
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.perfmon;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testIndexIsMonotonic() {
+        int prev = -1;
+        for (long v = 0; v < 1L << 20; v++) {
+            int i = LatencyHistogram.indexOf(v);
+            assertTrue(i >= prev);
+            assertTrue(i <= prev + 1);
+            assertTrue(LatencyHistogram.highestValueAt(i) >= v);
+            prev = i;
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+                     LatencyHistogram.indexOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getValueAtPercentile(99.0));
+        for (long v = 1; v <= 10000; v++) {
+            h.record(v * 1000);
+        }
+        assertEquals(10000, h.getTotalCount());
+        assertEquals(10000000, h.getMaxValue());
+        assertEquals(5000500, h.getMean());
+        assertWithinError(5000000, h.getValueAtPercentile(50.0));
+        assertWithinError(9900000, h.getValueAtPercentile(99.0));
+        assertWithinError(9990000, h.getValueAtPercentile(99.9));
+        assertEquals(10000000, h.getValueAtPercentile(100.0));
+    }
+
+    @Test
+    public void testMergeAndReset() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            a.record(100);
+        }
+        b.record(1000000);
+
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.add(a);
+        merged.add(b);
+        assertEquals(100, merged.getTotalCount());
+        assertEquals(1000000, merged.getMaxValue());
+        assertWithinError(100, merged.getValueAtPercentile(99.0));
+        assertEquals(1000000, merged.getValueAtPercentile(99.9));
+
+        merged.reset();
+        assertEquals(0, merged.getTotalCount());
+        assertEquals(0, merged.getMaxValue());
+        assertEquals(0, merged.getValueAtPercentile(50.0));
+    }
+
+    private void assertWithinError(long expected, long actual) {
+        long err = expected / LatencyHistogram.SUB_BUCKET_COUNT + 1;
+        assertTrue("expected " + expected + " got " + actual,
+                   Math.abs(expected - actual) <= err);
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.routing;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.util.OFMessageDamper;
+
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.easymock.IAnswer;
+import org.easymock.IMocksControl;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectfloodlight.openflow.protocol.OFFactories;
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFType;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+
+public class RouteInstallerTest {
+    private OFFactory factory = OFFactories.getFactory(OFVersion.OF_13);
+    private RouteInstaller installer;
+    private IOFSwitch sw1;
+    private IOFSwitch sw2;
+
+    @Before
+    public void setUp() {
+        OFMessageDamper damper = new OFMessageDamper(100,
+                EnumSet.of(OFType.FLOW_MOD), 250);
+        installer = new RouteInstaller(damper);
+        sw1 = createMock(IOFSwitch.class);
+        sw2 = createMock(IOFSwitch.class);
+    }
+
+    private OFMessage flowMod(int priority) {
+        return factory.buildFlowAdd().setPriority(priority).build();
+    }
+
+    @Test
+    public void testWritesPerSwitchInOrder() {
+        OFMessage fm1 = flowMod(1);
+        OFMessage fm2 = flowMod(2);
+        OFMessage fm3 = flowMod(3);
+        OFMessage echo = factory.buildEchoRequest().build();
+
+        Capture<OFMessage> wc1 = new Capture<OFMessage>(CaptureType.ALL);
+        Capture<OFMessage> wc2 = new Capture<OFMessage>(CaptureType.ALL);
+        sw1.write(capture(wc1));
+        expectLastCall().times(3);
+        sw1.flush();
+        expectLastCall().once();
+        sw2.write(capture(wc2));
+        expectLastCall().once();
+        sw2.flush();
+        expectLastCall().once();
+        replay(sw1, sw2);
+
+        // tail to head: sw2, then sw1 and the packet for the source switch
+        RouteInstaller.Batch batch = new RouteInstaller.Batch(true);
+        batch.add(sw2, fm1);
+        batch.add(sw1, fm2);
+        batch.add(sw1, fm3);
+        batch.add(sw1, echo);
+        installer.submit(batch);
+        verify(sw1, sw2);
+
+        assertEquals(3, wc1.getValues().size());
+        assertSame(fm2, wc1.getValues().get(0));
+        assertSame(fm3, wc1.getValues().get(1));
+        assertSame(echo, wc1.getValues().get(2));
+        assertSame(fm1, wc2.getValue());
+
+        assertEquals(4, installer.getMessagesWritten());
+        assertEquals(1, installer.getDrains());
+        assertEquals(1, installer.getInstallLatency().getCount());
+    }
+
+    @Test
+    public void testDampening() {
+        Capture<OFMessage> wc1 = new Capture<OFMessage>(CaptureType.ALL);
+        sw1.write(capture(wc1));
+        expectLastCall().times(2);
+        replay(sw1, sw2);
+
+        // no flush unless asked for
+        RouteInstaller.Batch batch = new RouteInstaller.Batch(false);
+        batch.add(sw1, flowMod(1));
+        installer.submit(batch);
+        batch = new RouteInstaller.Batch(false);
+        batch.add(sw1, flowMod(1));
+        batch.add(sw1, flowMod(2));
+        installer.submit(batch);
+        // empty batches are not installed
+        installer.submit(new RouteInstaller.Batch(true));
+        verify(sw1, sw2);
+
+        assertEquals(2, installer.getMessagesWritten());
+        assertEquals(1, installer.getMessagesDampened());
+        assertEquals(2, installer.getInstallLatency().getCount());
+    }
+
+    /**
+     * Submit a batch from another thread, and return once that thread is
+     * waiting for the installer's lock, so the batch is queued behind the
+     * route being written
+     */
+    private Thread submitQueued(final RouteInstaller.Batch batch,
+                                final AtomicReference<Throwable> error)
+            throws InterruptedException {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    installer.submit(batch);
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        };
+        t.start();
+        while (t.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        return t;
+    }
+
+    @Test
+    public void testRoutesInOppositeDirections() throws Exception {
+        IMocksControl control = createStrictControl();
+        sw1 = control.createMock(IOFSwitch.class);
+        sw2 = control.createMock(IOFSwitch.class);
+        final OFMessage aFm2 = flowMod(1);
+        OFMessage aFm1 = flowMod(2);
+        OFMessage aPo = factory.buildEchoRequest().setXid(1).build();
+        final OFMessage bFm1 = flowMod(3);
+        OFMessage bFm2 = flowMod(4);
+        OFMessage bPo = factory.buildEchoRequest().setXid(2).build();
+
+        // route A is sw1 -> sw2 and route B is sw2 -> sw1; each is
+        // written from tail to head, with its packet-out last
+        final RouteInstaller.Batch a = new RouteInstaller.Batch(true);
+        a.add(sw2, aFm2);
+        a.add(sw1, aFm1);
+        a.add(sw1, aPo);
+        final RouteInstaller.Batch b = new RouteInstaller.Batch(true);
+        b.add(sw1, bFm1);
+        b.add(sw2, bFm2);
+        b.add(sw2, bPo);
+
+        final AtomicReference<Throwable> error =
+                new AtomicReference<Throwable>();
+        final AtomicReference<Thread> other = new AtomicReference<Thread>();
+        sw2.write(aFm2);
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                // B is submitted while A is being written, so the same
+                // drain writes both
+                other.set(submitQueued(b, error));
+                return null;
+            }
+        });
+        sw2.flush();
+        sw1.write(aFm1);
+        sw1.write(aPo);
+        sw1.flush();
+        sw1.write(bFm1);
+        sw1.flush();
+        sw2.write(bFm2);
+        sw2.write(bPo);
+        sw2.flush();
+        control.replay();
+
+        installer.submit(a);
+        other.get().join();
+        assertNull(error.get());
+        control.verify();
+        assertEquals(1, installer.getDrains());
+        assertEquals(2, installer.getInstallLatency().getCount());
+    }
+
+    @Test
+    public void testWriteFailure() throws Exception {
+        final OFMessage fm1 = flowMod(1);
+        OFMessage fm2 = flowMod(2);
+        final RouteInstaller.Batch a = new RouteInstaller.Batch(false);
+        a.add(sw1, fm1);
+        final RouteInstaller.Batch b = new RouteInstaller.Batch(false);
+        b.add(sw2, fm2);
+
+        final AtomicReference<Throwable> error =
+                new AtomicReference<Throwable>();
+        final AtomicReference<Thread> other = new AtomicReference<Thread>();
+        final RuntimeException failure = new RuntimeException("test");
+        sw1.write(fm1);
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                other.set(submitQueued(b, error));
+                throw failure;
+            }
+        });
+        sw2.write(fm2);
+        expectLastCall().once();
+        replay(sw1, sw2);
+
+        // the failure is reported to the route's submitter only, and the
+        // routes queued behind it are still written
+        try {
+            installer.submit(a);
+            fail("Expected the write failure");
+        } catch (RuntimeException e) {
+            assertSame(failure, e);
+        }
+        other.get().join();
+        assertNull(error.get());
+        verify(sw1, sw2);
+        assertEquals(1, installer.getMessagesWritten());
+    }
+}
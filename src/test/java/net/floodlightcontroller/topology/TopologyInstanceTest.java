@@ -33,6 +33,9 @@ import net.floodlightcontroller.debugevent.IDebugEventService;
 import net.floodlightcontroller.debugevent.MockDebugEventService;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscovery;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.routing.BroadcastTree;
+import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.routing.Route;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.NodePortTuple;
 import net.floodlightcontroller.topology.TopologyInstance;
@@ -43,6 +46,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.projectfloodlight.openflow.types.DatapathId;
 import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.U64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -432,6 +436,136 @@ public class TopologyInstanceTest {
         }
     }
 
+    protected void verifyCosts(int[][] costs) {
+        TopologyInstance ti = topologyManager.getCurrentInstance(true);
+        for (int i = 0; i < costs.length; i++) {
+            for (int j = 0; j < costs[i].length; j++) {
+                assertEquals(costs[i][j], ti.getCost(DatapathId.of(i + 1),
+                                                     DatapathId.of(j + 1)));
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalShortestPathTrees() throws Exception {
+        // A bidirectional ring 1-2-3-4-1 with a chord 1-3
+        int [][] linkArray = {
+                              {1, 1, 2, 1, DIRECT_LINK},
+                              {2, 1, 1, 1, DIRECT_LINK},
+                              {2, 2, 3, 1, DIRECT_LINK},
+                              {3, 1, 2, 2, DIRECT_LINK},
+                              {3, 2, 4, 1, DIRECT_LINK},
+                              {4, 1, 3, 2, DIRECT_LINK},
+                              {4, 2, 1, 2, DIRECT_LINK},
+                              {1, 2, 4, 2, DIRECT_LINK},
+                              {1, 3, 3, 3, DIRECT_LINK},
+                              {3, 3, 1, 3, DIRECT_LINK},
+        };
+        createTopologyFromLinks(linkArray);
+        int [][] costs = {
+                          {0, 1, 1, 1},
+                          {1, 0, 1, 2},
+                          {1, 1, 0, 1},
+                          {1, 2, 1, 0},
+        };
+        verifyCosts(costs);
+
+        // Removing the chord only affects trees that used it
+        topologyManager.removeLink(DatapathId.of(1), OFPort.of(3), DatapathId.of(3), OFPort.of(3));
+        topologyManager.removeLink(DatapathId.of(3), OFPort.of(3), DatapathId.of(1), OFPort.of(3));
+        topologyManager.createNewInstance();
+        int [][] costsWithoutChord = {
+                                      {0, 1, 2, 1},
+                                      {1, 0, 1, 2},
+                                      {2, 1, 0, 1},
+                                      {1, 2, 1, 0},
+        };
+        verifyCosts(costsWithoutChord);
+        Route r = topologyManager.getCurrentInstance(true)
+                .getRoute(DatapathId.of(1), DatapathId.of(3), U64.of(0));
+        assertEquals(4, r.getPath().size());
+
+        // Adding it back shortens the paths again
+        int [][] chord = {
+                          {1, 3, 3, 3, DIRECT_LINK},
+                          {3, 3, 1, 3, DIRECT_LINK},
+        };
+        createTopologyFromLinks(chord);
+        verifyCosts(costs);
+        r = topologyManager.getCurrentInstance(true)
+                .getRoute(DatapathId.of(1), DatapathId.of(3), U64.of(0));
+        assertEquals(2, r.getPath().size());
+    }
+
+    /**
+     * A switch reached at the same cost through two neighbors hangs off the
+     * one with the lower DPID, even when the DPIDs are more than 2^31 apart
+     */
+    @Test
+    public void testClusterGraphTieBreak() throws Exception {
+        DatapathId root = DatapathId.of(10);
+        DatapathId low = DatapathId.of(1);
+        DatapathId high = DatapathId.of(1L << 40);
+        DatapathId leaf = DatapathId.of(20);
+        Cluster c = new Cluster();
+        c.addLink(new Link(root, OFPort.of(1), low, OFPort.of(1)));
+        c.addLink(new Link(root, OFPort.of(2), high, OFPort.of(1)));
+        c.addLink(new Link(low, OFPort.of(2), leaf, OFPort.of(1)));
+        c.addLink(new Link(high, OFPort.of(2), leaf, OFPort.of(2)));
+
+        BroadcastTree tree = new ClusterGraph(c, null, false).dijkstra(root);
+        assertEquals(2, tree.getCost(leaf));
+        assertEquals(low, tree.getTreeLink(leaf).getSrc());
+    }
+
+    @Test
+    public void testMultipathRoutes() throws Exception {
+        // Two leaves 1 and 2 connected through spines 3, 4 and 5, plus a
+        // longer path 1-6-7-2
+        int [][] linkArray = {
+                              {1, 3, 3, 1, DIRECT_LINK},
+                              {3, 1, 1, 3, DIRECT_LINK},
+                              {1, 4, 4, 1, DIRECT_LINK},
+                              {4, 1, 1, 4, DIRECT_LINK},
+                              {1, 5, 5, 1, DIRECT_LINK},
+                              {5, 1, 1, 5, DIRECT_LINK},
+                              {2, 3, 3, 2, DIRECT_LINK},
+                              {3, 2, 2, 3, DIRECT_LINK},
+                              {2, 4, 4, 2, DIRECT_LINK},
+                              {4, 2, 2, 4, DIRECT_LINK},
+                              {2, 5, 5, 2, DIRECT_LINK},
+                              {5, 2, 2, 5, DIRECT_LINK},
+                              {1, 6, 6, 1, DIRECT_LINK},
+                              {6, 1, 1, 6, DIRECT_LINK},
+                              {6, 7, 7, 6, DIRECT_LINK},
+                              {7, 6, 6, 7, DIRECT_LINK},
+                              {7, 2, 2, 7, DIRECT_LINK},
+                              {2, 7, 7, 2, DIRECT_LINK},
+        };
+        createTopologyFromLinks(linkArray);
+        TopologyInstance ti = topologyManager.getCurrentInstance(true);
+
+        List<Route> routes = ti.getRoutes(DatapathId.of(1), DatapathId.of(2));
+        assertEquals(4, routes.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(3, routes.get(i).getRouteCount());
+            assertEquals(4, routes.get(i).getPath().size());
+        }
+        assertEquals(6, routes.get(3).getPath().size());
+
+        // Different cookies spread over all three equal cost paths
+        Set<Route> used = new HashSet<Route>();
+        for (int i = 1; i <= 100; i++) {
+            Route r = ti.getRoute(DatapathId.of(1), DatapathId.of(2), U64.of(i));
+            assertEquals(4, r.getPath().size());
+            used.add(r);
+        }
+        assertEquals(3, used.size());
+        // and the same cookie always picks the same one
+        assertEquals(ti.getRoute(DatapathId.of(1), DatapathId.of(2), U64.of(42)),
+                     ti.getRoute(DatapathId.of(1), DatapathId.of(2), U64.of(42)));
+    }
+
     @Test
     public void testLinkRemovalOnBroadcastDomainPorts() throws Exception {
         {
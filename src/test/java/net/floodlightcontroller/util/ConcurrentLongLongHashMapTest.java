@@ -0,0 +1,136 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ConcurrentLongLongHashMapTest {
+    @Test
+    public void testBasic() {
+        ConcurrentLongLongHashMap map = new ConcurrentLongLongHashMap();
+        assertEquals(ConcurrentLongLongHashMap.NO_VALUE, map.get(1));
+        assertEquals(ConcurrentLongLongHashMap.NO_VALUE, map.put(1, 10));
+        assertEquals(10, map.put(1, 11));
+        assertEquals(11, map.putIfAbsent(1, 12));
+        assertEquals(11, map.get(1));
+        assertFalse(map.remove(1, 12));
+        assertTrue(map.remove(1, 11));
+        assertEquals(ConcurrentLongLongHashMap.NO_VALUE, map.get(1));
+        assertEquals(0, map.size());
+    }
+
+    /**
+     * Compare against a HashMap over enough keys to make the tables grow,
+     * wrap around and shrink again
+     */
+    @Test
+    public void testRandomOperations() {
+        ConcurrentLongLongHashMap map = new ConcurrentLongLongHashMap();
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random r = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            long key = r.nextInt(5000);
+            long value = r.nextInt(100);
+            switch (r.nextInt(3)) {
+                case 0:
+                    Long old = expected.put(key, value);
+                    assertEquals(old == null ?
+                            ConcurrentLongLongHashMap.NO_VALUE : old,
+                            map.put(key, value));
+                    break;
+                case 1:
+                    old = expected.remove(key);
+                    assertEquals(old == null ?
+                            ConcurrentLongLongHashMap.NO_VALUE : old,
+                            map.remove(key));
+                    break;
+                default:
+                    old = expected.get(key);
+                    assertEquals(old == null ?
+                            ConcurrentLongLongHashMap.NO_VALUE : old,
+                            map.get(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+
+        long[] values = map.values();
+        long[] expectedValues = new long[expected.size()];
+        int i = 0;
+        for (Long v : expected.values()) {
+            expectedValues[i++] = v;
+        }
+        Arrays.sort(values);
+        Arrays.sort(expectedValues);
+        assertArrayEquals(expectedValues, values);
+
+        for (Long key : new HashSet<Long>(expected.keySet())) {
+            assertEquals(expected.remove(key).longValue(), map.remove(key));
+        }
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testMultiMap() {
+        ConcurrentLongMultiHashMap map = new ConcurrentLongMultiHashMap();
+        assertEquals(0, map.get(1).length);
+        assertTrue(map.add(1, 10));
+        assertFalse(map.add(1, 10));
+        assertTrue(map.add(1, 11));
+        assertTrue(map.add(2, 10));
+        long[] values = map.get(1);
+        Set<Long> s = new HashSet<Long>();
+        for (long v : values) {
+            s.add(v);
+        }
+        assertEquals(new HashSet<Long>(Arrays.asList(10L, 11L)), s);
+        assertEquals(3, map.values().length);
+
+        assertFalse(map.remove(1, 12));
+        assertTrue(map.remove(1, 10));
+        assertArrayEquals(new long[] { 11 }, map.get(1));
+        // the array returned before is not changed
+        assertEquals(2, values.length);
+        assertTrue(map.remove(1, 11));
+        assertEquals(1, map.size());
+        assertTrue(map.removeAll(2));
+        assertEquals(0, map.size());
+
+        for (int i = 0; i < 10000; i++) {
+            map.add(i, i);
+            map.add(i, i + 1);
+        }
+        assertEquals(10000, map.size());
+        assertEquals(20000, map.values().length);
+        for (int i = 0; i < 10000; i++) {
+            assertArrayEquals(new long[] { i, i + 1 }, map.get(i));
+            map.removeAll(i);
+        }
+        assertEquals(0, map.size());
+    }
+}
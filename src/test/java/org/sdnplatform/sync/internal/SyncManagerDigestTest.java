@@ -0,0 +1,19 @@
+package org.sdnplatform.sync.internal;
+
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+
+import org.sdnplatform.sync.internal.config.Node;
+
+/**
+ * Run the {@link SyncManagerTest} tests with antientropy exchanging store
+ * digests before offering keys
+ */
+public class SyncManagerDigestTest extends SyncManagerTest {
+    @Override
+    protected void setupSyncManager(FloodlightModuleContext fmc,
+                                    SyncManager syncManager, Node thisNode)
+            throws Exception {
+        fmc.addConfigParam(syncManager, "digestAntientropyEnabled", "true");
+        super.setupSyncManager(fmc, syncManager, thisNode);
+    }
+}
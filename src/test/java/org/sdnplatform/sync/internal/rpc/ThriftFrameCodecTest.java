@@ -0,0 +1,115 @@
+package org.sdnplatform.sync.internal.rpc;
+
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.UpstreamChannelStateEvent;
+import org.junit.Test;
+import org.sdnplatform.sync.ISyncService.Scope;
+import org.sdnplatform.sync.thrift.SyncMessage;
+
+public class ThriftFrameCodecTest {
+
+    private static SyncMessage digestMessage(int buckets) {
+        SyncMessage bsm =
+                TProtocolUtil.getTSyncDigestMessage("store", Scope.GLOBAL,
+                                                    false);
+        Long[] digests = new Long[buckets];
+        Arrays.fill(digests, 0L);
+        digests[0] = 42L;
+        bsm.getSyncDigest().setDigests(Arrays.asList(digests));
+        return bsm;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<SyncMessage> roundTrip(ThriftFrameEncoder encoder,
+                                               ThriftFrameDecoder decoder,
+                                               SyncMessage... messages)
+                                                       throws Exception {
+        ChannelBuffer wire = ChannelBuffers.dynamicBuffer();
+        for (SyncMessage m : messages) {
+            wire.writeBytes((ChannelBuffer)encoder.encode(null, null, m));
+        }
+        int size = wire.readableBytes();
+        List<SyncMessage> result =
+                (List<SyncMessage>)decoder.decode(null, null, wire);
+        assertFalse(wire.readable());
+        assertTrue(size > 0);
+        return result;
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws Exception {
+        SyncMessage small = digestMessage(4);
+        SyncMessage large = digestMessage(1024);
+        ThriftFrameDecoder decoder = new ThriftFrameDecoder(512 * 1024);
+
+        List<SyncMessage> ms =
+                roundTrip(new ThriftFrameEncoder(true, null, null),
+                          decoder, small, large, small);
+        assertEquals(Arrays.asList(small, large, small), ms);
+
+        // the decoder accepts uncompressed frames as well
+        ms = roundTrip(new ThriftFrameEncoder(), decoder, large);
+        assertEquals(Arrays.asList(large), ms);
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        SyncMessage large = digestMessage(1024);
+        int plain = ((ChannelBuffer)new ThriftFrameEncoder()
+                .encode(null, null, large)).readableBytes();
+        int compressed = ((ChannelBuffer)new ThriftFrameEncoder(true, null, null)
+                .encode(null, null, large)).readableBytes();
+        assertTrue(compressed < plain / 10);
+
+        // small frames are left alone
+        SyncMessage small = digestMessage(4);
+        assertEquals(((ChannelBuffer)new ThriftFrameEncoder()
+                         .encode(null, null, small)).readableBytes(),
+                     ((ChannelBuffer)new ThriftFrameEncoder(true, null, null)
+                         .encode(null, null, small)).readableBytes());
+    }
+
+    @Test
+    public void testDeflaterEndedOnClose() throws Exception {
+        SyncMessage large = digestMessage(1024);
+        ThriftFrameEncoder encoder = new ThriftFrameEncoder(true, null, null);
+        int plain = ((ChannelBuffer)new ThriftFrameEncoder()
+                .encode(null, null, large)).readableBytes();
+
+        Channel channel = createMock(Channel.class);
+        ChannelHandlerContext ctx = createMock(ChannelHandlerContext.class);
+        ChannelEvent closed =
+                new UpstreamChannelStateEvent(channel, ChannelState.OPEN,
+                                              Boolean.FALSE);
+        ctx.sendUpstream(closed);
+        replay(channel, ctx);
+        encoder.handleUpstream(ctx, closed);
+        verify(ctx);
+
+        // messages encoded after the close are not compressed
+        assertEquals(plain, ((ChannelBuffer)encoder
+                .encode(null, null, large)).readableBytes());
+    }
+
+    @Test(expected = org.jboss.netty.handler.codec.frame
+                        .CorruptedFrameException.class)
+    public void testOversizedFrame() throws Exception {
+        ChannelBuffer frame =
+                (ChannelBuffer)new ThriftFrameEncoder(true, null, null)
+                    .encode(null, null, digestMessage(1024));
+        // a decoder with a smaller maximum frame size rejects the frame
+        // once it finds out its uncompressed length
+        new ThriftFrameDecoder(1024).decode(null, null, frame);
+    }
+}
@@ -18,15 +18,26 @@ package org.sdnplatform.sync.internal.store;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Before;
+import org.junit.Test;
+import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.IVersion.Occurred;
 import org.sdnplatform.sync.internal.TUtils;
 import org.sdnplatform.sync.internal.store.IStorageEngine;
 import org.sdnplatform.sync.internal.store.InMemoryStorageEngine;
 import org.sdnplatform.sync.internal.util.ByteArray;
+import org.sdnplatform.sync.internal.version.VectorClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
 
 
 public class InMemoryStorageEngineTest extends AbstractStorageEngineT {
+    protected static Logger logger =
+            LoggerFactory.getLogger(InMemoryStorageEngineTest.class);
 
     private IStorageEngine<ByteArray, byte[]> store;
 
@@ -48,4 +59,99 @@ public class InMemoryStorageEngineTest extends AbstractStorageEngineT {
         return keys;
     }
 
+    /**
+     * Hammer a few keys with writers on different nodes and readers at
+     * the same time.  Each writer keeps its own clock for every key, so
+     * its versions supersede its own earlier ones and are concurrent with
+     * those of the other writers.  The throughput is logged.
+     */
+    @Test
+    public void testContendedPutGet() throws Exception {
+        final int writers = 4;
+        final int readers = 4;
+        final int keys = 4;
+        final int puts = 20000;
+        final InMemoryStorageEngine<ByteArray, byte[]> engine =
+                new InMemoryStorageEngine<ByteArray, byte[]>("test");
+        final AtomicReference<Throwable> error =
+                new AtomicReference<Throwable>();
+        final ByteArray[] keyArray = new ByteArray[keys];
+        for (int k = 0; k < keys; k++) {
+            keyArray[k] = new ByteArray((byte)k);
+        }
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < writers; t++) {
+            final int nodeId = t + 1;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        VectorClock[] clocks = new VectorClock[keys];
+                        for (int k = 0; k < keys; k++) {
+                            clocks[k] = new VectorClock();
+                        }
+                        for (int i = 0; i < puts; i++) {
+                            int k = i % keys;
+                            clocks[k] = clocks[k].incremented(nodeId, 1);
+                            engine.put(keyArray[k],
+                                       new Versioned<byte[]>(new byte[] {1},
+                                                             clocks[k]));
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            });
+        }
+        final int gets = puts * 2;
+        for (int t = 0; t < readers; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < gets; i++) {
+                            List<Versioned<byte[]>> vs =
+                                    engine.get(keyArray[i % keys]);
+                            assertTrue(vs.size() <= writers);
+                            // no version supersedes another
+                            for (Versioned<byte[]> v1 : vs) {
+                                for (Versioned<byte[]> v2 : vs) {
+                                    if (v1 == v2) continue;
+                                    assertEquals(Occurred.CONCURRENTLY,
+                                                 v1.getVersion().
+                                                 compare(v2.getVersion()));
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsedNs = System.nanoTime() - start;
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+
+        for (int k = 0; k < keys; k++) {
+            List<Versioned<byte[]>> vs = engine.get(keyArray[k]);
+            assertEquals(writers, vs.size());
+            for (Versioned<byte[]> v : vs) {
+                assertEquals(puts / keys,
+                             ((VectorClock)v.getVersion()).getMaxVersion());
+            }
+        }
+        logger.info("{} puts and {} gets on {} keys in {} us",
+                    new Object[] { writers * puts, readers * gets, keys,
+                                   elapsedNs / 1000 });
+    }
 }
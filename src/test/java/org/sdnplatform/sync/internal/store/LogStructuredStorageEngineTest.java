@@ -0,0 +1,294 @@
+package org.sdnplatform.sync.internal.store;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.ConnectionPoolDataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.internal.TUtils;
+import org.sdnplatform.sync.internal.util.ByteArray;
+import org.sdnplatform.sync.internal.version.VectorClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+import static org.sdnplatform.sync.internal.TUtils.*;
+
+
+public class LogStructuredStorageEngineTest extends AbstractStorageEngineT {
+    protected static Logger logger =
+            LoggerFactory.getLogger(LogStructuredStorageEngineTest.class);
+
+    @Rule
+    public TemporaryFolder dbFolder = new TemporaryFolder();
+
+    private LogStructuredStorageEngine store;
+
+    @Before
+    public void setUp() throws Exception {
+        this.store = new LogStructuredStorageEngine("test",
+                                                    dbFolder.getRoot());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.store.close();
+        this.store = null;
+    }
+
+    @Override
+    public IStorageEngine<ByteArray, byte[]> getStorageEngine() {
+        return store;
+    }
+
+    @Override
+    public List<ByteArray> getKeys(int numKeys) {
+        List<ByteArray> keys = new ArrayList<ByteArray>(numKeys);
+        for(int i = 0; i < numKeys; i++)
+            keys.add(new ByteArray(TUtils.randomBytes(10)));
+        return keys;
+    }
+
+    private static ByteArray key(int i) {
+        return new ByteArray(("key" + i).getBytes());
+    }
+
+    private static Versioned<byte[]> value(int v, VectorClock clock) {
+        return new Versioned<byte[]>(new byte[] {(byte)v, 1, 2, 3}, clock);
+    }
+
+    private void reopen(int segmentSize) throws Exception {
+        open(store.getName(), segmentSize);
+    }
+
+    private void open(String name, int segmentSize) throws Exception {
+        store.close();
+        store = new LogStructuredStorageEngine(name, dbFolder.getRoot(),
+                                               segmentSize);
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            store.put(key(i), value(i, getClock(1)));
+        }
+        store.put(key(1), value(42, getClock(1, 1)));
+        // concurrent versions are kept together
+        store.put(key(2), value(43, getClock(2)));
+        // a removed tombstone must not bring back the older value
+        store.put(key(3), new Versioned<byte[]>(null, getClock(1, 1)));
+        store.setTombstoneInterval(-1);
+        store.cleanupTask();
+
+        reopen(LogStructuredStorageEngine.DEFAULT_SEGMENT_SIZE);
+        assertEquals(99, store.size());
+        assertEquals(42, store.get(key(1)).get(0).getValue()[0]);
+        assertEquals(2, store.get(key(2)).size());
+        assertEquals(0, store.get(key(3)).size());
+        assertEquals(4, store.get(key(4)).get(0).getValue()[0]);
+
+        // writes after recovery go after the recovered records
+        store.put(key(1), value(44, getClock(1, 1, 1)));
+        reopen(LogStructuredStorageEngine.DEFAULT_SEGMENT_SIZE);
+        assertEquals(44, store.get(key(1)).get(0).getValue()[0]);
+    }
+
+    @Test
+    public void testTornWrite() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            store.put(key(i), value(i, getClock(1)));
+        }
+        long end = store.getLogBytes();
+        store.put(key(10), value(10, getClock(1)));
+        store.close();
+
+        // corrupt the last record as a crash in the middle of writing it
+        // would
+        File segment = new File(new File(dbFolder.getRoot(), "test"),
+                                String.format("%016x.log", 0));
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(end + 12);
+            raf.write(0xff);
+        } finally {
+            raf.close();
+        }
+
+        reopen(LogStructuredStorageEngine.DEFAULT_SEGMENT_SIZE);
+        assertEquals(10, store.size());
+        assertEquals(0, store.get(key(10)).size());
+        assertEquals(end, store.getLogBytes());
+
+        // the garbage is not mistaken for a record after a shorter write
+        store.put(key(11), new Versioned<byte[]>(new byte[0], getClock(1)));
+        reopen(LogStructuredStorageEngine.DEFAULT_SEGMENT_SIZE);
+        assertEquals(11, store.size());
+        assertEquals(0, store.get(key(10)).size());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        open("small", 4096);
+        byte[] big = new byte[100];
+        VectorClock clock = getClock(1);
+        for (int round = 0; round < 20; round++) {
+            clock = clock.incremented(1, System.currentTimeMillis());
+            for (int i = 0; i < 10; i++) {
+                store.put(key(i), new Versioned<byte[]>(big, clock));
+            }
+        }
+        assertTrue(store.getSegmentCount() > 5);
+        long live = store.getLiveBytes();
+        assertTrue(store.getLogBytes() > 10 * live);
+
+        store.cleanupTask();
+        assertEquals(live, store.getLiveBytes());
+        assertEquals(live, store.getLogBytes());
+        assertTrue(store.getSegmentCount() <= 2);
+        // the compacted segments are deleted
+        File dir = new File(dbFolder.getRoot(), "small");
+        assertEquals(store.getSegmentCount(), dir.list().length);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(clock, store.get(key(i)).get(0).getVersion());
+        }
+
+        reopen(4096);
+        assertEquals(10, store.size());
+        assertEquals(live, store.getLogBytes());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(clock, store.get(key(i)).get(0).getVersion());
+        }
+    }
+
+    @Test
+    public void testReadDuringCompaction() throws Exception {
+        open("small", 4096);
+        final byte[] big = new byte[100];
+        for (int i = 0; i < 10; i++) {
+            store.put(key(i), new Versioned<byte[]>(big, getClock(1)));
+        }
+        final LogStructuredStorageEngine reading = store;
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> error = 
+                new AtomicReference<Throwable>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        for (int i = 0; i < 10; i++) {
+                            List<Versioned<byte[]>> v = 
+                                    reading.get(key(i));
+                            // a truncate may have removed the key
+                            if (v.size() > 0)
+                                assertArrayEquals(big, v.get(0).getValue());
+                        }
+                    }
+                } catch (Throwable t) {
+                    error.set(t);
+                }
+            }
+        };
+        reader.start();
+        try {
+            VectorClock clock = getClock(1);
+            for (int round = 0; round < 50; round++) {
+                clock = clock.incremented(1, System.currentTimeMillis());
+                for (int i = 0; i < 10; i++) {
+                    store.put(key(i), new Versioned<byte[]>(big, clock));
+                }
+                if (round % 10 == 9)
+                    store.truncate();
+                else
+                    store.cleanupTask();
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+        assertNull(error.get());
+    }
+
+    @Test
+    public void testLargeValue() throws Exception {
+        open("small", 4096);
+        byte[] big = new byte[10000];
+        Arrays.fill(big, (byte)7);
+        store.put(key(1), new Versioned<byte[]>(big, getClock(1)));
+        store.put(key(2), value(2, getClock(1)));
+        reopen(4096);
+        assertArrayEquals(big, store.get(key(1)).get(0).getValue());
+        assertEquals(2, store.get(key(2)).get(0).getValue()[0]);
+    }
+
+    @Test
+    public void testTruncate() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            store.put(key(i), value(i, getClock(1)));
+        }
+        store.truncate();
+        assertEquals(0, store.size());
+        assertEquals(0, store.getLogBytes());
+        reopen(LogStructuredStorageEngine.DEFAULT_SEGMENT_SIZE);
+        assertEquals(0, store.size());
+    }
+
+    /**
+     * Compare the write, read and reload times of the log with those of the
+     * Java DB engine.  Only the results are checked; the timings are
+     * logged.
+     */
+    @Test
+    public void testBenchmarkAgainstJavaDB() throws Exception {
+        int keys = 2000;
+        ConnectionPoolDataSource dataSource =
+                JavaDBStorageEngine.getDataSource(null, true);
+        JavaDBStorageEngine jdb =
+                new JavaDBStorageEngine("benchmark", dataSource);
+        try {
+            long[] jdbNs = runBenchmark(jdb, keys);
+            long[] logNs = runBenchmark(store, keys);
+
+            long start = System.nanoTime();
+            reopen(LogStructuredStorageEngine.DEFAULT_SEGMENT_SIZE);
+            long reloadNs = System.nanoTime() - start;
+            assertEquals(keys, store.size());
+
+            logger.info("{} keys: Java DB put {} us, get {} us; " +
+                        "log put {} us, get {} us, reload {} us",
+                        new Object[] { keys, jdbNs[0] / 1000, jdbNs[1] / 1000,
+                                       logNs[0] / 1000, logNs[1] / 1000,
+                                       reloadNs / 1000 });
+        } finally {
+            jdb.truncate();
+        }
+    }
+
+    private static long[] runBenchmark(IStorageEngine<ByteArray, byte[]> s,
+                                       int keys) throws Exception {
+        VectorClock clock = getClock(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            s.put(key(i), value(i, clock));
+        }
+        long putNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            assertEquals((byte)i, s.get(key(i)).get(0).getValue()[0]);
+        }
+        long getNs = System.nanoTime() - start;
+        return new long[] { putNs, getNs };
+    }
+}
@@ -0,0 +1,180 @@
+package org.sdnplatform.sync.internal.store;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.sdnplatform.sync.IClosableIterator;
+import org.sdnplatform.sync.IVersion;
+import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.ISyncService.Scope;
+import org.sdnplatform.sync.internal.util.ByteArray;
+import org.sdnplatform.sync.internal.version.VectorClock;
+
+public class StoreDigestTest {
+
+    private static ByteArray key(int i) {
+        return new ByteArray(("key" + i).getBytes());
+    }
+
+    private static VectorClock clock(int nodeId, int version) {
+        VectorClock vc = new VectorClock(1);
+        for (int i = 0; i < version; i++)
+            vc = vc.incremented(nodeId, 1);
+        return vc;
+    }
+
+    private static List<IVersion> versions(IVersion... vs) {
+        List<IVersion> l = new ArrayList<IVersion>();
+        Collections.addAll(l, vs);
+        return l;
+    }
+
+    @Test
+    public void testIncremental() {
+        StoreDigest d1 = new StoreDigest(64);
+        StoreDigest d2 = new StoreDigest(64);
+        for (int i = 0; i < 100; i++) {
+            d1.update(key(i), null, versions(clock(1, 1)));
+        }
+        // the same versions in another order, with an intermediate version
+        for (int i = 99; i >= 0; i--) {
+            d2.update(key(i), null, versions(clock(2, 1)));
+            d2.update(key(i), versions(clock(2, 1)), versions(clock(1, 1)));
+        }
+        assertEquals(d1.getDigests(), d2.getDigests());
+        assertEquals(0, d1.diff(d2.getDigests()).size());
+
+        // a newer version of one key changes exactly its bucket
+        d2.update(key(42), versions(clock(1, 1)), versions(clock(1, 2)));
+        List<Integer> diff = d1.diff(d2.getDigests());
+        assertEquals(Collections.singletonList(d1.getBucket(key(42))), diff);
+
+        // concurrent versions are hashed independently of their order
+        d1.update(key(42), versions(clock(1, 1)),
+                  versions(clock(1, 2), clock(2, 1)));
+        d2.update(key(42), versions(clock(1, 2)),
+                  versions(clock(2, 1), clock(1, 2)));
+        assertEquals(0, d1.diff(d2.getDigests()).size());
+
+        // removing all the keys gives the digest of an empty store
+        for (int i = 0; i < 100; i++) {
+            List<IVersion> vs = (i == 42) ?
+                    versions(clock(1, 2), clock(2, 1)) :
+                    versions(clock(1, 1));
+            d1.update(key(i), vs, null);
+        }
+        assertEquals(new StoreDigest(64).getDigests(), d1.getDigests());
+
+        // digests of a different size can't be compared
+        assertNull(d1.diff(new StoreDigest(128).getDigests()));
+        d1.invalidate();
+        assertNull(d1.diff(d2.getDigests()));
+        d1.clear();
+        assertTrue(d1.isValid());
+    }
+
+    @Test
+    public void testStorageEngine() throws Exception {
+        InMemoryStorageEngine<ByteArray, byte[]> local =
+                new InMemoryStorageEngine<ByteArray, byte[]>("test");
+        SynchronizingStorageEngine store =
+                new SynchronizingStorageEngine(local, null, null,
+                                               Scope.UNSYNCHRONIZED);
+        for (int i = 0; i < 50; i++) {
+            store.put(key(i), new Versioned<byte[]>(new byte[] {1},
+                                                    clock(1, 1)));
+        }
+        store.put(key(1), new Versioned<byte[]>(new byte[] {2},
+                                                clock(1, 2)));
+        // a tombstone
+        store.put(key(2), new Versioned<byte[]>(null, clock(1, 2)));
+        List<Versioned<byte[]>> remote = new ArrayList<Versioned<byte[]>>();
+        remote.add(new Versioned<byte[]>(new byte[] {3}, clock(2, 1)));
+        assertTrue(store.writeSyncValue(key(3), remote));
+        assertTrue(store.writeSyncValue(key(100), remote));
+
+        StoreDigest rebuilt = new StoreDigest();
+        rebuilt.rebuild(local);
+        assertEquals(rebuilt.getDigests(), store.getDigest().getDigests());
+
+        // the cleanup removes the old tombstone behind the digest's back
+        store.cleanupTask();
+        assertEquals(0, local.get(key(2)).size());
+        rebuilt.rebuild(local);
+        assertEquals(rebuilt.getDigests(), store.getDigest().getDigests());
+
+        store.truncate();
+        assertEquals(new StoreDigest().getDigests(),
+                     store.getDigest().getDigests());
+    }
+
+    /**
+     * Writes go on while a rebuild scans the store, and are not lost
+     */
+    @Test
+    public void testWriteDuringRebuild() throws Exception {
+        final List<Runnable> duringScan = new ArrayList<Runnable>();
+        InMemoryStorageEngine<ByteArray, byte[]> local =
+                new InMemoryStorageEngine<ByteArray, byte[]>("test") {
+            @Override
+            public IClosableIterator<Entry<ByteArray,
+                                           List<Versioned<byte[]>>>>
+                    entries() {
+                for (Runnable r : duringScan) {
+                    r.run();
+                }
+                return super.entries();
+            }
+        };
+        final SynchronizingStorageEngine store =
+                new SynchronizingStorageEngine(local, null, null,
+                                               Scope.UNSYNCHRONIZED);
+        for (int i = 0; i < 50; i++) {
+            store.put(key(i), new Versioned<byte[]>(new byte[] {1},
+                                                    clock(1, 1)));
+        }
+
+        final AtomicReference<Exception> error =
+                new AtomicReference<Exception>();
+        duringScan.add(new Runnable() {
+            @Override
+            public void run() {
+                Thread writer = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 100; i += 2) {
+                                store.put(key(i), new Versioned<byte[]>(
+                                        new byte[] {2}, clock(1, 2)));
+                            }
+                        } catch (Exception e) {
+                            error.set(e);
+                        }
+                    }
+                };
+                writer.start();
+                try {
+                    writer.join(10000);
+                } catch (InterruptedException e) {
+                    error.set(e);
+                }
+                // the scan must not keep writers out
+                assertFalse(writer.isAlive());
+            }
+        });
+        store.cleanupTask();
+        assertNull(error.get());
+        duringScan.clear();
+
+        assertTrue(store.getDigest().isValid());
+        StoreDigest rebuilt = new StoreDigest();
+        rebuilt.rebuild(local);
+        assertEquals(rebuilt.getDigests(), store.getDigest().getDigests());
+    }
+}
@@ -19,10 +19,17 @@ package org.sdnplatform.sync.internal.version;
 import static org.junit.Assert.*;
 import static org.sdnplatform.sync.internal.TUtils.getClockT;
 
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
 import org.junit.Test;
 import org.sdnplatform.sync.IVersion.Occurred;
 import static org.sdnplatform.sync.internal.TUtils.*;
 
+import org.sdnplatform.sync.internal.rpc.TProtocolUtil;
 import org.sdnplatform.sync.internal.version.ClockEntry;
 import org.sdnplatform.sync.internal.version.VectorClock;
 
@@ -114,6 +121,89 @@ public class VectorClockTest {
                              clocks[n + 1].getEntries());
         }
     }
+
+    @Test
+    public void testUnsortedEntries() {
+        List<ClockEntry> entries =
+                Lists.newArrayList(new ClockEntry((short) 5, 2),
+                                   new ClockEntry((short) 1, 1));
+        VectorClock clock = new VectorClock(entries, 42);
+        assertEquals(getClockT(42, 1, 5, 5), clock);
+        assertEquals(1, clock.getNodeId(0));
+        assertEquals(2, clock.getVersion(1));
+        assertEquals("version(1:1, 5:2) ts:42", clock.toString());
+    }
+
+    @Test
+    public void testIncrementedDoesNotModify() {
+        VectorClock one = getClockT(1, 1, 3);
+        VectorClock two = one.incremented(3, 2);
+        VectorClock three = two.incremented(2, 3);
+        assertEquals(getClockT(1, 1, 3), one);
+        assertEquals(getClockT(2, 1, 3, 3), two);
+        assertEquals(getClockT(3, 1, 2, 3, 3), three);
+        assertEquals(Occurred.BEFORE, one.compare(two));
+        assertEquals(Occurred.AFTER, three.compare(two));
+    }
+
+    @Test
+    public void testPacked() throws Exception {
+        VectorClock[] clocks = {
+            getClock(),
+            getClock(0),
+            getClock(1, 1, 2, 300, 300),
+            getClock(Short.MAX_VALUE, 0),
+            new VectorClock(new short[] {7, 1000},
+                            new long[] {Long.MAX_VALUE, 1L << 40}, 5)
+        };
+        for (VectorClock clock : clocks) {
+            byte[] packed = clock.pack();
+            assertEquals(clock, VectorClock.unpack(packed,
+                                                   clock.getTimestamp()));
+        }
+        // two bytes per entry for small node ids and versions
+        assertEquals(6, getClock(1, 2, 3).pack().length);
+
+        byte[][] malformed = {
+            {1},            // truncated entry
+            {1, 0},         // version 0
+            {1, 1, 0, 1},   // repeated node id
+            {(byte)0xff, (byte)0xff, 3, 1}, // node id out of range
+        };
+        for (byte[] packed : malformed) {
+            try {
+                VectorClock.unpack(packed, 0);
+                fail("Expected exception for " + Arrays.toString(packed));
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testThriftEncodings() throws Exception {
+        VectorClock clock = getClockT(1234, 1, 1, 2, 40, 40, 40);
+        TSerializer ser = new TSerializer(new TCompactProtocol.Factory());
+        TDeserializer deser =
+                new TDeserializer(new TCompactProtocol.Factory());
+
+        byte[] list = ser.serialize(TProtocolUtil.getTVectorClock(clock));
+        TProtocolUtil.setPackedClocks(true);
+        byte[] packed;
+        try {
+            packed = ser.serialize(TProtocolUtil.getTVectorClock(clock));
+        } finally {
+            TProtocolUtil.setPackedClocks(false);
+        }
+        assertTrue(packed.length < list.length);
+
+        for (byte[] bytes : new byte[][] {list, packed}) {
+            org.sdnplatform.sync.thrift.VectorClock tvc =
+                    new org.sdnplatform.sync.thrift.VectorClock();
+            deser.deserialize(tvc, bytes);
+            assertEquals(clock, TProtocolUtil.getVersion(tvc));
+        }
+    }
 /*
     public void testIncrementAndSerialize() {
         int node = 1;